@@ -0,0 +1,61 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bump allocator over off-heap slabs (direct ByteBuffers). An allocation is addressed by a long:
+ * slab index in the high 32 bits, 8-byte aligned offset within the slab in the low 32 bits.
+ * Memory is never freed individually; the slabs go away with the arena.
+ */
+final class Arena {
+    private final int slabBytes;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];    // copy-on-grow, so readers never lock
+    private final AtomicLong cursor = new AtomicLong(-1L << 32); // (slab << 32) | next free offset; no slab yet
+    private final AtomicLong allocated = new AtomicLong();
+
+    Arena(int slabBytes) {
+        this.slabBytes = slabBytes;
+    }
+
+    /** Reserve size bytes and return their address; allocations larger than a slab get a slab of their own. */
+    long allocate(int size) {
+        while (true) {
+            long cur = cursor.get();
+            int slab = (int) (cur >> 32);
+            int offset = (int) cur;
+            int aligned = (offset + 7) & ~7;
+            if (slab >= 0 && (long) aligned + size <= slabs[slab].capacity()) {
+                if (cursor.compareAndSet(cur, ((long) slab << 32) | (aligned + size))) {
+                    allocated.addAndGet(aligned + size - offset);
+                    return ((long) slab << 32) | aligned;
+                }
+                continue;
+            }
+            synchronized (this) {
+                if (cursor.get() != cur) continue;      // someone else already moved on to a new slab
+                ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+                int capacity = Math.max(slabBytes, size);
+                // alignedSlice guarantees 8-byte aligned addresses for the VarHandle CAS on next pointers
+                grown[slabs.length] = ByteBuffer.allocateDirect(capacity + 8).alignedSlice(8).order(ByteOrder.nativeOrder());
+                slabs = grown;
+                cursor.set((long) (grown.length - 1) << 32);
+            }
+        }
+    }
+
+    ByteBuffer slab(long address) {
+        return slabs[(int) (address >> 32)];
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /** Bytes handed out so far, including alignment padding. */
+    long allocatedBytes() {
+        return allocated.get();
+    }
+}
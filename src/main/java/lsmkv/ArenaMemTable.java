@@ -0,0 +1,327 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Off-heap memtable: a lock-free concurrent skiplist whose nodes, keys and values all live in
+ * {@link Arena} slabs, so a large write buffer is a handful of direct buffers instead of millions
+ * of heap objects. Size accounting is the exact number of arena bytes used.
+ * <p>
+ * Node layout (8-byte aligned):
+ *   [ seq:8 | keyLen:4 | valLen:4 | flag:1 | height:1 | pad:6 | next:8 * height | key | value ]
+ * <p>
+ * Nodes are never unlinked. A key that is written again gets a new node; nodes are ordered by
+ * (key ascending, seq descending), so the first node of a key is its latest version. Inserts link
+ * each level with a CAS and re-search that level when they lose a race.
+ */
+final class ArenaMemTable implements MemTable {
+    private static final int MAX_HEIGHT = 12;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int SEQ = 0, KEY_LEN = 8, VAL_LEN = 12, FLAG = 16, HEIGHT = 17, NEXT = 24;
+    private static final long NIL = -1L;
+
+    private final Arena arena;
+    private final long head;
+    private final AtomicInteger maxHeight = new AtomicInteger(1);
+    private final RangeTombstoneList rangeTombstones = new RangeTombstoneList();
+
+    ArenaMemTable(int slabBytes) {
+        this.arena = new Arena(slabBytes);
+        this.head = arena.allocate(NEXT + 8 * MAX_HEIGHT);
+        ByteBuffer buf = arena.slab(head);
+        int base = Arena.offset(head);
+        buf.put(base + HEIGHT, (byte) MAX_HEIGHT);
+        for (int level = 0; level < MAX_HEIGHT; level++) LONGS.setRelease(buf, base + NEXT + 8 * level, NIL);
+    }
+
+    @Override
+    public void put(Entry entry) {
+        insert(entry.seq(), entry.flag(), entry.key(), entry.value());
+    }
+
+    @Override
+    public void apply(WriteBatch batch, long firstSeq) {
+        List<Entry> ops = batch.ops();
+        for (int i = 0; i < ops.size(); i++) {
+            Entry op = ops.get(i);
+            insert(firstSeq + i, op.flag(), op.key(), op.value());
+        }
+    }
+
+    // range tombstones are few and stay on the heap
+    @Override
+    public void deleteRange(RangeTombstone tombstone) {
+        rangeTombstones.add(tombstone);
+    }
+
+    @Override
+    public RangeTombstoneList rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Override
+    public int approxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, arena.allocatedBytes());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return next(head, 0) == NIL && rangeTombstones.isEmpty();
+    }
+
+    @Override
+    public Entry get(byte[] key, long snapshot) {
+        long node = findGreaterOrEqual(key, snapshot);
+        return node != NIL && compareKey(node, key) == 0 ? toEntry(node) : null;
+    }
+
+    /** Reads the value straight out of the arena; allocates nothing. */
+    @Override
+    public int get(byte[] key, byte[] valueOut) {
+        long node = findGreaterOrEqual(key, Long.MAX_VALUE);
+        if (node == NIL || compareKey(node, key) != 0) return Entry.NOT_FOUND;
+        ByteBuffer buf = arena.slab(node);
+        int base = Arena.offset(node);
+        if (buf.get(base + FLAG) == Entry.FLAG_DEL) return Entry.DELETED;
+        int vlen = buf.getInt(base + VAL_LEN);
+        buf.get(keyOffset(buf, base) + buf.getInt(base + KEY_LEN), valueOut, 0, Math.min(vlen, valueOut.length));
+        return vlen;
+    }
+
+    @Override
+    public EntryIterator iterator(boolean reverse) {
+        return new NodeIterator(reverse);
+    }
+
+    /** Streams keys and values straight from the arena slabs into the writer's block buffer. */
+    @Override
+    public void flushTo(SstWriter writer, long[] snapshots) throws IOException {
+        SnapshotRetention retention = new SnapshotRetention(snapshots);
+        long previous = NIL;
+        for (long node = next(head, 0); node != NIL; node = next(node, 0)) {
+            ByteBuffer buf = arena.slab(node);
+            int base = Arena.offset(node);
+            long seq = buf.getLong(base + SEQ);
+            boolean newKey = previous == NIL || !sameKey(node, previous);
+            previous = node;
+            if (!retention.keep(newKey, seq)) continue;
+            int klen = buf.getInt(base + KEY_LEN);
+            int keyOff = keyOffset(buf, base);
+            writer.add(seq, buf.get(base + FLAG), buf, keyOff, klen, buf, keyOff + klen, buf.getInt(base + VAL_LEN));
+        }
+        for (RangeTombstone tombstone : rangeTombstones.tombstones()) writer.addRangeTombstone(tombstone);
+    }
+
+    // ---- skiplist ----
+
+    private void insert(long seq, byte flag, byte[] key, byte[] value) {
+        int height = randomHeight();
+        int vlen = value == null ? 0 : value.length;
+        long node = arena.allocate(NEXT + 8 * height + key.length + vlen);
+        ByteBuffer buf = arena.slab(node);
+        int base = Arena.offset(node);
+        buf.putLong(base + SEQ, seq);
+        buf.putInt(base + KEY_LEN, key.length);
+        buf.putInt(base + VAL_LEN, vlen);
+        buf.put(base + FLAG, flag);
+        buf.put(base + HEIGHT, (byte) height);
+        buf.put(base + NEXT + 8 * height, key);
+        if (vlen > 0) buf.put(base + NEXT + 8 * height + key.length, value);
+
+        int top = maxHeight.get();
+        while (height > top && !maxHeight.compareAndSet(top, height)) top = maxHeight.get();
+
+        long[] prev = new long[MAX_HEIGHT];
+        long[] succ = new long[MAX_HEIGHT];
+        long x = head;
+        for (int level = Math.max(top, height) - 1; level >= 0; level--) x = find(x, level, key, seq, prev, succ);
+        for (int level = 0; level < height; level++) {
+            while (true) {
+                LONGS.setRelease(buf, base + NEXT + 8 * level, succ[level]);
+                ByteBuffer prevBuf = arena.slab(prev[level]);
+                if (LONGS.compareAndSet(prevBuf, Arena.offset(prev[level]) + NEXT + 8 * level, succ[level], node)) break;
+                // lost a race on this level: re-search it from the old predecessor
+                find(prev[level], level, key, seq, prev, succ);
+            }
+        }
+    }
+
+    /** Walk right from x on this level while the next node sorts before (key, seq). */
+    private long advance(long x, int level, byte[] key, long seq) {
+        while (true) {
+            long n = next(x, level);
+            if (n == NIL || compare(n, key, seq) >= 0) return x;
+            x = n;
+        }
+    }
+
+    /**
+     * Walk right from x on this level to the last node before (key, seq); it goes to prev[level] and
+     * the node that stopped the walk (or NIL) to succ[level]. Re-reading the predecessor's next
+     * pointer instead could pick up a node inserted since that sorts before (key, seq).
+     */
+    private long find(long x, int level, byte[] key, long seq, long[] prev, long[] succ) {
+        while (true) {
+            long n = next(x, level);
+            if (n == NIL || compare(n, key, seq) >= 0) {
+                prev[level] = x;
+                succ[level] = n;
+                return x;
+            }
+            x = n;
+        }
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(4) == 0) height++;
+        return height;
+    }
+
+    private long next(long node, int level) {
+        return (long) LONGS.getAcquire(arena.slab(node), Arena.offset(node) + NEXT + 8 * level);
+    }
+
+    /** First node at or after (key, seq), or NIL. */
+    private long findGreaterOrEqual(byte[] key, long seq) {
+        long x = head;
+        for (int level = maxHeight.get() - 1; level > 0; level--) x = advance(x, level, key, seq);
+        // the answer is the node that stops the walk, not x's next pointer read again (see find)
+        while (true) {
+            long n = next(x, 0);
+            if (n == NIL || compare(n, key, seq) >= 0) return n;
+            x = n;
+        }
+    }
+
+    /** Last node before (key, seq), or head. */
+    private long findLessThan(byte[] key, long seq) {
+        long x = head;
+        for (int level = maxHeight.get() - 1; level >= 0; level--) x = advance(x, level, key, seq);
+        return x;
+    }
+
+    private long findLast() {
+        long x = head;
+        for (int level = maxHeight.get() - 1; level >= 0; level--) {
+            for (long n = next(x, level); n != NIL; n = next(x, level)) x = n;
+        }
+        return x;
+    }
+
+    // ---- node access ----
+
+    private static int keyOffset(ByteBuffer buf, int base) {
+        return base + NEXT + 8 * buf.get(base + HEIGHT);
+    }
+
+    /** Orders nodes by key ascending, then seq descending (newest first). */
+    private int compare(long node, byte[] key, long seq) {
+        int cmp = compareKey(node, key);
+        if (cmp != 0) return cmp;
+        return Long.compare(seq, arena.slab(node).getLong(Arena.offset(node) + SEQ));
+    }
+
+    private int compareKey(long node, byte[] key) {
+        ByteBuffer buf = arena.slab(node);
+        int base = Arena.offset(node);
+        return Slice.compare(buf, keyOffset(buf, base), buf.getInt(base + KEY_LEN), key, 0, key.length);
+    }
+
+    private boolean sameKey(long a, long b) {
+        ByteBuffer bufA = arena.slab(a);
+        ByteBuffer bufB = arena.slab(b);
+        int baseA = Arena.offset(a);
+        int baseB = Arena.offset(b);
+        int len = bufA.getInt(baseA + KEY_LEN);
+        if (len != bufB.getInt(baseB + KEY_LEN)) return false;
+        return bufA.slice(keyOffset(bufA, baseA), len).equals(bufB.slice(keyOffset(bufB, baseB), len));
+    }
+
+    private long seq(long node) {
+        return arena.slab(node).getLong(Arena.offset(node) + SEQ);
+    }
+
+    private byte[] key(long node) {
+        ByteBuffer buf = arena.slab(node);
+        int base = Arena.offset(node);
+        byte[] key = new byte[buf.getInt(base + KEY_LEN)];
+        buf.get(keyOffset(buf, base), key);
+        return key;
+    }
+
+    private Entry toEntry(long node) {
+        ByteBuffer buf = arena.slab(node);
+        int base = Arena.offset(node);
+        byte flag = buf.get(base + FLAG);
+        int keyOff = keyOffset(buf, base);
+        byte[] key = new byte[buf.getInt(base + KEY_LEN)];
+        buf.get(keyOff, key);
+        int vlen = buf.getInt(base + VAL_LEN);
+        byte[] value = null;
+        if (flag != Entry.FLAG_DEL) {       // an empty put value is still a value
+            value = new byte[vlen];
+            buf.get(keyOff + key.length, value);
+        }
+        return new Entry(buf.getLong(base + SEQ), flag, key, value);
+    }
+
+    /** Iterates every version in node order; descending steps re-search from the head. */
+    private final class NodeIterator implements EntryIterator {
+        private final boolean reverse;
+        private long node = NIL;
+        private Entry current;
+
+        NodeIterator(boolean reverse) {
+            this.reverse = reverse;
+        }
+
+        @Override
+        public boolean valid() {
+            return node != NIL;
+        }
+
+        @Override
+        public Entry entry() {
+            if (current == null) current = toEntry(node);
+            return current;
+        }
+
+        @Override
+        public void seekToFirst() {
+            position(reverse ? orNil(findLast()) : ArenaMemTable.this.next(head, 0));
+        }
+
+        @Override
+        public void seek(byte[] target) {
+            // (target, MAX) sorts before every version of target, (target, MIN) after all of them
+            position(reverse ? orNil(findLessThan(target, Long.MIN_VALUE)) : findGreaterOrEqual(target, Long.MAX_VALUE));
+        }
+
+        @Override
+        public void next() {
+            if (node == NIL) return;
+            position(reverse ? orNil(findLessThan(key(node), seq(node))) : ArenaMemTable.this.next(node, 0));
+        }
+
+        private long orNil(long n) {
+            return n == head ? NIL : n;
+        }
+
+        private void position(long n) {
+            node = n;
+            current = null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded cache of verified, decompressed SST block bodies, shared by every reader of a store.
+ * Keyed by (file id, block offset); file ids are unique per opened reader, so a replaced file can
+ * never serve stale blocks, and blocks of deleted files simply age out.
+ * <p>
+ * The key space is split over independently locked shards. Each shard is a segmented LRU:
+ *  - new blocks enter the probationary segment
+ *  - a hit in probation promotes the block to the protected segment (at most 80% of the shard);
+ *    protected overflow is demoted back to the head of probation
+ *  - eviction takes the least recently used probationary block first
+ * so a one-off scan streams through probation without flushing the frequently read blocks.
+ * Cached buffers are shared: callers must read them through a duplicate().
+ */
+final class BlockCache {
+    private static final int ENTRY_OVERHEAD = 64;   // map node, key and buffer objects
+
+    private static final class Key {
+        long fileId;
+        long offset;
+
+        Key(long fileId, long offset) {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && k.fileId == fileId && k.offset == offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(fileId, offset);
+        }
+
+        static int hash(long fileId, long offset) {
+            return 31 * Long.hashCode(fileId) + Long.hashCode(offset);
+        }
+    }
+
+    private static final AtomicLong NEXT_FILE_ID = new AtomicLong();
+
+    private final Shard[] shards;
+    private final long capacityBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BlockCache(long capacityBytes, int shardCount) {
+        int n = Integer.highestOneBit(Math.max(1, shardCount));
+        this.capacityBytes = capacityBytes;
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) shards[i] = new Shard(Math.max(1, capacityBytes / n));
+    }
+
+    /** A fresh id for an opened file; never reused within the process. */
+    static long newFileId() {
+        return NEXT_FILE_ID.incrementAndGet();
+    }
+
+    ByteBuffer get(long fileId, long offset) {
+        ByteBuffer body = shard(fileId, offset).get(fileId, offset);
+        if (body == null) misses.increment();
+        else hits.increment();
+        return body;
+    }
+
+    void put(long fileId, long offset, ByteBuffer body) {
+        shard(fileId, offset).put(new Key(fileId, offset), body);
+    }
+
+    BlockCacheStats stats() {
+        long used = 0;
+        for (Shard shard : shards) used += shard.usedBytes();
+        return new BlockCacheStats(hits.sum(), misses.sum(), evictions.sum(), used, capacityBytes);
+    }
+
+    private Shard shard(long fileId, long offset) {
+        int h = Key.hash(fileId, offset);
+        h ^= h >>> 16;
+        return shards[h & (shards.length - 1)];
+    }
+
+    private static long charge(ByteBuffer body) {
+        return body.capacity() + ENTRY_OVERHEAD;
+    }
+
+    private final class Shard {
+        private final long capacity;
+        private final long protectedCapacity;
+        // access-ordered: iteration starts at the least recently used entry
+        private final LinkedHashMap<Key, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Key, ByteBuffer> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationBytes;
+        private long protectedBytes;
+        // reused under the shard lock so that a hit allocates nothing; never stored in a segment
+        private final Key probe = new Key(0, 0);
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * 4 / 5;
+        }
+
+        synchronized ByteBuffer get(long fileId, long offset) {
+            probe.fileId = fileId;
+            probe.offset = offset;
+            ByteBuffer body = protect.get(probe);
+            if (body != null) return body;
+            body = probation.remove(probe);
+            if (body == null) return null;
+            // second hit: promote, demoting the coldest protected blocks if the segment overflows
+            Key key = new Key(fileId, offset);
+            probationBytes -= charge(body);
+            protect.put(key, body);
+            protectedBytes += charge(body);
+            Iterator<Map.Entry<Key, ByteBuffer>> it = protect.entrySet().iterator();
+            while (protectedBytes > protectedCapacity && it.hasNext()) {
+                Map.Entry<Key, ByteBuffer> coldest = it.next();
+                if (coldest.getKey().equals(key)) break;
+                it.remove();
+                protectedBytes -= charge(coldest.getValue());
+                probation.put(coldest.getKey(), coldest.getValue());
+                probationBytes += charge(coldest.getValue());
+            }
+            return body;
+        }
+
+        synchronized void put(Key key, ByteBuffer body) {
+            if (protect.containsKey(key) || probation.containsKey(key)) return;  // raced with another reader
+            if (charge(body) > capacity) return;
+            probation.put(key, body);
+            probationBytes += charge(body);
+            evict(probation, true);
+            evict(protect, false);
+        }
+
+        private void evict(LinkedHashMap<Key, ByteBuffer> segment, boolean isProbation) {
+            Iterator<Map.Entry<Key, ByteBuffer>> it = segment.entrySet().iterator();
+            while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+                long size = charge(it.next().getValue());
+                it.remove();
+                if (isProbation) probationBytes -= size;
+                else protectedBytes -= size;
+                evictions.increment();
+            }
+        }
+
+        synchronized long usedBytes() {
+            return probationBytes + protectedBytes;
+        }
+    }
+}
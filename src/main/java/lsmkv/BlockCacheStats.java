@@ -0,0 +1,7 @@
+package lsmkv;
+
+/**
+ * Cumulative block cache counters plus the current footprint. A miss is a block read from disk.
+ */
+public record BlockCacheStats(long hits, long misses, long evictions, long usedBytes, long capacityBytes) {
+}
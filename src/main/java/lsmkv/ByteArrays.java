@@ -1,19 +1,25 @@
 package lsmkv;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Comparator;
 
 public final class ByteArrays {
+    // reads eight key bytes as one long whose unsigned order matches the bytes' lexicographic order
+    static final VarHandle BIG_ENDIAN_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     private ByteArrays() {
     }
 
+    /** Unsigned lexicographic order; Arrays.compareUnsigned finds the first mismatch with vectorized reads. */
     public static int compare(byte[] a, byte[] b) {
-        int len = Math.min(a.length, b.length);
-        for (int i = 0; i < len; i++) {
-            int ai = a[i] & 0xff;
-            int bi = b[i] & 0xff;
-            if (ai != bi) return ai - bi;
-        }
-        return a.length - b.length;
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    public static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        return Arrays.compareUnsigned(a, aOff, aOff + aLen, b, bOff, bOff + bLen);
     }
 
     public static final Comparator<byte[]> LEX = ByteArrays::compare;
@@ -1,5 +1,6 @@
 package lsmkv;
 
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32C;
 
 public final class Codec {
@@ -15,4 +16,45 @@ public final class Codec {
         crc.update(data, offset, length);
         return (int) crc.getValue();
     }
+
+    /** CRC32C of a buffer range, read in place (a mapped or direct buffer is not copied). */
+    public static int crc32c(ByteBuffer buf, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate().limit(offset + length).position(offset));
+        return (int) crc.getValue();
+    }
+
+    /** Unsigned LEB128: 7 bits per byte, low bits first, high bit set on all but the last byte. */
+    public static void putVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static long getVarint(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+            if (shift >= 63) throw new IllegalArgumentException("malformed varint");
+        }
+    }
+
+    public static int getVarintInt(ByteBuffer buf) {
+        long value = getVarint(buf);
+        if (value > Integer.MAX_VALUE) throw new IllegalArgumentException("varint out of int range: " + value);
+        return (int) value;
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
 }
@@ -0,0 +1,435 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+/**
+ * Leveled compaction job:
+ *  - L0 -> L1 when L0 holds more than compactionTriggerFiles files: every L0 file plus the
+ *    overlapping L1 files (L0 files overlap each other, so they must move together)
+ *  - Ln -> Ln+1 when Ln exceeds its size target (levelBaseBytes * levelSizeMultiplier^(n-1)):
+ *    one Ln file, picked round-robin through the key space, plus the overlapping Ln+1 files
+ * <p>
+ * Inputs are k-way merged with every version in (key, seq desc) order, and per key only the
+ * newest version in each snapshot stripe survives (see {@link SnapshotRetention}); with no live
+ * snapshots that is just the latest. A tombstone visible to the oldest reader is dropped as well
+ * when no deeper level can still hold an older value for the key. Outputs are cut at
+ * targetFileSizeBytes, only between keys, and never overlap. Large jobs are split into up to
+ * maxSubcompactions disjoint key ranges that are merged in parallel and installed together.
+ * <p>
+ * With value separation on, values of at least valueLogMinBytes are written to value logs and the
+ * tables carry pointers, so a merge rewrites the pointers and not the values. Pointers the merge
+ * drops count as garbage of their log, and a log whose garbage reaches valueLogGcRatio has every
+ * live value this job meets rewritten to a new log; a log that is all garbage is deleted. When no
+ * level needs compaction, the files below L0 still pointing into such a log are rewritten in place,
+ * one per job, so the log is collected without waiting for the tree to grow over it.
+ * <p>
+ * Range tombstones drop every version they hide from all readers, and an input file whose whole
+ * key range they hide that way is dropped without being read. The surviving tombstones are split between the
+ * outputs at the cuts, each file holding the part within its key range. A tombstone visible to the
+ * oldest reader with no deeper level under it has nothing left to hide and is dropped too.
+ */
+final class Compaction {
+    final int level;                 // input level; outputs go to level + 1
+    final List<SstReader> upper;     // inputs from level, newest first; none for value-log GC
+    final List<SstReader> lower;     // inputs from level + 1, sorted by key
+    final boolean bottommost;        // no deeper file overlaps the input range
+    final Map<Long, ValueLogFile> relocate;     // value logs whose live values this job moves out
+    final boolean valueLogs;         // some value log is live, so inputs may hold pointers into one
+
+    private Compaction(int level, List<SstReader> upper, List<SstReader> lower, boolean bottommost,
+                       Map<Long, ValueLogFile> relocate, boolean valueLogs) {
+        this.level = level;
+        this.upper = upper;
+        this.lower = lower;
+        this.bottommost = bottommost;
+        this.relocate = relocate;
+        this.valueLogs = valueLogs;
+    }
+
+    List<SstReader> inputs() {
+        List<SstReader> all = new ArrayList<>(upper);
+        all.addAll(lower);
+        return all;
+    }
+
+    static long targetBytes(Options options, int level) {
+        long target = options.levelBaseBytes;
+        for (int i = 1; i < level; i++) target *= options.levelSizeMultiplier;
+        return target;
+    }
+
+    /**
+     * Bytes compaction still has to work through before every level is within its target: all of L0
+     * once it is over its trigger, plus each deeper level's excess over its target.
+     */
+    static long pendingBytes(Version version, Options options) {
+        long pending = version.level(0).size() > options.compactionTriggerFiles ? version.levelBytes(0) : 0;
+        for (int level = 1; level < version.numLevels() - 1; level++) {
+            pending += Math.max(0, version.levelBytes(level) - targetBytes(options, level));
+        }
+        return pending;
+    }
+
+    /** Level most in need of compaction, or -1 if every level is within its target. */
+    static int pickLevel(Version version, Options options) {
+        int best = -1;
+        double bestScore = 1.0;
+        if (version.level(0).size() > options.compactionTriggerFiles) {
+            best = 0;
+            bestScore = (double) version.level(0).size() / Math.max(1, options.compactionTriggerFiles);
+        }
+        for (int level = 1; level < version.numLevels() - 1; level++) {
+            double score = (double) version.levelBytes(level) / targetBytes(options, level);
+            if (score > bestScore) {
+                best = level;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Choose the next compaction, or null if none is needed.
+     * compactPointer[level] remembers where the last Ln compaction ended so the key space is covered in turn.
+     * L0 files numbered at or above oldestFlushing are left alone: an older memtable is still being
+     * flushed, and moving newer data below it would let its older values shadow them.
+     */
+    static Compaction pick(Version version, Options options, byte[][] compactPointer, long oldestFlushing) {
+        int level = pickLevel(version, options);
+        if (level < 0) return pickValueLogGc(version, options);
+
+        List<SstReader> upper;
+        if (level == 0) {
+            upper = new ArrayList<>();
+            for (SstReader reader : version.level(0)) {
+                if (LsmKvStore.fileNumber(reader.path()) < oldestFlushing) upper.add(reader);
+            }
+            if (upper.isEmpty()) return null;   // the flush will reschedule compaction when it lands
+        } else {
+            List<SstReader> files = version.level(level);
+            SstReader chosen = files.get(0);
+            if (compactPointer[level] != null) {
+                for (SstReader reader : files) {
+                    if (ByteArrays.compare(reader.smallestKey(), compactPointer[level]) > 0) {
+                        chosen = reader;
+                        break;
+                    }
+                }
+            }
+            compactPointer[level] = chosen.largestKey();
+            upper = List.of(chosen);
+        }
+
+        byte[] smallest = upper.get(0).smallestKey();
+        byte[] largest = upper.get(0).largestKey();
+        for (SstReader reader : upper) {
+            if (ByteArrays.compare(reader.smallestKey(), smallest) < 0) smallest = reader.smallestKey();
+            if (ByteArrays.compare(reader.largestKey(), largest) > 0) largest = reader.largestKey();
+        }
+        List<SstReader> lower = version.overlapping(level + 1, smallest, largest);
+        // the lower files may reach past the upper ones, and their records are merged (and their tombstones dropped) too
+        for (SstReader reader : lower) {
+            if (ByteArrays.compare(reader.smallestKey(), smallest) < 0) smallest = reader.smallestKey();
+            if (ByteArrays.compare(reader.largestKey(), largest) > 0) largest = reader.largestKey();
+        }
+
+        boolean bottommost = true;
+        for (int deeper = level + 2; deeper < version.numLevels(); deeper++) {
+            if (!version.overlapping(deeper, smallest, largest).isEmpty()) {
+                bottommost = false;
+                break;
+            }
+        }
+        return new Compaction(level, upper, lower, bottommost, relocate(version, options), !version.valueLogs().isEmpty());
+    }
+
+    /**
+     * A job rewriting into its own level one file below L0 that points into the value log with the
+     * most garbage at or past valueLogGcRatio, or null if no such file is left. L0 files are not
+     * picked: the next L0 compaction rewrites them anyway.
+     */
+    private static Compaction pickValueLogGc(Version version, Options options) {
+        ValueLogFile worst = null;
+        for (ValueLogFile file : version.valueLogs()) {
+            if (file.garbageRatio() < options.valueLogGcRatio) continue;
+            if (worst == null || file.garbageRatio() > worst.garbageRatio()) worst = file;
+        }
+        if (worst == null) return null;
+        for (int level = 1; level < version.numLevels(); level++) {
+            for (SstReader reader : version.level(level)) {
+                if (!reader.mayReference(worst.number)) continue;
+                boolean bottommost = true;
+                for (int deeper = level + 1; deeper < version.numLevels(); deeper++) {
+                    if (!version.overlapping(deeper, reader.smallestKey(), reader.largestKey()).isEmpty()) {
+                        bottommost = false;
+                        break;
+                    }
+                }
+                // no upper input: the file is merged on its own and its outputs replace it in place
+                return new Compaction(level - 1, List.of(), List.of(reader), bottommost, relocate(version, options), true);
+            }
+        }
+        return null;
+    }
+
+    // value logs mostly garbage have what is still live in them rewritten wherever a job reaches it
+    private static Map<Long, ValueLogFile> relocate(Version version, Options options) {
+        Map<Long, ValueLogFile> relocate = new HashMap<>();
+        for (ValueLogFile file : version.valueLogs()) {
+            if (file.garbageRatio() >= options.valueLogGcRatio) relocate.put(file.number, file);
+        }
+        return relocate;
+    }
+
+    /** What a compaction wrote, and how much of the existing value logs it left unreferenced. */
+    record Result(List<FileMeta> files, List<ValueLogFileMeta> valueLogs, Map<Long, Long> garbage, long relocatedBytes) {
+        /** Delete the output files and value logs of a job that will not be installed; failure is the error being thrown. */
+        void discard(Path dir, Throwable failure) {
+            for (FileMeta file : files) cleanup(failure, () -> Files.deleteIfExists(dir.resolve(file.name())));
+            for (ValueLogFileMeta file : valueLogs) cleanup(failure, () -> Files.deleteIfExists(dir.resolve(file.name())));
+        }
+    }
+
+    /** One step of cleaning up after a failure; an error in it is attached to the failure rather than hiding it. */
+    interface Cleanup {
+        void run() throws IOException;
+    }
+
+    static void cleanup(Throwable failure, Cleanup step) {
+        try {
+            step.run();
+        } catch (IOException | RuntimeException ex) {
+            failure.addSuppressed(ex);
+        }
+    }
+
+    /**
+     * Merge the inputs into new files in the output level. Returns the installed output files in key
+     * order, with any value-log files written; on failure everything already written is removed.
+     * <p>
+     * A job with more input than a few output files is split into subcompactions over disjoint key
+     * ranges (see {@link #boundaries}), merged in parallel on pool. Every version of a key falls in
+     * the same range, so each subcompaction is an ordinary merge of its slice and the outputs of all
+     * of them together are the same non-overlapping run a single merge would produce. Inputs with
+     * range tombstones are merged in one piece, since a tombstone may span the split points.
+     */
+    Result run(Options options, LongSupplier newFileNumber, ExecutorService pool, long[] snapshots) throws IOException {
+        SnapshotRetention retention = new SnapshotRetention(snapshots);
+        List<RangeTombstone> tombstones = new ArrayList<>();
+        for (SstReader reader : inputs()) tombstones.addAll(reader.rangeTombstones().tombstones());
+        RangeTombstoneList all = new RangeTombstoneList(tombstones);
+        List<SstReader> sources = new ArrayList<>();
+        for (SstReader reader : inputs()) {
+            // a file's pointers must still be counted as value-log garbage, so with value logs every file is read
+            if (valueLogs || !covered(reader, all, retention)) sources.add(reader);
+        }
+        if (sources.size() < inputs().size()) {
+            // a dropped file's own tombstones lie under the ones that cover it
+            tombstones.clear();
+            for (SstReader reader : sources) tombstones.addAll(reader.rangeTombstones().tombstones());
+        }
+
+        long inputBytes = 0;
+        for (SstReader reader : sources) inputBytes += reader.fileSize();
+        // at least about one output file per subcompaction, or the split only fragments the level
+        int n = (int) Math.min(options.maxSubcompactions, Math.max(1, inputBytes / Math.max(1, options.targetFileSizeBytes)));
+        List<byte[]> bounds = tombstones.isEmpty() ? boundaries(sources, n) : List.of();
+        if (bounds.isEmpty()) return runRange(options, newFileNumber, snapshots, sources, tombstones, null, null);
+
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i <= bounds.size(); i++) {
+            byte[] lo = i == 0 ? null : bounds.get(i - 1);
+            byte[] hi = i == bounds.size() ? null : bounds.get(i);
+            futures.add(pool.submit(() -> runRange(options, newFileNumber, snapshots, sources, List.of(), lo, hi)));
+        }
+        // wait for every subcompaction, even after one fails, so none is still writing during cleanup
+        List<FileMeta> outputs = new ArrayList<>();
+        List<ValueLogFileMeta> valueLogs = new ArrayList<>();
+        Map<Long, Long> garbage = new HashMap<>();
+        long relocatedBytes = 0;
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<Result> future : futures) {
+            while (true) {
+                try {
+                    Result result = future.get();
+                    outputs.addAll(result.files());
+                    valueLogs.addAll(result.valueLogs());
+                    result.garbage().forEach((file, bytes) -> garbage.merge(file, bytes, Long::sum));
+                    relocatedBytes += result.relocatedBytes();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (failure == null) failure = ex.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) {
+            new Result(outputs, valueLogs, garbage, relocatedBytes).discard(options.sstDir, failure);
+            if (failure instanceof IOException io) throw io;
+            if (failure instanceof RuntimeException re) throw re;
+            throw new IOException(failure);
+        }
+        return new Result(outputs, valueLogs, garbage, relocatedBytes);
+    }
+
+    /**
+     * Up to n - 1 split keys dividing the inputs into ranges of roughly equal size. Candidates are the
+     * inputs' sparse index keys: each starts a block, so an even split of the sorted candidates gives
+     * each range about the same number of input blocks. Empty when the job is not split.
+     */
+    static List<byte[]> boundaries(List<SstReader> sources, int n) throws IOException {
+        if (n <= 1) return List.of();
+        List<byte[]> keys = new ArrayList<>();
+        for (SstReader reader : sources) keys.addAll(reader.blockKeys());
+        if (keys.size() < n) return List.of();
+        keys.sort(ByteArrays.LEX);
+        List<byte[]> bounds = new ArrayList<>();
+        byte[] previous = keys.get(0);      // the first range must not be empty
+        for (int i = 1; i < n; i++) {
+            byte[] key = keys.get((int) ((long) i * keys.size() / n));
+            if (ByteArrays.compare(key, previous) > 0) {
+                bounds.add(key);
+                previous = key;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Merge the keys in [lo, hi) (unbounded where null) of the sources into output files. Pointers
+     * into the value logs are copied as they are, except into logs picked for relocation, whose
+     * values are read back and written again (to a new value log when still large enough); every
+     * pointer dropped or relocated counts its value as garbage of the log it pointed into.
+     * <p>
+     * Each output file owns the keys from just past the last key of the one before it up to its own
+     * last key, and gets the parts of the kept range tombstones in that span.
+     */
+    private Result runRange(Options options, LongSupplier newFileNumber, long[] snapshots, List<SstReader> readers,
+                            List<RangeTombstone> tombstones, byte[] lo, byte[] hi) throws IOException {
+        List<FileMeta> outputs = new ArrayList<>();
+        List<EntryIterator> sources = new ArrayList<>();
+        Map<Long, Long> garbage = new HashMap<>();
+        long relocatedBytes = 0;
+        SstWriter writer = null;
+        ValueLogWriter valueLog = options.valueLogMinBytes <= 0 ? null
+                : new ValueLogWriter(options.sstDir, newFileNumber, options.valueLogFileBytes, options.rateLimiter, RateLimiter.Priority.COMPACTION);
+        Compression compression = bottommost && options.bottommostCompression != null ? options.bottommostCompression : options.compression;
+        SnapshotRetention retention = new SnapshotRetention(snapshots);
+        RangeTombstoneList covering = new RangeTombstoneList(tombstones);
+        List<RangeTombstone> kept = new ArrayList<>();
+        for (RangeTombstone tombstone : tombstones) {
+            if (!(bottommost && retention.inOldestStripe(tombstone.seq()))) kept.add(tombstone);
+        }
+        byte[] fileStart = lo;      // where the current output's key span starts
+        boolean merging = false;    // once set the merge owns the sources and closes them itself
+        try {
+            for (SstReader reader : readers) sources.add(reader.iterator(false, false, options.rateLimiter));
+            try (MergingIterator merged = new MergingIterator(sources, false, true)) {
+                merging = true;
+                byte[] previous = null;
+                if (lo == null) merged.seekToFirst();
+                else merged.seek(lo);
+                for (; merged.valid(); merged.next()) {
+                    Entry entry = merged.entry();
+                    if (hi != null && ByteArrays.compare(entry.key(), hi) >= 0) break;
+                    boolean newKey = previous == null || ByteArrays.compare(entry.key(), previous) != 0;
+                    // cut only between keys, so a key's versions never span two files of a level
+                    if (newKey && writer != null && writer.approxBytes() >= options.targetFileSizeBytes) {
+                        byte[] cut = RangeTombstone.successor(previous);
+                        addRangeTombstones(writer, kept, fileStart, cut);
+                        outputs.add(finish(writer));
+                        writer = null;
+                        fileStart = cut;
+                    }
+                    previous = entry.key();
+                    ValuePointer pointer = entry.flag() == Entry.FLAG_BLOB ? ValuePointer.decode(entry.value()) : null;
+                    boolean keep = retention.keep(newKey, entry.seq())
+                            && !(bottommost && entry.flag() == Entry.FLAG_DEL && retention.inOldestStripe(entry.seq()))
+                            // hidden by a range tombstone from every reader that could see it
+                            && covering.coveringSeq(entry.key(), retention.stripeEnd(entry.seq())) <= entry.seq();
+                    if (pointer != null && (!keep || relocate.containsKey(pointer.fileNumber()))) {
+                        garbage.merge(pointer.fileNumber(), (long) pointer.length(), Long::sum);
+                    }
+                    if (!keep) continue;
+                    if (pointer != null && relocate.containsKey(pointer.fileNumber())) {
+                        entry = new Entry(entry.seq(), Entry.FLAG_PUT, entry.key(), relocate.get(pointer.fileNumber()).read(pointer));
+                        relocatedBytes += pointer.length();
+                    }
+                    if (writer == null) writer = newWriter(options, newFileNumber, compression, valueLog);
+                    writer.add(entry);
+                }
+            }
+            // the last output takes the rest of the range, and tombstones alone still make a file
+            if (writer == null && overlaps(kept, fileStart, hi)) writer = newWriter(options, newFileNumber, compression, valueLog);
+            if (writer != null) {
+                addRangeTombstones(writer, kept, fileStart, hi);
+                outputs.add(finish(writer));
+                writer = null;
+            }
+            List<ValueLogFileMeta> valueLogs = valueLog == null ? List.of() : valueLog.finish();
+            return new Result(outputs, valueLogs, garbage, relocatedBytes);
+        } catch (IOException | RuntimeException ex) {
+            // every step runs even when one before it fails, so no output or value log outlives the job
+            if (!merging) {
+                for (EntryIterator it : sources) cleanup(ex, it::close);
+            }
+            if (writer != null) cleanup(ex, writer::close);
+            if (valueLog != null) cleanup(ex, valueLog::close);
+            new Result(outputs, valueLog == null ? List.of() : valueLog.written(), garbage, relocatedBytes).discard(options.sstDir, ex);
+            throw ex;
+        }
+    }
+
+    private static SstWriter newWriter(Options options, LongSupplier newFileNumber, Compression compression, ValueLogWriter valueLog)
+            throws IOException {
+        SstWriter writer = new SstWriter(options.sstDir, "sst-" + newFileNumber.getAsLong() + ".sst", options.sstBlockSizeBytes,
+                options.sstRestartInterval, compression, options.bloomBitsPerKey, options.rateLimiter, RateLimiter.Priority.COMPACTION);
+        if (valueLog != null) writer.separateValues(valueLog, options.valueLogMinBytes);
+        return writer;
+    }
+
+    /** Add the parts of the tombstones within [from, to) (unbounded where null) to the writer. */
+    private static void addRangeTombstones(SstWriter writer, List<RangeTombstone> tombstones, byte[] from, byte[] to) {
+        for (RangeTombstone tombstone : tombstones) {
+            RangeTombstone part = tombstone.clip(from, to);
+            if (part != null) writer.addRangeTombstone(part);
+        }
+    }
+
+    private static boolean overlaps(List<RangeTombstone> tombstones, byte[] from, byte[] to) {
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.clip(from, to) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the tombstones hide every record of the file from every reader: across its whole key
+     * range a tombstone newer than all its records, with no snapshot between the two.
+     */
+    private static boolean covered(SstReader reader, RangeTombstoneList tombstones, SnapshotRetention retention) {
+        return tombstones.coversAll(reader.smallestKey(), reader.largestKey(), reader.maxSeq(), retention.stripeEnd(reader.minSeq()));
+    }
+
+    private static FileMeta finish(SstWriter writer) throws IOException {
+        try (writer) {
+            writer.finish();
+            writer.install();
+            return writer.meta();
+        }
+    }
+}
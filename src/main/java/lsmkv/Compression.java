@@ -0,0 +1,88 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-block compression codecs for SST files. The codec id is stored in each block header, so
+ * files (and blocks within a file) written with different settings stay readable.
+ *  - NONE: body stored as is
+ *  - DEFLATE: java.util.zip raw deflate; best ratio, slowest
+ *  - LZ: byte-oriented LZ77 ({@link LzCompressor}); cheap to decode, moderate ratio
+ */
+public enum Compression {
+    NONE(0),
+    DEFLATE(1),
+    LZ(2);
+
+    final byte id;
+
+    Compression(int id) {
+        this.id = (byte) id;
+    }
+
+    static Compression fromId(byte id) {
+        for (Compression c : values()) {
+            if (c.id == id) return c;
+        }
+        throw new IllegalArgumentException("unknown compression codec " + id);
+    }
+
+    /** Compress src[off, off + len); returns the compressed bytes (the caller records the raw length). */
+    byte[] compress(byte[] src, int off, int len) {
+        switch (this) {
+            case DEFLATE: {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                try {
+                    deflater.setInput(src, off, len);
+                    deflater.finish();
+                    byte[] out = new byte[len + len / 1000 + 64];
+                    int n = 0;
+                    while (!deflater.finished()) {
+                        if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+                        n += deflater.deflate(out, n, out.length - n);
+                    }
+                    return Arrays.copyOf(out, n);
+                } finally {
+                    deflater.end();
+                }
+            }
+            case LZ:
+                return LzCompressor.compress(src, off, len);
+            default:
+                throw new IllegalStateException("nothing to compress with " + this);
+        }
+    }
+
+    /** Decompress all of src into exactly dst.length bytes. */
+    void decompress(ByteBuffer src, byte[] dst) {
+        switch (this) {
+            case DEFLATE: {
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(src);
+                    int n = 0;
+                    while (n < dst.length) {
+                        int read = inflater.inflate(dst, n, dst.length - n);
+                        if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                        n += read;
+                    }
+                    if (n != dst.length) throw new IllegalStateException("deflate block decoded to " + n + " bytes, expected " + dst.length);
+                } catch (DataFormatException ex) {
+                    throw new IllegalStateException("corrupt deflate block", ex);
+                } finally {
+                    inflater.end();
+                }
+                return;
+            }
+            case LZ:
+                LzCompressor.decompress(src, dst);
+                return;
+            default:
+                throw new IllegalStateException("nothing to decompress with " + this);
+        }
+    }
+}
@@ -1,6 +1,29 @@
 package lsmkv;
 
+import java.util.Comparator;
+
 public record Entry(long seq, byte flag, byte[] key, byte[] value) {
     public static final byte FLAG_PUT = 1;
     public static final byte FLAG_DEL = 2;
+    // a put whose value lives in the value log; value holds the encoded ValuePointer (SSTs only, never in the WAL)
+    public static final byte FLAG_BLOB = 5;
+    // a range deletion in the WAL: key is the start, value the end; memtables and SSTs keep these
+    // apart from the entries, as {@link RangeTombstone}s
+    public static final byte FLAG_RANGE_DEL = 6;
+
+    // results of the lookups that copy a value into a caller's buffer instead of returning an Entry;
+    // any other result is the value's length
+    static final int NOT_FOUND = -2;    // not in this source; keep looking in older ones
+    static final int DELETED = -1;      // a tombstone; the search stops
+    static final int IN_VALUE_LOG = -3; // a value-log pointer; fetch the entry and follow it
+
+    /**
+     * The order of versions in memtables and SSTs: key ascending, then seq descending, so the first
+     * entry of a key is its latest version and a probe (key, snapshot) lands on the newest version
+     * visible at that snapshot.
+     */
+    static final Comparator<Entry> INTERNAL_ORDER = (a, b) -> {
+        int cmp = ByteArrays.compare(a.key(), b.key());
+        return cmp != 0 ? cmp : Long.compare(b.seq(), a.seq());
+    };
 }
@@ -0,0 +1,25 @@
+package lsmkv;
+
+import java.io.IOException;
+
+/**
+ * Cursor over entries of one source (memtable, SST, or a merge of several) in key order.
+ * The direction is fixed when the iterator is created: ascending, or descending when reversed.
+ * A new iterator is unpositioned until seek() or seekToFirst(); entry() is only meaningful while valid().
+ */
+interface EntryIterator extends AutoCloseable {
+    boolean valid();
+
+    Entry entry();
+
+    /** Position on the first entry in iteration order. */
+    void seekToFirst() throws IOException;
+
+    /** Ascending: first key >= target. Descending: last key <= target. */
+    void seek(byte[] target) throws IOException;
+
+    void next() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,17 @@
+package lsmkv;
+
+/**
+ * What the manifest records about one SST file, so the live file set can be described without
+ * opening every file. Files listed by text manifests (before the edit log) have unknown metadata:
+ * size -1, empty keys, seq range [0, Long.MAX_VALUE] and -1 entries; see {@link #known()}.
+ */
+public record FileMeta(String name, long fileSize, byte[] smallestKey, byte[] largestKey, long minSeq, long maxSeq, long entries) {
+
+    static FileMeta unknown(String name) {
+        return new FileMeta(name, -1, new byte[0], new byte[0], 0, Long.MAX_VALUE, -1);
+    }
+
+    public boolean known() {
+        return fileSize >= 0;
+    }
+}
@@ -0,0 +1,24 @@
+package lsmkv;
+
+import java.io.IOException;
+
+/**
+ * Cursor over live key/value pairs of a store, in ascending key order or descending for
+ * reversed scans. Entries are merged lazily from memory and disk, so memory use does not
+ * depend on the size of the range. Close it to release the files it holds open.
+ */
+public interface KvIterator extends AutoCloseable {
+    boolean valid();
+
+    byte[] key();
+
+    byte[] value();
+
+    void next() throws IOException;
+
+    /** Ascending: first key >= target. Descending: last key <= target. Clamped to the scan bounds. */
+    void seek(byte[] target) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
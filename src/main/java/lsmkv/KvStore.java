@@ -9,12 +9,55 @@ public interface KvStore extends AutoCloseable {
 
     Optional<byte[]> read(byte[] key) throws IOException;
 
+    /** The key's value as of the snapshot. */
+    Optional<byte[]> read(byte[] key, Snapshot snapshot) throws IOException;
+
+    /**
+     * Copy the key's value into valueOut and return the value's full length, or -1 when the key is
+     * absent. If the value is longer than valueOut only its prefix is copied; retry with a larger buffer.
+     */
+    default int read(byte[] key, byte[] valueOut) throws IOException {
+        Optional<byte[]> value = read(key);
+        if (value.isEmpty()) return -1;
+        System.arraycopy(value.get(), 0, valueOut, 0, Math.min(value.get().length, valueOut.length));
+        return value.get().length;
+    }
+
+    /**
+     * Values of many keys, aligned with the list (empty where absent) and all read as of one point
+     * in time. Far cheaper than a read per key: every file is visited once for all the keys it may hold.
+     */
+    List<Optional<byte[]>> multiGet(List<byte[]> keys) throws IOException;
+
+    /** As {@link #multiGet(List)}, as of the snapshot. */
+    List<Optional<byte[]>> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException;
+
     List<KeyValue> readKeyRange(byte[] startInclusive, byte[] endExclusive);
 
+    /**
+     * Streaming scan over the store; see {@link ScanOptions} for bounds, prefixes and direction.
+     * The scan reads the store as of its creation: writes that start afterwards never show up in it.
+     */
+    KvIterator iterator(ScanOptions scan) throws IOException;
+
+    /** Streaming scan over the store as of the snapshot. */
+    KvIterator iterator(ScanOptions scan, Snapshot snapshot) throws IOException;
+
+    /** Pin the current state of the store for consistent reads; see {@link Snapshot}. */
+    Snapshot getSnapshot();
+
+    void releaseSnapshot(Snapshot snapshot);
+
     void batchPut(List<byte[]> keys, List<byte[]> values) throws IOException;
 
+    /** Apply all operations of the batch atomically. */
+    void write(WriteBatch batch) throws IOException;
+
     void delete(byte[] key) throws IOException;
 
+    /** Delete every key in [startInclusive, endExclusive) with a single range tombstone. */
+    void deleteRange(byte[] startInclusive, byte[] endExclusive) throws IOException;
+
     @Override
     void close() throws IOException;
 }
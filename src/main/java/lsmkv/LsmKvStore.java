@@ -1,29 +1,62 @@
 package lsmkv;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public final class LsmKvStore implements KvStore {
+    private static final Pattern SST_PAT = Pattern.compile("sst-(\\d+)\\.sst");
+    private static final Pattern VLOG_PAT = Pattern.compile("blob-(\\d+)\\.vlog");
+
     private final Options options;
     private final Seq seq = new Seq();
     private final Wal wal;
     private final Manifest manifest;
     private final ExecutorService flushExecutor;
     private final ExecutorService compactExecutor;
-    private volatile MemTable memTable = new MemTable();
+    private final ExecutorService subcompactExecutor;     // subcompactions of the running compaction
+    private volatile MemTable memTable;
+    // writers take a seq, log and insert under the read lock; a roll takes the write lock so no insert lands in a
+    // memtable being flushed and every memtable covers a contiguous range of seqs
+    private final ReadWriteLock memTableLock = new ReentrantReadWriteLock();
+    private final Object rollLock = new Object();
     private final Deque<MemTable> immutables = new ConcurrentLinkedDeque<>();
-    private final List<Path> sstFiles = new CopyOnWriteArrayList<>();
-    private final List<SstReader> sstReaders = new CopyOnWriteArrayList<>();
+    private final WriteController writeController;
+    private final BlockCache blockCache;        // null when disabled
+    private final TableCache tableCache;
+    private volatile Version version;
+    private final AtomicLong nextFileNumber = new AtomicLong(1);
+    // file numbers of memtables still being flushed; L0 compaction must not overtake an older pending flush
+    private final NavigableSet<Long> flushingFiles = new ConcurrentSkipListSet<>();
+    // flushed memtables still queued behind an older one in immutables, with the last seq each covers;
+    // guarded by the store lock
+    private final Map<MemTable, Long> flushedMemTables = new HashMap<>();
+    // live snapshot seqs with the number of handles on each; flushes and compactions keep what they can see
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    private final AtomicLong relocatedBytes = new AtomicLong();     // live values moved out of collected value logs
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final byte[][] compactPointer;      // per level, touched only by the compaction thread
+    private volatile boolean closed;
 
     public LsmKvStore(Options opt) throws IOException {
         options = opt;
+        memTable = MemTable.create(options);
         Files.createDirectories(options.rootDir);
         Files.createDirectories(options.walDir);
         Files.createDirectories(options.sstDir);
-        wal = new Wal(options.walDir, options.walBatchBytes, options.walSyncMillis);
-        manifest = new Manifest(options.rootDir);
+        wal = new Wal(options.walDir, options.walBatchBytes, options.walSyncMillis, options.walSyncOnCommit, options.walSegmentBytes);
+        manifest = new Manifest(options.rootDir, options.manifestLogBytes);
+        writeController = new WriteController(options);
+        blockCache = options.blockCacheBytes > 0 ? new BlockCache(options.blockCacheBytes, options.blockCacheShards) : null;
+        tableCache = new TableCache(options.maxOpenFiles, options.mmapReads);
         flushExecutor = Executors.newFixedThreadPool(options.flushParallelism, runnable -> {
             Thread thread = new Thread(runnable, "flush");
             thread.setDaemon(true);
@@ -34,133 +67,738 @@ public final class LsmKvStore implements KvStore {
             thread.setDaemon(true);
             return thread;
         });
+        subcompactExecutor = Executors.newFixedThreadPool(Math.max(1, options.maxSubcompactions), runnable -> {
+            Thread thread = new Thread(runnable, "subcompact");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         // Load MANIFEST
         Manifest.State state = manifest.load();
         seq.setAtLeast(state.lastSeq());
-        for (String file : state.sstFiles()) {
-            Path path = options.sstDir.resolve(file);
-            if (Files.exists(path)) {
-                sstFiles.add(path);
-                sstReaders.add(new SstReader(path));
+        List<List<SstReader>> levels = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        for (int level = 0; level < Math.max(options.numLevels, state.levels().size()); level++) {
+            List<SstReader> files = new ArrayList<>();
+            for (FileMeta file : level < state.levels().size() ? state.levels().get(level) : List.<FileMeta>of()) {
+                Path path = options.sstDir.resolve(file.name());
+                if (Files.exists(path)) {
+                    files.add(new SstReader(path, blockCache, tableCache));
+                    live.add(file.name());
+                    nextFileNumber.accumulateAndGet(fileNumber(path) + 1, Math::max);
+                }
+            }
+            // file numbers are allocated in roll order, so L0 newest first is descending file number
+            if (level == 0) files.sort((a, b) -> Long.compare(fileNumber(b.path()), fileNumber(a.path())));
+            else files.sort((a, b) -> ByteArrays.compare(a.smallestKey(), b.smallestKey()));
+            levels.add(List.copyOf(files));
+        }
+        Map<Long, ValueLogFile> valueLogs = new HashMap<>();
+        for (ValueLogFileMeta file : state.valueLogs()) {
+            Path path = options.sstDir.resolve(file.name());
+            Matcher matcher = VLOG_PAT.matcher(file.name());
+            if (matcher.matches() && Files.exists(path)) {
+                long number = Long.parseLong(matcher.group(1));
+                valueLogs.put(number, new ValueLogFile(number, path, file.valueBytes(), file.garbageBytes()));
+                live.add(file.name());
+                nextFileNumber.accumulateAndGet(number + 1, Math::max);
             }
         }
+        version = new Version(levels, Map.copyOf(valueLogs));
+        compactPointer = new byte[levels.size()][];
+        removeObsoleteFiles(live);
+
+        updateWriteStall();
+        // an L0 backlog left at close is compacted from the start: replayed writes stall on it like live ones
+        maybeCompactAsync();
 
-        // Replay WAL (sorted)
-        for (Entry entry : wal.replayAllSorted()) {
+        // Replay WAL, streamed in log order; full memtables start flushing while later records are still being decoded
+        wal.replay(options.walReplayThreads, entry -> {
             if (entry.seq() >= seq.get()) seq.setAtLeast(entry.seq());
-            memTable.put(entry);
+            writeController.beforeWrite(entry.key().length + (entry.value() == null ? 0 : entry.value().length));
+            insert(memTable, entry);
             rollIfNeeded(false);
-        }
+        });
     }
 
+    /** Swap in a fresh memtable once the active one is full (or always, when forced) and schedule its flush. */
     private void rollIfNeeded(boolean force) {
         if (!force && memTable.approxBytes() < options.memTableMaxBytes) return;
-        MemTable toFlush = memTable;
-        memTable = new MemTable();
-        immutables.addFirst(toFlush);
-        // TODO backpressure: block if too many immutables, in reality use blocking queue
-        while (immutables.size() > options.maxImmutables) {
+        MemTable toFlush;
+        long fileNumber;
+        long lastSeq;
+        synchronized (rollLock) {
+            if (!force && memTable.approxBytes() < options.memTableMaxBytes) return;   // another writer rolled it
+            memTableLock.writeLock().lock();
             try {
-                Thread.sleep(1);
-            } catch (InterruptedException ignored) {
+                // writers take their seq under the read lock, so every seq below this one is in toFlush or an older memtable
+                lastSeq = seq.get() - 1;
+                toFlush = memTable;
+                // queued before it is replaced: a lock-free reader between the two steps sees it twice, never not at all
+                immutables.addFirst(toFlush);
+                memTable = MemTable.create(options);
+            } finally {
+                memTableLock.writeLock().unlock();
+            }
+            fileNumber = nextFileNumber.getAndIncrement();   // allocated in roll order so L0 stays ordered by age
+            flushingFiles.add(fileNumber);
+        }
+        updateWriteStall();
+        flushExecutor.submit(() -> flushMemtable(toFlush, fileNumber, lastSeq));
+    }
+
+    /** Feed the current flush/compaction backlog to the write controller. */
+    private void updateWriteStall() {
+        long pendingFlushBytes = 0;
+        int pending = 0;
+        for (MemTable mt : immutables) {
+            pendingFlushBytes += mt.approxBytes();
+            pending++;
+        }
+        writeController.update(version.level(0).size(), pending, pendingFlushBytes);
+        if (options.rateLimiter != null) {
+            options.rateLimiter.reportCompactionDebt(this, (double) Compaction.pendingBytes(version, options) / options.levelBaseBytes);
+        }
+    }
+
+    public WriteStallStats writeStallStats() {
+        return writeController.stats();
+    }
+
+    public BlockCacheStats blockCacheStats() {
+        return blockCache == null ? new BlockCacheStats(0, 0, 0, 0, 0) : blockCache.stats();
+    }
+
+    /** Size of the value logs; all zeros unless valueLogMinBytes enables separation. */
+    public ValueLogStats valueLogStats() {
+        Version current = acquireVersion();
+        try {
+            long valueBytes = 0;
+            long garbageBytes = 0;
+            double maxRatio = 0;
+            int overGcRatio = 0;
+            for (ValueLogFile file : current.valueLogs()) {
+                valueBytes += file.valueBytes;
+                garbageBytes += file.garbageBytes();
+                maxRatio = Math.max(maxRatio, file.garbageRatio());
+                if (file.garbageRatio() >= options.valueLogGcRatio) overGcRatio++;
             }
+            return new ValueLogStats(current.valueLogs().size(), valueBytes, garbageBytes, relocatedBytes.get(), maxRatio, overGcRatio);
+        } finally {
+            current.unref();
         }
-        flushExecutor.submit(() -> flushMemtable(toFlush));
     }
 
-    private void flushMemtable(MemTable mt) {
+    /** Counters of the configured rate limiter, shared with any other store using it; zeros when there is none. */
+    public RateLimiterStats rateLimiterStats() {
+        return options.rateLimiter == null ? new RateLimiterStats(0, 0, 0, 0, 0, 0, 0) : options.rateLimiter.stats();
+    }
+
+    private void flushMemtable(MemTable mt, long fileNumber, long lastSeq) {
         try {
-            if (mt.map.isEmpty()) return;
-            String name = "sst-" + System.nanoTime() + ".sst";
+            if (mt.isEmpty()) {
+                long durableSeq;
+                synchronized (this) {
+                    durableSeq = retireFlushed(mt, lastSeq);
+                    flushingFiles.remove(fileNumber);
+                }
+                updateWriteStall();
+                if (durableSeq >= 0) wal.truncateUpTo(durableSeq);
+                return;
+            }
+            String name = "sst-" + fileNumber + ".sst";
             Path path;
-            try (SstWriter writer = new SstWriter(options.sstDir, name, options.sstBlockSizeBytes, options.bloomBitsPerKey)) {
-                writer.writeAll(mt.map);
+            FileMeta meta;
+            List<ValueLogFileMeta> valueLogs = List.of();
+            try (SstWriter writer = new SstWriter(options.sstDir, name, options.sstBlockSizeBytes, options.sstRestartInterval,
+                    options.compression, options.bloomBitsPerKey, options.rateLimiter, RateLimiter.Priority.FLUSH);
+                 ValueLogWriter valueLog = options.valueLogMinBytes <= 0 ? null : new ValueLogWriter(options.sstDir,
+                         nextFileNumber::getAndIncrement, options.valueLogFileBytes, options.rateLimiter, RateLimiter.Priority.FLUSH)) {
+                if (valueLog != null) writer.separateValues(valueLog, options.valueLogMinBytes);
+                mt.flushTo(writer, liveSnapshots());
+                // the values first: once the table is installed its pointers must resolve
+                if (valueLog != null) valueLogs = valueLog.finish();
+                writer.finish();
                 path = writer.install();
+                meta = writer.meta();
             }
+            SstReader reader = new SstReader(path, blockCache, tableCache);
+            // logged before the file becomes visible, outside the store lock: concurrent flushes append
+            // their edits independently (edits commute) and only the manifest's own append is serialized
+            VersionEdit edit = new VersionEdit().addFile(0, meta).setLastSeq(seq.get());
+            for (ValueLogFileMeta file : valueLogs) edit.addValueLog(file);
+            manifest.apply(edit);
+            List<ValueLogFile> written = openValueLogs(valueLogs);
+            long durableSeq;
             synchronized (this) {
-                sstFiles.add(path);
-                sstReaders.add(new SstReader(path));
-                immutables.remove(mt);
-                // commit manifest with new list
-                List<String> names = new ArrayList<>();
-                for (Path sstPath : sstFiles) names.add(sstPath.getFileName().toString());
-                manifest.commit(names, seq.get());
-            }
-            // TODO truncate WAL (simple: delete older segments, in reality it should be deleting up to the sequence of flushed sst)
-            wal.truncateUpTo(seq.get());
+                installVersion(version.withFlushed(reader, written));
+                durableSeq = retireFlushed(mt, lastSeq);
+                flushingFiles.remove(fileNumber);
+            }
+            updateWriteStall();
+            // log segments wholly below what every flushed memtable covers are no longer needed for recovery
+            if (durableSeq >= 0) wal.truncateUpTo(durableSeq);
             maybeCompactAsync();
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    private List<ValueLogFile> openValueLogs(List<ValueLogFileMeta> files) {
+        List<ValueLogFile> opened = new ArrayList<>(files.size());
+        for (ValueLogFileMeta file : files) {
+            Path path = options.sstDir.resolve(file.name());
+            opened.add(new ValueLogFile(valueLogNumber(path), path, file.valueBytes(), file.garbageBytes()));
+        }
+        return opened;
+    }
+
     private void maybeCompactAsync() {
-        if (sstFiles.size() > options.compactionTriggerFiles) {
+        if (closed || Compaction.pickLevel(version, options) < 0) return;
+        if (compactionScheduled.compareAndSet(false, true)) {
             compactExecutor.submit(this::runCompaction);
         }
     }
 
+    /** Run compactions until every level is within its target, installing each one atomically. */
     private void runCompaction() {
-        // TODO: implement real compaction (merging multiple sst files into one, removing deleted/overridden entries)
+        try {
+            Compaction compaction;
+            while (!closed && (compaction = Compaction.pick(version, options, compactPointer, oldestFlushing())) != null) {
+                List<SstReader> outputs = new ArrayList<>();
+                VersionEdit edit = new VersionEdit().setLastSeq(seq.get());
+                for (SstReader input : compaction.inputs()) edit.deleteFile(input.path().getFileName().toString());
+                Compaction.Result result = compaction.run(options, nextFileNumber::getAndIncrement, subcompactExecutor, liveSnapshots());
+                try {
+                    for (FileMeta output : result.files()) {
+                        outputs.add(new SstReader(options.sstDir.resolve(output.name()), blockCache, tableCache));
+                        edit.addFile(compaction.level + 1, output);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    // nothing refers to the outputs yet: once the manifest may, only recovery can tell
+                    for (SstReader output : outputs) Compaction.cleanup(ex, () -> tableCache.evict(output.path()));
+                    result.discard(options.sstDir, ex);
+                    throw ex;
+                }
+                for (ValueLogFileMeta file : result.valueLogs()) edit.addValueLog(file);
+                // a value log left with nothing but garbage leaves the Version; the rest record their new garbage
+                List<Long> dropped = new ArrayList<>();
+                for (Map.Entry<Long, Long> garbage : result.garbage().entrySet()) {
+                    ValueLogFile file = version.valueLog(garbage.getKey());
+                    if (file == null) continue;
+                    if (file.garbageBytes() + garbage.getValue() >= file.valueBytes) {
+                        edit.deleteFile(file.name());
+                        dropped.add(file.number);
+                    } else {
+                        edit.addGarbage(file.name(), garbage.getValue());
+                    }
+                }
+                // durable before installing: the inputs may be deleted as soon as the old Version is released
+                manifest.apply(edit);
+                List<ValueLogFile> written = openValueLogs(result.valueLogs());
+                synchronized (this) {
+                    for (Map.Entry<Long, Long> garbage : result.garbage().entrySet()) {
+                        ValueLogFile file = version.valueLog(garbage.getKey());
+                        if (file != null) file.addGarbage(garbage.getValue());
+                    }
+                    installVersion(version.withCompaction(compaction.inputs(), compaction.level + 1, outputs, written, dropped));
+                }
+                relocatedBytes.addAndGet(result.relocatedBytes());
+                updateWriteStall();
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            compactionScheduled.set(false);
+        }
+        maybeCompactAsync();    // a flush may have raced with the end of the loop
+    }
+
+    /**
+     * Caller holds the store lock. Flushed memtables leave the read path oldest first: readers check
+     * immutables before L0, so an older memtable still flushing must not outlive a newer one whose
+     * file is already installed, or its stale values would shadow the newer ones.
+     * Returns the last seq of the newest memtable retired, below which everything is in SSTs, or -1
+     * if mt still waits behind an older one.
+     */
+    private long retireFlushed(MemTable mt, long lastSeq) {
+        flushedMemTables.put(mt, lastSeq);
+        long durableSeq = -1;
+        while (!immutables.isEmpty() && flushedMemTables.containsKey(immutables.peekLast())) {
+            durableSeq = flushedMemTables.remove(immutables.pollLast());
+        }
+        return durableSeq;
+    }
+
+    /** Caller holds the store lock. The replaced Version's files are deleted once no reader holds it. */
+    private void installVersion(Version next) {
+        Version previous = version;
+        version = next;
+        previous.unref();
+    }
+
+    /** The current Version with a reference taken; release it with unref(). */
+    private Version acquireVersion() {
+        while (true) {
+            Version current = version;
+            if (current.tryRef()) return current;
+        }
+    }
+
+    private long oldestFlushing() {
+        Long oldest = flushingFiles.ceiling(Long.MIN_VALUE);
+        return oldest == null ? Long.MAX_VALUE : oldest;
+    }
+
+    /**
+     * Delete SST and value-log files (and leftover temp files) that the manifest does not reference,
+     * e.g. after a crash mid-compaction.
+     */
+    private void removeObsoleteFiles(Set<String> live) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(options.sstDir)) {
+            for (Path path : ds) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp") || ((SST_PAT.matcher(name).matches() || VLOG_PAT.matcher(name).matches()) && !live.contains(name))) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    static long fileNumber(Path path) {
+        Matcher matcher = SST_PAT.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0L;
+    }
+
+    private static long valueLogNumber(Path path) {
+        Matcher matcher = VLOG_PAT.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0L;
     }
 
     @Override
     public void put(byte[] key, byte[] value) throws IOException {
         Objects.requireNonNull(key);
         Objects.requireNonNull(value);
-        Entry entry = new Entry(seq.next(), Entry.FLAG_PUT, key, value);
-        wal.append(entry);
-        memTable.put(entry);
+        writeController.beforeWrite(key.length + value.length);
+        append(Entry.FLAG_PUT, key, value);
         rollIfNeeded(false);
     }
 
     @Override
     public void delete(byte[] key) throws IOException {
         Objects.requireNonNull(key);
-        Entry entry = new Entry(seq.next(), Entry.FLAG_DEL, key, null);
-        wal.append(entry);
-        memTable.put(entry);
+        writeController.beforeWrite(key.length);
+        append(Entry.FLAG_DEL, key, null);
+        rollIfNeeded(false);
+    }
+
+    /**
+     * One WAL record and one range tombstone however many keys the range holds. Reads stop at the
+     * tombstone instead of searching older files, and compactions drop what it covers, skipping
+     * input files it covers entirely. An empty range is a no-op.
+     */
+    @Override
+    public void deleteRange(byte[] startInclusive, byte[] endExclusive) throws IOException {
+        int cmp = ByteArrays.compare(Objects.requireNonNull(startInclusive), Objects.requireNonNull(endExclusive));
+        if (cmp > 0) throw new IllegalArgumentException("range start is past its end");
+        if (cmp == 0) return;
+        writeController.beforeWrite(startInclusive.length + endExclusive.length);
+        append(Entry.FLAG_RANGE_DEL, startInclusive, endExclusive);
         rollIfNeeded(false);
     }
 
     @Override
     public Optional<byte[]> read(byte[] key) throws IOException {
-        Entry entry = memTable.get(key);
+        return read(key, Long.MAX_VALUE);
+    }
+
+    @Override
+    public Optional<byte[]> read(byte[] key, Snapshot snapshot) throws IOException {
+        return read(key, snapshot.seq());
+    }
+
+    /**
+     * Memtables newest first, then the files (see {@link #readFrom}). A range tombstone covering the
+     * key ends the search at its source: it hides the older versions there and everything older
+     * sources hold for the key.
+     */
+    private Optional<byte[]> read(byte[] key, long snapshot) throws IOException {
+        Entry entry = newest(memTable.get(key, snapshot), memTable.rangeTombstones().coveringSeq(key, snapshot), key);
         if (entry != null) return entry.flag() == Entry.FLAG_PUT ? Optional.of(entry.value()) : Optional.empty();
         for (MemTable mt : immutables) {
-            Entry entry2 = mt.get(key);
+            Entry entry2 = newest(mt.get(key, snapshot), mt.rangeTombstones().coveringSeq(key, snapshot), key);
             if (entry2 != null) return entry2.flag() == Entry.FLAG_PUT ? Optional.of(entry2.value()) : Optional.empty();
         }
-        // newest to oldest
-        for (int i = sstReaders.size() - 1; i >= 0; i--) {
-            Optional<Entry> value = sstReaders.get(i).get(key);
-            if (value.isPresent()) {
-                Entry ent = value.get();
-                return ent.flag() == Entry.FLAG_PUT ? Optional.of(ent.value()) : Optional.empty();
+        Version current = acquireVersion();
+        try {
+            Optional<Entry> found = readFrom(current, key, snapshot);
+            return found.isPresent() && found.get().flag() != Entry.FLAG_DEL ? Optional.of(current.value(found.get())) : Optional.empty();
+        } finally {
+            current.unref();
+        }
+    }
+
+    /**
+     * A source's newest version of key (null if none), or a tombstone in its place when one of the
+     * source's range tombstones covers it: covered is the seq of the newest of those, -1 if none.
+     */
+    private static Entry newest(Entry entry, long covered, byte[] key) {
+        if (covered < 0 || (entry != null && entry.seq() > covered)) return entry;
+        return new Entry(covered, Entry.FLAG_DEL, key, null);
+    }
+
+    /**
+     * Copy the key's value into valueOut and return its length, or -1 when absent. Only
+     * min(length, valueOut.length) bytes are copied, so a caller that gets back more than its buffer
+     * holds retries with a larger one. A hit copies straight from the memtable or block and
+     * allocates nothing, except for a value kept in the value log, which is read from there.
+     */
+    @Override
+    public int read(byte[] key, byte[] valueOut) throws IOException {
+        // a source with a range tombstone over the key needs the versions' seqs: take the Entry path
+        if (memTable.rangeTombstones().coveringSeq(key, Long.MAX_VALUE) >= 0) return KvStore.super.read(key, valueOut);
+        int found = memTable.get(key, valueOut);
+        if (found != Entry.NOT_FOUND) return Math.max(found, -1);
+        for (MemTable mt : immutables) {
+            if (mt.rangeTombstones().coveringSeq(key, Long.MAX_VALUE) >= 0) return KvStore.super.read(key, valueOut);
+            found = mt.get(key, valueOut);
+            if (found != Entry.NOT_FOUND) return Math.max(found, -1);
+        }
+        Version current = acquireVersion();
+        try {
+            List<SstReader> l0 = current.level(0);
+            for (int i = 0; i < l0.size(); i++) {
+                if (l0.get(i).rangeTombstones().coveringSeq(key, Long.MAX_VALUE) >= 0) return KvStore.super.read(key, valueOut);
+                found = l0.get(i).get(key, valueOut);
+                if (found != Entry.NOT_FOUND) return resolve(current, l0.get(i), key, found, valueOut);
+            }
+            for (int level = 1; level < current.numLevels(); level++) {
+                SstReader reader = current.fileFor(level, key);
+                if (reader == null) continue;
+                if (reader.rangeTombstones().coveringSeq(key, Long.MAX_VALUE) >= 0) return KvStore.super.read(key, valueOut);
+                found = reader.get(key, valueOut);
+                if (found != Entry.NOT_FOUND) return resolve(current, reader, key, found, valueOut);
             }
+            return -1;
+        } finally {
+            current.unref();
+        }
+    }
+
+    /** The result of a table hit for read(key, valueOut), fetching the value from the value log when the table holds a pointer. */
+    private static int resolve(Version current, SstReader reader, byte[] key, int found, byte[] valueOut) throws IOException {
+        if (found != Entry.IN_VALUE_LOG) return Math.max(found, -1);
+        byte[] value = current.value(reader.get(key).orElseThrow());
+        System.arraycopy(value, 0, valueOut, 0, Math.min(value.length, valueOut.length));
+        return value.length;
+    }
+
+    /**
+     * L0 newest to oldest, then each deeper level; a tombstone in a newer file hides older values.
+     * Files whose key range excludes the key are skipped without touching the table (L0 files may
+     * overlap and are each checked; a deeper level is one binary search to its only candidate file).
+     * Only versions with seq <= snapshot are considered; a file's range tombstone over the key
+     * shows as a point tombstone.
+     */
+    private static Optional<Entry> readFrom(Version current, byte[] key, long snapshot) throws IOException {
+        for (SstReader reader : current.level(0)) {
+            Optional<Entry> found = readFrom(reader, key, snapshot);
+            if (found.isPresent()) return found;
+        }
+        for (int level = 1; level < current.numLevels(); level++) {
+            SstReader reader = current.fileFor(level, key);
+            if (reader == null) continue;
+            Optional<Entry> found = readFrom(reader, key, snapshot);
+            if (found.isPresent()) return found;
         }
         return Optional.empty();
     }
 
+    private static Optional<Entry> readFrom(SstReader reader, byte[] key, long snapshot) throws IOException {
+        long covered = reader.rangeTombstones().coveringSeq(key, snapshot);
+        return Optional.ofNullable(newest(reader.get(key, snapshot).orElse(null), covered, key));
+    }
+
+    /**
+     * Pinned to a snapshot registered for the call: the memtables are captured before the Version,
+     * and a compaction installed in between must not drop a version the call still has to see.
+     */
+    @Override
+    public List<Optional<byte[]>> multiGet(List<byte[]> keys) throws IOException {
+        Snapshot snapshot = getSnapshot();
+        try {
+            return multiGet(keys, snapshot.seq());
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    @Override
+    public List<Optional<byte[]>> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException {
+        return multiGet(keys, snapshot.seq());
+    }
+
+    /**
+     * Resolve the keys together instead of one full read each: sorted once, looked up in every
+     * memtable, then pushed through L0 newest first and each deeper level, where consecutive keys
+     * are grouped by the one file covering them. Each file gets a single {@link SstReader#multiGet}
+     * for all its keys, and a key drops out at the first source holding a version of it or a range
+     * tombstone over it.
+     */
+    private List<Optional<byte[]>> multiGet(List<byte[]> keys, long snapshot) throws IOException {
+        int n = keys.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> ByteArrays.compare(keys.get(a), keys.get(b)));
+        byte[][] sorted = new byte[n][];
+        for (int i = 0; i < n; i++) sorted[i] = Objects.requireNonNull(keys.get(order[i]));
+        Entry[] found = new Entry[n];
+        int[] pending = new int[n];     // positions in sorted still unresolved, ascending
+        for (int i = 0; i < n; i++) pending[i] = i;
+        int count = n;
+
+        List<MemTable> memTables = new ArrayList<>();
+        memTables.add(memTable);
+        memTables.addAll(immutables);
+        for (MemTable mt : memTables) {
+            RangeTombstoneList tombstones = mt.rangeTombstones();
+            for (int p = 0; p < count; p++) {
+                byte[] key = sorted[pending[p]];
+                found[pending[p]] = newest(mt.get(key, snapshot), tombstones.coveringSeq(key, snapshot), key);
+            }
+            count = unresolved(pending, count, found);
+        }
+        List<Optional<byte[]>> values = new ArrayList<>(Collections.nCopies(n, Optional.empty()));
+        Version current = acquireVersion();
+        try {
+            for (SstReader reader : current.level(0)) {
+                if (count == 0) break;
+                probe(reader, sorted, pending, 0, count, snapshot, found);
+                count = unresolved(pending, count, found);
+            }
+            for (int level = 1; level < current.numLevels() && count > 0; level++) {
+                for (int p = 0; p < count; ) {
+                    SstReader reader = current.fileFor(level, sorted[pending[p]]);
+                    int end = p + 1;
+                    if (reader != null) {
+                        while (end < count && ByteArrays.compare(sorted[pending[end]], reader.largestKey()) <= 0) end++;
+                        probe(reader, sorted, pending, p, end, snapshot, found);
+                    }
+                    p = end;
+                }
+                count = unresolved(pending, count, found);
+            }
+            for (int i = 0; i < n; i++) {
+                if (found[i] != null && found[i].flag() != Entry.FLAG_DEL) values.set(order[i], Optional.of(current.value(found[i])));
+            }
+        } finally {
+            current.unref();
+        }
+        return values;
+    }
+
+    /** Look up the sorted keys at pending[from, to) in one file, recording what it holds. */
+    private static void probe(SstReader reader, byte[][] sorted, int[] pending, int from, int to, long snapshot, Entry[] found)
+            throws IOException {
+        byte[][] batch = new byte[to - from][];
+        for (int p = from; p < to; p++) batch[p - from] = sorted[pending[p]];
+        Entry[] hits = reader.multiGet(batch, snapshot);
+        RangeTombstoneList tombstones = reader.rangeTombstones();
+        for (int p = from; p < to; p++) found[pending[p]] = newest(hits[p - from], tombstones.coveringSeq(batch[p - from], snapshot), batch[p - from]);
+    }
+
+    /** Drop the resolved positions from pending[0, count), keeping the order; returns how many remain. */
+    private static int unresolved(int[] pending, int count, Entry[] found) {
+        int kept = 0;
+        for (int p = 0; p < count; p++) {
+            if (found[pending[p]] == null) pending[kept++] = pending[p];
+        }
+        return kept;
+    }
+
     @Override
     public void batchPut(List<byte[]> keys, List<byte[]> values) throws IOException {
         if (keys.size() != values.size()) throw new IllegalArgumentException("mismatched sizes");
-        for (int i = 0; i < keys.size(); i++) put(keys.get(i), values.get(i));
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < keys.size(); i++) batch.put(keys.get(i), values.get(i));
+        write(batch);
+    }
+
+    @Override
+    public void write(WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) return;
+        writeController.beforeWrite(batch.approxBytes());
+        memTableLock.readLock().lock();
+        try {
+            long firstSeq = seq.reserve(batch.size());
+            wal.append(batch, firstSeq);
+            if (options.rateLimiter != null) options.rateLimiter.request(batch.approxBytes(), RateLimiter.Priority.USER);
+            memTable.apply(batch, firstSeq);
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        rollIfNeeded(false);
+    }
+
+    /**
+     * Log and insert one operation. The seq is taken under the memtable read lock and the lock is held
+     * until the entry is in the memtable, so a roll never separates a seq from the memtable it lands
+     * in: each memtable covers a contiguous seq range, which is what makes WAL truncation by seq safe.
+     */
+    private void append(byte flag, byte[] key, byte[] value) throws IOException {
+        memTableLock.readLock().lock();
+        try {
+            Entry entry = new Entry(seq.next(), flag, key, value);
+            wal.append(entry);
+            if (options.rateLimiter != null) options.rateLimiter.request(key.length + (value == null ? 0 : value.length), RateLimiter.Priority.USER);
+            insert(memTable, entry);
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+    }
+
+    private static void insert(MemTable mt, Entry entry) {
+        if (entry.flag() == Entry.FLAG_RANGE_DEL) mt.deleteRange(new RangeTombstone(entry.key(), entry.value(), entry.seq()));
+        else mt.put(entry);
     }
 
     @Override
     public List<KeyValue> readKeyRange(byte[] start, byte[] end) {
-        // TODO currently active memtable only; no immutables & sst range scan implemented
-        var sub = memTable.subMap(start, end);
         List<KeyValue> out = new ArrayList<>();
-        for (Entry ent : sub.values()) if (ent.flag() == Entry.FLAG_PUT) out.add(new KeyValue(ent.key(), ent.value()));
+        try (KvIterator it = iterator(ScanOptions.range(start, end))) {
+            for (; it.valid(); it.next()) out.add(new KeyValue(it.key(), it.value()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
         return out;
     }
 
+    /**
+     * A snapshot sees every write with a seq below the next one handed out. It is taken under the
+     * memtable write lock: writers hold the read lock from taking a seq until the entry is inserted,
+     * so no write the snapshot covers can still land after it is taken.
+     */
+    @Override
+    public Snapshot getSnapshot() {
+        memTableLock.writeLock().lock();
+        try {
+            Snapshot snapshot = new Snapshot(seq.get() - 1);
+            synchronized (snapshots) {
+                snapshots.merge(snapshot.seq(), 1, Integer::sum);
+            }
+            return snapshot;
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Snapshots of several stores pinned at one instant: every store's writers are held off until
+     * all of them are taken, so no write that finished before another one started is missing from a
+     * set that holds the later one.
+     */
+    static Snapshot[] getSnapshots(List<LsmKvStore> stores) {
+        for (LsmKvStore store : stores) store.memTableLock.writeLock().lock();
+        try {
+            Snapshot[] snapshots = new Snapshot[stores.size()];
+            for (int i = 0; i < snapshots.length; i++) snapshots[i] = stores.get(i).getSnapshot();
+            return snapshots;
+        } finally {
+            for (LsmKvStore store : stores) store.memTableLock.writeLock().unlock();
+        }
+    }
+
+    /** Releasing a snapshot twice is a no-op. */
+    @Override
+    public void releaseSnapshot(Snapshot snapshot) {
+        synchronized (snapshots) {
+            if (snapshot.released) return;
+            snapshot.released = true;
+            snapshots.computeIfPresent(snapshot.seq(), (s, handles) -> handles == 1 ? null : handles - 1);
+        }
+    }
+
+    /** Seqs of the live snapshots, ascending. */
+    private long[] liveSnapshots() {
+        synchronized (snapshots) {
+            long[] seqs = new long[snapshots.size()];
+            int i = 0;
+            for (long s : snapshots.keySet()) seqs[i++] = s;
+            return seqs;
+        }
+    }
+
+    /**
+     * Pinned to the last seq handed out. A snapshot is registered only while the sources are
+     * gathered, so no compaction installed between taking the memtables and the Version drops a
+     * version the scan must see; after that the iterator holds its memtables and a Version, whose
+     * files never change.
+     */
+    @Override
+    public KvIterator iterator(ScanOptions scan) throws IOException {
+        Snapshot snapshot = getSnapshot();
+        try {
+            return iterator(scan, snapshot.seq());
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    @Override
+    public KvIterator iterator(ScanOptions scan, Snapshot snapshot) throws IOException {
+        return iterator(scan, snapshot.seq());
+    }
+
+    /**
+     * Merge the active memtable, the immutables and every SST overlapping the bounds, newest first,
+     * each source reduced to its newest version per key with seq <= snapshot; SSTs written entirely
+     * after the snapshot are skipped. The range tombstones of all those sources are merged into one
+     * list the iterator checks every key against. The iterator holds a reference to the current
+     * Version, so its files outlive compactions until close().
+     */
+    private KvIterator iterator(ScanOptions scan, long snapshot) throws IOException {
+        byte[] lower = scan.lowerBound();
+        byte[] upper = scan.upperBound();
+        List<EntryIterator> sources = new ArrayList<>();
+        List<RangeTombstoneList> tombstones = new ArrayList<>();
+        MemTable active = memTable;
+        sources.add(new SnapshotIterator(active.iterator(scan.reverse()), snapshot));
+        tombstones.add(active.rangeTombstones());
+        for (MemTable mt : immutables) {
+            sources.add(new SnapshotIterator(mt.iterator(scan.reverse()), snapshot));
+            tombstones.add(mt.rangeTombstones());
+        }
+        Version current = acquireVersion();
+        try {
+            for (int level = 0; level < current.numLevels(); level++) {
+                List<SstReader> files = current.level(level);
+                // L1+ is sorted and disjoint: binary-search the first file in range, stop at the first past it
+                int first = level == 0 || lower == null ? 0 : current.firstReaching(level, lower);
+                for (int i = first; i < files.size(); i++) {
+                    SstReader reader = files.get(i);
+                    if (upper != null && ByteArrays.compare(reader.smallestKey(), upper) >= 0) {
+                        if (level == 0) continue;
+                        break;
+                    }
+                    if (lower != null && ByteArrays.compare(reader.largestKey(), lower) < 0) continue;
+                    if (reader.minSeq() > snapshot) continue;
+                    sources.add(new SnapshotIterator(reader.iterator(scan.reverse()), snapshot));
+                    tombstones.add(reader.rangeTombstones());
+                }
+            }
+            return new StoreIterator(new MergingIterator(sources, scan.reverse()), scan, RangeTombstoneList.merge(tombstones, snapshot), current);
+        } catch (IOException | RuntimeException ex) {
+            for (EntryIterator it : sources) it.close();
+            current.unref();
+            throw ex;
+        }
+    }
+
     @Override
     public void close() throws IOException {
+        writeController.close();
         rollIfNeeded(true);
+        closed = true;
         flushExecutor.shutdown();
         compactExecutor.shutdown();
         try {
@@ -168,6 +806,11 @@ public final class LsmKvStore implements KvStore {
             compactExecutor.awaitTermination(2, java.util.concurrent.TimeUnit.SECONDS);
         } catch (InterruptedException ignored) {
         }
+        subcompactExecutor.shutdown();
+        if (options.rateLimiter != null) options.rateLimiter.forget(this);
         wal.close();
+        manifest.close();
+        tableCache.close();
+        for (ValueLogFile file : version.valueLogs()) file.close();
     }
 }
@@ -0,0 +1,110 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Small LZ77 block codec in the style of LZ4: a single greedy pass with a hash table of recent
+ * 4-byte sequences, no entropy coding, and a decoder that is a plain copy loop.
+ * <p>
+ * Compressed form: a series of sequences
+ *   [ token:1 | literalLen ext* | literals | offset:2 | matchLen ext* ]
+ * token high nibble = literal length, low nibble = match length - 4; a nibble of 15 is continued
+ * by bytes of 255 until a byte below 255. The last sequence has literals only (no offset).
+ */
+final class LzCompressor {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 0xffff;
+
+    private LzCompressor() {
+    }
+
+    static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[len + len / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];   // position + 1 of the last sequence with this hash; 0 = none
+        int end = off + len;
+        int anchor = off;   // start of pending literals
+        int ip = off;
+        int op = 0;
+        while (ip + MIN_MATCH <= end) {
+            int seq = readInt(src, ip);
+            int h = (seq * 0x9e3779b1) >>> (32 - HASH_BITS);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < off || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < end && src[ref + matchLen] == src[ip + matchLen]) matchLen++;
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int litStart, int litLen, int offset, int matchLen) {
+        int tokenPos = op++;
+        int token = Math.min(litLen, 15) << 4;
+        if (litLen >= 15) op = writeLength(dst, op, litLen - 15);
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        if (matchLen > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int extra = matchLen - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15) op = writeLength(dst, op, extra - 15);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /** Decode src (position to limit) into exactly dst.length bytes. */
+    static void decompress(ByteBuffer src, byte[] dst) {
+        int op = 0;
+        while (src.hasRemaining()) {
+            int token = src.get() & 0xff;
+            int litLen = token >>> 4;
+            if (litLen == 15) litLen += readLength(src);
+            if (litLen > dst.length - op) throw new IllegalStateException("corrupt lz block: literals overrun");
+            src.get(dst, op, litLen);
+            op += litLen;
+            if (!src.hasRemaining()) break;     // last sequence carries literals only
+
+            int offset = (src.get() & 0xff) | (src.get() & 0xff) << 8;
+            int matchLen = (token & 15) + MIN_MATCH;
+            if ((token & 15) == 15) matchLen += readLength(src);
+            if (offset == 0 || offset > op || matchLen > dst.length - op) throw new IllegalStateException("corrupt lz block: bad match");
+            // byte at a time: the match may overlap the bytes it produces (offset < matchLen)
+            for (int i = 0; i < matchLen; i++, op++) dst[op] = dst[op - offset];
+        }
+        if (op != dst.length) throw new IllegalStateException("lz block decoded to " + op + " bytes, expected " + dst.length);
+    }
+
+    private static int readLength(ByteBuffer src) {
+        int len = 0;
+        int b;
+        do {
+            b = src.get() & 0xff;
+            len += b;
+        } while (b == 255);
+        return len;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+}
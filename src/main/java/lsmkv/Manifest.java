@@ -1,45 +1,179 @@
 package lsmkv;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-public final class Manifest {
+/**
+ * MANIFEST is an append-only log of {@link VersionEdit}s describing the live SST files per level and
+ * the live value-log files with their garbage counts:
+ *   [ magic:8 ] [ record* ]
+ *   record: [ crc32c:4 | len:4 | edit ]      (crc covers the edit)
+ * The first record is a snapshot, the whole file set as one edit. Every flush and compaction then
+ * appends one record and fsyncs it, so a commit costs O(files changed) instead of rewriting the
+ * full list; the live set is folded in memory as edits are applied.
+ *  - once the edits appended past the snapshot exceed both maxLogBytes and the snapshot's own size,
+ *    the live set is rewritten as a new snapshot (temp file, atomic rename, directory fsync), which
+ *    keeps the amortized cost per edit constant
+ *  - a torn or corrupt record ends the log: records are fsynced one at a time, so only the tail can
+ *    be incomplete after a crash, and it is cut off before new edits are appended
+ * Text manifests from older versions ("lastSeq=<n>", "L<level>=<file>", legacy "sst=<file>" read as
+ * L0) are loaded once and rewritten as a snapshot.
+ */
+public final class Manifest implements Closeable {
+    static final long MAGIC = 0x4c534d4b564d414eL;  // "LSMKVMAN"
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 8;
 
     private final Path path;
+    private final long maxLogBytes;
+    private final List<Map<String, FileMeta>> levels = new ArrayList<>();    // live files, folded from the log
+    private final Map<String, ValueLogFileMeta> valueLogs = new LinkedHashMap<>();
+    private long lastSeq;
+    private FileChannel log;        // open for appends once loaded
+    private long logBytes;          // valid length of the log
+    private long snapshotBytes;     // length of the log right after its snapshot record
 
-    public Manifest(Path dir) throws IOException {
+    public Manifest(Path dir) {
+        this(dir, 1024 * 1024);
+    }
+
+    public Manifest(Path dir, long maxLogBytes) {
         this.path = dir.resolve("MANIFEST");
-        if (!Files.exists(path)) Files.writeString(path, "", StandardCharsets.UTF_8);
+        this.maxLogBytes = maxLogBytes;
     }
 
-    public synchronized void commit(List<String> sstFiles, long lastSeq) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        builder.append("lastSeq=").append(lastSeq).append('\n');
-        for (String f : sstFiles) builder.append("sst=").append(f).append('\n');
-        // write temp and atomic replace
-        Path tmp = path.resolveSibling("MANIFEST.tmp");
-        Files.writeString(tmp, builder.toString(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        try (FileChannel channel = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
-            channel.force(true);
+    /** Read the live file set and open the log for appends; must be called once before apply(). */
+    public synchronized State load() throws IOException {
+        levels.clear();
+        valueLogs.clear();
+        lastSeq = 0;
+        byte[] data = Files.exists(path) ? Files.readAllBytes(path) : new byte[0];
+        if (data.length >= HEADER && ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getLong(0) == MAGIC) {
+            logBytes = replay(data);
+            log = FileChannel.open(path, StandardOpenOption.WRITE);
+            if (log.size() > logBytes) {
+                log.truncate(logBytes);    // drop the torn tail so new records follow the last good one
+                log.force(true);
+            }
+            log.position(logBytes);
+        } else {
+            loadText(new String(data, StandardCharsets.UTF_8));
+            writeSnapshot();
         }
+        List<List<FileMeta>> state = new ArrayList<>();
+        for (Map<String, FileMeta> level : levels) state.add(List.copyOf(level.values()));
+        return new State(lastSeq, state, List.copyOf(valueLogs.values()));
     }
 
-    public synchronized State load() throws IOException {
-        List<String> lines = Files.readAllLines(path);
-        long lastSeq = 0;
-        List<String> sst = new ArrayList<>();
-        for (String line : lines) {
+    /** Durably append one edit; when this returns the edit survives a crash. */
+    public synchronized void apply(VersionEdit edit) throws IOException {
+        if (log == null) throw new IllegalStateException("manifest not loaded");
+        logBytes += writeRecord(log, edit);
+        log.force(false);
+        fold(edit);
+        if (logBytes - snapshotBytes > Math.max(maxLogBytes, snapshotBytes)) writeSnapshot();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) log.close();
+    }
+
+    private void fold(VersionEdit edit) {
+        if (edit.lastSeq() > lastSeq) lastSeq = edit.lastSeq();
+        for (String name : edit.deleted()) {
+            for (Map<String, FileMeta> level : levels) level.remove(name);
+            valueLogs.remove(name);
+        }
+        for (VersionEdit.Added added : edit.added()) level(added.level()).put(added.file().name(), added.file());
+        for (ValueLogFileMeta file : edit.addedValueLogs()) valueLogs.put(file.name(), file);
+        edit.garbage().forEach((name, bytes) -> valueLogs.computeIfPresent(name,
+                (n, file) -> new ValueLogFileMeta(n, file.valueBytes(), file.garbageBytes() + bytes)));
+    }
+
+    /** Fold every intact record; returns the length of the valid prefix. */
+    private long replay(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int pos = HEADER;
+        while (pos + RECORD_HEADER <= data.length) {
+            int crc = buf.getInt(pos);
+            int len = buf.getInt(pos + 4);
+            if (len < 0 || len > data.length - pos - RECORD_HEADER) break;
+            if (Codec.crc32c(data, pos + RECORD_HEADER, len) != crc) break;
+            VersionEdit edit;
+            try {
+                edit = VersionEdit.decode(ByteBuffer.wrap(data, pos + RECORD_HEADER, len));
+            } catch (RuntimeException ex) {
+                break;
+            }
+            fold(edit);
+            pos += RECORD_HEADER + len;
+            if (snapshotBytes == 0) snapshotBytes = pos;
+        }
+        if (snapshotBytes == 0) snapshotBytes = pos;
+        return pos;
+    }
+
+    private void loadText(String text) {
+        for (String line : text.split("\n")) {
             if (line.startsWith("lastSeq=")) lastSeq = Long.parseLong(line.substring(8));
-            else if (line.startsWith("sst=")) sst.add(line.substring(4));
+            else if (line.startsWith("sst=")) level(0).put(line.substring(4), FileMeta.unknown(line.substring(4)));
+            else if (line.startsWith("L") && line.indexOf('=') > 1) {
+                int eq = line.indexOf('=');
+                String name = line.substring(eq + 1);
+                level(Integer.parseInt(line.substring(1, eq))).put(name, FileMeta.unknown(name));
+            }
+        }
+    }
+
+    /** Replace the log with a single snapshot of the live set and reopen it for appends. */
+    private void writeSnapshot() throws IOException {
+        VersionEdit snapshot = new VersionEdit().setLastSeq(lastSeq);
+        for (int level = 0; level < levels.size(); level++) {
+            for (FileMeta file : levels.get(level).values()) snapshot.addFile(level, file);
+        }
+        for (ValueLogFileMeta file : valueLogs.values()) snapshot.addValueLog(file);
+        Path tmp = path.resolveSibling("MANIFEST.tmp");
+        long size;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN).putLong(MAGIC).flip();
+            while (header.hasRemaining()) channel.write(header);
+            size = HEADER + writeRecord(channel, snapshot);
+            channel.force(true);
+        }
+        if (log != null) log.close();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
         }
-        return new State(lastSeq, sst);
+        log = FileChannel.open(path, StandardOpenOption.WRITE);
+        log.position(size);
+        logBytes = snapshotBytes = size;
+    }
+
+    private static int writeRecord(FileChannel channel, VersionEdit edit) throws IOException {
+        byte[] payload = edit.encode();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(Codec.crc32c(payload)).putInt(payload.length).put(payload).flip();
+        while (record.hasRemaining()) channel.write(record);
+        return record.limit();
+    }
+
+    private Map<String, FileMeta> level(int level) {
+        while (levels.size() <= level) levels.add(new LinkedHashMap<>());
+        return levels.get(level);
     }
 
-    public record State(long lastSeq, List<String> sstFiles) {
+    public record State(long lastSeq, List<List<FileMeta>> levels, List<ValueLogFileMeta> valueLogs) {
     }
 }
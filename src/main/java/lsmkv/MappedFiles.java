@@ -0,0 +1,43 @@
+package lsmkv;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Deterministic release of file mappings. A MappedByteBuffer is normally unmapped only when the GC
+ * collects it, which can keep gigabytes of address space (and deleted files) alive long after use.
+ * Callers must guarantee nothing reads the buffer, or any slice of it, after unmap().
+ */
+final class MappedFiles {
+    // Unsafe.invokeCleaner releases a mapping immediately; null if the runtime does not expose it,
+    // in which case mappings are released when the GC collects them
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private MappedFiles() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable ignored) {
+        }
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
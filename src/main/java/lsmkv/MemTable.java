@@ -1,30 +1,63 @@
 package lsmkv;
 
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
 
-public final class MemTable {
+/**
+ * In-memory write buffer holding every version written, ordered by {@link Entry#INTERNAL_ORDER},
+ * until it is flushed to an SST. Implementations must allow concurrent inserts, reads and iteration.
+ */
+public interface MemTable {
+    void put(Entry entry);
 
-    public final ConcurrentSkipListMap<byte[], Entry> map = new ConcurrentSkipListMap<>(ByteArrays.LEX);
-    private final AtomicInteger approxBytes = new AtomicInteger(0);
+    /** Insert every operation of a batch, the i-th with seq firstSeq + i. */
+    void apply(WriteBatch batch, long firstSeq);
 
-    public void put(Entry entry) {
-        Entry prev = map.put(entry.key(), entry);
-        int delta = (entry.key().length + (entry.value() == null ? 0 : entry.value().length) + 32) -
-                (prev == null ? 0 : (prev.key().length + (prev.value() == null ? 0 : prev.value().length) + 32));
-        approxBytes.addAndGet(delta);
+    /** Latest entry for the key (possibly a tombstone), or null. */
+    default Entry get(byte[] key) {
+        return get(key, Long.MAX_VALUE);
     }
 
-    public int approxBytes() {
-        return approxBytes.get();
+    /** Newest entry for the key with seq <= snapshot (possibly a tombstone), or null. */
+    Entry get(byte[] key, long snapshot);
+
+    /**
+     * Copy the latest value of the key into valueOut (as much of it as fits) and return its full
+     * length, or {@link Entry#DELETED} / {@link Entry#NOT_FOUND}.
+     */
+    default int get(byte[] key, byte[] valueOut) {
+        return copyValue(get(key), valueOut);
     }
 
-    public NavigableMap<byte[], Entry> subMap(byte[] start, byte[] end) {
-        return map.subMap(start, true, end, false);
+    static int copyValue(Entry entry, byte[] valueOut) {
+        if (entry == null) return Entry.NOT_FOUND;
+        if (entry.flag() == Entry.FLAG_DEL) return Entry.DELETED;
+        byte[] value = entry.value() == null ? new byte[0] : entry.value();
+        System.arraycopy(value, 0, valueOut, 0, Math.min(value.length, valueOut.length));
+        return value.length;
     }
 
-    public Entry get(byte[] key) {
-        return map.get(key);
+    /** Record a range deletion; it hides the older versions of the range, wherever they are. */
+    void deleteRange(RangeTombstone tombstone);
+
+    /** The range deletions recorded so far. */
+    RangeTombstoneList rangeTombstones();
+
+    /** Memory used, compared against memTableMaxBytes to decide when to roll. */
+    int approxBytes();
+
+    boolean isEmpty();
+
+    /** Every version, in {@link Entry#INTERNAL_ORDER} or (reverse) exactly the opposite. */
+    EntryIterator iterator(boolean reverse);
+
+    /**
+     * Add the versions a reader can still see to the writer, in {@link Entry#INTERNAL_ORDER}: the
+     * latest of every key plus the newest at or below each live snapshot (ascending seqs); then
+     * every range tombstone.
+     */
+    void flushTo(SstWriter writer, long[] snapshots) throws IOException;
+
+    static MemTable create(Options options) {
+        return options.arenaMemTable ? new ArenaMemTable(options.arenaSlabBytes) : new SkipListMemTable();
     }
 }
@@ -0,0 +1,54 @@
+package lsmkv;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+
+/**
+ * EntryIterator over every version in a memtable's skiplist, in {@link Entry#INTERNAL_ORDER} or its
+ * reverse; iteration is weakly consistent with concurrent writes.
+ */
+final class MemTableIterator implements EntryIterator {
+    private final NavigableSet<Entry> entries;
+    private final boolean reverse;
+    private Iterator<Entry> it;
+    private Entry current;
+
+    MemTableIterator(NavigableSet<Entry> entries, boolean reverse) {
+        this.entries = entries;
+        this.reverse = reverse;
+    }
+
+    @Override
+    public boolean valid() {
+        return current != null;
+    }
+
+    @Override
+    public Entry entry() {
+        return current;
+    }
+
+    @Override
+    public void seekToFirst() {
+        it = reverse ? entries.descendingIterator() : entries.iterator();
+        next();
+    }
+
+    @Override
+    public void seek(byte[] target) {
+        // (target, MAX) sorts before every version of target, (target, MIN) after all of them
+        it = reverse
+                ? entries.headSet(new Entry(Long.MIN_VALUE, Entry.FLAG_PUT, target, null), true).descendingIterator()
+                : entries.tailSet(new Entry(Long.MAX_VALUE, Entry.FLAG_PUT, target, null), true).iterator();
+        next();
+    }
+
+    @Override
+    public void next() {
+        current = it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
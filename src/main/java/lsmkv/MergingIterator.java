@@ -0,0 +1,109 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of sorted sources with a binary heap. Sources are given newest first:
+ * when several sources hold the same key only the entry from the newest one is
+ * returned and the older versions are skipped. All sources must share the merge's direction.
+ * <p>
+ * With allVersions (ascending only, for compaction) nothing is skipped: every version of every
+ * source comes out in (key ascending, seq descending) order.
+ */
+final class MergingIterator implements EntryIterator {
+    private final List<EntryIterator> sources;
+    private final Comparator<byte[]> order;
+    private final boolean allVersions;
+    private final PriorityQueue<Integer> heap;   // source positions, ordered by (key, seq, age)
+    private Entry current;
+
+    MergingIterator(List<EntryIterator> sources, boolean reverse) {
+        this(sources, reverse, false);
+    }
+
+    MergingIterator(List<EntryIterator> sources, boolean reverse, boolean allVersions) {
+        if (reverse && allVersions) throw new IllegalArgumentException("allVersions merges are ascending");
+        this.sources = sources;
+        this.allVersions = allVersions;
+        this.order = reverse ? ByteArrays.LEX.reversed() : ByteArrays.LEX;
+        this.heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            Entry x = sources.get(a).entry();
+            Entry y = sources.get(b).entry();
+            int cmp = order.compare(x.key(), y.key());
+            if (cmp == 0 && allVersions) cmp = Long.compare(y.seq(), x.seq());
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+    }
+
+    @Override
+    public void seekToFirst() throws IOException {
+        for (EntryIterator it : sources) it.seekToFirst();
+        rebuild();
+    }
+
+    @Override
+    public void seek(byte[] target) throws IOException {
+        for (EntryIterator it : sources) it.seek(target);
+        rebuild();
+    }
+
+    private void rebuild() throws IOException {
+        heap.clear();
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).valid()) heap.add(i);
+        }
+        advance();
+    }
+
+    private void advance() throws IOException {
+        if (heap.isEmpty()) {
+            current = null;
+            return;
+        }
+        int top = heap.poll();
+        current = sources.get(top).entry();
+        step(top);
+        if (allVersions) return;
+        // drop older versions of the same key
+        while (!heap.isEmpty() && ByteArrays.compare(sources.get(heap.peek()).entry().key(), current.key()) == 0) {
+            step(heap.poll());
+        }
+    }
+
+    private void step(int source) throws IOException {
+        EntryIterator it = sources.get(source);
+        it.next();
+        if (it.valid()) heap.add(source);
+    }
+
+    @Override
+    public boolean valid() {
+        return current != null;
+    }
+
+    @Override
+    public Entry entry() {
+        return current;
+    }
+
+    @Override
+    public void next() throws IOException {
+        advance();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (EntryIterator it : sources) {
+            try {
+                it.close();
+            } catch (IOException ex) {
+                if (failure == null) failure = ex;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
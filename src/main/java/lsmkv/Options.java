@@ -15,6 +15,59 @@ public final class Options {
     public final int flushParallelism;
     public final int compactionTriggerFiles;
 
+    // fsync each WAL group commit before acknowledging writes (otherwise fsync by walBatchBytes / walSyncMillis)
+    public boolean walSyncOnCommit = false;
+    // roll to a new WAL segment past this size; flushes delete whole segments once everything in them is in SSTs
+    public long walSegmentBytes = 64L * 1024 * 1024;
+    // threads verifying and decoding WAL records during recovery; records are still applied in log order
+    public int walReplayThreads = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    // manifest edits appended after its last snapshot (and at least the snapshot's own size) before it is rewritten
+    public long manifestLogBytes = 1024 * 1024;
+
+    // off-heap memtable: nodes, keys and values live in direct-buffer slabs instead of heap objects
+    public boolean arenaMemTable = false;
+    public int arenaSlabBytes = 1024 * 1024;
+
+    // write stalls: writes are paced first, then stopped (writes also stop at maxImmutables pending memtables)
+    public int l0SlowdownTrigger = 20;                      // pace writes once L0 holds this many files
+    public int l0StopTrigger = 36;                          // stop writes once L0 holds this many files
+    public long pendingFlushSlowdownBytes = 0;              // pace writes above this many unflushed bytes; 0 = (maxImmutables - 1) memtables
+    public long delayedWriteRateBytes = 16L * 1024 * 1024;  // write rate while paced, bytes/s
+
+    // SST blocks store keys as deltas against the previous key; every restartInterval keys one is stored whole
+    public int sstRestartInterval = 16;
+    // per-block codec for flushes and compactions; bottommostCompression (null = same) applies to compaction
+    // outputs with no older data below them, which hold most of the data and are rewritten least often
+    public Compression compression = Compression.LZ;
+    public Compression bottommostCompression = null;
+
+    // shared cache of decompressed SST blocks; 0 disables it
+    public long blockCacheBytes = 64L * 1024 * 1024;
+    public int blockCacheShards = 16;
+    // SST files kept open (with their parsed index and bloom filter) at once; a miss reopens and re-parses the file
+    public int maxOpenFiles = 1000;
+    // map SST files and decode uncompressed blocks in place; pays off when the data fits in the page cache
+    public boolean mmapReads = false;
+
+    // leveled compaction; adjust before opening the store
+    public int numLevels = 7;
+    public long levelBaseBytes = 256L * 1024 * 1024;        // size target of L1
+    public int levelSizeMultiplier = 10;                    // each deeper level may hold 10x more
+    public long targetFileSizeBytes = 64L * 1024 * 1024;    // compaction outputs are cut at this size
+    // threads merging disjoint key ranges of one compaction; a job is split into at most one range
+    // per targetFileSizeBytes of input
+    public int maxSubcompactions = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // paces flush and compaction I/O (auto-tuned to compaction debt unless built otherwise); may be
+    // shared by stores on one device; null = unlimited
+    public RateLimiter rateLimiter = null;
+
+    // key-value separation: flushes and compactions write put values of at least this many bytes to
+    // value-log files and keep only pointers in the SSTs, so compactions stop rewriting them; 0 = off
+    public int valueLogMinBytes = 0;
+    public long valueLogFileBytes = 256L * 1024 * 1024;    // value-log files are rolled past this size
+    // compactions move the live values out of value-log files with at least this share of garbage
+    public double valueLogGcRatio = 0.5;
+
     public Options(Path rootDir, int memTableMaxBytes, int maxImmutables, int walBatchBytes, int walSyncMillis,
                    int sstBlockSizeBytes, int bloomBitsPerKey,
                    int flushParallelism, int compactionTriggerFiles) {
@@ -31,6 +84,39 @@ public final class Options {
         this.compactionTriggerFiles = compactionTriggerFiles;
     }
 
+    /** A copy of these options for a store rooted at rootDir (a new field must be copied here too). */
+    public Options withRootDir(Path rootDir) {
+        Options copy = new Options(rootDir, memTableMaxBytes, maxImmutables, walBatchBytes, walSyncMillis,
+                sstBlockSizeBytes, bloomBitsPerKey, flushParallelism, compactionTriggerFiles);
+        copy.walSyncOnCommit = walSyncOnCommit;
+        copy.walSegmentBytes = walSegmentBytes;
+        copy.walReplayThreads = walReplayThreads;
+        copy.manifestLogBytes = manifestLogBytes;
+        copy.arenaMemTable = arenaMemTable;
+        copy.arenaSlabBytes = arenaSlabBytes;
+        copy.l0SlowdownTrigger = l0SlowdownTrigger;
+        copy.l0StopTrigger = l0StopTrigger;
+        copy.pendingFlushSlowdownBytes = pendingFlushSlowdownBytes;
+        copy.delayedWriteRateBytes = delayedWriteRateBytes;
+        copy.sstRestartInterval = sstRestartInterval;
+        copy.compression = compression;
+        copy.bottommostCompression = bottommostCompression;
+        copy.blockCacheBytes = blockCacheBytes;
+        copy.blockCacheShards = blockCacheShards;
+        copy.maxOpenFiles = maxOpenFiles;
+        copy.mmapReads = mmapReads;
+        copy.numLevels = numLevels;
+        copy.levelBaseBytes = levelBaseBytes;
+        copy.levelSizeMultiplier = levelSizeMultiplier;
+        copy.targetFileSizeBytes = targetFileSizeBytes;
+        copy.maxSubcompactions = maxSubcompactions;
+        copy.rateLimiter = rateLimiter;
+        copy.valueLogMinBytes = valueLogMinBytes;
+        copy.valueLogFileBytes = valueLogFileBytes;
+        copy.valueLogGcRatio = valueLogGcRatio;
+        return copy;
+    }
+
     public static Options defaults(Path root) {
         return new Options(
                 root,
@@ -41,7 +127,7 @@ public final class Options {
                 16 * 1024,        // sst block
                 10,               // bloom bits per key
                 2,                // parallel flushes
-                10                // trigger compaction when >10 files
+                10                // compact L0 into L1 when it holds >10 files
         );
     }
 }
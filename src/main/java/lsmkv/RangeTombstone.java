@@ -0,0 +1,37 @@
+package lsmkv;
+
+import java.util.Arrays;
+
+/**
+ * A range deletion: hides every version of the keys in [start, end) with a seq below its own.
+ * Written by {@link KvStore#deleteRange}, kept beside the point entries of memtables and SSTs.
+ */
+record RangeTombstone(byte[] start, byte[] end, long seq) {
+
+    boolean contains(byte[] key) {
+        return ByteArrays.compare(key, start) >= 0 && ByteArrays.compare(key, end) < 0;
+    }
+
+    /** The part of the tombstone within [lo, hi) (unbounded where null), or null if none is. */
+    RangeTombstone clip(byte[] lo, byte[] hi) {
+        byte[] from = lo != null && ByteArrays.compare(lo, start) > 0 ? lo : start;
+        byte[] to = hi != null && ByteArrays.compare(hi, end) < 0 ? hi : end;
+        if (ByteArrays.compare(from, to) >= 0) return null;
+        return from == start && to == end ? this : new RangeTombstone(from, to, seq);
+    }
+
+    /**
+     * The largest key the tombstone covers, for a file's inclusive key range. The end itself when
+     * it has no representable predecessor, which overstates the range by that one key; a key
+     * followed by a zero byte (as {@link #successor} makes) is the exact bound.
+     */
+    byte[] lastKey() {
+        if (end.length > 0 && end[end.length - 1] == 0) return Arrays.copyOf(end, end.length - 1);
+        return end;
+    }
+
+    /** The smallest key greater than key. */
+    static byte[] successor(byte[] key) {
+        return Arrays.copyOf(key, key.length + 1);
+    }
+}
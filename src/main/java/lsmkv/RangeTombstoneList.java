@@ -0,0 +1,205 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The range tombstones of one source (a memtable or an SST), split at every start and end into
+ * disjoint fragments, each with the seqs of all tombstones covering it in descending order. Which
+ * tombstone covers a key as of a snapshot is then a floor lookup for the fragment plus a scan of
+ * its (usually single) seq.
+ * <p>
+ * A memtable's list grows in place: {@link #add} cuts only the fragments at the new tombstone's
+ * bounds and touches only those it overlaps, and readers look fragments up concurrently without
+ * locking. Lists built from a collection (SSTs, compactions, iterators) are fixed.
+ * <p>
+ * Encoded in SST footers as: [ count:varint | (startLen:varint | start | endLen:varint | end | seq:varint)* ]
+ * listing the tombstones as written; fragments are rebuilt on load.
+ */
+final class RangeTombstoneList {
+    static final RangeTombstoneList EMPTY = new RangeTombstoneList(List.of());
+
+    private final Collection<RangeTombstone> tombstones;            // as added
+    private final NavigableMap<byte[], Fragment> fragments;         // by start; disjoint
+
+    /** [start, end) of the map key, covered by tombstones with these seqs (descending). */
+    private record Fragment(byte[] end, long[] seqs) {
+        Fragment with(long seq) {
+            long[] next = new long[seqs.length + 1];
+            int i = 0;
+            while (i < seqs.length && seqs[i] > seq) next[i] = seqs[i++];
+            next[i] = seq;
+            System.arraycopy(seqs, i, next, i + 1, seqs.length - i);
+            return new Fragment(end, next);
+        }
+    }
+
+    /** An empty list for a memtable, grown with {@link #add}. */
+    RangeTombstoneList() {
+        this.tombstones = new ConcurrentLinkedQueue<>();
+        this.fragments = new ConcurrentSkipListMap<>(ByteArrays.LEX);
+    }
+
+    RangeTombstoneList(Collection<RangeTombstone> tombstones) {
+        this.tombstones = List.copyOf(tombstones);
+        this.fragments = new TreeMap<>(ByteArrays.LEX);
+        List<byte[]> bounds = new ArrayList<>();
+        for (RangeTombstone t : this.tombstones) {
+            bounds.add(t.start());
+            bounds.add(t.end());
+        }
+        bounds.sort(ByteArrays.LEX);
+        List<RangeTombstone> byStart = new ArrayList<>(this.tombstones);
+        byStart.sort((a, b) -> ByteArrays.compare(a.start(), b.start()));
+
+        // sweep the bounds in order, keeping the seqs of the tombstones open over each fragment
+        TreeMap<Long, Integer> open = new TreeMap<>();
+        List<RangeTombstone> active = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            byte[] lo = bounds.get(i);
+            byte[] hi = bounds.get(i + 1);
+            if (ByteArrays.compare(lo, hi) == 0) continue;
+            while (next < byStart.size() && ByteArrays.compare(byStart.get(next).start(), lo) <= 0) {
+                active.add(byStart.get(next));
+                open.merge(byStart.get(next).seq(), 1, Integer::sum);
+                next++;
+            }
+            active.removeIf(t -> {
+                if (ByteArrays.compare(t.end(), lo) > 0) return false;
+                open.computeIfPresent(t.seq(), (seq, n) -> n == 1 ? null : n - 1);
+                return true;
+            });
+            if (open.isEmpty()) continue;
+            long[] covering = new long[open.size()];
+            int j = 0;
+            for (long seq : open.descendingKeySet()) covering[j++] = seq;
+            fragments.put(lo, new Fragment(hi, covering));
+        }
+    }
+
+    boolean isEmpty() {
+        return tombstones.isEmpty();
+    }
+
+    List<RangeTombstone> tombstones() {
+        return List.copyOf(tombstones);
+    }
+
+    /**
+     * Add a tombstone to a memtable's list: the fragments running across its start or end are cut
+     * there, those inside it get its seq and the gaps between them become new fragments, so the cost
+     * is in the fragments it overlaps rather than in the whole list. Every step replaces one map
+     * entry and leaves each key covered by at least what covered it before.
+     */
+    synchronized void add(RangeTombstone tombstone) {
+        if (!(fragments instanceof ConcurrentSkipListMap)) throw new IllegalStateException("list is fixed");
+        split(tombstone.start());
+        split(tombstone.end());
+        byte[] pos = tombstone.start();
+        for (Map.Entry<byte[], Fragment> e : List.copyOf(fragments.subMap(tombstone.start(), true, tombstone.end(), false).entrySet())) {
+            if (ByteArrays.compare(pos, e.getKey()) < 0) fragments.put(pos, new Fragment(e.getKey(), new long[]{tombstone.seq()}));
+            fragments.put(e.getKey(), e.getValue().with(tombstone.seq()));
+            pos = e.getValue().end();
+        }
+        if (ByteArrays.compare(pos, tombstone.end()) < 0) fragments.put(pos, new Fragment(tombstone.end(), new long[]{tombstone.seq()}));
+        tombstones.add(tombstone);
+    }
+
+    // make key a fragment bound; the right part goes in first, so keys past key never lose their cover
+    private void split(byte[] key) {
+        Map.Entry<byte[], Fragment> e = fragments.lowerEntry(key);
+        if (e == null || ByteArrays.compare(e.getValue().end(), key) <= 0) return;
+        fragments.put(key, new Fragment(e.getValue().end(), e.getValue().seqs()));
+        fragments.put(e.getKey(), new Fragment(key, e.getValue().seqs()));
+    }
+
+    /** The largest seq <= snapshot of a tombstone covering key, or -1 if none does. */
+    long coveringSeq(byte[] key, long snapshot) {
+        Fragment fragment = fragment(key);
+        if (fragment == null) return -1;
+        for (long seq : fragment.seqs()) {
+            if (seq <= snapshot) return seq;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether every key in [smallest, largest] is covered by a tombstone with a seq in (after, upTo]:
+     * fragments holding such a seq run unbroken from smallest past largest, whichever tombstones
+     * they come from.
+     */
+    boolean coversAll(byte[] smallest, byte[] largest, long after, long upTo) {
+        Map.Entry<byte[], Fragment> e = fragments.floorEntry(smallest);
+        if (e == null || ByteArrays.compare(smallest, e.getValue().end()) >= 0) return false;
+        while (true) {
+            boolean hidden = false;
+            for (long seq : e.getValue().seqs()) {
+                if (seq <= upTo) {
+                    hidden = seq > after;
+                    break;
+                }
+            }
+            if (!hidden) return false;
+            if (ByteArrays.compare(largest, e.getValue().end()) < 0) return true;
+            Map.Entry<byte[], Fragment> next = fragments.higherEntry(e.getKey());
+            if (next == null || ByteArrays.compare(e.getValue().end(), next.getKey()) != 0) return false;
+            e = next;
+        }
+    }
+
+    // the fragment holding key, or null
+    private Fragment fragment(byte[] key) {
+        Map.Entry<byte[], Fragment> e = fragments.floorEntry(key);
+        return e == null || ByteArrays.compare(key, e.getValue().end()) >= 0 ? null : e.getValue();
+    }
+
+    /** The tombstones of several sources with seq <= snapshot, as one list. */
+    static RangeTombstoneList merge(Collection<RangeTombstoneList> lists, long snapshot) {
+        List<RangeTombstone> all = new ArrayList<>();
+        for (RangeTombstoneList list : lists) {
+            for (RangeTombstone t : list.tombstones()) {
+                if (t.seq() <= snapshot) all.add(t);
+            }
+        }
+        return all.isEmpty() ? EMPTY : new RangeTombstoneList(all);
+    }
+
+    byte[] encode() {
+        List<RangeTombstone> tombstones = tombstones();
+        int size = 10;
+        for (RangeTombstone t : tombstones) size += 5 + t.start().length + 5 + t.end().length + 10;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        Codec.putVarint(buf, tombstones.size());
+        for (RangeTombstone t : tombstones) {
+            Codec.putVarint(buf, t.start().length);
+            buf.put(t.start());
+            Codec.putVarint(buf, t.end().length);
+            buf.put(t.end());
+            Codec.putVarint(buf, t.seq());
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    static RangeTombstoneList decode(ByteBuffer buf) {
+        int n = Codec.getVarintInt(buf);
+        if (n == 0) return EMPTY;
+        List<RangeTombstone> tombstones = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte[] start = new byte[Codec.getVarintInt(buf)];
+            buf.get(start);
+            byte[] end = new byte[Codec.getVarintInt(buf)];
+            buf.get(end);
+            tombstones.add(new RangeTombstone(start, end, Codec.getVarint(buf)));
+        }
+        return new RangeTombstoneList(tombstones);
+    }
+}
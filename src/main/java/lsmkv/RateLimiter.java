@@ -0,0 +1,141 @@
+package lsmkv;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket pacing background I/O (flush and compaction reads and writes) so it leaves the
+ * device to foreground WAL writes and reads. One limiter may be shared by several stores on the
+ * same device through {@link Options#rateLimiter}.
+ *  - tokens are bytes, refilled continuously at the current rate; at most 100 ms worth accumulate
+ *  - USER bytes (WAL appends) never wait and are only counted: charging them would let sustained
+ *    foreground traffic starve the flushes writers depend on; capping the background is what
+ *    leaves the device to the foreground
+ *  - FLUSH and COMPACTION requests wait until the bucket is positive and may overdraw it, so a
+ *    request larger than the bucket still goes through and the debt is paid off before the next
+ *  - a COMPACTION request also waits while any FLUSH request does: flushes free memtables that
+ *    writers are stalled on, compactions only pay down debt
+ * <p>
+ * Auto-tuned (the default), the rate follows the compaction debt each store reports: the slowest
+ * rate (1/20 of the maximum) while compactions keep up, rising to the maximum as the most indebted
+ * store's pending compaction bytes reach one level-base of debt. Compactions then run quietly
+ * when there is time to spare and at full speed before the debt turns into write stalls.
+ */
+public final class RateLimiter {
+    public enum Priority { USER, FLUSH, COMPACTION }
+
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+    private static final long MAX_WAIT_NANOS = 100_000_000L;
+    private static final int MIN_RATE_DIVISOR = 20;
+
+    private final long maxBytesPerSec;
+    private final boolean autoTune;
+    private final Map<Object, Double> debt = new ConcurrentHashMap<>();   // per store: pending / level-base bytes
+    private volatile long bytesPerSec;
+    private long available;             // tokens; negative while an overdraft is being paid off
+    private long lastRefill = System.nanoTime();
+    private final int[] waiting = new int[Priority.values().length];
+    private final LongAdder userBytes = new LongAdder();
+    private final long[] bytes = new long[Priority.values().length];
+    private final long[] waitNanos = new long[Priority.values().length];
+
+    /** An auto-tuned limiter pacing background I/O to at most maxBytesPerSec. */
+    public RateLimiter(long maxBytesPerSec) {
+        this(maxBytesPerSec, true);
+    }
+
+    public RateLimiter(long maxBytesPerSec, boolean autoTune) {
+        if (maxBytesPerSec <= 0) throw new IllegalArgumentException("rate must be positive: " + maxBytesPerSec);
+        this.maxBytesPerSec = maxBytesPerSec;
+        this.autoTune = autoTune;
+        this.bytesPerSec = autoTune ? minBytesPerSec() : maxBytesPerSec;
+    }
+
+    /**
+     * Take n bytes of budget, waiting as described above for background priorities. An interrupted
+     * wait grants the request and leaves the interrupt flag set.
+     */
+    public void request(long n, Priority priority) {
+        if (n <= 0) return;
+        if (priority == Priority.USER) {
+            userBytes.add(n);       // on every write: counted without taking the lock
+            return;
+        }
+        synchronized (this) {
+            bytes[priority.ordinal()] += n;
+            refill(System.nanoTime());
+            long start = System.nanoTime();
+            waiting[priority.ordinal()]++;
+            try {
+                while (available <= 0 || (priority == Priority.COMPACTION && waiting[Priority.FLUSH.ordinal()] > 0)) {
+                    double deficitNanos = (1.0 - available) * NANOS_PER_SEC / bytesPerSec;
+                    long nanos = (long) Math.max(1_000_000, Math.min(MAX_WAIT_NANOS, deficitNanos));
+                    try {
+                        wait(nanos / 1_000_000, (int) (nanos % 1_000_000));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    refill(System.nanoTime());
+                }
+                available -= n;
+            } finally {
+                waiting[priority.ordinal()]--;
+                waitNanos[priority.ordinal()] += System.nanoTime() - start;
+                notifyAll();    // a compaction may have been held back by this flush
+            }
+        }
+    }
+
+    /**
+     * Report a store's compaction debt as pending bytes over its level-base size; the rate follows the
+     * largest reported ratio.
+     */
+    public void reportCompactionDebt(Object store, double ratio) {
+        debt.put(store, ratio);
+        retune();
+    }
+
+    /** Drop a closed store's debt report. */
+    public void forget(Object store) {
+        debt.remove(store);
+        retune();
+    }
+
+    public long bytesPerSec() {
+        return bytesPerSec;
+    }
+
+    public synchronized RateLimiterStats stats() {
+        return new RateLimiterStats(bytesPerSec, maxBytesPerSec,
+                userBytes.sum(), bytes[Priority.FLUSH.ordinal()], bytes[Priority.COMPACTION.ordinal()],
+                waitNanos[Priority.FLUSH.ordinal()], waitNanos[Priority.COMPACTION.ordinal()]);
+    }
+
+    private void retune() {
+        if (!autoTune) return;
+        double worst = 0;
+        for (double r : debt.values()) worst = Math.max(worst, r);
+        long min = minBytesPerSec();
+        long rate = min + (long) ((maxBytesPerSec - min) * Math.min(1.0, worst));
+        synchronized (this) {
+            refill(System.nanoTime());      // bank what accrued at the old rate first
+            bytesPerSec = rate;
+            notifyAll();
+        }
+    }
+
+    // caller holds the lock
+    private void refill(long now) {
+        long elapsed = Math.min(now - lastRefill, NANOS_PER_SEC);
+        long tokens = (long) ((double) elapsed * bytesPerSec / NANOS_PER_SEC);
+        if (tokens <= 0) return;    // keep lastRefill so frequent calls do not round the refill away
+        available = Math.min(Math.max(1, bytesPerSec / 10), available + tokens);
+        lastRefill = now;
+    }
+
+    private long minBytesPerSec() {
+        return Math.max(1, maxBytesPerSec / MIN_RATE_DIVISOR);
+    }
+}
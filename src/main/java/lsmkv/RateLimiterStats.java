@@ -0,0 +1,9 @@
+package lsmkv;
+
+/**
+ * Cumulative bytes charged to a rate limiter per priority and the time background requests spent
+ * waiting, plus the current and maximum rates in bytes/s.
+ */
+public record RateLimiterStats(long bytesPerSec, long maxBytesPerSec, long userBytes, long flushBytes, long compactionBytes,
+                               long flushWaitNanos, long compactionWaitNanos) {
+}
@@ -0,0 +1,38 @@
+package lsmkv;
+
+import java.util.Arrays;
+
+/**
+ * Bounds and direction of a scan. lowerBound is inclusive, upperBound exclusive; null means unbounded.
+ */
+public record ScanOptions(byte[] lowerBound, byte[] upperBound, boolean reverse) {
+
+    public static ScanOptions all() {
+        return new ScanOptions(null, null, false);
+    }
+
+    public static ScanOptions range(byte[] startInclusive, byte[] endExclusive) {
+        return new ScanOptions(startInclusive, endExclusive, false);
+    }
+
+    /** All keys starting with prefix. */
+    public static ScanOptions prefix(byte[] prefix) {
+        return new ScanOptions(prefix, successor(prefix), false);
+    }
+
+    public ScanOptions reversed() {
+        return new ScanOptions(lowerBound, upperBound, !reverse);
+    }
+
+    /** Smallest key greater than every key with this prefix, or null if there is none (all 0xff). */
+    private static byte[] successor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] out = Arrays.copyOf(prefix, i + 1);
+                out[i]++;
+                return out;
+            }
+        }
+        return null;
+    }
+}
@@ -9,6 +9,11 @@ public final class Seq {
         return next.getAndIncrement();
     }
 
+    /** Reserve n consecutive sequence numbers and return the first. */
+    public long reserve(int n) {
+        return next.getAndAdd(n);
+    }
+
     public void setAtLeast(long value) {
         next.updateAndGet(cur -> Math.max(cur, value + 1));
     }
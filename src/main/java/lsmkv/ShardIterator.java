@@ -0,0 +1,76 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the scans of a {@link ShardedKvStore}'s shards by key. Every key lives in exactly one
+ * shard, so the shard iterators never hold the same key and the merge only has to order them;
+ * each shard's scan has already applied the bounds and dropped tombstones.
+ */
+final class ShardIterator implements KvIterator {
+    private final List<KvIterator> shards;
+    private final PriorityQueue<KvIterator> heap;     // valid shard iterators, by current key
+    private boolean closed;
+
+    ShardIterator(List<KvIterator> shards, boolean reverse) {
+        Comparator<byte[]> order = reverse ? ByteArrays.LEX.reversed() : ByteArrays.LEX;
+        this.shards = shards;
+        this.heap = new PriorityQueue<>(Math.max(1, shards.size()), (a, b) -> order.compare(a.key(), b.key()));
+        rebuild();
+    }
+
+    @Override
+    public boolean valid() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public byte[] key() {
+        return heap.peek().key();
+    }
+
+    @Override
+    public byte[] value() {
+        return heap.peek().value();
+    }
+
+    @Override
+    public void next() throws IOException {
+        KvIterator top = heap.poll();
+        if (top == null) return;
+        top.next();
+        if (top.valid()) heap.add(top);
+    }
+
+    @Override
+    public void seek(byte[] target) throws IOException {
+        for (KvIterator shard : shards) shard.seek(target);
+        rebuild();
+    }
+
+    private void rebuild() {
+        heap.clear();
+        for (KvIterator shard : shards) {
+            if (shard.valid()) heap.add(shard);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        IOException failure = null;
+        for (KvIterator shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                if (failure == null) failure = ex;
+                else failure.addSuppressed(ex);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
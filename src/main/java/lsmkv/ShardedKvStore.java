@@ -0,0 +1,293 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A KvStore spread over independent {@link LsmKvStore} shards, each under rootDir/shard-&lt;i&gt;
+ * with its own WAL, memtables, manifest and background threads, so writers to different shards
+ * share no lock, sequence counter or log and writes scale with the number of shards.
+ *  - keys are routed by hash (an even spread whatever the key distribution) or by split keys
+ *    (shard i holds [split[i-1], split[i]), which keeps a range scan to the shards it covers)
+ *  - point operations go to one shard and multiGet to each shard once; scans merge the shards'
+ *    iterators by key, and since every key lives in exactly one shard nothing needs deduplicating
+ *  - a batch is split by shard and each part applied atomically in its shard; a batch spanning
+ *    shards is not atomic as a whole, and a crash can keep some shards' parts and lose others'
+ *  - the block cache and open-file budgets are divided between the shards, memtable sizes apply
+ *    per shard, and a rateLimiter in the options is shared by all of them
+ *  - a scan or multiGet without a snapshot sees each shard as of its own moment; a snapshot from
+ *    getSnapshot() pins every shard at one instant
+ * The layout is recorded in rootDir/SHARDS when the store is created and must match on reopen:
+ * keys written under one layout are not found under another.
+ */
+public final class ShardedKvStore implements KvStore {
+    private static final String LAYOUT_FILE = "SHARDS";
+
+    private final List<LsmKvStore> shards;
+    private final byte[][] splitKeys;   // range sharding: shards.size() - 1 ascending keys; null = hash
+
+    /** A store of n shards, keys routed by hash. */
+    public ShardedKvStore(Options options, int n) throws IOException {
+        this(options, n, null);
+    }
+
+    /** A store of splitKeys.size() + 1 shards, keys routed by range; splitKeys must be strictly ascending. */
+    public ShardedKvStore(Options options, List<byte[]> splitKeys) throws IOException {
+        this(options, splitKeys.size() + 1, splitKeys.toArray(new byte[0][]));
+    }
+
+    private ShardedKvStore(Options options, int n, byte[][] splitKeys) throws IOException {
+        if (n < 1) throw new IllegalArgumentException("shard count must be positive: " + n);
+        if (splitKeys != null) {
+            for (int i = 1; i < splitKeys.length; i++) {
+                if (ByteArrays.compare(splitKeys[i - 1], splitKeys[i]) >= 0) {
+                    throw new IllegalArgumentException("split keys must be strictly ascending");
+                }
+            }
+        }
+        this.splitKeys = splitKeys;
+        Files.createDirectories(options.rootDir);
+        checkLayout(options.rootDir.resolve(LAYOUT_FILE), layout(n, splitKeys));
+        List<LsmKvStore> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Options shardOptions = options.withRootDir(options.rootDir.resolve("shard-" + i));
+                shardOptions.blockCacheBytes = options.blockCacheBytes / n;
+                shardOptions.maxOpenFiles = Math.max(1, options.maxOpenFiles / n);
+                opened.add(new LsmKvStore(shardOptions));
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (LsmKvStore store : opened) {
+                try {
+                    store.close();
+                } catch (IOException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+            }
+            throw ex;
+        }
+        this.shards = List.copyOf(opened);
+    }
+
+    private static String layout(int n, byte[][] splitKeys) {
+        if (splitKeys == null) return "hash=" + n + "\n";
+        StringBuilder sb = new StringBuilder("range=" + n + "\n");
+        for (byte[] key : splitKeys) sb.append("split=").append(HexFormat.of().formatHex(key)).append('\n');
+        return sb.toString();
+    }
+
+    /** Record the layout of a new store, or make sure an existing store was created with the same one. */
+    private static void checkLayout(Path path, String layout) throws IOException {
+        if (Files.exists(path)) {
+            String existing = Files.readString(path, StandardCharsets.UTF_8);
+            if (!existing.equals(layout)) {
+                throw new IOException("store at " + path.getParent() + " is sharded as [" + existing.strip().replace('\n', ' ')
+                        + "], not [" + layout.strip().replace('\n', ' ') + "]");
+            }
+            return;
+        }
+        Path tmp = path.resolveSibling(LAYOUT_FILE + ".tmp");
+        Files.writeString(tmp, layout, StandardCharsets.UTF_8);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    int shardFor(byte[] key) {
+        if (splitKeys == null) return (int) Long.remainderUnsigned(BloomFilter.hash64(key), shards.size());
+        int i = Arrays.binarySearch(splitKeys, key, ByteArrays.LEX);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    // the bloom filters index by hash64 as is; remixing it (murmur3's finalizer) keeps each shard's
+    // keys spread over every bloom line instead of the ones matching the shard's residue
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private LsmKvStore shard(byte[] key) {
+        return shards.get(shardFor(Objects.requireNonNull(key)));
+    }
+
+    /** Per-shard snapshots of a snapshot taken from this store. */
+    private Snapshot[] parts(Snapshot snapshot) {
+        if (snapshot.shards == null || snapshot.shards.length != shards.size()) {
+            throw new IllegalArgumentException("not a snapshot of this store: " + snapshot);
+        }
+        return snapshot.shards;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+        shard(key).put(key, value);
+    }
+
+    @Override
+    public void delete(byte[] key) throws IOException {
+        shard(key).delete(key);
+    }
+
+    /**
+     * A tombstone in every shard the range reaches: all of them under hash sharding, only the ones
+     * it overlaps under range sharding. Like a batch spanning shards, not atomic across them.
+     */
+    @Override
+    public void deleteRange(byte[] startInclusive, byte[] endExclusive) throws IOException {
+        int cmp = ByteArrays.compare(Objects.requireNonNull(startInclusive), Objects.requireNonNull(endExclusive));
+        if (cmp > 0) throw new IllegalArgumentException("range start is past its end");
+        if (cmp == 0) return;
+        int first = 0;
+        int last = shards.size() - 1;
+        if (splitKeys != null) {
+            first = shardFor(startInclusive);
+            last = lastShardBelow(endExclusive);
+        }
+        for (int i = first; i <= last; i++) shards.get(i).deleteRange(startInclusive, endExclusive);
+    }
+
+    /** The last shard holding keys below an exclusive upper bound, under range sharding. */
+    private int lastShardBelow(byte[] upperBound) {
+        // a shard starting exactly at the bound holds nothing below it
+        int i = Arrays.binarySearch(splitKeys, upperBound, ByteArrays.LEX);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    @Override
+    public Optional<byte[]> read(byte[] key) throws IOException {
+        return shard(key).read(key);
+    }
+
+    @Override
+    public Optional<byte[]> read(byte[] key, Snapshot snapshot) throws IOException {
+        int i = shardFor(key);
+        return shards.get(i).read(key, parts(snapshot)[i]);
+    }
+
+    @Override
+    public int read(byte[] key, byte[] valueOut) throws IOException {
+        return shard(key).read(key, valueOut);
+    }
+
+    @Override
+    public List<Optional<byte[]>> multiGet(List<byte[]> keys) throws IOException {
+        return multiGet(keys, null);
+    }
+
+    @Override
+    public List<Optional<byte[]>> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException {
+        Snapshot[] parts = snapshot == null ? null : parts(snapshot);
+        List<List<Integer>> positions = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) positions.add(new ArrayList<>());
+        for (int p = 0; p < keys.size(); p++) positions.get(shardFor(Objects.requireNonNull(keys.get(p)))).add(p);
+        List<Optional<byte[]>> values = new ArrayList<>(Collections.nCopies(keys.size(), Optional.empty()));
+        for (int i = 0; i < shards.size(); i++) {
+            List<Integer> mine = positions.get(i);
+            if (mine.isEmpty()) continue;
+            List<byte[]> shardKeys = new ArrayList<>(mine.size());
+            for (int p : mine) shardKeys.add(keys.get(p));
+            List<Optional<byte[]>> found = parts == null ? shards.get(i).multiGet(shardKeys) : shards.get(i).multiGet(shardKeys, parts[i]);
+            for (int j = 0; j < mine.size(); j++) values.set(mine.get(j), found.get(j));
+        }
+        return values;
+    }
+
+    @Override
+    public List<KeyValue> readKeyRange(byte[] start, byte[] end) {
+        List<KeyValue> out = new ArrayList<>();
+        try (KvIterator it = iterator(ScanOptions.range(start, end))) {
+            for (; it.valid(); it.next()) out.add(new KeyValue(it.key(), it.value()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return out;
+    }
+
+    @Override
+    public KvIterator iterator(ScanOptions scan) throws IOException {
+        return iterator(scan, null);
+    }
+
+    /**
+     * Merge the scans of the shards the bounds reach: every shard under hash sharding, only the
+     * ones whose key range overlaps the bounds under range sharding.
+     */
+    @Override
+    public KvIterator iterator(ScanOptions scan, Snapshot snapshot) throws IOException {
+        Snapshot[] parts = snapshot == null ? null : parts(snapshot);
+        int first = 0;
+        int last = shards.size() - 1;
+        if (splitKeys != null) {
+            if (scan.lowerBound() != null) first = shardFor(scan.lowerBound());
+            if (scan.upperBound() != null) last = lastShardBelow(scan.upperBound());
+        }
+        List<KvIterator> scans = new ArrayList<>();
+        try {
+            for (int i = first; i <= last; i++) {
+                scans.add(parts == null ? shards.get(i).iterator(scan) : shards.get(i).iterator(scan, parts[i]));
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (KvIterator it : scans) it.close();
+            throw ex;
+        }
+        return new ShardIterator(scans, scan.reverse());
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return new Snapshot(LsmKvStore.getSnapshots(shards));
+    }
+
+    /** Releasing a snapshot twice is a no-op. */
+    @Override
+    public void releaseSnapshot(Snapshot snapshot) {
+        Snapshot[] parts = parts(snapshot);
+        for (int i = 0; i < parts.length; i++) shards.get(i).releaseSnapshot(parts[i]);
+    }
+
+    @Override
+    public void batchPut(List<byte[]> keys, List<byte[]> values) throws IOException {
+        if (keys.size() != values.size()) throw new IllegalArgumentException("mismatched sizes");
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < keys.size(); i++) batch.put(keys.get(i), values.get(i));
+        write(batch);
+    }
+
+    /** Split the batch by shard, keeping the order of operations, and write each part; see the class notes. */
+    @Override
+    public void write(WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) return;
+        WriteBatch[] parts = new WriteBatch[shards.size()];
+        for (Entry op : batch.ops()) {
+            int i = shardFor(op.key());
+            if (parts[i] == null) parts[i] = new WriteBatch();
+            if (op.flag() == Entry.FLAG_PUT) parts[i].put(op.key(), op.value());
+            else parts[i].delete(op.key());
+        }
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) shards.get(i).write(parts[i]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (LsmKvStore shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                if (failure == null) failure = ex;
+                else failure.addSuppressed(ex);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,86 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-heap memtable: a ConcurrentSkipListSet of every version written, in {@link Entry#INTERNAL_ORDER}
+ * (key ascending, seq descending). A rewrite of a key adds a version rather than replacing the
+ * old one, so readers pinned to an older seq still find theirs; the flush drops the versions no
+ * snapshot can see. Size is an estimate (key + value + 32 bytes of per-entry overhead).
+ */
+public final class SkipListMemTable implements MemTable {
+
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(Entry.INTERNAL_ORDER);
+    private final AtomicInteger approxBytes = new AtomicInteger(0);
+    private final RangeTombstoneList rangeTombstones = new RangeTombstoneList();
+
+    @Override
+    public void put(Entry entry) {
+        approxBytes.addAndGet(insert(entry));
+    }
+
+    /** Insert every operation of a batch, the i-th with seq firstSeq + i, updating the size once. */
+    @Override
+    public void apply(WriteBatch batch, long firstSeq) {
+        int delta = 0;
+        List<Entry> ops = batch.ops();
+        for (int i = 0; i < ops.size(); i++) {
+            Entry op = ops.get(i);
+            delta += insert(new Entry(firstSeq + i, op.flag(), op.key(), op.value()));
+        }
+        approxBytes.addAndGet(delta);
+    }
+
+    private int insert(Entry entry) {
+        // a version replayed twice (same key and seq) is stored once
+        if (!entries.add(entry)) return 0;
+        return entry.key().length + (entry.value() == null ? 0 : entry.value().length) + 32;
+    }
+
+    @Override
+    public void deleteRange(RangeTombstone tombstone) {
+        rangeTombstones.add(tombstone);
+        approxBytes.addAndGet(tombstone.start().length + tombstone.end().length + 32);
+    }
+
+    @Override
+    public RangeTombstoneList rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Override
+    public int approxBytes() {
+        return approxBytes.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.isEmpty() && rangeTombstones.isEmpty();
+    }
+
+    @Override
+    public Entry get(byte[] key, long snapshot) {
+        Entry found = entries.ceiling(new Entry(snapshot, Entry.FLAG_PUT, key, null));
+        return found != null && ByteArrays.compare(found.key(), key) == 0 ? found : null;
+    }
+
+    @Override
+    public EntryIterator iterator(boolean reverse) {
+        return new MemTableIterator(entries, reverse);
+    }
+
+    @Override
+    public void flushTo(SstWriter writer, long[] snapshots) throws IOException {
+        SnapshotRetention retention = new SnapshotRetention(snapshots);
+        byte[] previous = null;
+        for (Entry entry : entries) {
+            boolean newKey = previous == null || ByteArrays.compare(entry.key(), previous) != 0;
+            previous = entry.key();
+            if (retention.keep(newKey, entry.seq())) writer.add(entry);
+        }
+        for (RangeTombstone tombstone : rangeTombstones.tombstones()) writer.addRangeTombstone(tombstone);
+    }
+}
@@ -0,0 +1,135 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a byte range in a heap array or a (possibly direct or mapped) buffer, so keys
+ * and values can be compared and copied where they live instead of being copied into a fresh array.
+ * A Slice does not own its bytes: one over a memtable or block buffer is valid only while that
+ * buffer is, and must be copied with toByteArray() to outlive it.
+ * <p>
+ * Ordering is unsigned lexicographic, the same as {@link ByteArrays#compare}:
+ *  - array against array uses Arrays.compareUnsigned, which the JIT vectorizes
+ *  - anything against a buffer compares eight bytes at a time as big-endian longs
+ */
+public final class Slice implements Comparable<Slice> {
+    private final byte[] array;         // null for buffer views
+    private final ByteBuffer buffer;    // null for array views
+    private final int offset;
+    private final int length;
+
+    private Slice(byte[] array, ByteBuffer buffer, int offset, int length) {
+        this.array = array;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static Slice of(byte[] array) {
+        return new Slice(array, null, 0, array.length);
+    }
+
+    public static Slice of(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > array.length) throw new IndexOutOfBoundsException();
+        return new Slice(array, null, offset, length);
+    }
+
+    /** View of buffer[offset, offset + length) by absolute index; the buffer's position is never touched. */
+    public static Slice of(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) throw new IndexOutOfBoundsException();
+        return new Slice(null, buffer, offset, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte get(int i) {
+        if (i < 0 || i >= length) throw new IndexOutOfBoundsException(i);
+        return array != null ? array[offset + i] : buffer.get(offset + i);
+    }
+
+    /** Copy the bytes into dst at dstOffset; dst must have room for length() bytes. */
+    public void copyTo(byte[] dst, int dstOffset) {
+        if (array != null) System.arraycopy(array, offset, dst, dstOffset, length);
+        else buffer.get(offset, dst, dstOffset, length);
+    }
+
+    public byte[] toByteArray() {
+        byte[] out = new byte[length];
+        copyTo(out, 0);
+        return out;
+    }
+
+    @Override
+    public int compareTo(Slice other) {
+        if (array != null && other.array != null) {
+            return Arrays.compareUnsigned(array, offset, offset + length, other.array, other.offset, other.offset + other.length);
+        }
+        if (array != null) return -compare(other.buffer, other.offset, other.length, array, offset, length);
+        if (other.array != null) return compare(buffer, offset, length, other.array, other.offset, other.length);
+        return compare(buffer, offset, length, other.buffer, other.offset, other.length);
+    }
+
+    public int compareTo(byte[] key) {
+        if (array != null) return Arrays.compareUnsigned(array, offset, offset + length, key, 0, key.length);
+        return compare(buffer, offset, length, key, 0, key.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Slice other && length == other.length && compareTo(other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < length; i++) h = 31 * h + get(i);
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "Slice[" + length + " bytes]";
+    }
+
+    // ---- in-place comparison ----
+
+    /** Unsigned comparison of buf[off, off + len) with key[keyOff, keyOff + keyLen), a long at a time. */
+    static int compare(ByteBuffer buf, int off, int len, byte[] key, int keyOff, int keyLen) {
+        int n = Math.min(len, keyLen);
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long a = bigEndianLong(buf, off + i);
+            long b = (long) ByteArrays.BIG_ENDIAN_LONGS.get(key, keyOff + i);
+            if (a != b) return Long.compareUnsigned(a, b);
+        }
+        for (; i < n; i++) {
+            int cmp = (buf.get(off + i) & 0xff) - (key[keyOff + i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return len - keyLen;
+    }
+
+    static int compare(ByteBuffer a, int aOff, int aLen, ByteBuffer b, int bOff, int bLen) {
+        int n = Math.min(aLen, bLen);
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long x = bigEndianLong(a, aOff + i);
+            long y = bigEndianLong(b, bOff + i);
+            if (x != y) return Long.compareUnsigned(x, y);
+        }
+        for (; i < n; i++) {
+            int cmp = (a.get(aOff + i) & 0xff) - (b.get(bOff + i) & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return aLen - bLen;
+    }
+
+    private static long bigEndianLong(ByteBuffer buf, int index) {
+        long word = buf.getLong(index);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? word : Long.reverseBytes(word);
+    }
+}
@@ -0,0 +1,34 @@
+package lsmkv;
+
+import java.util.Arrays;
+
+/**
+ * A point-in-time view of a store: reads through it see every write with seq <= seq() and none
+ * after. While a snapshot is held, flushes and compactions keep the versions it can see; release
+ * it with {@link KvStore#releaseSnapshot} when done, or older versions are kept forever.
+ */
+public final class Snapshot {
+    private final long seq;
+    final Snapshot[] shards;    // a ShardedKvStore snapshot: one per shard, taken together; else null
+    boolean released;   // guarded by the store's snapshot registry
+
+    Snapshot(long seq) {
+        this.seq = seq;
+        this.shards = null;
+    }
+
+    Snapshot(Snapshot[] shards) {
+        this.seq = -1;
+        this.shards = shards;
+    }
+
+    /** The seq the snapshot is pinned to; -1 for a sharded store's, whose shards each have their own. */
+    public long seq() {
+        return seq;
+    }
+
+    @Override
+    public String toString() {
+        return shards == null ? "Snapshot[" + seq + "]" : "Snapshot" + Arrays.toString(shards);
+    }
+}
@@ -0,0 +1,71 @@
+package lsmkv;
+
+import java.io.IOException;
+
+/**
+ * Reduces a source holding every version of its keys (a memtable or SST iterator, ordered by key
+ * and then seq descending, or exactly the reverse) to one entry per key: the newest version with
+ * seq <= snapshot. Keys with no such version are skipped, and a tombstone is returned like any
+ * other version so the merge above can let it hide older sources.
+ */
+final class SnapshotIterator implements EntryIterator {
+    private final EntryIterator source;
+    private final long snapshot;
+    private Entry current;
+
+    SnapshotIterator(EntryIterator source, long snapshot) {
+        this.source = source;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public boolean valid() {
+        return current != null;
+    }
+
+    @Override
+    public Entry entry() {
+        return current;
+    }
+
+    @Override
+    public void seekToFirst() throws IOException {
+        source.seekToFirst();
+        settle();
+    }
+
+    @Override
+    public void seek(byte[] target) throws IOException {
+        source.seek(target);
+        settle();
+    }
+
+    @Override
+    public void next() throws IOException {
+        settle();
+    }
+
+    /** Consume the source's next key group and keep its newest visible version; repeat until one has one. */
+    private void settle() throws IOException {
+        current = null;
+        while (source.valid()) {
+            byte[] key = source.entry().key();
+            Entry best = null;
+            // descending groups come oldest first, so take the highest visible seq rather than the first
+            do {
+                Entry entry = source.entry();
+                if (entry.seq() <= snapshot && (best == null || entry.seq() > best.seq())) best = entry;
+                source.next();
+            } while (source.valid() && ByteArrays.compare(source.entry().key(), key) == 0);
+            if (best != null) {
+                current = best;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,51 @@
+package lsmkv;
+
+import java.util.Arrays;
+
+/**
+ * Decides which versions of a key a flush or compaction keeps, given the live snapshots. The
+ * readers are the snapshots plus "latest", and each sees the newest version with seq <= its own, so
+ * of the versions between two adjacent readers (a stripe) only the newest can ever be read.
+ *  - versions are fed per key newest first; the first version of each stripe is kept, the rest dropped
+ *  - a kept tombstone in the oldest stripe shadows nothing any reader can reach once the versions
+ *    under it are dropped, so where no deeper level holds the key it can go as well
+ * Snapshots taken after the job started need nothing extra: every input version is at or below
+ * their seq, so the newest version, which the latest stripe always keeps, is the one they see.
+ */
+final class SnapshotRetention {
+    private final long[] snapshots;     // ascending
+    private int lastStripe = -1;        // stripe of the previous version of the current key
+
+    SnapshotRetention(long[] snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /** Call for every version in (key ascending, seq descending) order; newKey marks a key's first version. */
+    boolean keep(boolean newKey, long seq) {
+        int stripe = stripe(seq);
+        if (!newKey && stripe == lastStripe) return false;
+        lastStripe = stripe;
+        return true;
+    }
+
+    /** Whether a version is visible to the oldest reader, so nothing older is still needed under it. */
+    boolean inOldestStripe(long seq) {
+        return stripe(seq) == 0;
+    }
+
+    /**
+     * The newest seq in the same stripe as seq: the snapshot bounding its stripe, or Long.MAX_VALUE
+     * in the latest one. A range tombstone up to that seq hides a version from every reader that
+     * could see it, so the version can go.
+     */
+    long stripeEnd(long seq) {
+        int stripe = stripe(seq);
+        return stripe == snapshots.length ? Long.MAX_VALUE : snapshots[stripe];
+    }
+
+    // index of the oldest snapshot that can see seq; snapshots.length stands for "latest"
+    private int stripe(long seq) {
+        int i = Arrays.binarySearch(snapshots, seq);
+        return i >= 0 ? i : -i - 1;
+    }
+}
@@ -1,8 +1,15 @@
 package lsmkv;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * One entry per data block: the block's first key and its file offset.
+ * Serialized as repeated [keyLen:4 | key | offset:8].
+ */
 public final class SparseIndex {
     public record Entry(byte[] key, long offset) {
     }
@@ -16,4 +23,45 @@ public final class SparseIndex {
     public List<Entry> entries() {
         return list;
     }
+
+    public int size() {
+        return list.size();
+    }
+
+    /** Position of the last block whose first key is <= key, or -1 if key sorts before every block. */
+    public int floor(byte[] key) {
+        int lo = 0, hi = list.size() - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ByteArrays.compare(list.get(mid).key(), key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer num = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        for (Entry entry : list) {
+            out.write(num.clear().putInt(0, entry.key().length).array(), 0, 4);
+            out.writeBytes(entry.key());
+            out.write(num.clear().putLong(0, entry.offset()).array(), 0, 8);
+        }
+        return out.toByteArray();
+    }
+
+    public static SparseIndex fromBytes(ByteBuffer buf) {
+        SparseIndex index = new SparseIndex();
+        buf = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            byte[] key = new byte[buf.getInt()];
+            buf.get(key);
+            index.add(key, buf.getLong());
+        }
+        return index;
+    }
 }
@@ -1,62 +1,824 @@
 package lsmkv;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public record SstReader(Path path) {
+/**
+ * SstReader parses an SSTable's footer (sparse index, bloom filter, key range) into a {@link Table}
+ * so that a point lookup costs at most one block read:
+ *  - keys outside [smallest, largest] never touch the table; keys rejected by the bloom filter never touch the file
+ *  - the sparse index is binary-searched for the only block that may hold the key
+ *  - that block comes from the shared {@link BlockCache} when present; otherwise it is fetched with
+ *    a single positional read, CRC-checked, decompressed, cached and searched
+ * <p>
+ * The open channel and parsed footer live in the {@link TableCache}, which bounds how many files are
+ * open at once; the reader itself keeps only the path, size, key range, seq range and range tombstones. Each live Version holds a
+ * reference to its readers, and the file is deleted once the last Version listing it is released.
+ * <p>
+ * With {@link Options#mmapReads} the table maps the data blocks instead of reading them: uncompressed
+ * blocks are decoded in place with no copy, allocation or syscall, and each block's CRC is checked on
+ * first touch only. The mapping is released as soon as the table closes, not left to the GC.
+ * <p>
+ * Blocks in format v2 carry a restart array, so the lookup binary-searches the restart points and
+ * decodes at most one restart interval; v1 blocks are scanned from the start.
+ * <p>
+ * Files written before the footer trailer existed have no locatable footer; for those the
+ * index and key range are rebuilt by walking the block headers once, and the bloom check is skipped.
+ */
+public final class SstReader {
+    private final Path path;
+    private final byte[] smallestKey;
+    private final byte[] largestKey;
+    private final long minSeq;
+    private final long maxSeq;
+    private final RangeTombstoneList rangeTombstones;
+    private final long[] valueLogs;
+    private final long fileSize;
+    private final BlockCache cache;     // null when block caching is disabled
+    private final TableCache tables;
+    private final long fileId;          // this reader's key space in the block cache
+    private final AtomicInteger refs = new AtomicInteger();  // live Versions listing this file
 
-    public Optional<Entry> get(byte[] key) throws IOException {
-        // TODO simple scan with per-block crc validation; in practice use index+bloom for narrowing (omitted for brevity)
-        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+    /** A standalone reader with its own single-entry table cache and no block cache. */
+    public SstReader(Path path) throws IOException {
+        this(path, null, new TableCache(1, false));
+    }
+
+    public SstReader(Path path, BlockCache cache, TableCache tables) throws IOException {
+        this.path = path;
+        this.cache = cache;
+        this.tables = tables;
+        this.fileId = BlockCache.newFileId();
+        Table table = tables.acquire(this);
+        try {
+            smallestKey = table.smallestKey;
+            largestKey = table.largestKey;
+            minSeq = table.minSeq;
+            maxSeq = table.maxSeq;
+            rangeTombstones = table.rangeTombstones;
+            valueLogs = table.valueLogs;
+            fileSize = table.fileSize;
+        } finally {
+            tables.release(table);
+        }
+    }
+
+    /**
+     * Open file and parsed footer of an SST, shared through the {@link TableCache}. The cache holds
+     * one reference while the table is cached and every user holds one more; the channel is closed
+     * (or the mapping released) when the count drops to zero, so eviction never pulls a file out from
+     * under a reader.
+     */
+    static final class Table {
+        // a single mapping is limited to 2 GB, so larger files are mapped in chunks split at block boundaries
+        private static final long MAX_CHUNK = Integer.MAX_VALUE;
+
+        final Path path;
+        final FileChannel channel;      // null when mapped; the mapping outlives the channel
+        final SparseIndex index;
+        final BloomFilter bloom;        // null for legacy files
+        final byte[] smallestKey;
+        final byte[] largestKey;
+        final long dataEnd;             // end of the last data block
+        final int formatVersion;        // SstWriter.FORMAT_V1 .. FORMAT_V6
+        final long minSeq;              // seq range of the records; [0, Long.MAX_VALUE] before v4
+        final long maxSeq;
+        final RangeTombstoneList rangeTombstones;     // empty before v5
+        final long[] valueLogs;         // value logs the records point into, ascending; null (unknown) before v6
+        final long fileSize;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        volatile long lastUsed;         // TableCache LRU clock
+        private final long[] chunkStarts;           // mapped mode only: file offset of each chunk
+        private final MappedByteBuffer[] chunks;
+        private final boolean[] verified;           // per block: CRC already checked (a racy re-check is harmless)
+
+        static Table open(Path path, boolean mmap) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                Table table = new Table(path, channel, mmap);
+                if (mmap) channel.close();
+                return table;
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        private Table(Path path, FileChannel channel, boolean mmap) throws IOException {
+            this.path = path;
+            this.channel = mmap ? null : channel;
             long size = channel.size();
-            long pos = 0;
-            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
-            while (pos + 8 <= size) {
-                // 1) Read block header
-                header.clear();
-                int numBytesRead = channel.read(header, pos);
-                if (numBytesRead < 8) break;        // short read -> stop
-                header.flip();
-                int crc = header.getInt();     // expected CRC32C
-                int bodyLength = header.getInt();    // body length
-
-                if (pos + 8 + bodyLength > size) break;       // truncated tail -> stop
-
-                // 2) Read block body
-                ByteBuffer body = ByteBuffer.allocate(bodyLength).order(ByteOrder.LITTLE_ENDIAN);
-                channel.read(body, pos + 8);
-                body.flip();
-
-                // 3) Verify block CRC
-                byte[] arr = new byte[body.remaining()];
-                body.get(arr);
-                if (Codec.crc32c(arr) != crc) break;        // corruption -> stop file scan
-
-                // 4) Parse entries inside the block
-                ByteBuffer buffer = ByteBuffer.wrap(arr).order(ByteOrder.LITTLE_ENDIAN);
-                while (buffer.hasRemaining()) {
-                    byte flag = buffer.get();
-                    int klen = buffer.getInt();
-                    int vlen = buffer.getInt();
-                    byte[] k = new byte[klen];
-                    buffer.get(k);
-                    byte[] v = new byte[vlen];
-                    if (vlen > 0) buffer.get(v);
-                    if (ByteArrays.compare(k, key) == 0) {
-                        if (flag == Entry.FLAG_DEL) return Optional.empty();        // tombstone
-                        return Optional.of(new Entry(0, flag, k, vlen == 0 ? null : v));
+            fileSize = size;
+            ByteBuffer trailer = ByteBuffer.allocate(SstWriter.TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (size >= SstWriter.TRAILER_SIZE) {
+                readFully(channel, trailer, size - SstWriter.TRAILER_SIZE);
+            }
+            if (size >= SstWriter.TRAILER_SIZE && trailer.getLong(8) == SstWriter.MAGIC) {
+                dataEnd = trailer.getLong(0);
+                ByteBuffer footer = ByteBuffer.allocate((int) (size - SstWriter.TRAILER_SIZE - dataEnd)).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, footer, dataEnd);
+                index = SparseIndex.fromBytes(section(footer));
+                bloom = BloomFilter.fromBytes(toArray(section(footer)));
+                smallestKey = toArray(section(footer));
+                largestKey = toArray(section(footer));
+                // the version closes the footer; v4 puts the seq range between largest and it
+                formatVersion = footer.remaining() >= 4 ? footer.getInt(footer.limit() - 4) : SstWriter.FORMAT_V1;
+                if (formatVersion < SstWriter.FORMAT_V1 || formatVersion > SstWriter.FORMAT_V6) {
+                    throw new IOException("unsupported sst format " + formatVersion + " in " + path);
+                }
+                boolean hasSeqs = formatVersion >= SstWriter.FORMAT_V4;
+                minSeq = hasSeqs ? footer.getLong() : 0;
+                maxSeq = hasSeqs ? footer.getLong() : Long.MAX_VALUE;
+                rangeTombstones = formatVersion >= SstWriter.FORMAT_V5 ? RangeTombstoneList.decode(section(footer)) : RangeTombstoneList.EMPTY;
+                valueLogs = formatVersion >= SstWriter.FORMAT_V6 ? decodeValueLogs(section(footer)) : null;
+            } else {
+                // legacy file: rebuild index and key range from the blocks themselves
+                index = new SparseIndex();
+                bloom = null;
+                formatVersion = SstWriter.FORMAT_V1;
+                minSeq = 0;
+                maxSeq = Long.MAX_VALUE;
+                rangeTombstones = RangeTombstoneList.EMPTY;
+                valueLogs = null;
+                long pos = 0;
+                byte[] last = null;
+                while (true) {
+                    ByteBuffer body = readBlock(channel, pos, size, false);
+                    if (body == null) break;
+                    byte[] first = null;
+                    while (body.hasRemaining()) {
+                        body.get();
+                        int klen = body.getInt();
+                        int vlen = body.getInt();
+                        last = new byte[klen];
+                        body.get(last);
+                        body.position(body.position() + vlen);
+                        if (first == null) first = last;
                     }
+                    if (first != null) index.add(first, pos);
+                    pos += 8 + body.limit();
                 }
+                dataEnd = pos;
+                smallestKey = index.size() == 0 ? new byte[0] : index.entries().get(0).key();
+                largestKey = last == null ? new byte[0] : last;
+            }
+            if (!mmap) {
+                chunkStarts = null;
+                chunks = null;
+                verified = null;
+                return;
+            }
+            List<Long> starts = new ArrayList<>();
+            starts.add(0L);
+            for (int block = 0; block < index.size(); block++) {
+                if (blockEnd(block) - starts.get(starts.size() - 1) > MAX_CHUNK) starts.add(blockStart(block));
+            }
+            chunkStarts = new long[starts.size()];
+            chunks = new MappedByteBuffer[starts.size()];
+            for (int i = 0; i < chunks.length; i++) {
+                chunkStarts[i] = starts.get(i);
+                long end = i + 1 < chunks.length ? starts.get(i + 1) : dataEnd;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStarts[i], end - chunkStarts[i]);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            verified = new boolean[index.size()];
+        }
+
+        /** Take a reference unless the table has already been closed. */
+        boolean tryRef() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void unref() throws IOException {
+            if (refs.decrementAndGet() != 0) return;
+            if (chunks == null) {
+                channel.close();
+                return;
+            }
+            // nobody can reach the table any more, so the mapping can go now instead of at some later GC
+            for (MappedByteBuffer chunk : chunks) MappedFiles.unmap(chunk);
+        }
+
+        long blockStart(int block) {
+            return index.entries().get(block).offset();
+        }
+
+        long blockEnd(int block) {
+            return block + 1 < index.size() ? index.entries().get(block + 1).offset() : dataEnd;
+        }
+
+        /**
+         * The body of an uncompressed block read in place from the mapping, or null when the table
+         * is not mapped or the block must be decompressed. Valid only while the table is referenced.
+         */
+        ByteBuffer mappedBody(int block) throws IOException {
+            if (chunks == null) return null;
+            if (formatVersion < SstWriter.FORMAT_V3) return mappedBlock(block, false);
+            return mappedBlock(block, true);
+        }
+
+        /** Read, verify and (from v3 on) decompress the body of a data block. */
+        ByteBuffer readBody(int block) throws IOException {
+            ByteBuffer stored = chunks != null ? mappedBlock(block, false) : readBlock(channel, blockStart(block), blockEnd(block), true);
+            return decode(stored);
+        }
+
+        /**
+         * As {@link #readBody} for the adjacent blocks first..last, fetched with one positional read
+         * (mapped tables have nothing to coalesce and decode each in place).
+         */
+        ByteBuffer[] readBodies(int first, int last) throws IOException {
+            ByteBuffer[] bodies = new ByteBuffer[last - first + 1];
+            if (chunks != null) {
+                for (int block = first; block <= last; block++) bodies[block - first] = readBody(block);
+                return bodies;
+            }
+            long start = blockStart(first);
+            ByteBuffer run = ByteBuffer.allocate((int) (blockEnd(last) - start)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, run, start);
+            for (int block = first; block <= last; block++) {
+                int pos = (int) (blockStart(block) - start);
+                int bodyLength = run.getInt(pos + 4);
+                if (bodyLength != blockEnd(block) - blockStart(block) - 8 || Codec.crc32c(run, pos + 8, bodyLength) != run.getInt(pos)) {
+                    throw new IOException("corrupt block at offset " + blockStart(block) + " in " + path);
+                }
+                bodies[block - first] = decode(run.slice(pos + 8, bodyLength).order(ByteOrder.LITTLE_ENDIAN));
+            }
+            return bodies;
+        }
+
+        // from v3 on a stored body starts with its codec byte
+        private ByteBuffer decode(ByteBuffer stored) throws IOException {
+            if (formatVersion < SstWriter.FORMAT_V3) return stored;
+            Compression codec = Compression.fromId(stored.get());
+            if (codec == Compression.NONE) return stored.slice().order(ByteOrder.LITTLE_ENDIAN);
+            byte[] body = new byte[Codec.getVarintInt(stored)];
+            codec.decompress(stored, body);
+            return ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * The verified body of a mapped block as a single slice of its chunk. With uncompressedOnly the
+         * codec byte is stripped, and null is returned instead when the block is compressed.
+         */
+        private ByteBuffer mappedBlock(int block, boolean uncompressedOnly) throws IOException {
+            long start = blockStart(block);
+            int chunk = Arrays.binarySearch(chunkStarts, start);
+            if (chunk < 0) chunk = -chunk - 2;
+            MappedByteBuffer map = chunks[chunk];
+            int pos = (int) (start - chunkStarts[chunk]);
+            int bodyLength = map.getInt(pos + 4);
+            if (!verified[block]) {
+                if (bodyLength != blockEnd(block) - start - 8 || Codec.crc32c(map, pos + 8, bodyLength) != map.getInt(pos)) {
+                    throw new IOException("corrupt block at offset " + start + " in " + path);
+                }
+                verified[block] = true;
+            }
+            if (!uncompressedOnly) return map.slice(pos + 8, bodyLength).order(ByteOrder.LITTLE_ENDIAN);
+            if (map.get(pos + 8) != Compression.NONE.id) return null;
+            return map.slice(pos + 9, bodyLength - 1).order(ByteOrder.LITTLE_ENDIAN);
+        }
 
-                // 5) Advance to next block
-                pos += 8 + bodyLength;
+        /**
+         * Read the block at pos (header and body in one positional read when the end is known)
+         * and verify its CRC. Returns the body, or null at a truncated/corrupt tail when not strict.
+         */
+        private ByteBuffer readBlock(FileChannel channel, long pos, long end, boolean strict) throws IOException {
+            ByteBuffer buf;
+            if (strict) {
+                buf = ByteBuffer.allocate((int) (end - pos)).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, buf, pos);
+            } else {
+                if (pos + 8 > end) return null;
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, header, pos);
+                int bodyLength = header.getInt(4);
+                if (bodyLength < 0 || pos + 8 + bodyLength > end) return null;
+                buf = ByteBuffer.allocate(8 + bodyLength).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, buf, pos);
             }
+            int crc = buf.getInt(0);
+            int bodyLength = buf.getInt(4);
+            if (bodyLength != buf.capacity() - 8 || Codec.crc32c(buf.array(), 8, bodyLength) != crc) {
+                if (strict) throw new IOException("corrupt block at offset " + pos + " in " + path);
+                return null;
+            }
+            return buf.position(8).slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public byte[] smallestKey() {
+        return smallestKey;
+    }
+
+    public byte[] largestKey() {
+        return largestKey;
+    }
+
+    /** Smallest seq of any record in the file; 0 for files written before seq ranges were recorded. */
+    public long minSeq() {
+        return minSeq;
+    }
+
+    /** Largest seq of any record in the file; Long.MAX_VALUE for files written before seq ranges were recorded. */
+    public long maxSeq() {
+        return maxSeq;
+    }
+
+    /** The file's range tombstones, kept in memory with the reader like its key range; empty before format v5. */
+    RangeTombstoneList rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    /**
+     * Whether the file may hold pointers into the value log numbered fileNumber: certain from format
+     * v6 on, which lists the logs; older files might point into any.
+     */
+    boolean mayReference(long fileNumber) {
+        return valueLogs == null || Arrays.binarySearch(valueLogs, fileNumber) >= 0;
+    }
+
+    /** First key of every data block, in order; compaction splits its key range at these. */
+    public List<byte[]> blockKeys() throws IOException {
+        Table table = tables.acquire(this);
+        try {
+            List<byte[]> keys = new ArrayList<>(table.index.size());
+            for (SparseIndex.Entry entry : table.index.entries()) keys.add(entry.key());
+            return keys;
+        } finally {
+            tables.release(table);
         }
-        return Optional.empty();
+    }
+
+    /** Whether key falls in [smallestKey, largestKey]; checked before a lookup touches the table. */
+    public boolean mayContain(byte[] key) {
+        return ByteArrays.compare(key, smallestKey) >= 0 && ByteArrays.compare(key, largestKey) <= 0;
+    }
+
+    public long fileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Look up a key. A tombstone is returned as an entry with {@link Entry#FLAG_DEL} so callers
+     * stop searching older files.
+     */
+    public Optional<Entry> get(byte[] key) throws IOException {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copy the key's value into valueOut (as much of it as fits) and return its full length, or
+     * {@link Entry#DELETED} / {@link Entry#NOT_FOUND}. Unlike {@link #get(byte[])} a hit on a cached
+     * v2+ block allocates nothing: the record is found and copied in place by a per-thread cursor.
+     * A value kept in the value log is not copied: the result is {@link Entry#IN_VALUE_LOG}.
+     */
+    public int get(byte[] key, byte[] valueOut) throws IOException {
+        if (!mayContain(key)) return Entry.NOT_FOUND;
+        Table table = tables.acquire(this);
+        try {
+            ByteBuffer body = candidateBlock(table, key);
+            if (body == null) return Entry.NOT_FOUND;
+            if (table.formatVersion == SstWriter.FORMAT_V1) return MemTable.copyValue(scanV1(body.duplicate().order(ByteOrder.LITTLE_ENDIAN), key), valueOut);
+            BlockCursor cursor = CURSOR.get().reset(body);
+            return cursor.seek(key) ? cursor.copyValue(valueOut) : Entry.NOT_FOUND;
+        } finally {
+            tables.release(table);
+        }
+    }
+
+    /**
+     * Newest version of the key with seq <= snapshot, as {@link #get(byte[])}. Files whose seq range
+     * starts above the snapshot are skipped without touching the table.
+     */
+    public Optional<Entry> get(byte[] key, long snapshot) throws IOException {
+        if (minSeq > snapshot || !mayContain(key)) return Optional.empty();
+        Table table = tables.acquire(this);
+        try {
+            return get(table, key, snapshot);
+        } finally {
+            tables.release(table);
+        }
+    }
+
+    private Optional<Entry> get(Table table, byte[] key, long snapshot) throws IOException {
+        ByteBuffer body = candidateBlock(table, key);
+        if (body == null) return Optional.empty();
+        if (table.formatVersion == SstWriter.FORMAT_V1) return Optional.ofNullable(scanV1(body.duplicate().order(ByteOrder.LITTLE_ENDIAN), key));
+        BlockCursor cursor = CURSOR.get().reset(body);
+        return cursor.seek(key, snapshot) ? Optional.of(cursor.entry()) : Optional.empty();
+    }
+
+    /** The body of the only block that may hold the key, or null when the index or bloom filter rules it out. */
+    private ByteBuffer candidateBlock(Table table, byte[] key) throws IOException {
+        if (table.index.size() == 0) return null;
+        if (table.bloom != null && !table.bloom.mightContain(key)) return null;
+        int block = table.index.floor(key);
+        if (block < 0) return null;
+        return body(table, block, true);
+    }
+
+    /**
+     * Look up many keys in one visit to the file: the table is acquired once, every key is range-
+     * and bloom-checked up front, the survivors are grouped by the only block that may hold them,
+     * and each of those blocks is loaded once however many keys it serves. Blocks neither mapped nor
+     * cached are fetched together, one positional read per run of adjacent blocks.
+     * keys must be sorted; the result is aligned with them, null where the file holds no version
+     * with seq <= snapshot (a tombstone is returned as in {@link #get(byte[], long)}).
+     */
+    Entry[] multiGet(byte[][] keys, long snapshot) throws IOException {
+        Entry[] found = new Entry[keys.length];
+        if (minSeq > snapshot) return found;
+        Table table = tables.acquire(this);
+        try {
+            if (table.index.size() == 0) return found;
+            int[] blocks = new int[keys.length];     // candidate block per key, -1 when ruled out
+            int[] needed = new int[keys.length];     // distinct candidate blocks, ascending since keys are sorted
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                boolean candidate = mayContain(keys[i]) && (table.bloom == null || table.bloom.mightContain(keys[i]));
+                blocks[i] = candidate ? table.index.floor(keys[i]) : -1;
+                if (blocks[i] >= 0 && (count == 0 || needed[count - 1] != blocks[i])) needed[count++] = blocks[i];
+            }
+            ByteBuffer[] bodies = new ByteBuffer[count];
+            for (int j = 0; j < count; j++) bodies[j] = residentBody(table, needed[j]);
+            for (int j = 0; j < count; ) {
+                if (bodies[j] != null) {
+                    j++;
+                    continue;
+                }
+                int last = j;
+                while (last + 1 < count && bodies[last + 1] == null && needed[last + 1] == needed[last] + 1
+                        && table.blockEnd(needed[last + 1]) - table.blockStart(needed[j]) <= MAX_COALESCED_READ) {
+                    last++;
+                }
+                ByteBuffer[] read = table.readBodies(needed[j], needed[last]);
+                for (int k = 0; k < read.length; k++) {
+                    bodies[j + k] = read[k];
+                    if (cache != null) cache.put(fileId, table.blockStart(needed[j + k]), read[k]);
+                }
+                j = last + 1;
+            }
+            BlockCursor cursor = CURSOR.get();
+            for (int i = 0, j = 0; i < keys.length; i++) {
+                if (blocks[i] < 0) continue;
+                while (needed[j] != blocks[i]) j++;
+                if (table.formatVersion == SstWriter.FORMAT_V1) found[i] = scanV1(bodies[j].duplicate().order(ByteOrder.LITTLE_ENDIAN), keys[i]);
+                else if (cursor.reset(bodies[j]).seek(keys[i], snapshot)) found[i] = cursor.entry();
+            }
+            return found;
+        } finally {
+            tables.release(table);
+        }
+    }
+
+    // v1 records: [ flag:1 | keyLen:4 | valLen:4 | key | value ], sorted by key
+    private static Entry scanV1(ByteBuffer body, byte[] key) {
+        while (body.hasRemaining()) {
+            byte flag = body.get();
+            int klen = body.getInt();
+            int vlen = body.getInt();
+            int cmp = Slice.compare(body, body.position(), klen, key, 0, key.length);
+            if (cmp > 0) break;
+            if (cmp == 0) {
+                byte[] k = new byte[klen];
+                body.get(k);
+                byte[] v = new byte[vlen];
+                body.get(v);
+                return new Entry(0, flag, k, flag == Entry.FLAG_DEL ? null : v);
+            }
+            body.position(body.position() + klen + vlen);
+        }
+        return null;
+    }
+
+    /**
+     * Iterator over this file in either direction, holding one decoded block in memory at a time.
+     * The iterator pins the table, so the file stays open until close().
+     */
+    EntryIterator iterator(boolean reverse) throws IOException {
+        return new BlockIterator(reverse, true, null);
+    }
+
+    /**
+     * As {@link #iterator(boolean)}, for compaction inputs: with fillCache false blocks read from disk
+     * are not cached, and with a rateLimiter each block is charged at compaction priority before it is loaded.
+     */
+    EntryIterator iterator(boolean reverse, boolean fillCache, RateLimiter rateLimiter) throws IOException {
+        return new BlockIterator(reverse, fillCache, rateLimiter);
+    }
+
+    private final class BlockIterator implements EntryIterator {
+        private final Table table = tables.acquire(SstReader.this);
+        private final SparseIndex index = table.index;
+        private final boolean reverse;
+        private final boolean fillCache;
+        private final RateLimiter rateLimiter;  // null = unlimited
+        private int block = -1;                 // -1 when unpositioned or exhausted
+        private List<Entry> entries = List.of();
+        private int pos;
+        private boolean closed;
+
+        BlockIterator(boolean reverse, boolean fillCache, RateLimiter rateLimiter) throws IOException {
+            this.reverse = reverse;
+            this.fillCache = fillCache;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public boolean valid() {
+            return block >= 0 && pos >= 0 && pos < entries.size();
+        }
+
+        @Override
+        public Entry entry() {
+            return entries.get(pos);
+        }
+
+        @Override
+        public void seekToFirst() throws IOException {
+            load(reverse ? index.size() - 1 : 0);
+            pos = reverse ? entries.size() - 1 : 0;
+            skipExhaustedBlocks();
+        }
+
+        @Override
+        public void seek(byte[] target) throws IOException {
+            int floor = index.floor(target);
+            if (reverse) {
+                load(floor);
+                // last entry <= target
+                pos = entries.size() - 1;
+                while (pos >= 0 && ByteArrays.compare(entries.get(pos).key(), target) > 0) pos--;
+            } else {
+                load(Math.max(0, floor));
+                // first entry >= target
+                pos = 0;
+                while (pos < entries.size() && ByteArrays.compare(entries.get(pos).key(), target) < 0) pos++;
+            }
+            skipExhaustedBlocks();
+        }
+
+        @Override
+        public void next() throws IOException {
+            pos += reverse ? -1 : 1;
+            skipExhaustedBlocks();
+        }
+
+        private void skipExhaustedBlocks() throws IOException {
+            while (block >= 0 && (pos < 0 || pos >= entries.size())) {
+                load(block + (reverse ? -1 : 1));
+                pos = reverse ? entries.size() - 1 : 0;
+            }
+        }
+
+        private void load(int next) throws IOException {
+            if (next < 0 || next >= index.size()) {
+                block = -1;
+                entries = List.of();
+                return;
+            }
+            block = next;
+            if (rateLimiter != null) rateLimiter.request(table.blockEnd(next) - table.blockStart(next), RateLimiter.Priority.COMPACTION);
+            entries = decodeBlock(body(table, block, fillCache).duplicate().order(ByteOrder.LITTLE_ENDIAN), table.formatVersion);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;     // a second close must not drop someone else's table reference
+            closed = true;
+            tables.release(table);
+        }
+    }
+
+    private static List<Entry> decodeBlock(ByteBuffer body, int formatVersion) {
+        List<Entry> out = new ArrayList<>();
+        if (formatVersion != SstWriter.FORMAT_V1) {
+            BlockCursor cursor = new BlockCursor().reset(body);
+            while (cursor.next()) out.add(cursor.entry());
+            return out;
+        }
+        // v1 records: [ flag:1 | keyLen:4 | valLen:4 | key | value ]
+        while (body.hasRemaining()) {
+            byte flag = body.get();
+            byte[] k = new byte[body.getInt()];
+            byte[] v = new byte[body.getInt()];
+            body.get(k).get(v);
+            out.add(new Entry(0, flag, k, flag == Entry.FLAG_DEL ? null : v));
+        }
+        return out;
+    }
+
+    // upper bound on one coalesced multiGet read, so a long run of wanted blocks is not buffered whole
+    private static final long MAX_COALESCED_READ = 1 << 20;
+
+    // lookups reuse one cursor per thread, so a hit allocates neither a cursor nor its key buffer
+    private static final ThreadLocal<BlockCursor> CURSOR = ThreadLocal.withInitial(BlockCursor::new);
+
+    /**
+     * Sequential decoder over a v2 block body. Keys are rebuilt in a reused buffer from the shared
+     * prefix of the previous key plus the stored delta, so stepping and comparing allocate nothing;
+     * entry() copies the current record out. The body is read by absolute index only, so a shared
+     * (cached) buffer needs no duplicate.
+     */
+    private static final class BlockCursor {
+        private ByteBuffer body;
+        private int pos;
+        private int restartsStart;    // records end where the restart array begins
+        private int restartCount;
+        private byte[] key = new byte[64];
+        private int keyLen;
+        private byte flag;
+        private long seq;
+        private int valuePos;
+        private int valueLen;
+
+        BlockCursor reset(ByteBuffer body) {
+            this.body = body;
+            this.restartCount = body.getInt(body.limit() - 4);
+            this.restartsStart = body.limit() - 4 - 4 * restartCount;
+            this.pos = 0;
+            this.keyLen = 0;
+            return this;
+        }
+
+        void seekRestart(int i) {
+            pos = body.getInt(restartsStart + 4 * i);
+            keyLen = 0;
+        }
+
+        /** Position on the newest record with exactly this key; false if the block does not hold it. */
+        boolean seek(byte[] target) {
+            // last restart point whose key is < target: the key's newest version is in the interval
+            // after it (versions of one key can span restart points, so <= could land past the newest)
+            int lo = 0, hi = restartCount - 1, found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                seekRestart(mid);
+                next();
+                if (compareKey(target) < 0) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            seekRestart(found);
+            while (next()) {
+                int cmp = compareKey(target);
+                if (cmp > 0) return false;
+                if (cmp == 0) return true;
+            }
+            return false;
+        }
+
+        /** Position on the newest record of the key with seq <= snapshot; false if there is none. */
+        boolean seek(byte[] target, long snapshot) {
+            if (!seek(target)) return false;
+            while (seq > snapshot) {
+                if (!next() || compareKey(target) != 0) return false;
+            }
+            return true;
+        }
+
+        /** Decode the next record; false once the records are exhausted. */
+        boolean next() {
+            if (pos >= restartsStart) return false;
+            flag = body.get(pos++);
+            int shared = varintInt();
+            int unshared = varintInt();
+            valueLen = varintInt();
+            seq = varint();
+            if (shared > keyLen) throw new IllegalStateException("corrupt block: shared prefix exceeds previous key");
+            if (shared + unshared > key.length) key = Arrays.copyOf(key, Math.max(shared + unshared, key.length * 2));
+            body.get(pos, key, shared, unshared);
+            keyLen = shared + unshared;
+            valuePos = pos + unshared;
+            pos = valuePos + valueLen;
+            return true;
+        }
+
+        int compareKey(byte[] target) {
+            return ByteArrays.compare(key, 0, keyLen, target, 0, target.length);
+        }
+
+        Entry entry() {
+            byte[] value = null;
+            if (flag != Entry.FLAG_DEL) {       // an empty put value is still a value
+                value = new byte[valueLen];
+                body.get(valuePos, value);
+            }
+            return new Entry(seq, flag, Arrays.copyOf(key, keyLen), value);
+        }
+
+        int copyValue(byte[] valueOut) {
+            if (flag == Entry.FLAG_DEL) return Entry.DELETED;
+            if (flag == Entry.FLAG_BLOB) return Entry.IN_VALUE_LOG;
+            body.get(valuePos, valueOut, 0, Math.min(valueLen, valueOut.length));
+            return valueLen;
+        }
+
+        // Codec.getVarint, reading at pos instead of the buffer's position
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = body.get(pos++);
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) return value;
+                if (shift >= 63) throw new IllegalArgumentException("malformed varint");
+            }
+        }
+
+        private int varintInt() {
+            long value = varint();
+            if (value > Integer.MAX_VALUE) throw new IllegalArgumentException("varint out of int range: " + value);
+            return (int) value;
+        }
+    }
+
+    /**
+     * The body of a data block: in place from the mapping when it needs no decompression (never
+     * cached, since the mapping goes away with the table), else from the block cache, else read.
+     * The buffer may be shared with other readers: read it by absolute index or through a duplicate().
+     */
+    private ByteBuffer body(Table table, int block, boolean fillCache) throws IOException {
+        ByteBuffer body = residentBody(table, block);
+        if (body != null) return body;
+        body = table.readBody(block);
+        if (cache != null && fillCache) cache.put(fileId, table.blockStart(block), body);
+        return body;
+    }
+
+    /** The block's body if it can be had without a read: mapped in place or in the block cache; else null. */
+    private ByteBuffer residentBody(Table table, int block) throws IOException {
+        ByteBuffer body = table.mappedBody(block);
+        if (body != null || cache == null) return body;
+        return cache.get(fileId, table.blockStart(block));
+    }
+
+    // ---- version references ----
+
+    void ref() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drop a Version's reference; once no live Version lists the file it is closed and deleted.
+     * A failed delete leaves an unreferenced file that the next open removes.
+     */
+    void unref() {
+        if (refs.decrementAndGet() != 0) return;
+        try {
+            tables.evict(path);
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position());
+            if (n < 0) throw new EOFException("unexpected end of file");
+        }
+        buf.flip();
+    }
+
+    private static long[] decodeValueLogs(ByteBuffer buf) {
+        long[] numbers = new long[Codec.getVarintInt(buf)];
+        for (int i = 0; i < numbers.length; i++) numbers[i] = Codec.getVarint(buf);
+        return numbers;
+    }
+
+    private static ByteBuffer section(ByteBuffer footer) {
+        int len = footer.getInt();
+        ByteBuffer slice = footer.slice().limit(len);
+        footer.position(footer.position() + len);
+        return slice;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] out = new byte[buf.remaining()];
+        buf.get(out);
+        return out;
     }
 }
@@ -1,127 +1,310 @@
 package lsmkv;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeSet;
 
 /**
- * SstWriter builds a single immutable SSTable file from an already-sorted
- * NavigableMap<byte[], Entry>.  The file format is:
+ * SstWriter builds a single immutable SSTable file from entries added in key order
+ * (a flushed memtable or a compaction merge).  A key may have several versions, added newest first
+ * (seq descending); they always share a block.  The file format is:
  * <p>
- *   [ Block* ] [ Footer ]
+ *   [ Block* ] [ Footer ] [ Trailer ]
  * <p>
- * Each Block:  [ crc32c:4 | blockLen:4 | body:blockLen bytes ]
- *      body contains repeated records:
- *          [ flag:1 | keyLen:4 | valLen:4 | key | value ]
+ * Each Block:  [ crc32c:4 | blockLen:4 | codec:1 | payload ]   (blockLen and crc cover codec + payload)
+ *      payload is the body itself for codec NONE, else [ bodyLen:varint | compressed body ];
+ *      a block is stored uncompressed when compression would not save at least 1/8 of it.
+ *      (v1 and v2 blocks have no codec byte: [ crc32c:4 | blockLen:4 | body ])
  * <p>
- * Footer: [ indexLen:4 | index | bloomLen:4 | bloom ]
- *      index is a sparse index: repeated [keyLen:4 | key | offset:8]
+ *      body (format v2 and later) is prefix-compressed records followed by a restart array:
+ *          [ record* | restart:4 * numRestarts | numRestarts:4 ]
+ *          record: [ flag:1 | shared:varint | unshared:varint | valLen:varint | seq:varint | keyDelta | value ]
+ *      each key stores only the bytes it does not share with the previous key; every
+ *      restartInterval records a key is stored whole (shared = 0) and its offset goes into the
+ *      restart array, so readers can binary-search the restart points and scan at most one interval.
+ *      (format v1 bodies are plain [ flag:1 | keyLen:4 | valLen:4 | key | value ] records)
+ *      a record whose value was separated into the value log has flag {@link Entry#FLAG_BLOB} and
+ *      an encoded {@link ValuePointer} as its value
+ * <p>
+ * Footer: [ indexLen:4 | index | bloomLen:4 | bloom | smallestLen:4 | smallest | largestLen:4 | largest
+ *            | minSeq:8 | maxSeq:8 | rangeDelLen:4 | rangeDels | valueLogsLen:4 | valueLogs | version:4 ]
+ *      index is a sparse index: repeated [keyLen:4 | key | offset:8], one entry per block
  *      bloom is a serialized bloom filter of all keys.
+ *      minSeq and maxSeq bound the seqs of the file's records (v4; v2 and v3 files go from largest
+ *      straight to version).
+ *      rangeDels is the range tombstone block, a {@link RangeTombstoneList} encoding (v5; v4 files
+ *      go from maxSeq to version). The key range and seq range include the tombstones, so a file
+ *      may hold tombstones and no records at all.
+ *      valueLogs lists the value-log files the records point into: [ count:varint | fileNumber:varint* ],
+ *      ascending (v6; v5 files go from rangeDels to version).
+ *      version is the file format; v1 files end the footer after largest. v4 to v6 blocks are v3 blocks.
+ * <p>
+ * Trailer: [ footerOffset:8 | magic:8 ] so readers can locate the footer from the file end.
  * <p>
  * Steps:
- *  - write blocks to a temp file
- *  - append footer with index + bloom
+ *  - add() entries, writing blocks to a temp file
+ *  - finish() appends footer with index + bloom
  *  - fsync and atomically rename temp -> final
  */
 public final class SstWriter implements AutoCloseable {
+    public static final long MAGIC = 0x4c534d4b56535354L; // "LSMKVSST"
+    public static final int TRAILER_SIZE = 8 + 8;
+    public static final int FORMAT_V1 = 1;
+    public static final int FORMAT_V2 = 2;
+    public static final int FORMAT_V3 = 3;
+    public static final int FORMAT_V4 = 4;
+    public static final int FORMAT_V5 = 5;
+    public static final int FORMAT_V6 = 6;
+    // flag + shared/unshared/valLen varints (5 bytes each at most) + seq varint (10 at most)
+    private static final int MAX_RECORD_OVERHEAD = 1 + 5 + 5 + 5 + 10;
+
     private final Path tmpPath;
     private final Path finalPath;
     private final int blockSize;
+    private final int restartInterval;
+    private final Compression compression;
     private final FileChannel channel;
     private final SparseIndex index = new SparseIndex();
-    private final List<byte[]> bloomKeys = new ArrayList<>();
+    private long[] bloomHashes = new long[1024];     // one hash per key; the filter is sized at finish()
+    private int keyCount;       // distinct keys
+    private long entryCount;    // records, counting every version
+    private long minSeq = Long.MAX_VALUE;
+    private long maxSeq = 0;
+    private long fileSize;
     private final int bloomBitsPerKey;
+    private final RateLimiter rateLimiter;          // null = unlimited
+    private final RateLimiter.Priority priority;
+    private ValueLogWriter valueLog;        // null = every value stays inline
+    private int minSeparatedBytes;
+    private final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+    private final TreeSet<Long> valueLogs = new TreeSet<>();     // file numbers of the logs pointed into
+    // in-memory buffer for accumulating a block body (not counting 8-byte header); grows for oversized records
+    private ByteBuffer block;
+    private long offset = 0;        // file offset of the block being accumulated
+    private byte[] smallest;
+    private byte[] largest;
+    private byte[] lastKey = new byte[64];   // full previous key, for prefix compression
+    private int lastKeyLen;
+    private int[] restarts = new int[16];   // restart offsets within the pending block
+    private int restartCount;
+    private int sinceRestart;               // records since the last restart point
 
-    public SstWriter(Path dir, String fileName, int blockSize, int bloomBitsPerKey) throws IOException {
+    public SstWriter(Path dir, String fileName, int blockSize, int restartInterval, Compression compression,
+                     int bloomBitsPerKey) throws IOException {
+        this(dir, fileName, blockSize, restartInterval, compression, bloomBitsPerKey, null, null);
+    }
+
+    /** As above, with every block and the footer charged to rateLimiter (when not null) before it is written. */
+    public SstWriter(Path dir, String fileName, int blockSize, int restartInterval, Compression compression,
+                     int bloomBitsPerKey, RateLimiter rateLimiter, RateLimiter.Priority priority) throws IOException {
+        this.rateLimiter = rateLimiter;
+        this.priority = priority;
         this.tmpPath = dir.resolve(fileName + ".tmp");
         this.finalPath = dir.resolve(fileName);
         this.blockSize = blockSize;
+        this.restartInterval = Math.max(1, restartInterval);
+        this.compression = compression;
         this.bloomBitsPerKey = bloomBitsPerKey;
+        this.block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
         this.channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
     /**
-     * Write all entries from a sorted NavigableMap into SST format.
-     * Blocks are filled until blockSize would overflow, then flushed.
+     * From now on write put values of at least minBytes to valueLog and store a {@link ValuePointer}
+     * to each ({@link Entry#FLAG_BLOB}) in their place.
+     */
+    void separateValues(ValueLogWriter valueLog, int minBytes) {
+        this.valueLog = valueLog;
+        this.minSeparatedBytes = minBytes;
+    }
+
+    /** Add a range tombstone to the footer; tombstones may be added in any order, before or after the records. */
+    void addRangeTombstone(RangeTombstone tombstone) {
+        rangeTombstones.add(tombstone);
+        minSeq = Math.min(minSeq, tombstone.seq());
+        maxSeq = Math.max(maxSeq, tombstone.seq());
+    }
+
+    /**
+     * Write all entries from a sorted NavigableMap into SST format and finish the file.
+     */
+    public void writeAll(NavigableMap<byte[], Entry> map) throws IOException {
+        for (Entry entry : map.values()) add(entry);
+        finish();
+    }
+
+    /**
+     * Append one entry; entries must arrive in strictly increasing key order.
+     */
+    public void add(Entry entry) throws IOException {
+        byte[] val = entry.value() == null ? new byte[0] : entry.value();
+        add(entry.seq(), entry.flag(), ByteBuffer.wrap(entry.key()), 0, entry.key().length, ByteBuffer.wrap(val), 0, val.length);
+    }
+
+    /**
+     * Append one record whose key and value are copied in place from (possibly off-heap) buffers,
+     * without materializing them as arrays. Blocks are filled until blockSize would overflow, then flushed.
      */
-    public void writeAll(java.util.NavigableMap<byte[], Entry> map) throws IOException {
-        // single in-memory buffer for accumulating a block body (not counting 8-byte header)
-        ByteBuffer block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
-        long offset = 0;
-        for (Map.Entry<byte[], Entry> mapEntry : map.entrySet()) {
-            Entry entry = mapEntry.getValue();
-            bloomKeys.add(entry.key()); // remember key for bloom filter
-
-            byte[] val = entry.value() == null ? new byte[0] : entry.value();
-            int recLen = 1 + 4 + 4 + entry.key().length + val.length; // flag|klen|vlen|k|v
-
-            // if adding this record would overflow the block, flush the block to disk
-            if (block.position() + 4 + 4 + recLen > block.capacity()) {
-                int bodyLen = flushBlock(block);              // returns body length
-                offset += 8 + bodyLen;                        // advance offset by header+body size
-                // add an index entry so readers can binary-search blocks
-                index.add(mapEntry.getKey(), offset);
-                block.clear();                                 // reset for next block
-            }
-
-            // append record to block body
-            block.put(entry.flag());
-            block.putInt(entry.key().length);
-            block.putInt(val.length);
-            block.put(entry.key());
-            block.put(val);
+    public void add(long seq, byte flag, ByteBuffer keySrc, int keyOff, int keyLen, ByteBuffer valSrc, int valOff, int valLen) throws IOException {
+        if (valueLog != null && flag == Entry.FLAG_PUT && valLen >= minSeparatedBytes) {
+            valSrc = ByteBuffer.wrap(valueLog.add(valSrc, valOff, valLen).encode());
+            flag = Entry.FLAG_BLOB;
+            valOff = 0;
+            valLen = valSrc.limit();
+        }
+        // a pointer starts with its file number
+        if (flag == Entry.FLAG_BLOB) valueLogs.add(Codec.getVarint(valSrc.duplicate().position(valOff)));
+        // an older version of the key just added: records are in (key, seq desc) order
+        boolean sameKey = entryCount > 0 && keyLen == lastKeyLen && Slice.compare(keySrc, keyOff, keyLen, lastKey, 0, lastKeyLen) == 0;
+        entryCount++;
+        if (!sameKey) {
+            if (keyCount == bloomHashes.length) bloomHashes = Arrays.copyOf(bloomHashes, keyCount * 2);
+            bloomHashes[keyCount++] = BloomFilter.hash64(keySrc, keyOff, keyLen);   // remember key for bloom filter
         }
+        minSeq = Math.min(minSeq, seq);
+        maxSeq = Math.max(maxSeq, seq);
 
-        // flush the last block if it has data
-        if (block.position() > 0) {
-            flushBlock(block);
+        int recMax = MAX_RECORD_OVERHEAD + keyLen + valLen;
+
+        // if adding this record would overflow the block (restart array included), flush the block to disk;
+        // the versions of a key are never split, so a lookup at any snapshot reads exactly one block
+        if (!sameKey && block.position() > 0 && 4 + 4 + block.position() + recMax + 4 * (restartCount + 2) > blockSize) {
+            offset += 8 + flushBlock();                   // advance offset by header+body size
+        }
+        if (recMax > block.remaining()) {
+            // a single record larger than a block gets a block of its own
+            block = ByteBuffer.allocate(block.position() + recMax).order(ByteOrder.LITTLE_ENDIAN).put(block.flip());
         }
+        boolean firstInBlock = block.position() == 0;
 
-        // footer
-        // sparse index: repeated [keyLen|key|offset]
-        ByteArrayOutputStream idx = new ByteArrayOutputStream();
-        for (SparseIndex.Entry indexEntry : index.entries()) {
-            idx.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(indexEntry.key().length).array());
-            idx.writeBytes(indexEntry.key());
-            idx.writeBytes(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(indexEntry.offset()).array());
+        int shared = 0;
+        if (sinceRestart == restartInterval || firstInBlock) {
+            if (restartCount == restarts.length) restarts = Arrays.copyOf(restarts, restartCount * 2);
+            restarts[restartCount++] = block.position();
+            sinceRestart = 0;
+        } else {
+            int limit = Math.min(lastKeyLen, keyLen);
+            while (shared < limit && lastKey[shared] == keySrc.get(keyOff + shared)) shared++;
         }
-        byte[] indexBytes = idx.toByteArray();
+        sinceRestart++;
 
-        BloomFilter bloom = new BloomFilter(bloomBitsPerKey, Math.max(1, bloomKeys.size()));
-        for (byte[] key : bloomKeys) bloom.add(key);
+        // append record to block body
+        block.put(flag);
+        Codec.putVarint(block, shared);
+        Codec.putVarint(block, keyLen - shared);
+        Codec.putVarint(block, valLen);
+        Codec.putVarint(block, seq);
+        int keyPos = block.position();
+        block.put(keyPos, keySrc, keyOff + shared, keyLen - shared);
+        block.put(keyPos + keyLen - shared, valSrc, valOff, valLen);
+        block.position(keyPos + keyLen - shared + valLen);
+
+        if (keyLen > lastKey.length) lastKey = Arrays.copyOf(lastKey, Math.max(keyLen, lastKey.length * 2));
+        keySrc.get(keyOff + shared, lastKey, shared, keyLen - shared);
+        lastKeyLen = keyLen;
+
+        // every block gets an index entry (its first key) so readers can binary-search blocks
+        if (firstInBlock) index.add(Arrays.copyOf(lastKey, keyLen), offset);
+        if (smallest == null) smallest = Arrays.copyOf(lastKey, keyLen);
+    }
+
+    /** Bytes written so far plus the pending block; used to cut compaction outputs at a target size. */
+    public long approxBytes() {
+        return offset + block.position();
+    }
+
+    public boolean isEmpty() {
+        return smallest == null && rangeTombstones.isEmpty();
+    }
+
+    /** Flush the last block and append the footer and trailer. */
+    public void finish() throws IOException {
+        // flush the last block if it has data
+        if (block.position() > 0) offset += 8 + flushBlock();
+
+        // footer
+        byte[] indexBytes = index.toBytes();
+
+        BloomFilter bloom = new BloomFilter(bloomBitsPerKey, Math.max(1, keyCount));
+        for (int i = 0; i < keyCount; i++) bloom.addHash(bloomHashes[i]);
         byte[] bloomBytes = bloom.toBytes();
 
-        // write footer: [indexLen][index][bloomLen][bloom]
-        ByteBuffer footer = ByteBuffer.allocate(4 + indexBytes.length + 4 + bloomBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        // the key range covers the tombstones too, so lookups and compactions find them
+        for (RangeTombstone tombstone : rangeTombstones) {
+            if (smallest == null || ByteArrays.compare(tombstone.start(), smallest) < 0) smallest = tombstone.start();
+            if (largest == null || ByteArrays.compare(tombstone.lastKey(), largest) > 0) largest = tombstone.lastKey();
+        }
+        byte[] lo = smallest == null ? new byte[0] : smallest;
+        byte[] hi = largest == null ? new byte[0] : largest;
+        byte[] rangeDels = new RangeTombstoneList(rangeTombstones).encode();
+        ByteBuffer logs = ByteBuffer.allocate(5 + 10 * valueLogs.size());
+        Codec.putVarint(logs, valueLogs.size());
+        for (long number : valueLogs) Codec.putVarint(logs, number);
+
+        // write footer: [indexLen][index][bloomLen][bloom][smallestLen][smallest][largestLen][largest][minSeq][maxSeq]
+        // [rangeDelLen][rangeDels][valueLogsLen][valueLogs][version], then trailer
+        ByteBuffer footer = ByteBuffer.allocate(4 + indexBytes.length + 4 + bloomBytes.length + 4 + lo.length + 4 + hi.length
+                + 8 + 8 + 4 + rangeDels.length + 4 + logs.position() + 4 + TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
         footer.putInt(indexBytes.length).put(indexBytes);
         footer.putInt(bloomBytes.length).put(bloomBytes);
+        footer.putInt(lo.length).put(lo);
+        footer.putInt(hi.length).put(hi);
+        footer.putLong(minSeq()).putLong(maxSeq);
+        footer.putInt(rangeDels.length).put(rangeDels);
+        footer.putInt(logs.position()).put(logs.array(), 0, logs.position());
+        footer.putInt(FORMAT_V6);
+        footer.putLong(offset).putLong(MAGIC);
         footer.flip();
+        if (rateLimiter != null) rateLimiter.request(footer.remaining(), priority);
         channel.write(footer);
+        fileSize = offset + footer.limit();
     }
 
     /**
-     * Flushes a full block to disk with CRC32C and length prefix.
-     * Returns the body length (needed to advance offset accurately).
+     * Appends the restart array, compresses the body if that pays off, and flushes the block to disk
+     * with CRC32C and length prefix. Returns the stored length (needed to advance offset accurately).
      */
-    private int flushBlock(ByteBuffer block) throws IOException {
-        block.flip();
-        byte[] body = new byte[block.remaining()];
-        block.get(body);
-
-        int crc = Codec.crc32c(body);
-        ByteBuffer out = ByteBuffer.allocate(4 + 4 + body.length).order(ByteOrder.LITTLE_ENDIAN);
-        out.putInt(crc);            // 4-byte CRC32C of body
-        out.putInt(body.length);    // 4-byte length of body
-        out.put(body);              // body bytes
+    private int flushBlock() throws IOException {
+        largest = Arrays.copyOf(lastKey, lastKeyLen);
+        if (block.remaining() < 4 * (restartCount + 1)) {
+            block = ByteBuffer.allocate(block.position() + 4 * (restartCount + 1)).order(ByteOrder.LITTLE_ENDIAN).put(block.flip());
+        }
+        for (int i = 0; i < restartCount; i++) block.putInt(restarts[i]);
+        block.putInt(restartCount);
+        restartCount = 0;
+
+        int rawLen = block.position();
+        Compression codec = Compression.NONE;
+        byte[] packed = null;
+        if (compression != Compression.NONE) {
+            packed = compression.compress(block.array(), 0, rawLen);
+            if (Codec.varintSize(rawLen) + packed.length <= rawLen - rawLen / 8) codec = compression;
+        }
+        int storedLen = 1 + (codec == Compression.NONE ? rawLen : Codec.varintSize(rawLen) + packed.length);
+
+        ByteBuffer out = ByteBuffer.allocate(4 + 4 + storedLen).order(ByteOrder.LITTLE_ENDIAN);
+        out.position(8);
+        out.put(codec.id);
+        if (codec == Compression.NONE) {
+            out.put(block.array(), 0, rawLen);
+        } else {
+            Codec.putVarint(out, rawLen);
+            out.put(packed);
+        }
+        out.putInt(0, Codec.crc32c(out.array(), 8, storedLen));    // 4-byte CRC32C of codec + payload
+        out.putInt(4, storedLen);                                   // 4-byte length of codec + payload
         out.flip();
+        if (rateLimiter != null) rateLimiter.request(out.remaining(), priority);
         channel.write(out);
-        return body.length;
+        block.clear();
+        return storedLen;
     }
 
     /**
@@ -142,8 +325,23 @@ public final class SstWriter implements AutoCloseable {
         return finalPath;
     }
 
+    /** The manifest's description of the file; valid after finish(). */
+    public FileMeta meta() {
+        return new FileMeta(finalPath.getFileName().toString(), fileSize, smallest == null ? new byte[0] : smallest,
+                largest == null ? new byte[0] : largest, minSeq(), maxSeq, entryCount);
+    }
+
+    private long minSeq() {
+        return minSeq == Long.MAX_VALUE ? 0 : minSeq;
+    }
+
+    /** Close the file; one never installed (a failed flush or compaction) is deleted. */
     @Override
     public void close() throws IOException {
-        if (channel != null) channel.close();
+        try {
+            if (channel != null) channel.close();
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
     }
 }
@@ -0,0 +1,95 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * KvIterator over a store: a MergingIterator (memtables and SSTs, newest first) with
+ * tombstones and keys under a newer range tombstone suppressed and the scan bounds applied. Values kept in the value log are read from
+ * the iterator's Version as they are asked for.
+ */
+final class StoreIterator implements KvIterator {
+    private final MergingIterator merged;
+    private final ScanOptions scan;
+    private final RangeTombstoneList rangeTombstones;     // of every source, already limited to the snapshot
+    private final Version version;      // referenced until close(); holds the sources' files
+    private boolean pastEnd;
+    private boolean closed;
+
+    StoreIterator(MergingIterator merged, ScanOptions scan, RangeTombstoneList rangeTombstones, Version version) throws IOException {
+        this.merged = merged;
+        this.scan = scan;
+        this.rangeTombstones = rangeTombstones;
+        this.version = version;
+        byte[] start = scan.reverse() ? scan.upperBound() : scan.lowerBound();
+        if (start == null) merged.seekToFirst();
+        else merged.seek(start);
+        skipInvisible();
+    }
+
+    @Override
+    public boolean valid() {
+        return !pastEnd && merged.valid();
+    }
+
+    @Override
+    public byte[] key() {
+        return merged.entry().key();
+    }
+
+    @Override
+    public byte[] value() {
+        try {
+            return version.value(merged.entry());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void next() throws IOException {
+        if (pastEnd) return;
+        merged.next();
+        skipInvisible();
+    }
+
+    @Override
+    public void seek(byte[] target) throws IOException {
+        byte[] lower = scan.lowerBound();
+        byte[] upper = scan.upperBound();
+        if (!scan.reverse() && lower != null && ByteArrays.compare(target, lower) < 0) target = lower;
+        if (scan.reverse() && upper != null && ByteArrays.compare(target, upper) > 0) target = upper;
+        pastEnd = false;
+        merged.seek(target);
+        skipInvisible();
+    }
+
+    /** Skip tombstones, deleted ranges and keys outside the bounds; stop (invalid) once past the end of the range. */
+    private void skipInvisible() throws IOException {
+        while (merged.valid()) {
+            Entry entry = merged.entry();
+            byte[] lower = scan.lowerBound();
+            byte[] upper = scan.upperBound();
+            boolean belowLower = lower != null && ByteArrays.compare(entry.key(), lower) < 0;
+            boolean aboveUpper = upper != null && ByteArrays.compare(entry.key(), upper) >= 0;
+            if (scan.reverse() ? belowLower : aboveUpper) {
+                pastEnd = true;
+                return;
+            }
+            if (aboveUpper || belowLower || entry.flag() == Entry.FLAG_DEL
+                    || rangeTombstones.coveringSeq(entry.key(), Long.MAX_VALUE) > entry.seq()) merged.next();
+            else return;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            merged.close();
+        } finally {
+            version.unref();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open SST tables (channel or mapping plus parsed index, bloom filter and key range), shared by every
+ * reader of a store and bounded by maxOpenFiles.
+ *  - a hit is a map lookup and a reference-count CAS; no lock, no syscall
+ *  - a miss opens and parses the file under the cache lock, then evicts the least recently used
+ *    tables beyond the limit
+ *  - evicting a table drops the cache's reference only; readers and iterators still holding it keep
+ *    reading and the channel closes when the last of them releases it (so pinned tables can push the
+ *    number of open files above the limit for a while)
+ */
+final class TableCache {
+    private final int maxOpenFiles;
+    private final boolean mmap;
+    private final Map<Path, SstReader.Table> open = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    TableCache(int maxOpenFiles, boolean mmap) {
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+        this.mmap = mmap;
+    }
+
+    /** The open table for a reader's file; every acquire must be paired with a release. */
+    SstReader.Table acquire(SstReader reader) throws IOException {
+        SstReader.Table table = open.get(reader.path());
+        if (table != null && table.tryRef()) {
+            table.lastUsed = clock.incrementAndGet();
+            return table;
+        }
+        synchronized (this) {
+            table = open.get(reader.path());
+            if (table != null && table.tryRef()) {
+                table.lastUsed = clock.incrementAndGet();
+                return table;
+            }
+            table = SstReader.Table.open(reader.path(), mmap);    // starts with the cache's reference
+            table.tryRef();                                 // and the caller's
+            table.lastUsed = clock.incrementAndGet();
+            open.put(reader.path(), table);
+            while (open.size() > maxOpenFiles) evictOldest();
+            return table;
+        }
+    }
+
+    void release(SstReader.Table table) throws IOException {
+        table.unref();
+    }
+
+    /** Forget a file that is being deleted. */
+    void evict(Path path) throws IOException {
+        SstReader.Table table = open.remove(path);
+        if (table != null) table.unref();
+    }
+
+    int openFiles() {
+        return open.size();
+    }
+
+    /** Drop every cached table; tables still in use close when released. */
+    synchronized void close() throws IOException {
+        for (Path path : open.keySet()) evict(path);
+    }
+
+    // caller holds the lock; O(open files), paid only on a miss, which costs an open() anyway
+    private void evictOldest() throws IOException {
+        Path oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+        for (Map.Entry<Path, SstReader.Table> e : open.entrySet()) {
+            if (e.getValue().lastUsed < oldestUse) {
+                oldest = e.getKey();
+                oldestUse = e.getValue().lastUsed;
+            }
+        }
+        if (oldest != null) evict(oldest);
+    }
+}
@@ -0,0 +1,95 @@
+package lsmkv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An installed value-log file (see {@link ValueLogWriter}), read by {@link ValuePointer}. Like an
+ * {@link SstReader} it is referenced by every Version listing it and deleted once the last of them
+ * is released. Compactions count up its garbage, the values no SST points to any more; once all
+ * of it is garbage the next Version no longer lists it.
+ */
+final class ValueLogFile {
+    final long number;
+    final Path path;
+    final long valueBytes;
+    private final AtomicLong garbageBytes;
+    private final AtomicInteger refs = new AtomicInteger();  // live Versions listing this file
+    private FileChannel channel;        // opened on first read; guarded by this
+
+    ValueLogFile(long number, Path path, long valueBytes, long garbageBytes) {
+        this.number = number;
+        this.path = path;
+        this.valueBytes = valueBytes;
+        this.garbageBytes = new AtomicLong(garbageBytes);
+    }
+
+    String name() {
+        return path.getFileName().toString();
+    }
+
+    long garbageBytes() {
+        return garbageBytes.get();
+    }
+
+    void addGarbage(long bytes) {
+        garbageBytes.addAndGet(bytes);
+    }
+
+    /** Share of the file's values that are garbage. */
+    double garbageRatio() {
+        return valueBytes == 0 ? 1.0 : (double) garbageBytes.get() / valueBytes;
+    }
+
+    byte[] read(ValuePointer pointer) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(ValueLogWriter.RECORD_HEADER + pointer.length()).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel ch = channel();
+        while (record.hasRemaining()) {
+            if (ch.read(record, pointer.offset() + record.position()) < 0) throw new EOFException("value past the end of " + path);
+        }
+        if (Codec.crc32c(record.array(), ValueLogWriter.RECORD_HEADER, pointer.length()) != record.getInt(0)) {
+            throw new IOException("corrupt value at offset " + pointer.offset() + " in " + path);
+        }
+        return Arrays.copyOfRange(record.array(), ValueLogWriter.RECORD_HEADER, record.capacity());
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) channel = FileChannel.open(path, StandardOpenOption.READ);
+        return channel;
+    }
+
+    void ref() {
+        refs.incrementAndGet();
+    }
+
+    /** Drop a Version's reference; once no live Version lists the file it is closed and deleted. */
+    void unref() {
+        if (refs.decrementAndGet() != 0) return;
+        try {
+            synchronized (this) {
+                if (channel != null) channel.close();
+            }
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Close the channel when the store closes; the file stays. */
+    synchronized void close() throws IOException {
+        if (channel != null) channel.close();
+        channel = null;
+    }
+
+    ValueLogFileMeta meta() {
+        return new ValueLogFileMeta(name(), valueBytes, garbageBytes.get());
+    }
+}
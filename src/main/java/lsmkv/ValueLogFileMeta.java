@@ -0,0 +1,8 @@
+package lsmkv;
+
+/**
+ * What the manifest records about one value-log file: the bytes of values written to it and how
+ * many of those no SST points to any more.
+ */
+public record ValueLogFileMeta(String name, long valueBytes, long garbageBytes) {
+}
@@ -0,0 +1,11 @@
+package lsmkv;
+
+/**
+ * Current size of the value logs: live files, the value bytes written to them and how many of
+ * those no table points to any more, plus the live bytes rewritten so far to collect files.
+ * maxGarbageRatio is the largest share of garbage in any one file, and filesOverGcRatio how many
+ * files have reached valueLogGcRatio and wait for their live values to be moved out.
+ */
+public record ValueLogStats(int files, long valueBytes, long garbageBytes, long relocatedBytes,
+                            double maxGarbageRatio, int filesOverGcRatio) {
+}
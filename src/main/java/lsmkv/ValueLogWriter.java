@@ -0,0 +1,117 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Writes the values one flush or subcompaction separates from its SSTs into value-log files:
+ *   [ magic:8 ] [ record* ]      record: [ crc32c:4 | value ]   (crc covers the value)
+ * The SST keeps a {@link ValuePointer} to the record instead of the value, so later compactions
+ * move the pointer and leave the value where it is.
+ *  - a file is rolled once it passes fileBytes; each takes a number from the store's file numbers
+ *  - files are written under a temp name; finish() fsyncs and renames them, before the SSTs
+ *    pointing into them are logged in the manifest
+ *  - close() without finish() (a failed job) deletes every file written
+ */
+final class ValueLogWriter implements AutoCloseable {
+    static final long MAGIC = 0x4c534d4b56564c47L;  // "LSMKVVLG"
+    static final int HEADER = 8;
+    static final int RECORD_HEADER = 4;
+
+    private final Path dir;
+    private final LongSupplier newFileNumber;
+    private final long fileBytes;
+    private final RateLimiter rateLimiter;          // null = unlimited
+    private final RateLimiter.Priority priority;
+    private final List<ValueLogFileMeta> finished = new ArrayList<>();
+    private final List<Path> written = new ArrayList<>();   // every file created, for cleanup on failure
+    private FileChannel channel;        // file being written; null before the first value
+    private long number;
+    private Path tmpPath;
+    private long position;
+    private long valueBytes;
+    private boolean done;
+
+    ValueLogWriter(Path dir, LongSupplier newFileNumber, long fileBytes, RateLimiter rateLimiter, RateLimiter.Priority priority) {
+        this.dir = dir;
+        this.newFileNumber = newFileNumber;
+        this.fileBytes = fileBytes;
+        this.rateLimiter = rateLimiter;
+        this.priority = priority;
+    }
+
+    static String fileName(long number) {
+        return "blob-" + number + ".vlog";
+    }
+
+    /** Append src[off, off + len) as one record and return where it went. */
+    ValuePointer add(ByteBuffer src, int off, int len) throws IOException {
+        if (channel == null || position >= fileBytes) roll();
+        if (rateLimiter != null) rateLimiter.request(RECORD_HEADER + len, priority);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN).putInt(0, Codec.crc32c(src, off, len));
+        ByteBuffer value = src.duplicate().limit(off + len).position(off);
+        ValuePointer pointer = new ValuePointer(number, position, len);
+        while (header.hasRemaining() || value.hasRemaining()) channel.write(new ByteBuffer[]{header, value});
+        position += RECORD_HEADER + len;
+        valueBytes += len;
+        return pointer;
+    }
+
+    /** Make every file durable and visible under its final name; returns them in the order written. */
+    List<ValueLogFileMeta> finish() throws IOException {
+        install();
+        if (!finished.isEmpty()) {
+            try (FileChannel dch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                dch.force(true);
+            }
+        }
+        done = true;
+        return finished;
+    }
+
+    private void roll() throws IOException {
+        install();
+        number = newFileNumber.getAsLong();
+        tmpPath = dir.resolve(fileName(number) + ".tmp");
+        written.add(tmpPath);
+        channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer magic = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN).putLong(0, MAGIC);
+        while (magic.hasRemaining()) channel.write(magic);
+        position = HEADER;
+        valueBytes = 0;
+    }
+
+    // fsync and rename the file being written, if any
+    private void install() throws IOException {
+        if (channel == null) return;
+        channel.force(true);
+        channel.close();
+        channel = null;
+        Path finalPath = dir.resolve(fileName(number));
+        Files.move(tmpPath, finalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        written.add(finalPath);
+        finished.add(new ValueLogFileMeta(finalPath.getFileName().toString(), valueBytes, 0));
+    }
+
+    /** The files finished so far, under their final names. */
+    List<ValueLogFileMeta> written() {
+        return List.copyOf(finished);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (done) return;
+        done = true;
+        try {
+            if (channel != null) channel.close();
+        } finally {
+            for (Path path : written) Files.deleteIfExists(path);
+        }
+    }
+}
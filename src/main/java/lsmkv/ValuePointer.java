@@ -0,0 +1,26 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a separated value lives: the value-log file number, the offset of its record and the
+ * value's length. Stored as the value of a {@link Entry#FLAG_BLOB} record:
+ *   [ fileNumber:varint | offset:varint | length:varint ]
+ */
+record ValuePointer(long fileNumber, long offset, int length) {
+
+    byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(25);
+        Codec.putVarint(buf, fileNumber);
+        Codec.putVarint(buf, offset);
+        Codec.putVarint(buf, length);
+        byte[] out = new byte[buf.position()];
+        buf.flip().get(out);
+        return out;
+    }
+
+    static ValuePointer decode(byte[] encoded) {
+        ByteBuffer buf = ByteBuffer.wrap(encoded);
+        return new ValuePointer(Codec.getVarint(buf), Codec.getVarint(buf), Codec.getVarintInt(buf));
+    }
+}
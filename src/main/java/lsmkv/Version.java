@@ -0,0 +1,164 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable snapshot of the SST files per level and the value-log files they point into. A new Version is installed for every
+ * flush and compaction, so readers holding an older one keep a consistent view.
+ *  - L0 holds flushed memtables, newest first; their key ranges may overlap
+ *  - L1+ are sorted by smallest key and never overlap within a level
+ * <p>
+ * Versions are reference counted. The store holds one reference to the current Version and drops it
+ * when installing the next; readers take a reference for the duration of a lookup or iterator. A
+ * Version references each of its files, so a file replaced by a compaction is deleted only once no
+ * reader can still reach it; value-log files are held the same way. Every Version constructed must
+ * eventually be installed.
+ */
+final class Version {
+    private static final Comparator<SstReader> BY_SMALLEST = (a, b) -> ByteArrays.compare(a.smallestKey(), b.smallestKey());
+
+    private final List<List<SstReader>> levels;
+    private final Map<Long, ValueLogFile> valueLogs;    // by file number
+    private final AtomicInteger refs = new AtomicInteger(1);   // the store's reference while current
+
+    Version(List<List<SstReader>> levels, Map<Long, ValueLogFile> valueLogs) {
+        this.levels = levels;
+        this.valueLogs = valueLogs;
+        for (List<SstReader> level : levels) {
+            for (SstReader reader : level) reader.ref();
+        }
+        for (ValueLogFile file : valueLogs.values()) file.ref();
+    }
+
+    /** Take a reference unless the Version has already been released; retry on the current one if not. */
+    boolean tryRef() {
+        while (true) {
+            int n = refs.get();
+            if (n == 0) return false;
+            if (refs.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    void unref() {
+        if (refs.decrementAndGet() != 0) return;
+        for (List<SstReader> level : levels) {
+            for (SstReader reader : level) reader.unref();
+        }
+        for (ValueLogFile file : valueLogs.values()) file.unref();
+    }
+
+    int numLevels() {
+        return levels.size();
+    }
+
+    List<SstReader> level(int level) {
+        return levels.get(level);
+    }
+
+    Collection<ValueLogFile> valueLogs() {
+        return valueLogs.values();
+    }
+
+    ValueLogFile valueLog(long number) {
+        return valueLogs.get(number);
+    }
+
+    /** The value of a put, read from the value log when the entry holds a pointer there. */
+    byte[] value(Entry entry) throws IOException {
+        if (entry.flag() != Entry.FLAG_BLOB) return entry.value();
+        ValuePointer pointer = ValuePointer.decode(entry.value());
+        ValueLogFile file = valueLogs.get(pointer.fileNumber());
+        if (file == null) throw new IOException("value log " + ValueLogWriter.fileName(pointer.fileNumber()) + " is not live");
+        return file.read(pointer);
+    }
+
+    long levelBytes(int level) {
+        long bytes = 0;
+        for (SstReader reader : levels.get(level)) bytes += reader.fileSize();
+        return bytes;
+    }
+
+    /** Files in the level whose key range intersects [smallest, largest]. */
+    List<SstReader> overlapping(int level, byte[] smallest, byte[] largest) {
+        List<SstReader> files = levels.get(level);
+        List<SstReader> out = new ArrayList<>();
+        // L1+ runs are sorted and disjoint: start at the first file reaching smallest, stop past largest
+        for (int i = level == 0 ? 0 : firstReaching(level, smallest); i < files.size(); i++) {
+            SstReader reader = files.get(i);
+            if (ByteArrays.compare(reader.smallestKey(), largest) > 0) {
+                if (level == 0) continue;
+                break;
+            }
+            if (ByteArrays.compare(reader.largestKey(), smallest) >= 0) out.add(reader);
+        }
+        return out;
+    }
+
+    /**
+     * Index of the first file in an L1+ level whose largest key is at or past key (the level's size
+     * if none), by binary search over the sorted, non-overlapping run.
+     */
+    int firstReaching(int level, byte[] key) {
+        List<SstReader> files = levels.get(level);
+        int lo = 0;
+        int hi = files.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ByteArrays.compare(files.get(mid).largestKey(), key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** The only file in an L1+ level whose key range can hold key, or null. */
+    SstReader fileFor(int level, byte[] key) {
+        List<SstReader> files = levels.get(level);
+        int i = firstReaching(level, key);
+        return i < files.size() && ByteArrays.compare(files.get(i).smallestKey(), key) <= 0 ? files.get(i) : null;
+    }
+
+    /** Add a flushed file to L0, keeping L0 ordered newest first by file number, with the value logs it wrote. */
+    Version withFlushed(SstReader reader, List<ValueLogFile> written) {
+        List<SstReader> l0 = new ArrayList<>(levels.get(0));
+        int pos = 0;
+        while (pos < l0.size() && LsmKvStore.fileNumber(l0.get(pos).path()) > LsmKvStore.fileNumber(reader.path())) pos++;
+        l0.add(pos, reader);
+        List<List<SstReader>> next = new ArrayList<>(levels);
+        next.set(0, List.copyOf(l0));
+        return new Version(next, withValueLogs(written, List.of()));
+    }
+
+    /**
+     * Remove compaction inputs from every level and add the outputs to outputLevel; add the value
+     * logs the compaction wrote and drop the ones left holding only garbage.
+     */
+    Version withCompaction(Collection<SstReader> inputs, int outputLevel, List<SstReader> outputs,
+                           List<ValueLogFile> written, Collection<Long> dropped) {
+        List<List<SstReader>> next = new ArrayList<>();
+        for (int i = 0; i < levels.size(); i++) {
+            List<SstReader> files = new ArrayList<>(levels.get(i));
+            files.removeAll(inputs);
+            if (i == outputLevel) {
+                files.addAll(outputs);
+                files.sort(BY_SMALLEST);
+            }
+            next.add(List.copyOf(files));
+        }
+        return new Version(next, withValueLogs(written, dropped));
+    }
+
+    private Map<Long, ValueLogFile> withValueLogs(List<ValueLogFile> added, Collection<Long> dropped) {
+        if (added.isEmpty() && dropped.isEmpty()) return valueLogs;
+        Map<Long, ValueLogFile> next = new HashMap<>(valueLogs);
+        next.keySet().removeAll(dropped);
+        for (ValueLogFile file : added) next.put(file.number, file);
+        return Map.copyOf(next);
+    }
+}
@@ -0,0 +1,184 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The change one flush or compaction makes to the live file set, as logged in the MANIFEST.
+ * Encoded as a sequence of tagged fields:
+ *   LAST_SEQ   [ tag:1 | seq:varint ]
+ *   ADD_FILE   [ tag:1 | level:varint | name | fileSize:varint | smallest | largest
+ *                | minSeq:varint | maxSeq:varint | entries:varint ]
+ *   ADD_LEGACY [ tag:1 | level:varint | name ]         (a file whose metadata is unknown)
+ *   DELETE     [ tag:1 | name ]                      (an SST or a value-log file)
+ *   ADD_VALUE_LOG [ tag:1 | name | valueBytes:varint | garbageBytes:varint ]
+ *   GARBAGE    [ tag:1 | name | bytes:varint ]       (more of a value log's values are unreferenced)
+ * where name and keys are [ len:varint | bytes ]. Deletes apply before adds, so a file moved
+ * between levels is a delete and an add of the same name.
+ */
+final class VersionEdit {
+    private static final byte LAST_SEQ = 1;
+    private static final byte ADD_FILE = 2;
+    private static final byte ADD_LEGACY = 3;
+    private static final byte DELETE = 4;
+    private static final byte ADD_VALUE_LOG = 5;
+    private static final byte GARBAGE = 6;
+
+    record Added(int level, FileMeta file) {
+    }
+
+    private long lastSeq = -1;      // -1 = unchanged
+    private final List<Added> added = new ArrayList<>();
+    private final List<String> deleted = new ArrayList<>();
+    private final List<ValueLogFileMeta> addedValueLogs = new ArrayList<>();
+    private final Map<String, Long> garbage = new LinkedHashMap<>();
+
+    VersionEdit setLastSeq(long lastSeq) {
+        this.lastSeq = lastSeq;
+        return this;
+    }
+
+    VersionEdit addFile(int level, FileMeta file) {
+        added.add(new Added(level, file));
+        return this;
+    }
+
+    VersionEdit deleteFile(String name) {
+        deleted.add(name);
+        return this;
+    }
+
+    VersionEdit addValueLog(ValueLogFileMeta file) {
+        addedValueLogs.add(file);
+        return this;
+    }
+
+    VersionEdit addGarbage(String valueLog, long bytes) {
+        garbage.merge(valueLog, bytes, Long::sum);
+        return this;
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    List<Added> added() {
+        return added;
+    }
+
+    List<String> deleted() {
+        return deleted;
+    }
+
+    List<ValueLogFileMeta> addedValueLogs() {
+        return addedValueLogs;
+    }
+
+    Map<String, Long> garbage() {
+        return garbage;
+    }
+
+    byte[] encode() {
+        int size = 1 + 10;
+        for (Added a : added) {
+            FileMeta f = a.file();
+            size += 1 + 5 + 5 + f.name().length() * 3 + 10 + 5 + f.smallestKey().length + 5 + f.largestKey().length + 30;
+        }
+        for (String name : deleted) size += 1 + 5 + name.length() * 3;
+        for (ValueLogFileMeta f : addedValueLogs) size += 1 + 5 + f.name().length() * 3 + 20;
+        for (String name : garbage.keySet()) size += 1 + 5 + name.length() * 3 + 10;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        if (lastSeq >= 0) {
+            buf.put(LAST_SEQ);
+            Codec.putVarint(buf, lastSeq);
+        }
+        for (String name : deleted) {
+            buf.put(DELETE);
+            putBytes(buf, name.getBytes(StandardCharsets.UTF_8));
+        }
+        for (Added a : added) {
+            FileMeta f = a.file();
+            buf.put(f.known() ? ADD_FILE : ADD_LEGACY);
+            Codec.putVarint(buf, a.level());
+            putBytes(buf, f.name().getBytes(StandardCharsets.UTF_8));
+            if (!f.known()) continue;
+            Codec.putVarint(buf, f.fileSize());
+            putBytes(buf, f.smallestKey());
+            putBytes(buf, f.largestKey());
+            Codec.putVarint(buf, f.minSeq());
+            Codec.putVarint(buf, f.maxSeq());
+            Codec.putVarint(buf, f.entries());
+        }
+        for (ValueLogFileMeta f : addedValueLogs) {
+            buf.put(ADD_VALUE_LOG);
+            putBytes(buf, f.name().getBytes(StandardCharsets.UTF_8));
+            Codec.putVarint(buf, f.valueBytes());
+            Codec.putVarint(buf, f.garbageBytes());
+        }
+        for (Map.Entry<String, Long> g : garbage.entrySet()) {
+            buf.put(GARBAGE);
+            putBytes(buf, g.getKey().getBytes(StandardCharsets.UTF_8));
+            Codec.putVarint(buf, g.getValue());
+        }
+        byte[] out = new byte[buf.position()];
+        buf.flip().get(out);
+        return out;
+    }
+
+    /** Decode an edit spanning all of buf's remaining bytes; malformed input throws. */
+    static VersionEdit decode(ByteBuffer buf) {
+        VersionEdit edit = new VersionEdit();
+        while (buf.hasRemaining()) {
+            byte tag = buf.get();
+            switch (tag) {
+                case LAST_SEQ -> edit.setLastSeq(Codec.getVarint(buf));
+                case DELETE -> edit.deleteFile(getString(buf));
+                case ADD_LEGACY -> {
+                    int level = Codec.getVarintInt(buf);
+                    edit.addFile(level, FileMeta.unknown(getString(buf)));
+                }
+                case ADD_FILE -> {
+                    int level = Codec.getVarintInt(buf);
+                    String name = getString(buf);
+                    long fileSize = Codec.getVarint(buf);
+                    byte[] smallest = getBytes(buf);
+                    byte[] largest = getBytes(buf);
+                    long minSeq = Codec.getVarint(buf);
+                    long maxSeq = Codec.getVarint(buf);
+                    long entries = Codec.getVarint(buf);
+                    edit.addFile(level, new FileMeta(name, fileSize, smallest, largest, minSeq, maxSeq, entries));
+                }
+                case ADD_VALUE_LOG -> {
+                    String name = getString(buf);
+                    long valueBytes = Codec.getVarint(buf);
+                    edit.addValueLog(new ValueLogFileMeta(name, valueBytes, Codec.getVarint(buf)));
+                }
+                case GARBAGE -> {
+                    String name = getString(buf);
+                    edit.addGarbage(name, Codec.getVarint(buf));
+                }
+                default -> throw new IllegalArgumentException("unknown version edit tag " + tag);
+            }
+        }
+        return edit;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        Codec.putVarint(buf, bytes.length);
+        buf.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[Codec.getVarintInt(buf)];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        return new String(getBytes(buf), StandardCharsets.UTF_8);
+    }
+}
@@ -3,6 +3,7 @@ package lsmkv;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
@@ -13,27 +14,89 @@ import java.util.regex.Pattern;
 /**
  * Write-Ahead Log:
  *  - Appends records to "segment-<id>.log" in dir
+ *  - Group commit: concurrent appends queue up and one leader writes the whole group with a
+ *    single gathering write (and a single fsync when syncOnCommit); every writer in the group
+ *    returns once the group is on disk
  *  - Batches fsync by size (batchBytes) and by time (syncMillis)
- *  - On recovery, replays all segments in id order, stopping at torn/corrupt tail
+ *  - Rolls to a new segment once the active one reaches segmentBytes. A sealed segment ends with a
+ *    trailer record holding its seq range; the range of every segment is kept in memory, so
+ *    truncation deletes whole segments below the durable seq without reading any of them
+ *  - On recovery, streams all segments in id order from mapped windows, stopping each at its
+ *    torn/corrupt tail; records are verified and decoded in parallel and delivered in log order
  */
 public final class Wal implements AutoCloseable {
     private final Path dir;         // WAL directory
     private final int batchBytes;   // flush after this many written bytes
     private final int syncMillis;   // periodic fsync
+    private final boolean syncOnCommit; // fsync every group before acknowledging it
+    private final long segmentBytes;    // roll to a new segment past this size
     private FileChannel channel;
     private long activeBytes = 0;   // bytes since last force()
+    private long activeId;
+    private long activeSegmentBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();  // by id; guarded by lock
+    private long replayedThrough = Long.MAX_VALUE;  // while replaying, segments above this id are not yet applied
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
         Thread thread = new Thread(r, "wal-sync");
         thread.setDaemon(true);
         return thread;
     });
-    private final Object lock = new Object();
+    private final Object lock = new Object();      // guards channel, the active segment and segments
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();   // records waiting for a leader; guarded by itself
+    private boolean leaderActive;                  // guarded by queue
+    private static final int REUSE_BUFFER_LIMIT = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN));
     private static final Pattern SEG_PAT = Pattern.compile("segment-(\\d+)\\.log");
+    private static final byte FLAG_BATCH = 3;      // record holding a whole WriteBatch
+    private static final byte FLAG_SEGMENT_END = 4; // trailer of a sealed segment: seq = maxSeq, value = minSeq(8)
+    private static final int HEADER = 4 + 8 + 1 + 4 + 4;    // crc | seq | flag | keyLen | valLen
+    private static final int TRAILER_SIZE = HEADER + 8;
+    private static final long REPLAY_WINDOW = 64L << 20;   // bytes of a segment mapped at a time during replay
 
-    public Wal(Path dir, int batchBytes, int syncMillis) throws IOException {
+    /** A record waiting to be written by the current group-commit leader. */
+    private static final class Pending {
+        final ByteBuffer record;
+        final long firstSeq;
+        final long lastSeq;
+        boolean done;           // guarded by queue
+        IOException failure;    // guarded by queue
+
+        Pending(ByteBuffer record, long firstSeq, long lastSeq) {
+            this.record = record;
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+        }
+    }
+
+    /** Seq range of a segment's records; unknown for an unsealed segment from before the open until it is replayed. */
+    private static final class Segment {
+        final Path path;
+        long minSeq = Long.MAX_VALUE;
+        long maxSeq = Long.MIN_VALUE;
+        boolean known;
+
+        Segment(Path path) {
+            this.path = path;
+        }
+
+        void add(long first, long last) {
+            minSeq = Math.min(minSeq, first);
+            maxSeq = Math.max(maxSeq, last);
+        }
+    }
+
+    public Wal(Path dir, int batchBytes, int syncMillis, boolean syncOnCommit) throws IOException {
+        this(dir, batchBytes, syncMillis, syncOnCommit, Long.MAX_VALUE);
+    }
+
+    public Wal(Path dir, int batchBytes, int syncMillis, boolean syncOnCommit, long segmentBytes) throws IOException {
         this.dir = dir;
         this.batchBytes = batchBytes;
         this.syncMillis = syncMillis;
+        this.syncOnCommit = syncOnCommit;
+        this.segmentBytes = segmentBytes;
+        loadSegments();
         rolloverIfNeeded();             // open next segment if none
         scheduler.scheduleAtFixedRate(this::forceSafe, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
     }
@@ -56,40 +119,77 @@ public final class Wal implements AutoCloseable {
     private void rolloverIfNeeded() throws IOException {
         synchronized (lock) {
             if (channel == null) {
-                long activeId = findMaxSegmentId() + 1;
+                activeId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
                 Path path = dir.resolve("segment-" + activeId + ".log");
                 channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                Segment segment = new Segment(path);
+                segment.known = true;
+                segments.put(activeId, segment);
                 activeBytes = 0;
+                activeSegmentBytes = 0;
             }
         }
     }
 
-    /** Scan directory to find the largest existing segment id. */
-    private long findMaxSegmentId() throws IOException {
-        long max = 0;
+    /** Register the segments on disk, taking the seq range of sealed ones from their trailers. */
+    private void loadSegments() throws IOException {
         try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "segment-*.log")) {
             for (Path path : ds) {
-                Matcher matcher = SEG_PAT.matcher(path.getFileName().toString());
-                if (matcher.matches()) {
-                    long id = Long.parseLong(matcher.group(1));
-                    if (id > max) max = id;
-                }
+                Segment segment = new Segment(path);
+                readTrailer(segment);
+                segments.put(idOf(path), segment);
+            }
+        }
+    }
+
+    private static void readTrailer(Segment segment) throws IOException {
+        try (FileChannel readChannel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            long size = readChannel.size();
+            if (size < TRAILER_SIZE) return;
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (trailer.hasRemaining()) {
+                if (readChannel.read(trailer, size - TRAILER_SIZE + trailer.position()) < 0) return;
             }
+            if (trailer.get(12) != FLAG_SEGMENT_END || trailer.getInt(13) != 0 || trailer.getInt(17) != 8) return;
+            if (Codec.crc32c(trailer.array(), 4, TRAILER_SIZE - 4) != trailer.getInt(0)) return;
+            segment.add(trailer.getLong(HEADER), trailer.getLong(4));
+            segment.known = true;
         }
-        return max;
+    }
+
+    /** Caller holds lock. End the active segment with its trailer; the next write opens a new one. */
+    private void sealActiveSegment() throws IOException {
+        Segment segment = segments.get(activeId);
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.position(4);
+        trailer.putLong(segment.maxSeq).put(FLAG_SEGMENT_END).putInt(0).putInt(8).putLong(segment.minSeq);
+        trailer.putInt(0, Codec.crc32c(trailer.array(), 4, TRAILER_SIZE - 4));
+        trailer.flip();
+        while (trailer.hasRemaining()) channel.write(trailer);
+        channel.force(true);
+        channel.close();
+        channel = null;
+        activeBytes = 0;
     }
 
     /**
      * Append one record:
      * crc32c | seq(8) | flag(1) | keyLen(4) | valLen(4) | key | val
      * CRC covers the body (everything after the first 4 bytes)
+     * Returns once the record has been written (and forced, with syncOnCommit).
      */
     public void append(Entry entry) throws IOException {
         // record: crc32c | seq | flag | keyLen | valLen | key | val
         byte[] key = entry.key();
         byte[] value = entry.value() == null ? new byte[0] : entry.value();
         int bodyLen = 8 + 1 + 4 + 4 + key.length + value.length;
-        ByteBuffer buf = ByteBuffer.allocate(4 + bodyLen).order(ByteOrder.LITTLE_ENDIAN);
+        // the caller blocks until its record is written, so a per-thread buffer can be reused across appends
+        ByteBuffer buf = ENCODE_BUFFER.get();
+        if (buf.capacity() < 4 + bodyLen) {
+            buf = ByteBuffer.allocate(4 + bodyLen).order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.capacity() <= REUSE_BUFFER_LIMIT) ENCODE_BUFFER.set(buf);
+        }
+        buf.clear();
 
         buf.position(4);    // leave space for crc32c
         buf.putLong(entry.seq());
@@ -103,28 +203,168 @@ public final class Wal implements AutoCloseable {
         buf.putInt(0, crc);
         buf.flip();
 
+        commit(buf, entry.seq(), entry.seq());
+    }
+
+    /**
+     * Append a whole batch as one record, so it is either replayed completely or not at all:
+     * crc32c | firstSeq(8) | FLAG_BATCH(1) | keyLen(4)=0 | valLen(4) | val
+     * where val = count(4) | repeated [ flag(1) | keyLen(4) | valLen(4) | key | val ]
+     * and the i-th operation has seq firstSeq + i.
+     */
+    public void append(WriteBatch batch, long firstSeq) throws IOException {
+        int payloadLen = 4 + batch.size() * (1 + 4 + 4) + batch.approxBytes();
+        int bodyLen = 8 + 1 + 4 + 4 + payloadLen;
+        ByteBuffer buf = ByteBuffer.allocate(4 + bodyLen).order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.position(4);    // leave space for crc32c
+        buf.putLong(firstSeq);
+        buf.put(FLAG_BATCH);
+        buf.putInt(0);
+        buf.putInt(payloadLen);
+        buf.putInt(batch.size());
+        for (Entry op : batch.ops()) {
+            byte[] value = op.value() == null ? new byte[0] : op.value();
+            buf.put(op.flag());
+            buf.putInt(op.key().length);
+            buf.putInt(value.length);
+            buf.put(op.key());
+            buf.put(value);
+        }
+
+        int crc = Codec.crc32c(buf.array(), 4, bodyLen);
+        buf.putInt(0, crc);
+        buf.flip();
+
+        commit(buf, firstSeq, firstSeq + batch.size() - 1);
+    }
+
+    /**
+     * Queue a record and wait until it is durable. The first writer to find no active leader
+     * becomes the leader: it takes every queued record, writes them as one group and wakes the
+     * followers. Records that arrive meanwhile form the next group.
+     */
+    private void commit(ByteBuffer record, long firstSeq, long lastSeq) throws IOException {
+        Pending mine = new Pending(record, firstSeq, lastSeq);
+        List<Pending> group;
+        boolean interrupted = false;
+        synchronized (queue) {
+            queue.add(mine);
+            while (leaderActive && !mine.done) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;     // the record is already queued; finish the commit
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (mine.done) {
+                if (mine.failure != null) throw new IOException("group commit failed", mine.failure);
+                return;
+            }
+            leaderActive = true;
+            group = new ArrayList<>(queue);
+            queue.clear();
+        }
+
+        IOException failure = null;
+        try {
+            writeGroup(group);
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        synchronized (queue) {
+            for (Pending pending : group) {
+                pending.done = true;
+                pending.failure = failure;
+            }
+            leaderActive = false;
+            queue.notifyAll();
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void writeGroup(List<Pending> group) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[group.size()];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = group.get(i).record;
+            total += buffers[i].remaining();
+        }
         synchronized (lock) {
             rolloverIfNeeded();
-            channel.write(buf);
-            activeBytes += buf.remaining();
-            if (activeBytes >= batchBytes) {
-                channel.force(true);      // size-based fsync
+            long written = 0;
+            while (written < total) written += channel.write(buffers);     // one gathering write, looped on partial writes
+            Segment segment = segments.get(activeId);
+            for (Pending pending : group) segment.add(pending.firstSeq, pending.lastSeq);
+            activeBytes += total;
+            activeSegmentBytes += total;
+            if (activeSegmentBytes >= segmentBytes) {
+                sealActiveSegment();        // fsyncs, covering this group too
+            } else if (syncOnCommit || activeBytes >= batchBytes) {
+                channel.force(true);      // one fsync for the whole group
                 activeBytes = 0;
             }
         }
     }
 
-    /** Collect and replay all segments, oldest -> newest, stopping at torn/corrupt tails. */
-    public List<Entry> replayAllSorted() throws IOException {
+    /** Receives replayed records in log order. */
+    @FunctionalInterface
+    public interface ReplaySink {
+        void accept(Entry entry) throws IOException;
+    }
+
+    /**
+     * Stream every segment, oldest -> newest, into sink in log order (batches expanded), stopping
+     * each segment at its torn/corrupt tail. Returns the number of entries delivered.
+     *  - segments are mapped REPLAY_WINDOW bytes at a time, so memory stays bounded by the window
+     *    however large the log is
+     *  - a pass over the record lengths splits a window into up to threads runs of records, which are
+     *    CRC-checked against the mapped bytes and decoded in parallel
+     *  - the caller's thread applies the runs in order as they complete, so applying one run overlaps
+     *    decoding the next ones
+     */
+    public long replay(int threads, ReplaySink sink) throws IOException {
         List<Path> segs = new ArrayList<>();
-        if (!Files.exists(dir)) return List.of();
+        if (!Files.exists(dir)) return 0;
         try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "segment-*.log")) {
             for (Path path : ds) segs.add(path);
         }
         segs.sort(Comparator.comparingLong(this::idOf));
-        List<Entry> out = new ArrayList<>();
-        for (Path path : segs) out.addAll(replayFile(path));
-        return out;
+        ExecutorService pool = threads <= 1 ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "wal-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (lock) {
+            replayedThrough = 0;    // flushes fed by the replay must not truncate what it has not read yet
+        }
+        try {
+            long delivered = 0;
+            for (Path path : segs) {
+                long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+                delivered += replaySegment(path, pool, Math.max(1, threads), entry -> {
+                    range[0] = Math.min(range[0], entry.seq());
+                    range[1] = Math.max(range[1], entry.seq());
+                    sink.accept(entry);
+                });
+                synchronized (lock) {
+                    // the replayed records are exactly what the segment holds for recovery
+                    Segment segment = segments.get(idOf(path));
+                    if (segment != null && !segment.known) {
+                        segment.add(range[0], range[1]);
+                        segment.known = true;
+                    }
+                    replayedThrough = idOf(path);
+                }
+            }
+            return delivered;
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            synchronized (lock) {
+                replayedThrough = Long.MAX_VALUE;
+            }
+        }
     }
 
     private long idOf(Path path) {
@@ -132,98 +372,165 @@ public final class Wal implements AutoCloseable {
         return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0L;
     }
 
-    private List<Entry> replayFile(Path path) throws IOException {
-        List<Entry> out = new ArrayList<>();
+    /** A run of decoded records; corrupt when it ended at a record that failed its CRC. */
+    private record Decoded(List<Entry> entries, boolean corrupt) {
+    }
+
+    private long replaySegment(Path path, ExecutorService pool, int runs, ReplaySink sink) throws IOException {
+        long delivered = 0;
         try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
-            ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-            ByteBuffer bodyHdr = ByteBuffer.allocate(8 + 1 + 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
-            while (true) {
-                Entry entry = readEntry(buf, bodyHdr, readChannel);
-                if (entry == null) break;          // stop at torn/corrupt
-                out.add(entry);
+            long size = readChannel.size();
+            long start = 0;
+            long windowSize = REPLAY_WINDOW;
+            while (start < size) {
+                MappedByteBuffer window = readChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    int[] bounds = recordBounds(window);
+                    int count = bounds.length - 1;
+                    int end = bounds[count];
+                    if (count == 0) {
+                        // a record longer than the window: map exactly it, or stop at a torn/corrupt tail
+                        long len = recordLength(window, 0);
+                        if (len <= windowSize || start + len > size || len > Integer.MAX_VALUE) break;
+                        windowSize = len;
+                        continue;
+                    }
+                    windowSize = REPLAY_WINDOW;
+
+                    List<Future<Decoded>> pending = new ArrayList<>();
+                    int perRun = (count + runs - 1) / runs;
+                    for (int from = 0; from < count; from += perRun) {
+                        int lo = from, hi = Math.min(count, from + perRun);
+                        if (pool == null) pending.add(CompletableFuture.completedFuture(decode(window, bounds, lo, hi)));
+                        else pending.add(pool.submit(() -> decode(window, bounds, lo, hi)));
+                    }
+                    boolean corrupt = false;
+                    // wait for every run even after a failure: none may still be reading the window when it is unmapped
+                    for (Future<Decoded> future : pending) {
+                        Decoded run = await(future);
+                        if (corrupt) continue;
+                        for (Entry entry : run.entries()) sink.accept(entry);
+                        delivered += run.entries().size();
+                        corrupt = run.corrupt();
+                    }
+                    if (corrupt) break;
+                    start += end;
+                } finally {
+                    MappedFiles.unmap(window);
+                }
             }
         }
-        return out;
+        return delivered;
     }
 
-    private Entry readEntry(ByteBuffer buf, ByteBuffer bodyHdr, FileChannel channel) throws IOException {
-        buf.clear();
-        int r = channel.read(buf);
-        if (r < 0) return null;
-        if (r < 4) return null; // partial/torn at end
-        buf.flip();
-        int crc = buf.getInt();
-
-        bodyHdr.clear();
-        if (channel.read(bodyHdr) < bodyHdr.capacity()) return null;
-        bodyHdr.flip();
-
-        long seq = bodyHdr.getLong();
-        byte flag = bodyHdr.get();
-        int klen = bodyHdr.getInt();
-        int vlen = bodyHdr.getInt();
-
-        ByteBuffer bufKeyValue = ByteBuffer.allocate(klen + vlen);
-        if (channel.read(bufKeyValue) < bufKeyValue.capacity()) return null;
-        bufKeyValue.flip();
-
-        byte[] key = new byte[klen];
-        byte[] value = new byte[vlen];
-        bufKeyValue.get(key);
-        bufKeyValue.get(value);
-
-        // verify crc
-        ByteBuffer tmp = ByteBuffer.allocate(8 + 1 + 4 + 4 + klen + vlen).order(ByteOrder.LITTLE_ENDIAN);
-        tmp.putLong(seq).put(flag).putInt(klen).putInt(vlen).put(key).put(value);
-        if (Codec.crc32c(tmp.array()) != crc) return null;   // stop at corruption
-
-        return new Entry(seq, flag, key, vlen == 0 ? null : value);
-    }
-
-    private long lastSeqInFile(Path path) throws IOException {
-        long lastSeq = Long.MIN_VALUE;
-        try (FileChannel rch = FileChannel.open(path, StandardOpenOption.READ)) {
-            ByteBuffer hdr = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-            ByteBuffer bodyHdr = ByteBuffer.allocate(8 + 1 + 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
-            while (true) {
-                Entry entry = readEntry(hdr, bodyHdr, rch);
-                if (entry == null) break;          // stop at torn/corrupt
-                lastSeq = entry.seq();             // advance last known good seq
+    /** Offsets of the complete records in the window, followed by the offset just past the last one. */
+    private static int[] recordBounds(ByteBuffer window) {
+        int[] bounds = new int[1024];
+        int count = 0;
+        int pos = 0;
+        while (true) {
+            long len = recordLength(window, pos);
+            if (len < 0 || pos + len > window.limit()) break;
+            if (count + 1 == bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            bounds[count++] = pos;
+            pos += (int) len;
+        }
+        bounds[count] = pos;
+        return Arrays.copyOf(bounds, count + 1);
+    }
+
+    /** Total length of the record at pos from its header, or -1 if the header is cut off or malformed. */
+    private static long recordLength(ByteBuffer window, int pos) {
+        if (pos + HEADER > window.limit()) return -1;
+        int klen = window.getInt(pos + 13);
+        int vlen = window.getInt(pos + 17);
+        if (klen < 0 || vlen < 0) return -1;
+        return (long) HEADER + klen + vlen;
+    }
+
+    /** CRC-check and decode records [from, to) straight from the mapped bytes. */
+    private static Decoded decode(ByteBuffer window, int[] bounds, int from, int to) {
+        List<Entry> out = new ArrayList<>(to - from);
+        for (int r = from; r < to; r++) {
+            int pos = bounds[r];
+            int bodyLen = bounds[r + 1] - pos - 4;
+            if (Codec.crc32c(window, pos + 4, bodyLen) != window.getInt(pos)) return new Decoded(out, true);
+            long seq = window.getLong(pos + 4);
+            byte flag = window.get(pos + 12);
+            int klen = window.getInt(pos + 13);
+            int vlen = window.getInt(pos + 17);
+            if (flag == FLAG_SEGMENT_END) continue;
+            if (flag == FLAG_BATCH) {
+                expandBatch(seq, window.slice(pos + HEADER + klen, vlen).order(ByteOrder.LITTLE_ENDIAN), out);
+                continue;
             }
+            byte[] key = new byte[klen];
+            window.get(pos + HEADER, key);
+            byte[] value = null;
+            if (flag != Entry.FLAG_DEL) {       // an empty put value is still a value
+                value = new byte[vlen];
+                window.get(pos + HEADER + klen, value);
+            }
+            out.add(new Entry(seq, flag, key, value));
         }
-        return lastSeq;
+        return new Decoded(out, false);
     }
 
-    public void truncateUpTo(long safeSeq) throws IOException {
-        List<Path> segs = new ArrayList<>();
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "segment-*.log")) {
-            for (Path path : ds) segs.add(path);
+    private static void expandBatch(long firstSeq, ByteBuffer payload, List<Entry> out) {
+        int count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            byte flag = payload.get();
+            byte[] key = new byte[payload.getInt()];
+            byte[] value = new byte[payload.getInt()];
+            payload.get(key).get(value);
+            out.add(new Entry(firstSeq + i, flag, key, flag == Entry.FLAG_DEL ? null : value));
         }
-        if (segs.isEmpty()) return;
+    }
 
-        segs.sort(Comparator.comparingLong(this::idOf));
-        // Compute last seq per segment
-        Map<Path, Long> lastSeq = new HashMap<>();
-        for (Path path : segs) {
-            long ls = lastSeqInFile(path);
-            lastSeq.put(path, ls);
-        }
-
-        // Delete segments whose lastSeq <= safeSeq, but keep the newest segment to remain active
-        for (int i = 0; i < segs.size() - 1; i++) {  // exclude newest
-            Path path = segs.get(i);
-            Long lSeq = lastSeq.getOrDefault(path, Long.MIN_VALUE);
-            if (lSeq != Long.MIN_VALUE && lSeq <= safeSeq && Files.exists(path)) {
-                Files.delete(path);
-            }
+    private static Decoded await(Future<Decoded> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during WAL replay", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("WAL replay failed", ex.getCause());
         }
+    }
 
+    /**
+     * Delete every segment, other than the active one, whose records all have seq <= safeSeq. Uses
+     * only the in-memory seq ranges; segments whose range is not known yet are kept.
+     */
+    public void truncateUpTo(long safeSeq) throws IOException {
+        boolean deleted = false;
+        synchronized (lock) {
+            Iterator<Map.Entry<Long, Segment>> it = segments.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Segment> e = it.next();
+                Segment segment = e.getValue();
+                if ((e.getKey() == activeId && channel != null) || e.getKey() > replayedThrough) continue;
+                if (!segment.known || segment.maxSeq > safeSeq) continue;
+                Files.deleteIfExists(segment.path);
+                it.remove();
+                deleted = true;
+            }
+        }
+        if (!deleted) return;
         // fsync dir metadata
         try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
             ch.force(true);
         }
     }
 
+    /** Number of log segments on disk, including the active one. */
+    public int segmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         scheduler.shutdown();
@@ -0,0 +1,47 @@
+package lsmkv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A group of puts and deletes applied atomically: the batch gets a contiguous range of
+ * sequence numbers, is logged as a single WAL record and is inserted into the memtable in one pass.
+ */
+public final class WriteBatch {
+    private final List<Entry> ops = new ArrayList<>();     // seq is assigned when the batch is written
+    private int approxBytes;
+
+    public WriteBatch put(byte[] key, byte[] value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        ops.add(new Entry(0, Entry.FLAG_PUT, key, value));
+        approxBytes += key.length + value.length;
+        return this;
+    }
+
+    public WriteBatch delete(byte[] key) {
+        Objects.requireNonNull(key);
+        ops.add(new Entry(0, Entry.FLAG_DEL, key, null));
+        approxBytes += key.length;
+        return this;
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    /** Key and value bytes in the batch, used to size its WAL record. */
+    int approxBytes() {
+        return approxBytes;
+    }
+
+    /** Operations in insertion order; the i-th one is written with seq firstSeq + i. */
+    List<Entry> ops() {
+        return ops;
+    }
+}
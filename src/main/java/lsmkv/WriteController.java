@@ -0,0 +1,96 @@
+package lsmkv;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write admission control, fed with the flush/compaction backlog after every roll, flush and compaction:
+ *  - stop: writers block while maxImmutables memtables wait for flush or L0 holds l0StopTrigger files,
+ *    and are woken as soon as a flush or compaction clears the condition
+ *  - slowdown: once L0 holds l0SlowdownTrigger files or pending flush bytes exceed their soft limit,
+ *    writes are paced by a token bucket at delayedWriteRateBytes per second
+ *  - time spent stopped and delayed is counted (see {@link WriteStallStats})
+ */
+final class WriteController {
+    private final Options options;
+    private final long pendingFlushSlowdownBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile boolean stopped;
+    private volatile boolean delayed;
+    private boolean closed;             // guarded by lock
+    private long nextFreeNanos;         // token bucket: time at which the next delayed write may proceed; guarded by lock
+    private final LongAdder stopCount = new LongAdder();
+    private final LongAdder stopNanos = new LongAdder();
+    private final LongAdder delayCount = new LongAdder();
+    private final LongAdder delayNanos = new LongAdder();
+
+    WriteController(Options options) {
+        this.options = options;
+        this.pendingFlushSlowdownBytes = options.pendingFlushSlowdownBytes > 0
+                ? options.pendingFlushSlowdownBytes
+                : (long) Math.max(1, options.maxImmutables - 1) * options.memTableMaxBytes;
+    }
+
+    /** Re-evaluate the stall state and wake blocked writers. */
+    void update(int l0Files, int immutables, long pendingFlushBytes) {
+        lock.lock();
+        try {
+            stopped = immutables >= options.maxImmutables || l0Files >= options.l0StopTrigger;
+            delayed = l0Files >= options.l0SlowdownTrigger || pendingFlushBytes >= pendingFlushSlowdownBytes;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Admit a write of the given size, blocking while writes are stopped and pacing them while delayed. */
+    void beforeWrite(long bytes) throws InterruptedIOException {
+        if (!stopped && !delayed) return;
+        lock.lock();
+        try {
+            if (stopped && !closed) {
+                long start = System.nanoTime();
+                stopCount.increment();
+                while (stopped && !closed) changed.await();
+                stopNanos.add(System.nanoTime() - start);
+            }
+            if (delayed && !closed) {
+                long now = System.nanoTime();
+                long cost = bytes * TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.delayedWriteRateBytes);
+                long slot = Math.max(now, nextFreeNanos);
+                nextFreeNanos = slot + cost;
+                long wait = slot - now;
+                if (wait > 0) {
+                    delayCount.increment();
+                    // wake early if the backlog clears while we wait
+                    while (wait > 0 && delayed && !closed) wait = changed.awaitNanos(wait);
+                    delayNanos.add(System.nanoTime() - now);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writes were stalled");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Release any stalled writers; used on close so the final flush is not blocked by admission control. */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    WriteStallStats stats() {
+        return new WriteStallStats(stopCount.sum(), stopNanos.sum(), delayCount.sum(), delayNanos.sum());
+    }
+}
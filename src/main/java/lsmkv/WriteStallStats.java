@@ -0,0 +1,8 @@
+package lsmkv;
+
+/**
+ * Cumulative write-stall counters: how often and for how long writers were hard-stopped
+ * or paced by the slowdown rate limit.
+ */
+public record WriteStallStats(long stopCount, long stopNanos, long delayCount, long delayNanos) {
+}
@@ -0,0 +1,154 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static lsmkv.StoreChecks.*;
+
+public class ArenaMemTableTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("arena");
+        try {
+            sameAsSkipList();
+            store(root.resolve("store"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Writers racing into an arena memtable with small slabs (some values larger than a slab) while
+     * a reader keeps iterating it and looking up keys written before the race; every iteration is
+     * in internal order, every lookup finds its key, and afterwards the arena holds exactly what a
+     * skiplist memtable fed the same entries holds.
+     */
+    private static void sameAsSkipList() throws Exception {
+        MemTable arena = new ArenaMemTable(4096);
+        MemTable skipList = new SkipListMemTable();
+        AtomicLong seq = new AtomicLong();
+        for (int i = 500; i < 600; i++) {       // sorting after every key the writers insert
+            Entry entry = new Entry(seq.incrementAndGet(), Entry.FLAG_PUT, key(i), bytes("anchor-" + i));
+            arena.put(entry);
+            skipList.put(entry);
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        try {
+            Future<Integer> reader = pool.submit(() -> {
+                int passes = 0;
+                for (; !stop.get(); passes++) {
+                    checkOrder(arena, passes % 2 == 1);
+                    for (int i = 500; i < 600; i++) {
+                        Entry found = arena.get(key(i));
+                        check(found != null && Arrays.equals(found.value(), bytes("anchor-" + i)), "lost " + keyString(i) + " during inserts");
+                    }
+                }
+                return passes;
+            });
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                writers.add(pool.submit(() -> {
+                    Random random = new Random(thread);
+                    for (int op = 0; op < 5000; op++) {
+                        Entry entry = entry(seq.incrementAndGet(), random);
+                        arena.put(entry);
+                        skipList.put(entry);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : writers) f.get();
+            stop.set(true);
+            check(reader.get() > 0, "the reader never finished a pass");
+        } finally {
+            stop.set(true);
+            pool.shutdown();
+        }
+
+        check(arena.approxBytes() > 0 && !arena.isEmpty(), "arena reports itself empty");
+        for (boolean reverse : new boolean[]{false, true}) {
+            check(entries(arena, reverse).equals(entries(skipList, reverse)), "arena and skiplist iterate differently (reverse " + reverse + ")");
+        }
+        byte[] out = new byte[16];
+        Random random = new Random(7);
+        for (int i = 0; i < 600; i++) {
+            long snapshot = 1 + random.nextInt((int) seq.get());
+            check(same(arena.get(key(i)), skipList.get(key(i))), "latest " + keyString(i) + " differs");
+            check(same(arena.get(key(i), snapshot), skipList.get(key(i), snapshot)), keyString(i) + " at " + snapshot + " differs");
+            check(arena.get(key(i), out) == skipList.get(key(i), out), "buffered read of " + keyString(i) + " differs");
+        }
+    }
+
+    private static Entry entry(long seq, Random random) {
+        byte[] key = key(random.nextInt(500));
+        if (random.nextInt(6) == 0) return new Entry(seq, Entry.FLAG_DEL, key, null);
+        int size = random.nextInt(50) == 0 ? 5000 + random.nextInt(3000) : random.nextInt(80);
+        byte[] value = new byte[size];
+        random.nextBytes(value);
+        return new Entry(seq, Entry.FLAG_PUT, key, value);
+    }
+
+    private static void checkOrder(MemTable memTable, boolean reverse) throws IOException {
+        Entry previous = null;
+        try (EntryIterator it = memTable.iterator(reverse)) {
+            for (it.seekToFirst(); it.valid(); it.next()) {
+                Entry entry = it.entry();
+                if (previous != null) {
+                    int order = Entry.INTERNAL_ORDER.compare(previous, entry);
+                    check(reverse ? order > 0 : order < 0, (reverse ? "reverse " : "") + "iteration out of order: " + describe(previous) + " then " + describe(entry));
+                }
+                previous = entry;
+            }
+        }
+    }
+
+    private static List<String> entries(MemTable memTable, boolean reverse) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (EntryIterator it = memTable.iterator(reverse)) {
+            for (it.seekToFirst(); it.valid(); it.next()) out.add(describe(it.entry()));
+        }
+        return out;
+    }
+
+    private static boolean same(Entry a, Entry b) {
+        return a == null ? b == null : b != null && describe(a).equals(describe(b));
+    }
+
+    private static String describe(Entry e) {
+        return new String(e.key()) + "@" + e.seq() + "/" + e.flag() + "=" + (e.value() == null ? "-" : Arrays.toString(e.value()));
+    }
+
+    /** A store on arena memtables through flushes, compactions and reopens, against the model. */
+    private static void store(Path root) throws IOException {
+        Options options = small(root);
+        options.arenaMemTable = true;
+        options.arenaSlabBytes = 4096;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(8);
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 1500);
+                randomWrites(kv, model, random, 5000, 1500, 100);
+                kv.deleteRange(key(100 * round), key(100 * round + 50));
+                model.subMap(keyString(100 * round), keyString(100 * round + 50)).clear();
+                verify(kv, model, 1500);
+            }
+        }
+        checkLevels(options);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1500);
+        }
+    }
+}
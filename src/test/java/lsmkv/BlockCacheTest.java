@@ -0,0 +1,167 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static lsmkv.StoreChecks.*;
+
+public class BlockCacheTest {
+    private static final int BLOCK = 1000;
+    private static final int CHARGE = BLOCK + 64;
+
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("block-cache");
+        try {
+            scanResistance();
+            promotion();
+            concurrent();
+            store(root.resolve("store"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** Blocks read twice survive a scan of blocks read once; the scan only churns probation. */
+    private static void scanResistance() {
+        BlockCache cache = new BlockCache(20 * CHARGE, 1);
+        long file = BlockCache.newFileId();
+        for (int i = 0; i < 10; i++) cache.put(file, i * BLOCK, body(file, i * BLOCK));
+        for (int i = 0; i < 10; i++) check(cache.get(file, i * BLOCK) != null, "hot block " + i + " missing");
+        long scan = BlockCache.newFileId();
+        for (int i = 0; i < 200; i++) {
+            check(cache.get(scan, i * BLOCK) == null, "scan block " + i + " cached before it was put");
+            cache.put(scan, i * BLOCK, body(scan, i * BLOCK));
+        }
+        for (int i = 0; i < 10; i++) check(content(cache.get(file, i * BLOCK)) == tag(file, i * BLOCK), "hot block " + i + " lost to a scan");
+        for (int i = 190; i < 200; i++) check(cache.get(scan, i * BLOCK) != null, "recent scan block " + i + " missing");
+        check(cache.get(scan, 0) == null, "the oldest scan block was not evicted");
+
+        BlockCacheStats stats = cache.stats();
+        check(stats.hits() == 30 && stats.misses() == 201, "hits " + stats.hits() + ", misses " + stats.misses());
+        check(stats.evictions() == 190, "evictions " + stats.evictions());
+        check(stats.usedBytes() == 20 * CHARGE && stats.capacityBytes() == 20 * CHARGE, "footprint " + stats);
+
+        cache.put(file, 1 << 20, ByteBuffer.allocate(21 * CHARGE));
+        check(cache.get(file, 1 << 20) == null, "a block larger than the cache was cached");
+        check(cache.stats().usedBytes() == 20 * CHARGE, "an uncacheable block changed the footprint");
+    }
+
+    /** Promoting more than the protected segment holds demotes the coldest blocks instead of dropping them. */
+    private static void promotion() {
+        BlockCache cache = new BlockCache(20 * CHARGE, 1);
+        long file = BlockCache.newFileId();
+        for (int i = 0; i < 20; i++) cache.put(file, i * BLOCK, body(file, i * BLOCK));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20; i++) check(content(cache.get(file, i * BLOCK)) == tag(file, i * BLOCK), "block " + i + " round " + round);
+        }
+        BlockCacheStats stats = cache.stats();
+        check(stats.evictions() == 0 && stats.usedBytes() == 20 * CHARGE, "promotion changed the footprint: " + stats);
+        // same offset, other file: a different block
+        long other = BlockCache.newFileId();
+        check(cache.get(other, 0) == null, "file ids collided");
+        // the protected segment holds 16 of them; a scan takes the 4 demoted ones and nothing more
+        for (int i = 0; i < 10; i++) cache.put(other, i * BLOCK, body(other, i * BLOCK));
+        check(cache.get(other, 9 * BLOCK) != null, "no room in probation for a new block");
+        int survivors = 0;
+        for (int i = 0; i < 20; i++) if (cache.get(file, i * BLOCK) != null) survivors++;
+        check(survivors == 16, survivors + " promoted blocks survived a scan");
+    }
+
+    /** Racing readers and writers over many shards: every hit is the block stored under its key, and the bound holds. */
+    private static void concurrent() throws InterruptedException {
+        BlockCache cache = new BlockCache(256 * CHARGE, 16);
+        long[] files = {BlockCache.newFileId(), BlockCache.newFileId(), BlockCache.newFileId()};
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int op = 0; op < 50_000; op++) {
+                    long file = files[random.nextInt(files.length)];
+                    // skewed: a small hot set and a long tail
+                    long offset = (random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(5)) * (long) BLOCK;
+                    ByteBuffer hit = cache.get(file, offset);
+                    if (hit == null) cache.put(file, offset, body(file, offset));
+                    else if (content(hit) != tag(file, offset)) failure.compareAndSet(null, new AssertionError("wrong block for " + file + "/" + offset));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        BlockCacheStats stats = cache.stats();
+        check(stats.hits() + stats.misses() == 8 * 50_000, "lookups " + stats);
+        check(stats.usedBytes() <= stats.capacityBytes(), "over capacity: " + stats);
+        check(stats.hits() > stats.misses(), "a skewed workload mostly missed: " + stats);
+    }
+
+    /**
+     * A store with a cache far smaller than its tables: skewed reads are served from the cache,
+     * overwrites and compactions never surface stale blocks, and reopens read back the model.
+     */
+    private static void store(Path root) throws IOException {
+        Options options = small(root);
+        options.blockCacheBytes = 24 * 1024;
+        options.blockCacheShards = 2;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(13);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            randomWrites(kv, model, random, 8000, 2000, 100);
+        }
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 2000);
+                BlockCacheStats before = kv.blockCacheStats();
+                for (int op = 0; op < 20_000; op++) {
+                    int i = random.nextInt(20) * 7;
+                    check(Objects.equals(string(kv.read(key(i))), model.get(keyString(i))), "hot read " + keyString(i));
+                }
+                BlockCacheStats after = kv.blockCacheStats();
+                long hits = after.hits() - before.hits();
+                long misses = after.misses() - before.misses();
+                check(hits > 20 * misses, "round " + round + " hot reads: " + hits + " hits, " + misses + " misses");
+                check(after.evictions() > 0 && after.usedBytes() <= after.capacityBytes(), "footprint " + after);
+                // rewrite the hot keys so that their cached blocks go stale; the writes that follow
+                // push the new versions out of the memtable and compact the old ones away
+                for (int i = 0; i < 140; i += 7) {
+                    String v = "round" + round + "-" + i;
+                    kv.put(key(i), bytes(v));
+                    model.put(keyString(i), v);
+                }
+                randomWrites(kv, model, random, 3000, 2000, 100);
+                verify(kv, model, 2000);
+            }
+            checkLevels(options);
+        }
+        Options uncached = small(root);
+        uncached.blockCacheBytes = 0;
+        try (LsmKvStore kv = new LsmKvStore(uncached)) {
+            verify(kv, model, 2000);
+            check(kv.blockCacheStats().hits() == 0 && kv.blockCacheStats().capacityBytes() == 0, "disabled cache " + kv.blockCacheStats());
+        }
+    }
+
+    private static long tag(long file, long offset) {
+        return file * 1_000_003L + offset;
+    }
+
+    private static ByteBuffer body(long file, long offset) {
+        ByteBuffer body = ByteBuffer.allocate(BLOCK);
+        body.putLong(0, tag(file, offset));
+        return body;
+    }
+
+    private static long content(ByteBuffer body) {
+        return body == null ? -1 : body.duplicate().getLong(0);
+    }
+}
@@ -0,0 +1,39 @@
+package lsmkv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class BloomFilterTest {
+    public static void main(String[] args) {
+        int keys = 100_000;
+        int probes = 1_000_000;
+        for (int bitsPerKey : new int[]{6, 10, 16}) {
+            BloomFilter built = new BloomFilter(bitsPerKey, keys);
+            for (int i = 0; i < keys; i++) built.add(key("present", i));
+            BloomFilter bloom = BloomFilter.fromBytes(built.toBytes());   // measure what readers load from the footer
+
+            for (int i = 0; i < keys; i++) {
+                if (!bloom.mightContain(key("present", i))) throw new AssertionError("false negative for key " + i);
+            }
+            int falsePositives = 0;
+            for (int i = 0; i < probes; i++) {
+                if (bloom.mightContain(key("absent", i))) falsePositives++;
+            }
+            double rate = (double) falsePositives / probes;
+            // a classic filter with k = bitsPerKey * ln 2 reaches 0.6185^bitsPerKey; allow 2x for blocking
+            double bound = 2 * Math.pow(0.6185, bitsPerKey);
+            System.out.printf("bits/key=%d fpr=%.4f%% (bound %.4f%%)%n", bitsPerKey, rate * 100, bound * 100);
+            if (rate > bound) throw new AssertionError("false positive rate too high at " + bitsPerKey + " bits/key: " + rate);
+        }
+
+        // keys hashed in place from a buffer must land on the same bits as the array form
+        byte[] key = key("buffer-key-longer-than-eight-bytes", 7);
+        ByteBuffer buf = ByteBuffer.allocateDirect(key.length + 3).position(3).put(key);
+        if (BloomFilter.hash64(buf, 3, key.length) != BloomFilter.hash64(key)) throw new AssertionError("buffer hash differs");
+        System.out.println("OK");
+    }
+
+    private static byte[] key(String prefix, int i) {
+        return (prefix + "/" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
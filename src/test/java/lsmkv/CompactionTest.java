@@ -0,0 +1,78 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class CompactionTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("compaction");
+        try {
+            levels(root.resolve("levels"));
+            tombstones(root.resolve("tombstones"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Enough writes to push data through every level: after each reopen the tree is well formed,
+     * deeper levels hold data, L0 stays bounded and every read path agrees with the model.
+     */
+    private static void levels(Path root) throws IOException {
+        Options options = small(root);
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(2);
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 2000);
+                randomWrites(kv, model, random, 8000, 2000, 64);
+                verify(kv, model, 2000);
+            }
+            List<Integer> counts = checkLevels(options);
+            check(counts.get(0) <= options.l0StopTrigger, "L0 grew past the stop trigger: " + counts);
+            check(counts.get(2) + counts.get(3) > 0, "nothing compacted below L1: " + counts);
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 2000);
+        }
+    }
+
+    /**
+     * Keys deleted after they reached the deepest levels stay deleted through every compaction the
+     * later writes trigger, and through a reopen.
+     */
+    private static void tombstones(Path root) throws IOException {
+        Options options = small(root);
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(3);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 0; i < 1500; i++) {
+                String v = value(i, random, 64);
+                kv.put(key(i), bytes(v));
+                model.put(keyString(i), v);
+            }
+            for (int i = 0; i < 1500; i += 3) {
+                kv.delete(key(i));
+                model.remove(keyString(i));
+            }
+            // rewrite a disjoint key range so compactions keep running over the deleted keys' files
+            for (int op = 0; op < 6000; op++) {
+                int i = 1500 + random.nextInt(500);
+                String v = value(op, random, 64);
+                kv.put(key(i), bytes(v));
+                model.put(keyString(i), v);
+            }
+            verify(kv, model, 2000);
+        }
+        checkLevels(options);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 2000);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class CompressionTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("compression");
+        try {
+            codecs();
+            Path dir = root.resolve("tables");
+            Files.createDirectories(dir);
+            tableSizes(dir);
+            corruptBlock(dir);
+            mixedCodecs(root.resolve("store"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** Both codecs round-trip inputs at the edges of the LZ format, from an offset into a larger array. */
+    private static void codecs() {
+        Random random = new Random(9);
+        List<byte[]> inputs = new ArrayList<>();
+        inputs.add(new byte[0]);
+        inputs.add(new byte[]{42});
+        inputs.add(bytes("abc"));                       // shorter than a match
+        inputs.add(new byte[16]);                       // a match overlapping itself at offset 1
+        inputs.add(bytes("0123456789abcde".repeat(2))); // exactly 15 literals, the first continued length
+        inputs.add(bytes("0123456789abcdefghi".repeat(2)));   // a match of exactly 15 + 4, the first continued length
+        inputs.add(bytes("abcd".repeat(300)));
+        byte[] zeros = new byte[100_000];               // lengths far past one length byte
+        inputs.add(zeros);
+        byte[] noise = new byte[20_000];
+        random.nextBytes(noise);
+        inputs.add(noise);
+        byte[] far = new byte[140_000];                 // the same noise again past the longest match offset
+        System.arraycopy(noise, 0, far, 0, noise.length);
+        System.arraycopy(noise, 0, far, 100_000, noise.length);
+        inputs.add(far);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) text.append("key-").append(random.nextInt(500)).append("=value-").append(i % 37).append(';');
+        inputs.add(bytes(text.toString()));
+
+        for (Compression codec : new Compression[]{Compression.DEFLATE, Compression.LZ}) {
+            for (byte[] input : inputs) {
+                byte[] padded = new byte[input.length + 11];
+                System.arraycopy(input, 0, padded, 7, input.length);
+                byte[] compressed = codec.compress(padded, 7, input.length);
+                // decoded from the middle of a buffer, as a block body is
+                byte[] framed = new byte[compressed.length + 5];
+                System.arraycopy(compressed, 0, framed, 5, compressed.length);
+                byte[] out = new byte[input.length];
+                codec.decompress(ByteBuffer.wrap(framed, 5, compressed.length).slice(), out);
+                check(Arrays.equals(out, input), codec + " did not round-trip " + input.length + " bytes");
+            }
+            check(codec.compress(zeros, 0, zeros.length).length < 2000, codec + " barely compressed a run of zeros");
+        }
+    }
+
+    /**
+     * The same records under each codec: compressible values shrink (deflate most), and blocks
+     * that would not shrink are stored as they are, so incompressible values cost nothing extra.
+     */
+    private static void tableSizes(Path dir) throws IOException {
+        for (boolean compressible : new boolean[]{true, false}) {
+            Random random = new Random(10);
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                byte[] value;
+                if (compressible) {
+                    value = bytes(("{\"id\":" + i + ",\"name\":\"user-" + i % 50 + "\",\"flags\":[1,2,3]}").repeat(2));
+                } else {
+                    value = new byte[100];
+                    random.nextBytes(value);
+                }
+                entries.add(new Entry(i + 1, Entry.FLAG_PUT, key(i), value));
+            }
+            long[] sizes = new long[Compression.values().length];
+            for (Compression codec : Compression.values()) {
+                String name = "sst-" + (compressible ? 1 : 2) + codec.ordinal() + ".sst";
+                try (SstWriter writer = new SstWriter(dir, name, 4096, 16, codec, 10)) {
+                    for (Entry entry : entries) writer.add(entry);
+                    writer.finish();
+                    writer.install();
+                }
+                sizes[codec.ordinal()] = Files.size(dir.resolve(name));
+                SstReader reader = new SstReader(dir.resolve(name));
+                for (int i = 0; i < 2000; i += 13) {
+                    check(Arrays.equals(reader.get(key(i)).orElseThrow().value(), entries.get(i).value()), codec + ": wrong value for " + keyString(i));
+                }
+            }
+            long none = sizes[Compression.NONE.ordinal()];
+            long lz = sizes[Compression.LZ.ordinal()];
+            long deflate = sizes[Compression.DEFLATE.ordinal()];
+            if (compressible) {
+                check(deflate < lz && lz < none * 2 / 3, "sizes: none " + none + ", lz " + lz + ", deflate " + deflate);
+            } else {
+                check(lz == none && deflate == none, "incompressible blocks were stored compressed: none " + none + ", lz " + lz + ", deflate " + deflate);
+            }
+        }
+    }
+
+    /** A flipped byte inside a compressed block is reported as corruption, never decoded into wrong values. */
+    private static void corruptBlock(Path dir) throws IOException {
+        for (Compression codec : new Compression[]{Compression.DEFLATE, Compression.LZ}) {
+            String name = "sst-3" + codec.ordinal() + ".sst";
+            try (SstWriter writer = new SstWriter(dir, name, 4096, 16, codec, 10)) {
+                for (int i = 0; i < 500; i++) writer.add(new Entry(i + 1, Entry.FLAG_PUT, key(i), bytes("value-" + i % 10 + "-" + "z".repeat(40))));
+                writer.finish();
+                writer.install();
+            }
+            Path path = dir.resolve(name);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                channel.read(b, 20);
+                b.put(0, (byte) (b.get(0) ^ 0x5a)).rewind();
+                channel.write(b, 20);
+            }
+            SstReader reader = new SstReader(path);
+            try {
+                reader.get(key(0));
+                throw new AssertionError(codec + ": a corrupt block was read");
+            } catch (IOException expected) {
+                check(expected.getMessage().contains("corrupt block"), codec + ": unexpected failure " + expected);
+            }
+        }
+    }
+
+    /**
+     * A store whose codec changes between opens (deflate for bottommost files throughout): files of
+     * every codec end up side by side and all read back through compactions and reopens.
+     */
+    private static void mixedCodecs(Path root) throws IOException {
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(11);
+        for (Compression codec : new Compression[]{Compression.NONE, Compression.LZ, Compression.DEFLATE, Compression.LZ}) {
+            Options options = small(root);
+            options.compression = codec;
+            options.bottommostCompression = Compression.DEFLATE;
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 1500);
+                for (int op = 0; op < 4000; op++) {
+                    int i = random.nextInt(1500);
+                    if (random.nextInt(6) == 0) {
+                        kv.delete(key(i));
+                        model.remove(keyString(i));
+                    } else {
+                        String v = "v" + op + "-" + "abcdefgh".repeat(1 + random.nextInt(12));    // compressible
+                        kv.put(key(i), bytes(v));
+                        model.put(keyString(i), v);
+                    }
+                }
+                verify(kv, model, 1500);
+            }
+            checkLevels(options);
+        }
+        try (LsmKvStore kv = new LsmKvStore(small(root))) {
+            verify(kv, model, 1500);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static lsmkv.StoreChecks.*;
+
+public class FilePruningTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("file-pruning");
+        try {
+            levelSearch(root.resolve("levels"));
+            seqRange(root.resolve("seqs"));
+            store(root.resolve("store"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * The binary searches over a sorted level pick exactly the files a linear scan of key ranges
+     * would: ranges in the gaps between files, on their bounds, and before or past the whole level.
+     */
+    private static void levelSearch(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        TableCache tables = new TableCache(100, false);
+        List<SstReader> l1 = new ArrayList<>();
+        for (int f = 0; f < 40; f++) l1.add(table(dir, tables, "sst-" + (100 + f) + ".sst", 20 * f, 20 * f + 9, 1));
+        Random random = new Random(21);
+        List<SstReader> l0 = new ArrayList<>();
+        for (int f = 0; f < 6; f++) {
+            int from = random.nextInt(800);
+            l0.add(table(dir, tables, "sst-" + (200 - f) + ".sst", from, from + random.nextInt(100), 1));
+        }
+        Version version = new Version(List.of(l0, l1, List.of()), Map.of());
+        List<byte[]> probes = new ArrayList<>(List.of(new byte[0], bytes("a"), bytes("z")));
+        for (int i = 0; i < 820; i++) {
+            probes.add(key(i));
+            probes.add(bytes(keyString(i) + "!"));    // between two keys
+        }
+        for (byte[] key : probes) {
+            SstReader expected = null;
+            for (SstReader reader : l1) if (reader.mayContain(key)) expected = reader;
+            check(version.fileFor(1, key) == expected, "fileFor " + new String(key, StandardCharsets.UTF_8));
+            check(version.fileFor(2, key) == null, "fileFor on an empty level");
+        }
+        for (int trial = 0; trial < 3000; trial++) {
+            byte[] a = probes.get(random.nextInt(probes.size()));
+            byte[] b = probes.get(random.nextInt(probes.size()));
+            if (ByteArrays.compare(a, b) > 0) {
+                byte[] t = a;
+                a = b;
+                b = t;
+            }
+            for (int level = 0; level < 2; level++) {
+                List<SstReader> expected = new ArrayList<>();
+                for (SstReader reader : level == 0 ? l0 : l1) {
+                    if (ByteArrays.compare(reader.smallestKey(), b) <= 0 && ByteArrays.compare(reader.largestKey(), a) >= 0) expected.add(reader);
+                }
+                check(version.overlapping(level, a, b).equals(expected), "L" + level + " overlapping [" + new String(a, StandardCharsets.UTF_8)
+                        + ", " + new String(b, StandardCharsets.UTF_8) + "]");
+            }
+        }
+        tables.close();
+    }
+
+    /**
+     * A file whose seqs all come after a snapshot is skipped by a read at that snapshot without
+     * being opened: here it has been deleted, so touching it would fail.
+     */
+    private static void seqRange(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        TableCache tables = new TableCache(1, false);
+        SstReader newer = table(dir, tables, "sst-2.sst", 0, 99, 1000);
+        check(newer.minSeq() == 1000 && newer.maxSeq() == 1099, "seq range [" + newer.minSeq() + ", " + newer.maxSeq() + "]");
+        SstReader older = table(dir, tables, "sst-1.sst", 0, 99, 1);     // evicts the newer file from the cache
+        Files.delete(dir.resolve("sst-2.sst"));
+        check(newer.get(key(50), 999).isEmpty(), "a file newer than the snapshot had the key");
+        check(newer.get(key(500), Long.MAX_VALUE).isEmpty(), "a key past the file's range was found");
+        check(string(older.get(key(50), 999).map(Entry::value)).equals("v50"), "the older file lost its key");
+        try {
+            newer.get(key(50), 1000);
+            throw new AssertionError("a read at the newer file's seqs did not touch it");
+        } catch (IOException expected) {
+            // the file is gone: it had to be opened
+        }
+        tables.close();
+    }
+
+    /**
+     * Time-ordered keys, so files barely overlap. With every table outside one file's key range moved
+     * away, reads and scans inside that range still succeed, so nothing else was opened; reads outside
+     * every file's range open nothing at all. The store then reopens with its files back and reads the model.
+     */
+    private static void store(Path root) throws Exception {
+        Options options = small(root);
+        options.blockCacheBytes = 0;
+        options.maxOpenFiles = 1;       // any other table a read touches has to be opened again
+        TreeMap<String, String> model = new TreeMap<>();
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 0; i < 6000; i++) {
+                kv.put(key(i), bytes("v" + i));
+                model.put(keyString(i), "v" + i);
+            }
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            settle(options.sstDir);     // the replayed tail of the log is flushed and compacted too
+        }
+        // from here on nothing compacts, so the layout read below is the one every trial sees
+        options = new Options(root, 8 * 1024, 3, 1 << 20, 10, 1024, 10, 2, 100);
+        options.numLevels = 4;
+        options.levelBaseBytes = 1 << 20;
+        options.blockCacheBytes = 0;
+        options.maxOpenFiles = 1;
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            // one L0 file at the far left, which reads and scans further right must skip
+            for (int i = 0; i < 40; i++) {
+                kv.put(key(i), bytes("w" + i));
+                model.put(keyString(i), "w" + i);
+            }
+        }
+        check(checkLevels(options).get(0) > 0, "no L0 file");
+        Manifest manifest = new Manifest(options.rootDir, options.manifestLogBytes);
+        List<FileMeta> files = new ArrayList<>();
+        for (List<FileMeta> level : manifest.load().levels()) files.addAll(level);
+        manifest.close();
+        check(files.size() > 5, "only " + files.size() + " files");
+
+        // files clear of the left L0 file, so that it is one of those moved away
+        List<FileMeta> candidates = files.stream().filter(f -> ByteArrays.compare(f.smallestKey(), key(39)) > 0).toList();
+        check(!candidates.isEmpty(), "every file overlaps the left L0 file");
+        Path aside = root.resolve("aside");
+        Files.createDirectories(aside);
+        Random random = new Random(22);
+        for (int trial = 0; trial < 6; trial++) {
+            FileMeta file = candidates.get(random.nextInt(candidates.size()));
+            int first = index(file.smallestKey());
+            int last = index(file.largestKey());
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                check(Objects.equals(string(kv.read(key(first))), model.get(keyString(first))), "read " + keyString(first));    // now the open table
+                for (FileMeta other : files) {
+                    boolean overlaps = ByteArrays.compare(other.smallestKey(), file.largestKey()) <= 0
+                            && ByteArrays.compare(other.largestKey(), file.smallestKey()) >= 0;
+                    if (!overlaps) Files.move(options.sstDir.resolve(other.name()), aside.resolve(other.name()));
+                }
+                try {
+                    byte[] buf = new byte[16];
+                    for (int n = 0; n < 50; n++) {
+                        int i = first + random.nextInt(last - first + 1);
+                        check(Objects.equals(string(kv.read(key(i))), model.get(keyString(i))), file.name() + ": read " + keyString(i));
+                        check(kv.read(key(i), buf) == model.get(keyString(i)).length(), file.name() + ": read into buffer " + keyString(i));
+                    }
+                    check(kv.read(bytes("a")).isEmpty() && kv.read(key(9000)).isEmpty(), "keys outside every file were found");
+                    check(kv.read(bytes("a"), buf) == -1 && kv.read(key(9000), buf) == -1, "keys outside every file were found in a buffer");
+                    byte[] end = bytes(keyString(last) + "!");
+                    for (boolean reverse : new boolean[]{false, true}) {
+                        ScanOptions scan = new ScanOptions(file.smallestKey(), end, reverse);
+                        List<String> expected = entries(new TreeMap<>(model.subMap(keyString(first), true, keyString(last), true)), reverse);
+                        check(scan(kv, scan, null).equals(expected), file.name() + ": scan " + (reverse ? "backward" : "forward"));
+                    }
+                } finally {
+                    try (Stream<Path> moved = Files.list(aside)) {
+                        for (Path path : moved.toList()) Files.move(path, options.sstDir.resolve(path.getFileName()));
+                    }
+                }
+            }
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 6000);
+        }
+        checkLevels(options);
+    }
+
+    /** A table of keys [from, to] with seqs counting up from firstSeq, value "v" + key number. */
+    private static SstReader table(Path dir, TableCache tables, String name, int from, int to, long firstSeq) throws IOException {
+        try (SstWriter writer = new SstWriter(dir, name, 1024, 16, Compression.NONE, 10)) {
+            for (int i = from; i <= to; i++) writer.add(new Entry(firstSeq + i - from, Entry.FLAG_PUT, key(i), bytes("v" + i)));
+            writer.finish();
+            writer.install();
+        }
+        return new SstReader(dir.resolve(name), null, tables);
+    }
+
+    private static int index(byte[] key) {
+        return Integer.parseInt(new String(key, StandardCharsets.UTF_8).substring(1));
+    }
+
+    /** Wait until background compactions leave the directory alone for a second. */
+    private static void settle(Path dir) throws Exception {
+        List<Path> last = List.of();
+        for (int stable = 0; stable < 20; ) {
+            Thread.sleep(50);
+            List<Path> files;
+            try (Stream<Path> paths = Files.list(dir)) {
+                files = paths.sorted().toList();
+            }
+            stable = files.equals(last) ? stable + 1 : 0;
+            last = files;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static lsmkv.StoreChecks.*;
+
+public class GroupCommitTest {
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("group-commit");
+        try {
+            concurrentAppends(root.resolve("wal"), false);
+            concurrentAppends(root.resolve("wal-sync"), true);
+            acknowledgedWritesSurvive(root, false);
+            acknowledgedWritesSurvive(root, true);
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** Records appended from many threads at once all replay, exactly once and in each thread's order. */
+    private static void concurrentAppends(Path dir, boolean syncOnCommit) throws Exception {
+        Files.createDirectories(dir);
+        int perThread = 3000;
+        Wal writer = new Wal(dir, 1 << 20, 10, syncOnCommit, 64 * 1024);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        long seq = (long) thread * perThread + i + 1;
+                        writer.append(new Entry(seq, Entry.FLAG_PUT, bytes("t" + thread + "-" + i), bytes("value-" + seq + "x".repeat(i % 50))));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) f.get();
+        } finally {
+            pool.shutdown();
+            writer.close();
+        }
+
+        int[] next = new int[THREADS];
+        Wal wal = new Wal(dir, 1 << 20, 10, syncOnCommit, 64 * 1024);
+        try {
+            wal.replay(2, entry -> {
+                int thread = (int) ((entry.seq() - 1) / perThread);
+                int i = (int) ((entry.seq() - 1) % perThread);
+                check(i == next[thread]++, "thread " + thread + " record " + i + " replayed out of order or twice");
+                check(new String(entry.key()).equals("t" + thread + "-" + i), "record " + entry.seq() + " has the wrong key");
+            });
+        } finally {
+            wal.close();
+        }
+        for (int t = 0; t < THREADS; t++) check(next[t] == perThread, "thread " + t + " lost records: " + next[t]);
+    }
+
+    /**
+     * Writers racing through one store; the directory is then copied without closing the store, as
+     * a process crash would leave it. Every acknowledged write is in the copy, which reopens to the
+     * model, as does the store itself after a clean close.
+     */
+    private static void acknowledgedWritesSurvive(Path root, boolean syncOnCommit) throws Exception {
+        String name = syncOnCommit ? "store-sync" : "store";
+        Options options = new Options(root.resolve(name), 64 * 1024 * 1024, 3, 1 << 20, 10, 1024, 10, 2, 4);
+        options.walSyncOnCommit = syncOnCommit;
+        Map<String, String> acknowledged = new ConcurrentSkipListMap<>();
+        Options copy = options.withRootDir(root.resolve(name + "-crashed"));
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            try {
+                List<Future<?>> done = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    int thread = t;
+                    done.add(pool.submit(() -> {
+                        Random random = new Random(thread);
+                        for (int op = 0; op < 2000; op++) {
+                            int i = thread * 250 + random.nextInt(250);     // each thread owns its keys
+                            String v = value(op, random, 64);
+                            kv.put(key(i), bytes(v));
+                            acknowledged.put(keyString(i), v);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : done) f.get();
+            } finally {
+                pool.shutdown();
+            }
+            copyTree(options.rootDir, copy.rootDir);     // memtables are 64 MB: nothing has been flushed yet
+        }
+        TreeMap<String, String> model = new TreeMap<>(acknowledged);
+        for (Options reopened : List.of(copy, options)) {
+            try (LsmKvStore kv = new LsmKvStore(reopened)) {
+                verify(kv, model, THREADS * 250);
+            }
+        }
+    }
+}
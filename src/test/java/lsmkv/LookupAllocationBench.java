@@ -0,0 +1,81 @@
+package lsmkv;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Heap bytes allocated per point lookup served from the block cache (or the mapping), for
+ * read(key) and for read(key, valueOut). Args: [keys] [lookups]; defaults 20000 and 400000.
+ * Needs a JVM whose ThreadMXBean reports per-thread allocation (HotSpot does). The tree is left to
+ * finish compacting first: a lookup that has to probe two tables allocates twice as much.
+ */
+public class LookupAllocationBench {
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 400_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Path root = Files.createTempDirectory("lsmkv-lookup-alloc-");
+        try {
+            Options options = new Options(root, 256 * 1024, 3, 1 << 20, 10, 4096, 10, 2, 4);
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                byte[] value = "v".repeat(100).getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < keys; i++) kv.put(key(i), value);
+            }
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                settle(options.sstDir);
+            }
+            for (boolean mmap : new boolean[]{false, true}) {
+                options.mmapReads = mmap;
+                try (LsmKvStore kv = new LsmKvStore(options)) {
+                    for (int pass = 0; pass < 2; pass++) {     // the first pass fills the cache and warms the JIT
+                        byte[][] probes = new byte[lookups][];
+                        Random random = new Random(14);
+                        for (int i = 0; i < lookups; i++) probes[i] = key(random.nextInt(keys));
+                        long before = threads.getCurrentThreadAllocatedBytes();
+                        for (byte[] key : probes) {
+                            if (kv.read(key).isEmpty()) throw new AssertionError("missing key");
+                        }
+                        long middle = threads.getCurrentThreadAllocatedBytes();
+                        byte[] out = new byte[128];
+                        for (byte[] key : probes) {
+                            if (kv.read(key, out) < 0) throw new AssertionError("missing key");
+                        }
+                        long after = threads.getCurrentThreadAllocatedBytes();
+                        if (pass == 1) {
+                            System.out.printf("%s: read(key) %.0f bytes/lookup, read(key, valueOut) %.0f bytes/lookup%n",
+                                    mmap ? "mmap" : "block cache", (double) (middle - before) / lookups, (double) (after - middle) / lookups);
+                        }
+                    }
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // waits until the set of table files has stopped changing for a second
+    private static void settle(Path dir) throws Exception {
+        List<Path> last = List.of();
+        for (int stable = 0; stable < 20; ) {
+            Thread.sleep(50);
+            List<Path> files;
+            try (Stream<Path> paths = Files.list(dir)) {
+                files = paths.sorted().toList();
+            }
+            stable = files.equals(last) ? stable + 1 : 0;
+            last = files;
+        }
+    }
+
+    private static byte[] key(int i) {
+        return String.format("k%08d", i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,287 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class ManifestTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("manifest");
+        try {
+            editLog(root.resolve("log"));
+            tornTail(root.resolve("torn"));
+            textManifest(root.resolve("text"));
+            store(root.resolve("store"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** The live set a manifest should fold to, kept by applying the same edits in the same order. */
+    private static final class Model {
+        final List<TreeMap<String, FileMeta>> levels = new ArrayList<>();
+        final Map<String, ValueLogFileMeta> valueLogs = new TreeMap<>();
+        long lastSeq;
+
+        void apply(VersionEdit edit) {
+            if (edit.lastSeq() > lastSeq) lastSeq = edit.lastSeq();
+            for (String name : edit.deleted()) {
+                for (TreeMap<String, FileMeta> level : levels) level.remove(name);
+                valueLogs.remove(name);
+            }
+            for (VersionEdit.Added added : edit.added()) {
+                while (levels.size() <= added.level()) levels.add(new TreeMap<>());
+                levels.get(added.level()).put(added.file().name(), added.file());
+            }
+            for (ValueLogFileMeta file : edit.addedValueLogs()) valueLogs.put(file.name(), file);
+            edit.garbage().forEach((name, bytes) -> valueLogs.computeIfPresent(name,
+                    (n, file) -> new ValueLogFileMeta(n, file.valueBytes(), file.garbageBytes() + bytes)));
+        }
+
+        List<String> files() {
+            List<String> out = new ArrayList<>();
+            for (TreeMap<String, FileMeta> level : levels) out.addAll(level.keySet());
+            return out;
+        }
+
+        Model copy() {
+            Model copy = new Model();
+            for (TreeMap<String, FileMeta> level : levels) copy.levels.add(new TreeMap<>(level));
+            copy.valueLogs.putAll(valueLogs);
+            copy.lastSeq = lastSeq;
+            return copy;
+        }
+
+        String describe() {
+            StringBuilder out = new StringBuilder("lastSeq=" + lastSeq);
+            int last = levels.size();
+            while (last > 0 && levels.get(last - 1).isEmpty()) last--;
+            for (int level = 0; level < last; level++) {
+                out.append("\nL").append(level).append(':');
+                for (FileMeta file : levels.get(level).values()) out.append(' ').append(describe(file));
+            }
+            for (ValueLogFileMeta file : valueLogs.values()) out.append("\n").append(file);
+            return out.toString();
+        }
+
+        static String describe(Manifest.State state) {
+            Model model = new Model();
+            model.lastSeq = state.lastSeq();
+            for (List<FileMeta> files : state.levels()) {
+                TreeMap<String, FileMeta> level = new TreeMap<>();
+                for (FileMeta file : files) check(level.put(file.name(), file) == null, "listed twice: " + file.name());
+                model.levels.add(level);
+            }
+            for (ValueLogFileMeta file : state.valueLogs()) model.valueLogs.put(file.name(), file);
+            return model.describe();
+        }
+
+        private static String describe(FileMeta file) {
+            return file.name() + "[" + file.fileSize() + "," + new String(file.smallestKey()) + ".." + new String(file.largestKey())
+                    + ",#" + file.minSeq() + "-" + file.maxSeq() + "," + file.entries() + "]";
+        }
+    }
+
+    /** A random flush- or compaction-shaped edit against the model's live set. */
+    private static VersionEdit randomEdit(Model model, Random random, int[] nextFile) {
+        VersionEdit edit = new VersionEdit();
+        // parallel flushes may commit out of order: an older lastSeq must not move it back
+        if (random.nextInt(4) != 0) edit.setLastSeq(Math.max(0, model.lastSeq + random.nextInt(1000) - 200));
+        List<String> live = model.files();
+        int adds = random.nextInt(4);
+        for (int i = 0; i < adds; i++) edit.addFile(random.nextInt(4), newFile(random, "sst-" + nextFile[0]++ + ".sst"));
+        // compactions keep the live set around 40 files
+        int deletes = live.size() > 40 ? adds + 1 : random.nextInt(3);
+        for (int i = 0; i < deletes && !live.isEmpty(); i++) {
+            String name = live.get(random.nextInt(live.size()));
+            edit.deleteFile(name);
+            // sometimes a move: deletes apply before adds, so the same name comes back one level down
+            if (random.nextInt(3) == 0) edit.addFile(1 + random.nextInt(3), newFile(random, name));
+        }
+        List<String> logs = new ArrayList<>(model.valueLogs.keySet());
+        if (random.nextInt(5) == 0) edit.addValueLog(new ValueLogFileMeta("vlog-" + nextFile[0]++ + ".vlog", 1 + random.nextInt(1 << 20), 0));
+        if (!logs.isEmpty() && random.nextInt(3) == 0) edit.addGarbage(logs.get(random.nextInt(logs.size())), 1 + random.nextInt(5000));
+        if (!logs.isEmpty() && random.nextInt(10) == 0) edit.deleteFile(logs.get(random.nextInt(logs.size())));
+        return edit;
+    }
+
+    private static FileMeta newFile(Random random, String name) {
+        int a = random.nextInt(5000);
+        int b = a + random.nextInt(500);
+        long minSeq = random.nextInt(1 << 20);
+        return new FileMeta(name, 1 + random.nextInt(1 << 26), key(a), key(b), minSeq, minSeq + random.nextInt(100_000), 1 + random.nextInt(10_000));
+    }
+
+    /**
+     * Thousands of edits through a manifest with a small log limit: every reload folds to the
+     * model, and periodic snapshots keep the file proportional to the live set, not the history.
+     */
+    private static void editLog(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        long maxLogBytes = 2048;
+        Model model = new Model();
+        Random random = new Random(18);
+        int[] nextFile = {1};
+        long appended = 0;
+        Manifest manifest = new Manifest(dir, maxLogBytes);
+        manifest.load();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 300; i++) {
+                VersionEdit edit = randomEdit(model, random, nextFile);
+                appended += edit.encode().length + 8;
+                manifest.apply(edit);
+                model.apply(edit);
+            }
+            if (round % 3 == 0) {
+                // reload from what is on disk while the writer still has the log open
+                Manifest reader = new Manifest(dir, maxLogBytes);
+                check(Model.describe(reader.load()).equals(model.describe()), "round " + round + ": reader disagrees");
+                reader.close();
+            }
+            manifest.close();
+            manifest = new Manifest(dir, maxLogBytes);
+            String loaded = Model.describe(manifest.load());
+            check(loaded.equals(model.describe()), "round " + round + ": loaded\n" + loaded + "\nwant\n" + model.describe());
+
+            VersionEdit snapshot = new VersionEdit().setLastSeq(model.lastSeq);
+            for (int level = 0; level < model.levels.size(); level++) {
+                for (FileMeta file : model.levels.get(level).values()) snapshot.addFile(level, file);
+            }
+            for (ValueLogFileMeta file : model.valueLogs.values()) snapshot.addValueLog(file);
+            long snapshotBytes = 16 + snapshot.encode().length;
+            long size = Files.size(dir.resolve("MANIFEST"));
+            check(size <= 2 * snapshotBytes + maxLogBytes + 1024, "round " + round + ": manifest is " + size + " bytes for a " + snapshotBytes + "-byte live set");
+        }
+        manifest.close();
+        check(appended > 10 * Files.size(dir.resolve("MANIFEST")), "the log was never compacted: " + appended + " bytes appended");
+        check(!Files.exists(dir.resolve("MANIFEST.tmp")), "a snapshot left its temp file behind");
+    }
+
+    /**
+     * A manifest cut anywhere inside a record, or with a flipped byte in one, loads the edits before
+     * it; the next edit replaces the damaged tail instead of following it.
+     */
+    private static void tornTail(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path path = dir.resolve("MANIFEST");
+        Random random = new Random(19);
+        int[] nextFile = {1};
+        List<Model> models = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        Manifest manifest = new Manifest(dir, Long.MAX_VALUE);
+        manifest.load();
+        models.add(new Model());
+        sizes.add(Files.size(path));
+        for (int i = 0; i < 40; i++) {
+            Model model = models.get(models.size() - 1).copy();
+            VersionEdit edit = randomEdit(model, random, nextFile);
+            manifest.apply(edit);
+            model.apply(edit);
+            models.add(model);
+            sizes.add(Files.size(path));
+        }
+        manifest.close();
+        byte[] full = Files.readAllBytes(path);
+        Path crash = dir.resolve("crash");
+        Files.createDirectories(crash);
+        for (int trial = 0; trial < 60; trial++) {
+            int k = 1 + random.nextInt(40);
+            long cut;
+            boolean flip = trial % 3 == 2;
+            int survivors;
+            if (trial % 3 == 0) {
+                cut = sizes.get(k);                                                     // exactly at a record boundary
+                survivors = k;
+            } else {
+                cut = sizes.get(k - 1) + random.nextInt((int) (sizes.get(k) - sizes.get(k - 1)));   // inside record k
+                survivors = k - 1;
+            }
+            byte[] image = flip ? full.clone() : Arrays.copyOf(full, (int) cut);
+            if (flip) {
+                int at = (int) (sizes.get(k - 1) + random.nextInt((int) (sizes.get(k) - sizes.get(k - 1))));
+                image[at] ^= 0x20;
+                survivors = k - 1;
+            }
+            Files.write(crash.resolve("MANIFEST"), image);
+            Manifest reopened = new Manifest(crash, Long.MAX_VALUE);
+            String loaded = Model.describe(reopened.load());
+            check(loaded.equals(models.get(survivors).describe()), "trial " + trial + ": cut at " + cut + (flip ? " (flipped)" : "") + " loaded\n" + loaded);
+            // the next edit lands right after the last intact record
+            Model next = models.get(survivors).copy();
+            VersionEdit edit = randomEdit(next, random, nextFile);
+            reopened.apply(edit);
+            next.apply(edit);
+            reopened.close();
+            check(Files.size(crash.resolve("MANIFEST")) == sizes.get(survivors) + edit.encode().length + 8, "trial " + trial + ": the damaged tail was kept");
+            Manifest again = new Manifest(crash, Long.MAX_VALUE);
+            check(Model.describe(again.load()).equals(next.describe()), "trial " + trial + ": edit after a torn tail was lost");
+            again.close();
+        }
+    }
+
+    /** A text manifest from before the edit log loads with unknown metadata and is rewritten in the binary format. */
+    private static void textManifest(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path path = dir.resolve("MANIFEST");
+        Files.writeString(path, "lastSeq=42\nsst=sst-1.sst\nL0=sst-2.sst\nL2=sst-3.sst\n");
+        Manifest manifest = new Manifest(dir);
+        String loaded = Model.describe(manifest.load());
+        check(ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN).getLong(0) == Manifest.MAGIC, "text manifest was not rewritten");
+        String unknown = ",..,#0-" + Long.MAX_VALUE + ",-1]";   // no size, keys or seq range
+        check(loaded.equals("lastSeq=42\nL0: sst-1.sst[-1" + unknown + " sst-2.sst[-1" + unknown + "\nL1:\nL2: sst-3.sst[-1" + unknown),
+                "loaded\n" + loaded);
+        // files of unknown metadata can still move between levels
+        manifest.apply(new VersionEdit().deleteFile("sst-1.sst").addFile(1, FileMeta.unknown("sst-1.sst")));
+        manifest.close();
+        manifest = new Manifest(dir);
+        loaded = Model.describe(manifest.load());
+        manifest.close();
+        check(loaded.equals("lastSeq=42\nL0: sst-2.sst[-1" + unknown + "\nL1: sst-1.sst[-1" + unknown + "\nL2: sst-3.sst[-1" + unknown),
+                "after a move\n" + loaded);
+    }
+
+    /**
+     * A store reopened many times with a tiny manifest log: the manifest always lists exactly the
+     * files on disk with their key ranges, stays small, and the store reads back the model.
+     */
+    private static void store(Path root) throws IOException {
+        Options options = small(root);
+        options.manifestLogBytes = 1024;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(20);
+        for (int round = 0; round < 6; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 1500);
+                randomWrites(kv, model, random, 4000, 1500, 80);
+            }
+            List<Integer> counts = checkLevels(options);
+            long size = Files.size(options.rootDir.resolve("MANIFEST"));
+            int files = counts.stream().mapToInt(Integer::intValue).sum();
+            check(size < 2048 + 200L * files * 2, "round " + round + ": manifest is " + size + " bytes for " + files + " files");
+        }
+        // reopening without writes must not grow the manifest without bound
+        long before = Files.size(options.rootDir.resolve("MANIFEST"));
+        for (int i = 0; i < 20; i++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                check(Objects.equals(string(kv.read(key(i))), model.get(keyString(i))), "read " + keyString(i));
+            }
+        }
+        check(Files.size(options.rootDir.resolve("MANIFEST")) <= Math.max(before, 1024) * 2 + 1024, "manifest grew across idle reopens");
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1500);
+        }
+        checkLevels(options);
+    }
+}
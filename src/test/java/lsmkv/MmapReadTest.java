@@ -0,0 +1,225 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static lsmkv.StoreChecks.*;
+
+public class MmapReadTest {
+    private static final Path MAPS = Path.of("/proc/self/maps");
+
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("mmap-read");
+        try {
+            for (Compression codec : new Compression[]{Compression.NONE, Compression.LZ}) {
+                store(root.resolve("store-" + codec), codec);
+            }
+            readersRaceCompaction(root.resolve("race"));
+            corruptBlock(root.resolve("corrupt"));
+            check(mappings(root).isEmpty(), "mappings left after every store closed: " + mappings(root));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * A mapped store with few open files, so tables are mapped and released over and over: it reads
+     * back the model through every read path, across reopens, with or without compressed blocks.
+     */
+    private static void store(Path root, Compression codec) throws IOException {
+        Options options = small(root);
+        options.mmapReads = true;
+        options.maxOpenFiles = 3;
+        options.compression = codec;
+        options.bottommostCompression = codec;
+        options.blockCacheBytes = codec == Compression.NONE ? 0 : 16 * 1024;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(14);
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 1500);
+                randomWrites(kv, model, random, 5000, 1500, 120);
+                int from = random.nextInt(1400);
+                kv.deleteRange(key(from), key(from + 40));
+                model.subMap(keyString(from), keyString(from + 40)).clear();
+                verify(kv, model, 1500);
+            }
+            checkLevels(options);
+            check(mappings(root).isEmpty(), codec + ": mappings left after close: " + mappings(root));
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1500);
+        }
+    }
+
+    /**
+     * Point readers and scans run while one writer forces flushes and compactions that delete the
+     * files they read. Reads must never see a version older than one they have already seen, scans
+     * must stay ordered, and once compaction settles no deleted file may still be mapped.
+     */
+    private static void readersRaceCompaction(Path root) throws Exception {
+        Options options = small(root);
+        options.mmapReads = true;
+        options.compression = Compression.NONE;
+        options.bottommostCompression = Compression.NONE;
+        options.blockCacheBytes = 0;
+        options.maxOpenFiles = 8;
+        int keys = 2000;
+        long[] latest = new long[keys];
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 0; i < keys; i++) kv.put(key(i), versioned(i, 0));
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                boolean scanner = t == 3;
+                threads.add(new Thread(() -> {
+                    try {
+                        if (scanner) scanUntil(kv, done, keys);
+                        else readUntil(kv, done, keys);
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }));
+            }
+            for (Thread thread : threads) thread.start();
+            Random random = new Random(15);
+            for (long version = 1; version <= 40_000; version++) {
+                int i = random.nextInt(keys);
+                kv.put(key(i), versioned(i, version));
+                latest[i] = version;
+            }
+            done.set(true);
+            for (Thread thread : threads) thread.join();
+            if (failure.get() != null) throw new AssertionError(failure.get());
+
+            // the readers are gone: once compaction settles, every removed file must be unmapped
+            long deadline = System.currentTimeMillis() + 20_000;
+            List<String> deleted = deletedMappings(options.sstDir);
+            while (!deleted.isEmpty() && System.currentTimeMillis() < deadline) {
+                sleep(50);
+                deleted = deletedMappings(options.sstDir);
+            }
+            check(deleted.isEmpty(), "removed files still mapped: " + deleted);
+        }
+        check(mappings(root).isEmpty(), "mappings left after close: " + mappings(root));
+        checkLevels(options);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 0; i < keys; i++) {
+                byte[] value = kv.read(key(i)).orElseThrow();
+                check(version(value, i) == latest[i], "after reopen " + keyString(i) + " at version " + version(value, i) + ", want " + latest[i]);
+            }
+        }
+    }
+
+    private static void readUntil(LsmKvStore kv, AtomicBoolean done, int keys) throws IOException {
+        long[] seen = new long[keys];
+        byte[] buf = new byte[64];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!done.get()) {
+            int i = random.nextInt(keys);
+            long v;
+            if (random.nextBoolean()) {
+                v = version(kv.read(key(i)).orElseThrow(), i);
+            } else {
+                int n = kv.read(key(i), buf);
+                check(n > 0 && n <= buf.length, "read into buffer " + keyString(i) + " length " + n);
+                v = version(Arrays.copyOf(buf, n), i);
+            }
+            check(v >= seen[i], keyString(i) + " went back from version " + seen[i] + " to " + v);
+            seen[i] = v;
+        }
+    }
+
+    private static void scanUntil(LsmKvStore kv, AtomicBoolean done, int keys) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!done.get()) {
+            int from = random.nextInt(keys);
+            int expected = from;
+            try (KvIterator it = kv.iterator(new ScanOptions(key(from), null, false))) {
+                for (int n = 0; n < 300 && it.valid(); n++, it.next()) {
+                    check(new String(it.key(), StandardCharsets.UTF_8).equals(keyString(expected)), "scan from " + keyString(from) + " skipped to " + new String(it.key(), StandardCharsets.UTF_8));
+                    version(it.value(), expected);
+                    expected++;
+                }
+            }
+            check(expected == Math.min(keys, from + 300), "scan from " + keyString(from) + " ended at " + keyString(expected));
+        }
+    }
+
+    /** A flipped byte in a mapped block is reported on every read, not only the one that first touched it. */
+    private static void corruptBlock(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        try (SstWriter writer = new SstWriter(dir, "sst-1.sst", 1024, 16, Compression.NONE, 10)) {
+            for (int i = 0; i < 300; i++) writer.add(new Entry(i + 1, Entry.FLAG_PUT, key(i), bytes("value-" + i)));
+            writer.finish();
+            writer.install();
+        }
+        Path path = dir.resolve("sst-1.sst");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 30);
+            b.put(0, (byte) (b.get(0) ^ 0x5a)).rewind();
+            channel.write(b, 30);
+        }
+        TableCache tables = new TableCache(4, true);
+        SstReader reader = new SstReader(path, null, tables);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                reader.get(key(0));
+                throw new AssertionError("a corrupt mapped block was read, attempt " + attempt);
+            } catch (IOException expected) {
+                check(expected.getMessage().contains("corrupt block"), "unexpected failure " + expected);
+            }
+        }
+        check(string(reader.get(key(299)).map(Entry::value)).equals("value-299"), "an intact block of the same file was not readable");
+        tables.close();
+    }
+
+    private static byte[] versioned(int i, long version) {
+        return bytes(keyString(i) + "|" + version);
+    }
+
+    private static long version(byte[] value, int i) {
+        String s = new String(value, StandardCharsets.UTF_8);
+        check(s.startsWith(keyString(i) + "|"), "value " + s + " under " + keyString(i));
+        return Long.parseLong(s.substring(s.indexOf('|') + 1));
+    }
+
+    /** Mappings of files under dir in this process; empty where the platform does not list them. */
+    private static List<String> mappings(Path dir) throws IOException {
+        if (!Files.isReadable(MAPS)) return List.of();
+        String prefix = dir.toAbsolutePath().toString();
+        List<String> out = new ArrayList<>();
+        for (String line : Files.readAllLines(MAPS)) if (line.contains(prefix)) out.add(line.substring(line.indexOf('/')));
+        return out;
+    }
+
+    private static List<String> deletedMappings(Path dir) throws IOException {
+        List<String> out = new ArrayList<>();
+        for (String mapping : mappings(dir)) if (mapping.endsWith("(deleted)")) out.add(mapping);
+        return out;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package lsmkv;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * multiGet against one read per key, for batches of random and of clustered keys, with the block
+ * cache off and then warm. Args: [keys] [batch] [batches]; defaults 200000, 200 and 500.
+ */
+public class MultiGetBench {
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int batches = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        Path root = Files.createTempDirectory("lsmkv-multiget-");
+        try {
+            Options options = new Options(root, 4 * 1024 * 1024, 3, 1 << 20, 10, 4096, 10, 2, 4);
+            options.targetFileSizeBytes = 2 * 1024 * 1024;
+            options.levelBaseBytes = 8 * 1024 * 1024;
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                byte[] value = "v".repeat(100).getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < keys; i++) kv.put(key(i), value);
+            }
+            for (boolean cached : new boolean[]{false, true}) {
+                options.blockCacheBytes = cached ? 256L * 1024 * 1024 : 0;
+                try (LsmKvStore kv = new LsmKvStore(options)) {
+                    if (cached) run(kv, keys, batch, batches, false, null);    // warm the cache
+                    for (boolean clustered : new boolean[]{false, true}) {
+                        run(kv, keys, batch, batches, clustered, null);        // JIT warm-up
+                        run(kv, keys, batch, batches, clustered, (cached ? "warm cache" : "no cache") + (clustered ? ", clustered" : ", random"));
+                    }
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void run(KvStore kv, int keys, int batch, int batches, boolean clustered, String label) throws Exception {
+        Random random = new Random(22);
+        long reads = 0;
+        long multi = 0;
+        for (int b = 0; b < batches; b++) {
+            List<byte[]> wanted = new ArrayList<>(batch);
+            int first = random.nextInt(keys - batch);
+            for (int i = 0; i < batch; i++) wanted.add(key(clustered ? first + i : random.nextInt(keys)));
+            long start = System.nanoTime();
+            for (byte[] key : wanted) {
+                if (kv.read(key).isEmpty()) throw new AssertionError("missing key");
+            }
+            long middle = System.nanoTime();
+            for (Optional<byte[]> v : kv.multiGet(wanted)) {
+                if (v.isEmpty()) throw new AssertionError("missing key");
+            }
+            long end = System.nanoTime();
+            reads += middle - start;
+            multi += end - middle;
+        }
+        if (label != null) {
+            System.out.printf("%-22s reads %6.0f us/batch, multiGet %6.0f us/batch, %.2fx%n",
+                    label, reads / 1e3 / batches, multi / 1e3 / batches, (double) reads / multi);
+        }
+    }
+
+    private static byte[] key(int i) {
+        return String.format("k%08d", i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,193 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class MultiGetTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("multi-get");
+        try {
+            for (String mode : new String[]{"plain", "cached", "mapped"}) {
+                for (Compression codec : new Compression[]{Compression.NONE, Compression.LZ}) {
+                    if (mode.equals("mapped") && codec != Compression.NONE) continue;
+                    table(root.resolve("table-" + mode + "-" + codec), mode, codec);
+                }
+            }
+            for (String mode : new String[]{"plain", "value-log"}) store(root.resolve("store-" + mode), mode);
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * One file's multiGet agrees with a get per key at every snapshot: keys before, between and past
+     * the file's keys, repeated keys, runs of adjacent blocks longer than one coalesced read, and
+     * blocks already resident in the cache mixed with ones that are not.
+     */
+    private static void table(Path dir, String mode, Compression codec) throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(22);
+        int keys = 12_000;
+        // keys 0, 2, 4, ...: each with one to three versions, seq 1 .. about 3 * keys / 2
+        try (SstWriter writer = new SstWriter(dir, "sst-1.sst", 1024, 16, codec, 10)) {
+            long seq = 1;
+            for (int i = 0; i < keys; i += 2) {
+                int versions = 1 + random.nextInt(3);
+                List<Entry> entries = new ArrayList<>();
+                for (int v = 0; v < versions; v++) {
+                    entries.add(random.nextInt(8) == 0 ? new Entry(seq++, Entry.FLAG_DEL, key(i), null)
+                            : new Entry(seq++, Entry.FLAG_PUT, key(i), bytes(value((int) seq, random, 200))));
+                }
+                Collections.reverse(entries);
+                for (Entry e : entries) writer.add(e);
+            }
+            writer.finish();
+            writer.install();
+        }
+        check(Files.size(dir.resolve("sst-1.sst")) > 1 << 20 || codec != Compression.NONE, "the table fits one coalesced read");
+        BlockCache cache = mode.equals("cached") ? new BlockCache(256 * 1024, 4) : null;
+        TableCache tables = new TableCache(4, mode.equals("mapped"));
+        SstReader reader = new SstReader(dir.resolve("sst-1.sst"), cache, tables);
+        for (int trial = 0; trial < 40; trial++) {
+            int n = trial == 0 ? keys + 2 : random.nextInt(400);
+            List<byte[]> batch = new ArrayList<>();
+            if (trial == 0) {
+                for (int i = -1; i <= keys; i++) batch.add(i < 0 ? new byte[0] : key(i));     // every block, in one run
+            } else {
+                int from = random.nextInt(keys);
+                for (int k = 0; k < n; k++) batch.add(random.nextInt(10) == 0 ? bytes("z") : key(from + random.nextInt(Math.max(1, keys - from) / 4 + 1)));
+                if (random.nextBoolean()) batch.add(key(from));     // a repeat
+            }
+            batch.sort(ByteArrays.LEX);
+            byte[][] sorted = batch.toArray(new byte[0][]);
+            long snapshot = trial % 3 == 0 ? Long.MAX_VALUE : random.nextInt(keys * 2);
+            Entry[] found = reader.multiGet(sorted, snapshot);
+            check(found.length == sorted.length, mode + ": " + found.length + " results for " + sorted.length + " keys");
+            for (int k = 0; k < sorted.length; k++) {
+                Entry single = reader.get(sorted[k], snapshot).orElse(null);
+                check(describe(found[k]).equals(describe(single)), mode + " " + codec + ": " + new String(sorted[k], StandardCharsets.UTF_8)
+                        + " at " + snapshot + " got " + describe(found[k]) + ", get has " + describe(single));
+            }
+        }
+        check(Arrays.stream(reader.multiGet(new byte[][]{key(2)}, 0)).allMatch(Objects::isNull), "a snapshot before the file saw it");
+        check(reader.multiGet(new byte[0][], Long.MAX_VALUE).length == 0, "an empty batch");
+        if (cache != null) {
+            // blocks a multiGet read are cached for the next one
+            byte[][] hot = {key(100), key(4000), key(9000)};
+            reader.multiGet(hot, Long.MAX_VALUE);
+            long hits = cache.stats().hits();
+            reader.multiGet(hot, Long.MAX_VALUE);
+            check(cache.stats().hits() == hits + 3, "a repeated multiGet missed the cache: " + cache.stats());
+
+            // each block is loaded once however many of the keys it serves
+            BlockCache cold = new BlockCache(256 * 1024, 4);
+            SstReader fresh = new SstReader(dir.resolve("sst-1.sst"), cold, tables);
+            fresh.multiGet(new byte[][]{key(0), key(2), key(4), key(6), key(9000), key(9002), key(9004)}, Long.MAX_VALUE);
+            check(cold.stats().misses() == 2 && cold.stats().hits() == 0, "two blocks looked up as " + cold.stats());
+        }
+        tables.close();
+    }
+
+    /**
+     * A store's multiGet in any key order, with repeats, absent keys and an empty batch, agrees with
+     * the model and with single reads: values in memtables, every level, under range tombstones and
+     * in the value log, now and at a snapshot taken rounds earlier, across reopens.
+     */
+    private static void store(Path root, String mode) throws IOException {
+        Options options = small(root);
+        if (mode.equals("value-log")) options.valueLogMinBytes = 64;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(23);
+        for (int round = 0; round < 4; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                check(kv.multiGet(List.of()).isEmpty(), "an empty batch");
+                randomBatches(kv, model, random, mode);
+                randomWrites(kv, model, random, 4000, 2000, 150);
+                Snapshot snapshot = kv.getSnapshot();
+                TreeMap<String, String> then = new TreeMap<>(model);
+                int from = random.nextInt(1900);
+                kv.deleteRange(key(from), key(from + 60));
+                model.subMap(keyString(from), keyString(from + 60)).clear();
+                randomBatches(kv, model, random, mode);     // the tombstone is still in the memtable
+                randomWrites(kv, model, random, 3000, 2000, 150);
+                // some of it is still in memtables, the rest spread across the levels
+                randomBatches(kv, model, random, mode);
+                snapshotBatches(kv, snapshot, then, random, mode);
+                kv.releaseSnapshot(snapshot);
+                try {
+                    kv.multiGet(Arrays.asList(key(1), null));
+                    throw new AssertionError("a null key was accepted");
+                } catch (NullPointerException expected) {
+                    // expected
+                }
+            }
+            checkLevels(options);
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            randomBatches(kv, model, random, mode);
+            verify(kv, model, 2000);
+        }
+    }
+
+    private static void randomBatches(LsmKvStore kv, TreeMap<String, String> model, Random random, String mode) throws IOException {
+        for (int trial = 0; trial < 30; trial++) {
+            List<byte[]> batch = batch(random);
+            List<Optional<byte[]>> values = kv.multiGet(batch);
+            check(values.size() == batch.size(), mode + ": " + values.size() + " results for " + batch.size() + " keys");
+            for (int k = 0; k < batch.size(); k++) {
+                String key = new String(batch.get(k), StandardCharsets.UTF_8);
+                String got = string(values.get(k));
+                check(Objects.equals(got, model.get(key)) && Objects.equals(got, string(kv.read(batch.get(k)))),
+                        mode + ": multiGet " + key + " got " + got + ", want " + model.get(key));
+            }
+        }
+    }
+
+    private static void snapshotBatches(LsmKvStore kv, Snapshot snapshot, TreeMap<String, String> model, Random random, String mode)
+            throws IOException {
+        for (int trial = 0; trial < 30; trial++) {
+            List<byte[]> batch = batch(random);
+            List<Optional<byte[]>> values = kv.multiGet(batch, snapshot);
+            for (int k = 0; k < batch.size(); k++) {
+                String key = new String(batch.get(k), StandardCharsets.UTF_8);
+                String got = string(values.get(k));
+                check(Objects.equals(got, model.get(key)) && Objects.equals(got, string(kv.read(batch.get(k), snapshot))),
+                        mode + ": snapshot multiGet " + key + " got " + got + ", want " + model.get(key));
+            }
+        }
+    }
+
+    /** Up to 300 keys in random order: clustered or spread, some repeated, some outside the key space. */
+    private static List<byte[]> batch(Random random) {
+        int n = random.nextInt(300);
+        int from = random.nextInt(2000);
+        int spread = random.nextBoolean() ? 50 : 2000;
+        List<byte[]> batch = new ArrayList<>();
+        for (int k = 0; k < n; k++) {
+            int pick = random.nextInt(20);
+            if (pick == 0) batch.add(bytes("a"));
+            else if (pick == 1) batch.add(key(5000 + k));
+            else if (pick == 2 && !batch.isEmpty()) batch.add(batch.get(random.nextInt(batch.size())).clone());
+            else batch.add(key((from + random.nextInt(spread)) % 2000));
+        }
+        return batch;
+    }
+
+    private static String describe(Entry e) {
+        if (e == null) return "absent";
+        return e.seq() + (e.flag() == Entry.FLAG_DEL ? " deleted" : "=" + new String(e.value(), StandardCharsets.UTF_8));
+    }
+}
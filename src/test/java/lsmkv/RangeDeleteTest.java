@@ -0,0 +1,106 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class RangeDeleteTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("range-delete");
+        try {
+            fragments();
+            store(root);
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** A list grown one tombstone at a time answers like one built from all of them, and like a scan of them. */
+    private static void fragments() {
+        Random random = new Random(25);
+        RangeTombstoneList grown = new RangeTombstoneList();
+        List<RangeTombstone> added = new ArrayList<>();
+        for (int n = 1; n <= 300; n++) {
+            int start = random.nextInt(200);
+            RangeTombstone t = new RangeTombstone(key(start), key(start + 1 + random.nextInt(n % 10 == 0 ? 100 : 10)), random.nextInt(1000));
+            grown.add(t);
+            added.add(t);
+            if (n % 30 != 0) continue;
+            RangeTombstoneList built = new RangeTombstoneList(added);
+            check(grown.tombstones().size() == added.size(), "tombstones lost: " + grown.tombstones().size());
+            for (int k = 0; k < 310; k++) {
+                long snapshot = random.nextInt(1100);
+                long expected = -1;
+                for (RangeTombstone u : added) {
+                    if (u.seq() <= snapshot && u.seq() > expected && u.contains(key(k))) expected = u.seq();
+                }
+                check(grown.coveringSeq(key(k), snapshot) == expected, "grown coveringSeq " + keyString(k) + " @" + snapshot);
+                check(built.coveringSeq(key(k), snapshot) == expected, "built coveringSeq " + keyString(k) + " @" + snapshot);
+
+                int last = k + random.nextInt(20);
+                long after = random.nextInt(500);
+                boolean all = true;
+                for (int j = k; j <= last && all; j++) {
+                    long seq = -1;
+                    for (RangeTombstone u : added) {
+                        if (u.seq() <= snapshot && u.seq() > seq && u.contains(key(j))) seq = u.seq();
+                    }
+                    all = seq > after;
+                }
+                // keys between key(j) and key(j + 1) are covered whenever both ends are: bounds are always key(i)
+                check(grown.coversAll(key(k), key(last), after, snapshot) == all, "grown coversAll " + k + ".." + last);
+                check(built.coversAll(key(k), key(last), after, snapshot) == all, "built coversAll " + k + ".." + last);
+            }
+        }
+    }
+
+    /**
+     * Overlapping range deletes mixed with puts and deletes, read back as they move from the
+     * memtable through flushes, compactions and a reopen, and at a snapshot taken part way.
+     */
+    private static void store(Path root) throws IOException {
+        Options options = small(root);
+        Random random = new Random(2025);
+        TreeMap<String, String> model = new TreeMap<>();
+        TreeMap<String, String> before;
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            rounds(kv, model, random, 10);
+            before = new TreeMap<>(model);
+            Snapshot snapshot = kv.getSnapshot();
+            try {
+                rounds(kv, model, random, 10);
+                verify(kv, snapshot, before, 1000);
+                verify(kv, model, 1000);
+            } finally {
+                kv.releaseSnapshot(snapshot);
+            }
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1000);
+            rounds(kv, model, random, 5);
+            verify(kv, model, 1000);
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1000);
+        }
+    }
+
+    // each round: enough writes to flush a few memtables, then some range deletes over them
+    private static void rounds(KvStore kv, TreeMap<String, String> model, Random random, int rounds) throws IOException {
+        for (int round = 0; round < rounds; round++) {
+            randomWrites(kv, model, random, 400, 1000, 64);
+            for (int n = random.nextInt(4); n >= 0; n--) {
+                int start = random.nextInt(1000);
+                int end = Math.min(1000, start + 1 + random.nextInt(random.nextBoolean() ? 20 : 200));
+                kv.deleteRange(key(start), key(end));
+                model.subMap(keyString(start), keyString(end)).clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static lsmkv.StoreChecks.*;
+
+public class RateLimiterTest {
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("rate-limiter");
+        try {
+            pacing();
+            userNeverWaits();
+            flushBeforeCompaction();
+            interrupted();
+            autoTune();
+            charged(root.resolve("charged"));
+            sharedByStores(root.resolve("stores"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** A fixed rate paces background bytes to it: the time taken is what the bytes past the first request cost. */
+    private static void pacing() {
+        RateLimiter limiter = new RateLimiter(MB, false);
+        long chunk = 64 * 1024;
+        int chunks = 8;
+        long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) limiter.request(chunk, RateLimiter.Priority.FLUSH);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // an empty bucket starts the first request waiting, then each overdraft is paid off before the next
+        double expected = (double) chunk * (chunks - 1) / MB;
+        check(seconds >= expected * 0.9 && seconds < expected * 3 + 0.5, "took " + seconds + "s, want about " + expected + "s");
+        RateLimiterStats stats = limiter.stats();
+        check(stats.flushBytes() == chunk * chunks && stats.compactionBytes() == 0 && stats.userBytes() == 0, "counters " + stats);
+        check(stats.flushWaitNanos() >= expected * 0.9e9 && stats.compactionWaitNanos() == 0, "wait time " + stats);
+        check(stats.bytesPerSec() == MB && stats.maxBytesPerSec() == MB, "rates " + stats);
+        limiter.request(0, RateLimiter.Priority.COMPACTION);
+        check(limiter.stats().compactionBytes() == 0, "an empty request was counted");
+
+        // an idle limiter banks at most 100 ms of budget, so a burst after a pause is still paced
+        sleep(500);
+        start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) limiter.request(chunk, RateLimiter.Priority.COMPACTION);
+        seconds = (System.nanoTime() - start) / 1e9;
+        expected = (double) chunk * (chunks - 1) / MB - 0.1;
+        check(seconds >= expected * 0.9, "a burst after a pause took " + seconds + "s, want about " + expected + "s");
+    }
+
+    /** Foreground bytes are only counted, however far past the rate they run. */
+    private static void userNeverWaits() {
+        RateLimiter limiter = new RateLimiter(1024, false);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) limiter.request(MB, RateLimiter.Priority.USER);
+        check(System.nanoTime() - start < 1_000_000_000L, "USER requests waited");
+        RateLimiterStats stats = limiter.stats();
+        check(stats.userBytes() == 10_000 * MB && stats.flushBytes() == 0 && stats.flushWaitNanos() == 0, "counters " + stats);
+    }
+
+    /**
+     * A waiting compaction gives way to a flush that arrives after it, once the bucket refills for
+     * both. Without the priority the two race for the refill, so the contest is repeated.
+     */
+    private static void flushBeforeCompaction() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(100 * 1024, false);
+        for (int round = 0; round < 8; round++) {
+            limiter.request(15 * 1024, RateLimiter.Priority.FLUSH);    // overdrawn: about 150 ms of debt
+            AtomicInteger order = new AtomicInteger();
+            int[] finished = new int[2];
+            Thread flush = new Thread(() -> {
+                limiter.request(1, RateLimiter.Priority.FLUSH);
+                finished[0] = order.incrementAndGet();
+            });
+            Thread compaction = new Thread(() -> {
+                limiter.request(1, RateLimiter.Priority.COMPACTION);
+                finished[1] = order.incrementAndGet();
+            });
+            compaction.start();
+            awaitWaiting(compaction);
+            flush.start();
+            awaitWaiting(flush);
+            flush.join();
+            compaction.join();
+            check(finished[0] == 1 && finished[1] == 2, "round " + round + ": flush finished " + finished[0] + ", compaction " + finished[1]);
+        }
+        RateLimiterStats stats = limiter.stats();
+        check(stats.flushBytes() == 8 * (15 * 1024 + 1) && stats.compactionBytes() == 8 && stats.compactionWaitNanos() > 0, "counters " + stats);
+    }
+
+    /** An interrupted wait is granted at once and keeps the interrupt for the caller. */
+    private static void interrupted() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1024, false);
+        limiter.request(10 * 1024, RateLimiter.Priority.FLUSH);    // about 10 s of debt
+        AtomicReference<Boolean> flag = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            limiter.request(1, RateLimiter.Priority.COMPACTION);
+            flag.set(Thread.currentThread().isInterrupted());
+        });
+        long start = System.nanoTime();
+        waiter.start();
+        awaitWaiting(waiter);
+        waiter.interrupt();
+        waiter.join();
+        check(System.nanoTime() - start < 5_000_000_000L, "an interrupted request kept waiting");
+        check(Boolean.TRUE.equals(flag.get()), "the interrupt was swallowed");
+        try {
+            new RateLimiter(0);
+            throw new AssertionError("a zero rate was accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /** The auto-tuned rate follows the most indebted store, and falls back to the minimum once stores are forgotten. */
+    private static void autoTune() {
+        RateLimiter limiter = new RateLimiter(20 * MB);
+        long min = MB;
+        check(limiter.bytesPerSec() == min, "starting rate " + limiter.bytesPerSec());
+        Object a = new Object();
+        Object b = new Object();
+        limiter.reportCompactionDebt(a, 0.5);
+        check(limiter.bytesPerSec() == min + (20 * MB - min) / 2, "half a level of debt: " + limiter.bytesPerSec());
+        limiter.reportCompactionDebt(b, 3.0);
+        check(limiter.bytesPerSec() == 20 * MB, "past a level of debt: " + limiter.bytesPerSec());
+        limiter.reportCompactionDebt(b, 0.25);
+        check(limiter.bytesPerSec() == min + (20 * MB - min) / 2, "the larger report wins: " + limiter.bytesPerSec());
+        limiter.forget(a);
+        check(limiter.bytesPerSec() == min + (long) ((20 * MB - min) * 0.25), "after forgetting one store: " + limiter.bytesPerSec());
+        limiter.forget(b);
+        check(limiter.bytesPerSec() == min, "after forgetting both: " + limiter.bytesPerSec());
+
+        RateLimiter fixed = new RateLimiter(20 * MB, false);
+        fixed.reportCompactionDebt(a, 0.0);
+        check(fixed.bytesPerSec() == 20 * MB, "a fixed rate moved: " + fixed.bytesPerSec());
+    }
+
+    /**
+     * A table write is charged byte for byte at the writer's priority; a compaction read is charged
+     * each data block it loads, so a scan from the middle costs about half a full one.
+     */
+    private static void charged(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        RateLimiter limiter = new RateLimiter(1L << 40, false);
+        for (RateLimiter.Priority priority : new RateLimiter.Priority[]{RateLimiter.Priority.FLUSH, RateLimiter.Priority.COMPACTION}) {
+            try (SstWriter writer = new SstWriter(dir, "sst-" + priority + ".sst", 1024, 16, Compression.LZ, 10, limiter, priority)) {
+                for (int i = 0; i < 2000; i++) writer.add(new Entry(i + 1, Entry.FLAG_PUT, key(i), bytes("value-" + i)));
+                writer.finish();
+                writer.install();
+            }
+        }
+        long size = Files.size(dir.resolve("sst-FLUSH.sst"));
+        RateLimiterStats stats = limiter.stats();
+        check(stats.flushBytes() == size && stats.compactionBytes() == Files.size(dir.resolve("sst-COMPACTION.sst")), "table writes charged " + stats);
+
+        SstReader reader = new SstReader(dir.resolve("sst-FLUSH.sst"));
+        long full = scanCharge(reader, limiter, null);
+        long half = scanCharge(reader, limiter, key(1000));
+        check(full > size * 3 / 4 && full < size, "a full scan of " + size + " bytes charged " + full);
+        check(Math.abs(half - full / 2) < 2048, "a scan from the middle charged " + half + " of " + full);
+        check(limiter.stats().flushBytes() == size, "reads were charged as flushes");
+    }
+
+    /** Compaction bytes a scan from key (the start where null) to the end is charged. */
+    private static long scanCharge(SstReader reader, RateLimiter limiter, byte[] from) throws IOException {
+        long before = limiter.stats().compactionBytes();
+        try (EntryIterator it = reader.iterator(false, false, limiter)) {
+            if (from == null) it.seekToFirst();
+            else it.seek(from);
+            while (it.valid()) it.next();
+        }
+        return limiter.stats().compactionBytes() - before;
+    }
+
+    /**
+     * Two stores sharing one auto-tuned limiter: each reports the same counters, foreground bytes are
+     * exactly what was written, background bytes include both flushes and compactions, and the
+     * stores read back their models across reopens. Once both close the limiter is back at its minimum.
+     */
+    private static void sharedByStores(Path root) throws IOException {
+        RateLimiter limiter = new RateLimiter(64 * MB);
+        List<Options> options = new ArrayList<>();
+        List<TreeMap<String, String>> models = new ArrayList<>();
+        for (int s = 0; s < 2; s++) {
+            Options o = small(root.resolve("store-" + s));
+            o.rateLimiter = limiter;
+            options.add(o);
+            models.add(new TreeMap<>());
+        }
+        Random random = new Random(20);
+        long userBytes = 0;
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore first = new LsmKvStore(options.get(0)); LsmKvStore second = new LsmKvStore(options.get(1))) {
+                List<LsmKvStore> stores = List.of(first, second);
+                for (int s = 0; s < 2; s++) verify(stores.get(s), models.get(s), 1500);
+                for (int op = 0; op < 8000; op++) {
+                    int s = random.nextInt(2);
+                    int i = random.nextInt(1500);
+                    if (random.nextInt(5) == 0) {
+                        stores.get(s).delete(key(i));
+                        models.get(s).remove(keyString(i));
+                        userBytes += key(i).length;
+                    } else {
+                        String v = value(op, random, 100);
+                        stores.get(s).put(key(i), bytes(v));
+                        models.get(s).put(keyString(i), v);
+                        userBytes += key(i).length + v.length();
+                    }
+                }
+                WriteBatch batch = new WriteBatch();
+                for (int i = 0; i < 10; i++) {
+                    String v = "batch" + round + "-" + i;
+                    batch.put(key(i), bytes(v));
+                    models.get(0).put(keyString(i), v);
+                    userBytes += key(i).length + v.length();
+                }
+                first.write(batch);
+                for (int s = 0; s < 2; s++) verify(stores.get(s), models.get(s), 1500);
+                RateLimiterStats stats = first.rateLimiterStats();
+                check(stats.userBytes() == userBytes, "user bytes " + stats.userBytes() + ", written " + userBytes);
+                check(second.rateLimiterStats().userBytes() == userBytes && second.rateLimiterStats().maxBytesPerSec() == 64 * MB, "the stores disagree: " + second.rateLimiterStats());
+            }
+            for (Options o : options) checkLevels(o);
+        }
+        RateLimiterStats stats = limiter.stats();
+        check(stats.flushBytes() > 0 && stats.compactionBytes() > 0, "background bytes " + stats);
+        check(limiter.bytesPerSec() == 64 * MB / 20, "rate after every store closed: " + limiter.bytesPerSec());
+        for (int s = 0; s < 2; s++) {
+            try (LsmKvStore kv = new LsmKvStore(options.get(s))) {
+                verify(kv, models.get(s), 1500);
+            }
+        }
+        Options unlimited = small(root.resolve("store-0"));
+        try (LsmKvStore kv = new LsmKvStore(unlimited)) {
+            verify(kv, models.get(0), 1500);
+            check(kv.rateLimiterStats().equals(new RateLimiterStats(0, 0, 0, 0, 0, 0, 0)), "stats without a limiter: " + kv.rateLimiterStats());
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING && thread.getState() != Thread.State.WAITING) {
+            check(thread.isAlive(), thread.getName() + " finished without waiting");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static lsmkv.StoreChecks.*;
+
+public class ShardedKvStoreTest {
+    private static final int KEYS = 2000;
+    private static final List<byte[]> SPLITS = List.of(key(500), key(1000), key(1500));
+
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("sharded");
+        try {
+            store(root.resolve("hash"), false);
+            store(root.resolve("range"), true);
+            rangeRouting(root.resolve("routing"));
+            layout(root.resolve("layout"));
+            concurrentWriters(root.resolve("concurrent"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Every write path through the sharded store (puts, deletes, range deletes, batches spanning
+     * shards) reads back as the model through every read path, at a snapshot pinning all shards,
+     * and across reopens; each shard holds exactly the keys routed to it.
+     */
+    private static void store(Path root, boolean ranged) throws IOException {
+        Options options = small(root);
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(ranged ? 24 : 25);
+        for (int round = 0; round < 3; round++) {
+            int[] routing = new int[KEYS];
+            try (ShardedKvStore kv = open(options, ranged)) {
+                check(kv.shardCount() == 4, "shards " + kv.shardCount());
+                verify(kv, model, KEYS);
+                randomWrites(kv, model, random, 4000, KEYS, 100);
+                Snapshot snapshot = kv.getSnapshot();
+                TreeMap<String, String> then = new TreeMap<>(model);
+                // a batch over every shard, with later operations on a key overriding earlier ones
+                WriteBatch batch = new WriteBatch();
+                for (int op = 0; op < 300; op++) {
+                    int i = random.nextInt(KEYS);
+                    if (random.nextInt(3) == 0) {
+                        batch.delete(key(i));
+                        model.remove(keyString(i));
+                    } else {
+                        String v = "batch" + round + "-" + op;
+                        batch.put(key(i), bytes(v));
+                        model.put(keyString(i), v);
+                    }
+                }
+                kv.write(batch);
+                List<byte[]> keys = new ArrayList<>();
+                List<byte[]> values = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    int k = random.nextInt(KEYS);
+                    String v = "put" + round + "-" + i;
+                    keys.add(key(k));
+                    values.add(bytes(v));
+                    model.put(keyString(k), v);
+                }
+                kv.batchPut(keys, values);
+                // across a split key under range sharding
+                int from = ranged ? 500 * (1 + random.nextInt(3)) - 30 : random.nextInt(KEYS - 60);
+                kv.deleteRange(key(from), key(from + 60));
+                model.subMap(keyString(from), keyString(from + 60)).clear();
+                randomWrites(kv, model, random, 3000, KEYS, 100);
+                verify(kv, model, KEYS);
+                verify(kv, snapshot, then, KEYS);
+                checkRanges(kv, model, random);
+                kv.releaseSnapshot(snapshot);
+                kv.releaseSnapshot(snapshot);   // a no-op
+                for (int i = 0; i < KEYS; i++) routing[i] = kv.shardFor(key(i));
+            }
+            int[] counts = new int[4];
+            for (int s = 0; s < 4; s++) {
+                Options shardOptions = options.withRootDir(options.rootDir.resolve("shard-" + s));
+                checkLevels(shardOptions);
+                try (LsmKvStore shard = new LsmKvStore(shardOptions)) {
+                    TreeMap<String, String> mine = new TreeMap<>();
+                    for (Map.Entry<String, String> e : model.entrySet()) {
+                        if (routing[index(e.getKey())] == s) mine.put(e.getKey(), e.getValue());
+                    }
+                    check(scan(shard, ScanOptions.all(), null).equals(entries(mine, false)), "shard " + s + " holds other keys than routed to it");
+                    counts[s] = mine.size();
+                }
+            }
+            for (int s = 0; s < 4; s++) {
+                check(counts[s] > model.size() / 8, "shard " + s + " holds " + counts[s] + " of " + model.size() + " keys");
+                if (ranged) {
+                    for (int i = 0; i < KEYS; i++) check(routing[i] == i / 500, keyString(i) + " routed to shard " + routing[i]);
+                }
+            }
+        }
+        try (ShardedKvStore kv = open(options, ranged)) {
+            verify(kv, model, KEYS);
+            checkRanges(kv, model, random);
+        }
+    }
+
+    /** readKeyRange and bounded scans in both directions, with bounds on and around the split keys. */
+    private static void checkRanges(ShardedKvStore kv, TreeMap<String, String> model, Random random) throws IOException {
+        List<Integer> bounds = new ArrayList<>(List.of(0, 499, 500, 501, 1000, 1500, 1999, 2000, 2500));
+        for (int n = 0; n < 10; n++) bounds.add(random.nextInt(KEYS));
+        for (int a : bounds) {
+            for (int b : bounds) {
+                if (a > b) continue;
+                TreeMap<String, String> expected = new TreeMap<>(model.subMap(keyString(a), keyString(b)));
+                List<String> got = new ArrayList<>();
+                for (KeyValue kvPair : kv.readKeyRange(key(a), key(b))) {
+                    got.add(new String(kvPair.key(), StandardCharsets.UTF_8) + "=" + new String(kvPair.value(), StandardCharsets.UTF_8));
+                }
+                check(got.equals(entries(expected, false)), "readKeyRange [" + keyString(a) + ", " + keyString(b) + ")");
+                check(scan(kv, ScanOptions.range(key(a), key(b)).reversed(), null).equals(entries(expected, true)),
+                        "reverse scan [" + keyString(a) + ", " + keyString(b) + ")");
+            }
+        }
+        TreeMap<String, String> prefixed = new TreeMap<>(model.subMap(keyString(1200), keyString(1300)));
+        check(scan(kv, ScanOptions.prefix(bytes("k012")), null).equals(entries(prefixed, false)), "prefix scan k012");
+    }
+
+    /** Under range sharding a key equal to a split key starts the next shard, and each range is routed to the shards it reaches. */
+    private static void rangeRouting(Path root) throws IOException {
+        Options options = small(root);
+        try (ShardedKvStore kv = new ShardedKvStore(options, SPLITS)) {
+            check(kv.shardFor(new byte[0]) == 0 && kv.shardFor(key(499)) == 0, "below the first split");
+            check(kv.shardFor(key(500)) == 1 && kv.shardFor(bytes(keyString(500) + "!")) == 1, "at the first split");
+            check(kv.shardFor(key(1499)) == 2 && kv.shardFor(key(1500)) == 3 && kv.shardFor(bytes("z")) == 3, "around the last split");
+            for (int i = 0; i < KEYS; i++) kv.put(key(i), bytes("v" + i));
+            // a range ending at a split key leaves that key alone
+            kv.deleteRange(key(400), key(500));
+            check(kv.read(key(499)).isEmpty() && kv.read(key(500)).isPresent() && kv.read(key(399)).isPresent(), "delete [k00400, k00500)");
+            kv.deleteRange(key(1500), key(1500));
+            check(kv.read(key(1500)).isPresent(), "an empty range deleted a key");
+            try {
+                kv.deleteRange(key(2), key(1));
+                throw new AssertionError("a backwards range was accepted");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+            kv.deleteRange(key(900), key(1600));
+            for (int i = 890; i < 1610; i++) check(kv.read(key(i)).isPresent() == (i < 900 || i >= 1600), "delete [k00900, k01600) at " + keyString(i));
+        }
+
+        // the same keys seeded straight into every shard: a range delete through the store must
+        // hide them in the shards the range overlaps and nowhere else
+        Path seeded = root.resolve("seeded");
+        new ShardedKvStore(small(seeded), SPLITS).close();
+        for (int s = 0; s < 4; s++) {
+            try (LsmKvStore shard = new LsmKvStore(small(seeded.resolve("shard-" + s)))) {
+                for (int i : new int[]{450, 1000, 1999}) shard.put(key(i), bytes("seeded"));
+            }
+        }
+        try (ShardedKvStore kv = new ShardedKvStore(small(seeded), SPLITS)) {
+            kv.deleteRange(key(400), key(500));
+            kv.deleteRange(key(900), key(1500));
+            kv.deleteRange(key(1999), key(1999));
+        }
+        for (int s = 0; s < 4; s++) {
+            try (LsmKvStore shard = new LsmKvStore(small(seeded.resolve("shard-" + s)))) {
+                check(shard.read(key(450)).isPresent() == (s != 0), "shard " + s + ": [k00400, k00500) reached it");
+                check(shard.read(key(1000)).isPresent() == (s == 0 || s == 3), "shard " + s + ": [k00900, k01500) reached it");
+                check(shard.read(key(1999)).isPresent(), "shard " + s + ": an empty range reached it");
+            }
+        }
+    }
+
+    /** A store reopens only with the layout it was created with, and bad layouts are refused up front. */
+    private static void layout(Path root) throws IOException {
+        Options options = small(root);
+        try (ShardedKvStore kv = new ShardedKvStore(options, 3)) {
+            kv.put(key(1), bytes("one"));
+        }
+        for (Runnable reopen : new Runnable[]{
+                () -> open(() -> new ShardedKvStore(options, 4)),
+                () -> open(() -> new ShardedKvStore(options, List.of(key(10), key(20))))}) {
+            try {
+                reopen.run();
+                throw new AssertionError("a store reopened under another layout");
+            } catch (IllegalStateException expected) {
+                check(expected.getCause() instanceof IOException && expected.getCause().getMessage().contains("sharded as"), "unexpected failure " + expected.getCause());
+            }
+        }
+        try (ShardedKvStore kv = new ShardedKvStore(options, 3)) {
+            check(string(kv.read(key(1))).equals("one"), "the value written under the layout");
+        }
+        for (Runnable bad : new Runnable[]{
+                () -> open(() -> new ShardedKvStore(small(root.resolve("zero")), 0)),
+                () -> open(() -> new ShardedKvStore(small(root.resolve("unsorted")), List.of(key(20), key(10)))),
+                () -> open(() -> new ShardedKvStore(small(root.resolve("repeated")), List.of(key(10), key(10))))}) {
+            try {
+                bad.run();
+                throw new AssertionError("a bad layout was accepted");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        Options other = small(root.resolve("other"));
+        try (ShardedKvStore a = new ShardedKvStore(options, 3); ShardedKvStore b = new ShardedKvStore(other, 2);
+             LsmKvStore single = new LsmKvStore(small(root.resolve("single")))) {
+            for (Snapshot foreign : new Snapshot[]{b.getSnapshot(), single.getSnapshot()}) {
+                try {
+                    a.read(key(1), foreign);
+                    throw new AssertionError("a foreign snapshot was accepted");
+                } catch (IllegalArgumentException expected) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    /** Writers on every core at once, each to its own keys: nothing is lost, and a reopen reads the same. */
+    private static void concurrentWriters(Path root) throws Exception {
+        Options options = small(root);
+        Map<String, String> written = new ConcurrentHashMap<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (ShardedKvStore kv = new ShardedKvStore(options, 4)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int writer = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        Random random = new Random(writer);
+                        for (int op = 0; op < 3000; op++) {
+                            int i = writer + 4 * random.nextInt(KEYS / 4);
+                            String v = "w" + writer + "-" + op;
+                            if (op % 10 == 0) kv.batchPut(List.of(key(i), key(i + 4 < KEYS ? i + 4 : i)), List.of(bytes(v), bytes(v)));
+                            else kv.put(key(i), bytes(v));
+                            written.put(keyString(i), v);
+                            if (op % 10 == 0 && i + 4 < KEYS) written.put(keyString(i + 4), v);
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }));
+            }
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+            if (failure.get() != null) throw new AssertionError(failure.get());
+            verify(kv, new TreeMap<>(written), KEYS);
+        }
+        try (ShardedKvStore kv = new ShardedKvStore(options, 4)) {
+            verify(kv, new TreeMap<>(written), KEYS);
+        }
+    }
+
+    private static ShardedKvStore open(Options options, boolean ranged) throws IOException {
+        return ranged ? new ShardedKvStore(options, SPLITS) : new ShardedKvStore(options, 4);
+    }
+
+    interface Opener {
+        ShardedKvStore open() throws IOException;
+    }
+
+    /** Open and close a store, with an I/O failure wrapped so it can be thrown from a Runnable. */
+    private static void open(Opener opener) {
+        try {
+            opener.open().close();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static int index(String key) {
+        return Integer.parseInt(key.substring(1));
+    }
+}
@@ -0,0 +1,60 @@
+package lsmkv;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Write throughput of several writer threads into one store and into a ShardedKvStore.
+ * Args: [threads] [writesPerThread] [shards...]; defaults 4, 100000 and shard counts 1 and 4
+ * (1 is a plain LsmKvStore).
+ */
+public class ShardedWriteBench {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int writes = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        List<Integer> shardCounts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) shardCounts.add(Integer.parseInt(args[i]));
+        if (shardCounts.isEmpty()) shardCounts = List.of(1, 4, 1, 4);   // twice each, the first pair warming up
+        for (int shards : shardCounts) {
+            Path root = Files.createTempDirectory("lsmkv-sharded-");
+            try {
+                Options options = new Options(root, 4 * 1024 * 1024, 3, 1 << 20, 10, 4096, 10, 2, 4);
+                try (KvStore kv = shards == 1 ? new LsmKvStore(options) : new ShardedKvStore(options, shards)) {
+                    System.out.printf("%d shard(s), %d threads: %.0f writes/s%n", shards, threads, run(kv, threads, writes));
+                }
+            } finally {
+                try (Stream<Path> paths = Files.walk(root)) {
+                    for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private static double run(KvStore kv, int threads, int writes) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            byte[] value = "v".repeat(64).getBytes(StandardCharsets.UTF_8);
+            List<Future<?>> done = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < writes; i++) kv.put(String.format("t%d-k%08d", thread, i).getBytes(StandardCharsets.UTF_8), value);
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) f.get();
+            return (double) threads * writes / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class SliceTest {
+    private static final byte SENTINEL = 0x7f;
+
+    public static void main(String[] args) throws Exception {
+        ordering();
+        views();
+        Path root = newRoot("slice");
+        try {
+            for (String mode : new String[]{"heap", "arena", "mmap", "value-log"}) bufferReads(root.resolve(mode), mode);
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Every representation orders the same way as a byte-at-a-time unsigned comparison: keys with
+     * long shared prefixes, high bytes, and lengths on both sides of the eight-byte word.
+     */
+    private static void ordering() {
+        Random random = new Random(16);
+        byte[][] keys = new byte[300][];
+        for (int k = 0; k < keys.length; k++) {
+            byte[] prefix = new byte[random.nextInt(20)];
+            Arrays.fill(prefix, (byte) 0x80);
+            int tail = random.nextInt(13);
+            byte[] key = Arrays.copyOf(prefix, prefix.length + tail);
+            for (int i = prefix.length; i < key.length; i++) key[i] = (byte) (random.nextBoolean() ? 0x7f + random.nextInt(3) : random.nextInt(256));
+            keys[k] = key;
+        }
+        List<Slice[]> views = new ArrayList<>();
+        for (byte[] key : keys) views.add(views(key, random));
+        for (int a = 0; a < keys.length; a++) {
+            for (int b = 0; b < keys.length; b++) {
+                int expected = Integer.signum(reference(keys[a], keys[b]));
+                boolean ok = Integer.signum(ByteArrays.compare(keys[a], keys[b])) == expected;
+                for (Slice x : views.get(a)) {
+                    ok &= Integer.signum(x.compareTo(keys[b])) == expected;
+                    for (Slice y : views.get(b)) {
+                        ok &= Integer.signum(x.compareTo(y)) == expected && x.equals(y) == (expected == 0);
+                        ok &= expected != 0 || x.hashCode() == y.hashCode();
+                    }
+                }
+                if (!ok) throw new AssertionError("views of " + hex(keys[a]) + " and " + hex(keys[b]) + " do not compare as " + expected);
+            }
+        }
+    }
+
+    /** The same bytes as slices of a heap array, and of heap and direct buffers in both byte orders, all at odd offsets. */
+    private static Slice[] views(byte[] key, Random random) {
+        int off = 1 + random.nextInt(7);
+        byte[] padded = new byte[off + key.length + 3];
+        random.nextBytes(padded);
+        System.arraycopy(key, 0, padded, off, key.length);
+        ByteBuffer heap = ByteBuffer.wrap(padded.clone()).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer direct = ByteBuffer.allocateDirect(padded.length).order(ByteOrder.LITTLE_ENDIAN);
+        direct.put(padded).position(2);    // a stray position must not matter
+        return new Slice[]{Slice.of(key), Slice.of(padded, off, key.length), Slice.of(heap, off, key.length), Slice.of(direct, off, key.length)};
+    }
+
+    /** Accessors and bounds of each kind of view; none of them move the underlying buffer. */
+    private static void views() {
+        byte[] bytes = bytes("0123456789");
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put(3, bytes);   // both views below hold "234567"
+        direct.position(5);
+        for (Slice slice : new Slice[]{Slice.of(bytes, 2, 6), Slice.of(direct, 5, 6)}) {
+            check(slice.length() == 6, "length " + slice.length());
+            check(new String(slice.toByteArray(), StandardCharsets.UTF_8).equals("234567"), "toByteArray " + Arrays.toString(slice.toByteArray()));
+            byte[] dst = new byte[10];
+            Arrays.fill(dst, SENTINEL);
+            slice.copyTo(dst, 3);
+            check(dst[2] == SENTINEL && dst[9] == SENTINEL && dst[3] == slice.get(0) && dst[8] == slice.get(5), "copyTo " + Arrays.toString(dst));
+            for (int i : new int[]{-1, 6}) {
+                try {
+                    slice.get(i);
+                    throw new AssertionError("get(" + i + ") out of bounds");
+                } catch (IndexOutOfBoundsException expectedFailure) {
+                    // expected
+                }
+            }
+        }
+        check(direct.position() == 5, "a view moved its buffer to " + direct.position());
+        check(Slice.of(new byte[0]).compareTo(new byte[0]) == 0 && Slice.of(new byte[0]).compareTo(new byte[]{0}) < 0, "empty slices");
+        for (Runnable bad : new Runnable[]{() -> Slice.of(bytes, 8, 3), () -> Slice.of(bytes, -1, 2), () -> Slice.of(direct, 10, 7)}) {
+            try {
+                bad.run();
+                throw new AssertionError("a view past the end was accepted");
+            } catch (IndexOutOfBoundsException expectedFailure) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * read(key, buffer) against the model for values living in every source: the memtable, tables,
+     * the value log, and under range tombstones. Buffers shorter than the value get its prefix and
+     * longer ones keep their tail; empty values read as length 0, absent keys as -1.
+     */
+    private static void bufferReads(Path root, String mode) throws IOException {
+        Options options = small(root);
+        options.arenaMemTable = mode.equals("arena");
+        options.arenaSlabBytes = 16 * 1024;
+        options.mmapReads = mode.equals("mmap");
+        if (mode.equals("mmap")) options.compression = Compression.NONE;
+        if (mode.equals("value-log")) options.valueLogMinBytes = 64;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(17);
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                checkBufferReads(kv, model, 1000, mode);
+                for (int op = 0; op < 4000; op++) {
+                    int i = random.nextInt(1000);
+                    if (random.nextInt(6) == 0) {
+                        kv.delete(key(i));
+                        model.remove(keyString(i));
+                    } else {
+                        // empty, short, and past the value log threshold
+                        String v = random.nextInt(10) == 0 ? "" : value(op, random, 200);
+                        kv.put(key(i), bytes(v));
+                        model.put(keyString(i), v);
+                    }
+                }
+                int from = random.nextInt(950);
+                kv.deleteRange(key(from), key(from + 30));
+                model.subMap(keyString(from), keyString(from + 30)).clear();
+                // some of the model is still in memtables here
+                checkBufferReads(kv, model, 1000, mode);
+            }
+            checkLevels(options);
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            checkBufferReads(kv, model, 1000, mode);
+            verify(kv, model, 1000);
+        }
+    }
+
+    private static void checkBufferReads(LsmKvStore kv, TreeMap<String, String> model, int keys, String mode) throws IOException {
+        byte[][] buffers = {new byte[0], new byte[5], new byte[64], new byte[256]};
+        for (int i = 0; i < keys; i++) {
+            String expected = model.get(keyString(i));
+            byte[] want = expected == null ? null : bytes(expected);
+            for (byte[] buf : buffers) {
+                Arrays.fill(buf, SENTINEL);
+                int n = kv.read(key(i), buf);
+                if (want == null) {
+                    check(n == -1, mode + ": absent " + keyString(i) + " read as length " + n);
+                    continue;
+                }
+                check(n == want.length, mode + ": " + keyString(i) + " length " + n + ", want " + want.length);
+                int copied = Math.min(n, buf.length);
+                check(Arrays.equals(buf, 0, copied, want, 0, copied), mode + ": " + keyString(i) + " prefix into " + buf.length + " bytes");
+                for (int j = copied; j < buf.length; j++) check(buf[j] == SENTINEL, mode + ": " + keyString(i) + " wrote past its value into byte " + j);
+            }
+        }
+    }
+
+    private static int reference(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) return (a[i] & 0xff) - (b[i] & 0xff);
+        }
+        return a.length - b.length;
+    }
+
+    private static String hex(byte[] key) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : key) out.append(String.format("%02x", b));
+        return out.toString();
+    }
+}
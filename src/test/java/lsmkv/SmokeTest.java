@@ -16,6 +16,14 @@ public class SmokeTest {
             for (var kvp : kv.readKeyRange("a".getBytes(), "z".getBytes())) {
                 System.out.println(new String(kvp.key()) + " -> " + new String(kvp.value()));
             }
+            try (KvIterator it = kv.iterator(ScanOptions.all().reversed())) {
+                for (; it.valid(); it.next()) System.out.println(new String(it.key())); // d c a
+            }
+            Snapshot snapshot = kv.getSnapshot();
+            kv.put("a".getBytes(), "5".getBytes());
+            System.out.println(new String(kv.read("a".getBytes(), snapshot).orElse(null))); // 1
+            System.out.println(new String(kv.read("a".getBytes()).orElse(null))); // 5
+            kv.releaseSnapshot(snapshot);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static lsmkv.StoreChecks.*;
+
+public class SnapshotTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("snapshot");
+        try {
+            bottommostTombstone(root.resolve("bottommost"));
+            stableUnderWrites(root.resolve("stable"));
+            pointInTime(root.resolve("point-in-time"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * An L0 -> L1 compaction whose L1 input reaches past the L0 file: a tombstone in that part of
+     * L1 still hides a value in L2 and must not be dropped as if nothing lay below it.
+     */
+    private static void bottommostTombstone(Path root) throws IOException {
+        Options options = new Options(root, 1 << 20, 3, 1 << 20, 10, 1024, 10, 1, 0);
+        options.numLevels = 4;
+        options.maxSubcompactions = 1;
+        Files.createDirectories(options.sstDir);
+        TableCache tables = new TableCache(10, false);
+        SstReader l0 = table(options, tables, 10, new Entry(20, Entry.FLAG_PUT, key(50), bytes("new")));
+        SstReader l1 = table(options, tables, 5, new Entry(11, Entry.FLAG_PUT, key(40), bytes("l1")),
+                new Entry(10, Entry.FLAG_DEL, key(250), null));
+        SstReader l2 = table(options, tables, 2, new Entry(2, Entry.FLAG_PUT, key(250), bytes("old")));
+        Version version = new Version(List.of(List.of(l0), List.of(l1), List.of(l2), List.of()), Map.of());
+
+        Compaction compaction = Compaction.pick(version, options, new byte[4][], Long.MAX_VALUE);
+        check(compaction != null && compaction.inputs().size() == 2, "expected an L0 compaction with its L1 file");
+        check(!compaction.bottommost, "L2 holds a key in the range the compaction merges");
+        Compaction.Result result = compaction.run(options, new AtomicInteger(100)::getAndIncrement, null, new long[0]);
+        check(result.files().size() == 1, "expected one output, got " + result.files());
+        SstReader output = new SstReader(options.sstDir.resolve(result.files().get(0).name()), null, tables);
+        Optional<Entry> tombstone = output.get(key(250), Long.MAX_VALUE);
+        check(tombstone.isPresent() && tombstone.get().flag() == Entry.FLAG_DEL, "tombstone over an L2 value dropped: " + tombstone);
+        version.unref();
+    }
+
+    private static SstReader table(Options options, TableCache tables, int number, Entry... entries) throws IOException {
+        try (SstWriter writer = new SstWriter(options.sstDir, "sst-" + number + ".sst", options.sstBlockSizeBytes,
+                options.sstRestartInterval, Compression.NONE, options.bloomBitsPerKey)) {
+            for (Entry entry : entries) writer.add(entry);
+            writer.finish();
+            return new SstReader(writer.install(), null, tables);
+        }
+    }
+
+    /**
+     * Snapshots read the same through multiGet, single reads and scans however much is written,
+     * flushed and compacted after them; a writer thread keeps puts, deletes and range deletes going
+     * the whole time.
+     */
+    private static void stableUnderWrites(Path root) throws Exception {
+        Options options = small(root);
+        TreeMap<String, String> model = new TreeMap<>();
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            randomWrites(kv, model, new Random(21), 4000, 600, 48);     // a tree a few levels deep to start with
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicInteger written = new AtomicInteger();
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> writes = writer.submit(() -> {
+                    Random random = new Random(22);
+                    for (int op = 0; !stop.get(); op++) {
+                        int i = random.nextInt(600);
+                        if (op % 50 == 0) kv.deleteRange(key(i), key(i + 1 + random.nextInt(30)));
+                        else if (random.nextInt(4) == 0) kv.delete(key(i));
+                        else kv.put(key(i), bytes(value(op, random, 48)));
+                        written.incrementAndGet();
+                    }
+                    return null;
+                });
+                List<Snapshot> snapshots = new ArrayList<>();
+                List<List<String>> seen = new ArrayList<>();
+                for (int round = 0; round < 12; round++) {
+                    Snapshot snapshot = kv.getSnapshot();
+                    snapshots.add(snapshot);
+                    seen.add(readAll(kv, snapshot));
+                    int target = written.get() + 1500;
+                    while (written.get() < target && !writes.isDone()) Thread.sleep(1);
+                    for (int s = 0; s < snapshots.size(); s++) {
+                        check(readAll(kv, snapshots.get(s)).equals(seen.get(s)), "snapshot " + s + " changed by round " + round);
+                    }
+                    if (snapshots.size() == 4) {     // keep a few live, releasing the oldest
+                        kv.releaseSnapshot(snapshots.remove(0));
+                        seen.remove(0);
+                    }
+                }
+                stop.set(true);
+                writes.get(60, TimeUnit.SECONDS);
+            } finally {
+                stop.set(true);
+                writer.shutdown();
+            }
+        }
+    }
+
+    // every key through multiGet and single reads, which must agree, then a scan; as "key=value" lines
+    private static List<String> readAll(KvStore kv, Snapshot snapshot) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 640; i++) keys.add(key(i));
+        List<Optional<byte[]>> values = kv.multiGet(keys, snapshot);
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String got = string(values.get(i));
+            String single = string(kv.read(keys.get(i), snapshot));
+            check(Objects.equals(got, single), "snapshot multiGet " + keyString(i) + " got " + got + ", read got " + single);
+            if (got != null) out.add(keyString(i) + "=" + got);
+        }
+        check(scan(kv, ScanOptions.all(), snapshot).equals(out), "snapshot scan differs from its point reads");
+        return out;
+    }
+
+    /**
+     * multiGet and scans without a snapshot still see one point in time: a writer rewrites every
+     * key in order, round after round, so any consistent view is a prefix of the keys at one
+     * round and the rest at the round before.
+     */
+    private static void pointInTime(Path root) throws Exception {
+        Options options = small(root);
+        int n = 400;
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) keys.add(key(i));
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 0; i < n; i++) kv.put(key(i), bytes(round(0)));
+            AtomicBoolean stop = new AtomicBoolean();
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try {
+                Future<Integer> writes = writer.submit(() -> {
+                    int round = 1;
+                    for (; !stop.get(); round++) {
+                        for (int i = 0; i < n; i++) kv.put(key(i), bytes(round(round)));
+                    }
+                    return round;
+                });
+                for (int check = 0; check < 200; check++) {
+                    List<String> view = new ArrayList<>();
+                    for (Optional<byte[]> value : kv.multiGet(keys)) view.add(string(value));
+                    checkCut(view, "multiGet");
+                    view.clear();
+                    for (String line : scan(kv, ScanOptions.all(), null)) view.add(line.substring(line.indexOf('=') + 1));
+                    checkCut(view, "scan");
+                }
+                stop.set(true);
+                int rounds = writes.get(60, TimeUnit.SECONDS);
+                check(rounds > 2, "the writer hardly ran: " + rounds + " rounds");
+            } finally {
+                stop.set(true);
+                writer.shutdown();
+            }
+        }
+    }
+
+    private static String round(int round) {
+        return "round-" + round + "-" + "x".repeat(24);
+    }
+
+    private static void checkCut(List<String> view, String what) {
+        check(view.size() == 400 && !view.contains(null), what + " lost keys: " + view.size());
+        int cuts = 0;
+        for (int i = 1; i < view.size(); i++) {
+            if (view.get(i).equals(view.get(i - 1))) continue;
+            int before = Integer.parseInt(view.get(i - 1).split("-")[1]);
+            int after = Integer.parseInt(view.get(i).split("-")[1]);
+            check(before == after + 1 && ++cuts == 1, what + " is not one point in time at " + keyString(i) + ": " + view.get(i - 1) + " then " + view.get(i));
+        }
+    }
+}
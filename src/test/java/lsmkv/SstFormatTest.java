@@ -0,0 +1,260 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class SstFormatTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("sst-format");
+        try {
+            Path dir = root.resolve("tables");
+            Files.createDirectories(dir);
+            int n = 0;
+            for (int restartInterval : new int[]{1, 3, 16}) {
+                for (Compression compression : Compression.values()) {
+                    for (int blockSize : new int[]{256, 4096}) {
+                        List<Entry> entries = entries(new Random(n), blockSize);
+                        Path path = write(dir, "sst-" + n++ + ".sst", entries, blockSize, restartInterval, compression);
+                        for (int layout = 0; layout < 3; layout++) checkTable(open(path, layout), entries, new Random(n));
+                    }
+                }
+            }
+            olderFooters(dir);
+            valueLogsAndTombstones(dir);
+            store(root.resolve("store"), false);
+            store(root.resolve("store-mmap"), true);
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Keys with a long shared prefix (odd numbers are left out to probe misses), each with up to three
+     * versions, newest first: deletes, empty values, and values larger than a block among them.
+     */
+    private static List<Entry> entries(Random random, int blockSize) {
+        List<Entry> out = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            byte[] key = tableKey(2 * i);
+            List<Long> seqs = new ArrayList<>();
+            for (int v = 1 + random.nextInt(3); seqs.size() < v; ) {
+                long seq = 1 + random.nextInt(5000);
+                if (!seqs.contains(seq)) seqs.add(seq);
+            }
+            seqs.sort(Collections.reverseOrder());
+            for (long seq : seqs) {
+                int kind = random.nextInt(30);
+                if (kind < 5) {
+                    out.add(new Entry(seq, Entry.FLAG_DEL, key, null));
+                } else {
+                    byte[] value = new byte[kind == 5 ? 0 : kind == 6 ? 2 * blockSize + random.nextInt(100) : random.nextInt(60)];
+                    random.nextBytes(value);
+                    out.add(new Entry(seq, Entry.FLAG_PUT, key, value));
+                }
+            }
+        }
+        return out;
+    }
+
+    private static byte[] tableKey(int i) {
+        return bytes("tenant-0042/objects/" + keyString(i));
+    }
+
+    private static Path write(Path dir, String name, List<Entry> entries, int blockSize, int restartInterval, Compression compression)
+            throws IOException {
+        try (SstWriter writer = new SstWriter(dir, name, blockSize, restartInterval, compression, 10)) {
+            for (Entry entry : entries) writer.add(entry);
+            writer.finish();
+            return writer.install();
+        }
+    }
+
+    // 0: plain reads, 1: through a block cache, 2: mapped
+    private static SstReader open(Path path, int layout) throws IOException {
+        return new SstReader(path, layout == 1 ? new BlockCache(1 << 20, 4) : null, new TableCache(4, layout == 2));
+    }
+
+    /**
+     * Point reads at many snapshots, buffered reads, full scans both ways and seeks, against the
+     * entries written. The seq range is checked unless the footer has none (v3).
+     */
+    private static void checkTable(SstReader reader, List<Entry> entries, Random random) throws IOException {
+        String where = reader.path().getFileName().toString();
+        check(Arrays.equals(reader.smallestKey(), entries.get(0).key()) && Arrays.equals(reader.largestKey(), entries.get(entries.size() - 1).key()),
+                where + ": wrong key range");
+        long minSeq = Long.MAX_VALUE;
+        long maxSeq = 0;
+        TreeMap<String, List<Entry>> byKey = new TreeMap<>();
+        for (Entry entry : entries) {
+            minSeq = Math.min(minSeq, entry.seq());
+            maxSeq = Math.max(maxSeq, entry.seq());
+            byKey.computeIfAbsent(new String(entry.key()), k -> new ArrayList<>()).add(entry);
+        }
+        boolean seqRange = reader.minSeq() != 0 || reader.maxSeq() != Long.MAX_VALUE;
+        check(!seqRange || (reader.minSeq() == minSeq && reader.maxSeq() == maxSeq), where + ": wrong seq range");
+
+        byte[] buf = new byte[32];
+        for (int i = 0; i < 1200; i++) {
+            byte[] key = tableKey(i);
+            List<Entry> versions = byKey.getOrDefault(new String(key), List.of());
+            for (long snapshot : new long[]{Long.MAX_VALUE, 1 + random.nextInt(5000), 1 + random.nextInt(5000)}) {
+                Entry expected = null;
+                for (Entry version : versions) {
+                    if (version.seq() <= snapshot) {
+                        expected = version;
+                        break;
+                    }
+                }
+                Optional<Entry> got = reader.get(key, snapshot);
+                check(got.isPresent() == (expected != null) && (expected == null || describe(got.get()).equals(describe(expected))),
+                        where + ": " + new String(key) + " at " + snapshot + " got " + got.map(SstFormatTest::describe) + " want " + (expected == null ? null : describe(expected)));
+            }
+            Entry latest = versions.isEmpty() ? null : versions.get(0);
+            int length = reader.get(key, buf);
+            int want = latest == null ? Entry.NOT_FOUND : latest.flag() == Entry.FLAG_DEL ? Entry.DELETED : latest.value().length;
+            check(length == want, where + ": buffered read of " + new String(key) + " returned " + length + " want " + want);
+            if (want > 0) check(Arrays.equals(Arrays.copyOf(buf, Math.min(want, buf.length)), Arrays.copyOf(latest.value(), Math.min(want, buf.length))),
+                    where + ": buffered read of " + new String(key) + " copied the wrong bytes");
+        }
+
+        List<String> forward = new ArrayList<>();
+        for (Entry entry : entries) forward.add(describe(entry));
+        List<String> backward = new ArrayList<>(forward);
+        Collections.reverse(backward);
+        check(iterate(reader, false, null).equals(forward), where + ": forward scan differs");
+        check(iterate(reader, true, null).equals(backward), where + ": reverse scan differs");
+        for (int s = 0; s < 20; s++) {
+            byte[] target = tableKey(random.nextInt(1250));
+            int from = 0;
+            while (from < entries.size() && ByteArrays.compare(entries.get(from).key(), target) < 0) from++;
+            check(iterate(reader, false, target).equals(forward.subList(from, forward.size())), where + ": forward seek to " + new String(target));
+            int to = entries.size();
+            while (to > 0 && ByteArrays.compare(entries.get(to - 1).key(), target) > 0) to--;
+            check(iterate(reader, true, target).equals(backward.subList(entries.size() - to, backward.size())), where + ": reverse seek to " + new String(target));
+        }
+    }
+
+    private static List<String> iterate(SstReader reader, boolean reverse, byte[] target) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (EntryIterator it = reader.iterator(reverse)) {
+            if (target == null) it.seekToFirst();
+            else it.seek(target);
+            for (; it.valid(); it.next()) out.add(describe(it.entry()));
+        }
+        return out;
+    }
+
+    private static String describe(Entry e) {
+        return new String(e.key()) + "@" + e.seq() + "/" + e.flag() + "=" + (e.value() == null ? "-" : e.value().length + "#" + Arrays.hashCode(e.value()));
+    }
+
+    /**
+     * A table rewritten with the footers of formats 5, 4 and 3 reads the same; what those footers
+     * lack is treated conservatively: any value log may be referenced (v5 and older) and the seq
+     * range is unbounded (v3).
+     */
+    private static void olderFooters(Path dir) throws IOException {
+        List<Entry> entries = entries(new Random(99), 1024);
+        Path v6 = write(dir, "sst-1000.sst", entries, 1024, 4, Compression.LZ);
+        check(!new SstReader(v6).mayReference(1), "a v6 table with no value-log pointers claims one");
+        for (int version = 5; version >= 3; version--) {
+            Path older = dir.resolve("sst-" + (1000 + version) + ".sst");
+            Files.copy(v6, older);
+            downgrade(older, version);
+            SstReader reader = new SstReader(older);
+            check(reader.mayReference(1), "v" + version + " tables may point into any value log");
+            if (version == 3) check(reader.minSeq() == 0 && reader.maxSeq() == Long.MAX_VALUE, "v3 tables have no seq range");
+            checkTable(reader, entries, new Random(version));
+        }
+    }
+
+    /**
+     * Rewrite the footer of a table without range tombstones or value-log pointers as format
+     * version (3 to 5) laid it out: v5 has no value-log list, v4 no range tombstones either, v3 no
+     * seq range either.
+     */
+    private static void downgrade(Path path, int version) throws IOException {
+        byte[] file = Files.readAllBytes(path);
+        ByteBuffer buf = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        long footer = buf.getLong(file.length - SstWriter.TRAILER_SIZE);
+        int largestEnd = (int) footer;
+        for (int section = 0; section < 4; section++) largestEnd += 4 + buf.getInt(largestEnd);  // index, bloom, smallest, largest
+        int seqsEnd = largestEnd + 16;
+        int rangeDelsEnd = seqsEnd + 4 + buf.getInt(seqsEnd);
+        int keep = version == 5 ? rangeDelsEnd : version == 4 ? seqsEnd : largestEnd;
+        ByteBuffer out = ByteBuffer.allocate(keep + 4 + SstWriter.TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(file, 0, keep).putInt(version).putLong(footer).putLong(SstWriter.MAGIC);
+        Files.write(path, out.array());
+    }
+
+    /** The v6 footer lists exactly the value logs a table points into; range tombstones round-trip too. */
+    private static void valueLogsAndTombstones(Path dir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long[] logs = {12, 3, 7, 3, 300, 12};
+        for (int i = 0; i < logs.length; i++) {
+            entries.add(new Entry(10 + i, Entry.FLAG_BLOB, tableKey(2 * i), new ValuePointer(logs[i], 100L * i, 40).encode()));
+        }
+        entries.add(new Entry(50, Entry.FLAG_PUT, tableKey(20), bytes("inline")));
+        Path path;
+        try (SstWriter writer = new SstWriter(dir, "sst-2000.sst", 256, 2, Compression.NONE, 10)) {
+            for (Entry entry : entries) writer.add(entry);
+            writer.addRangeTombstone(new RangeTombstone(tableKey(30), tableKey(40), 60));
+            writer.finish();
+            path = writer.install();
+        }
+        SstReader reader = new SstReader(path);
+        for (long log = 0; log < 400; log++) {
+            boolean listed = log == 3 || log == 7 || log == 12 || log == 300;
+            check(reader.mayReference(log) == listed, "value log " + log + (listed ? " not listed" : " listed"));
+        }
+        check(reader.rangeTombstones().coveringSeq(tableKey(35), Long.MAX_VALUE) == 60, "range tombstone lost");
+        check(reader.rangeTombstones().coveringSeq(tableKey(40), Long.MAX_VALUE) < 0, "range tombstone covers its end key");
+        check(Arrays.equals(reader.largestKey(), tableKey(40)), "key range leaves out the range tombstone");   // its end, which has no predecessor
+        check(reader.maxSeq() == 60, "seq range leaves out the range tombstone");
+        Optional<Entry> blob = reader.get(tableKey(4));
+        check(blob.isPresent() && blob.get().flag() == Entry.FLAG_BLOB && ValuePointer.decode(blob.get().value()).equals(new ValuePointer(7, 200, 40)),
+                "value pointer did not round-trip: " + blob);
+    }
+
+    /**
+     * A store writing one-key restart intervals with deflate, and plain bottommost files, through
+     * flushes, compactions and reopens; empty values among the writes.
+     */
+    private static void store(Path root, boolean mmap) throws IOException {
+        Options options = small(root);
+        options.sstRestartInterval = 1;
+        options.compression = Compression.DEFLATE;
+        options.bottommostCompression = Compression.NONE;
+        options.mmapReads = mmap;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(8);
+        for (int round = 0; round < 3; round++) {
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 1500);
+                randomWrites(kv, model, random, 5000, 1500, 100);
+                for (int i = round; i < 1500; i += 97) {
+                    kv.put(key(i), new byte[0]);
+                    model.put(keyString(i), "");
+                }
+                verify(kv, model, 1500);
+            }
+        }
+        checkLevels(options);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1500);
+        }
+    }
+}
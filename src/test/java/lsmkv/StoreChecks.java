@@ -0,0 +1,209 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Shared pieces of the main()-style tests: a scratch directory, options small enough that a few
+ * thousand writes go through many flushes and compactions, and a model (key -> value) every read
+ * path of a store is compared against.
+ */
+final class StoreChecks {
+    private StoreChecks() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    static Path newRoot(String name) throws IOException {
+        return Files.createTempDirectory("lsmkv-" + name + "-");
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+        }
+    }
+
+    /** 8 KB memtables, 1 KB blocks and a 4-level tree with a 32 KB L1. */
+    static Options small(Path root) {
+        Options options = new Options(root, 8 * 1024, 3, 1 << 20, 10, 1024, 10, 2, 2);
+        options.walSegmentBytes = 16 * 1024;
+        options.manifestLogBytes = 4 * 1024;
+        options.l0SlowdownTrigger = 8;
+        options.l0StopTrigger = 16;
+        options.numLevels = 4;
+        options.levelBaseBytes = 32 * 1024;
+        options.levelSizeMultiplier = 4;
+        options.targetFileSizeBytes = 8 * 1024;
+        options.maxSubcompactions = 2;
+        return options;
+    }
+
+    static String keyString(int i) {
+        return String.format("k%05d", i);
+    }
+
+    static byte[] key(int i) {
+        return bytes(keyString(i));
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String string(Optional<byte[]> value) {
+        return value.map(v -> new String(v, StandardCharsets.UTF_8)).orElse(null);
+    }
+
+    /** A value unique to op, padded to 8..maxBytes bytes. */
+    static String value(int op, Random random, int maxBytes) {
+        String v = "v" + op + "-";
+        return v + "x".repeat(Math.max(0, 8 + random.nextInt(Math.max(1, maxBytes - 7)) - v.length()));
+    }
+
+    /** ops random puts (and one in five deletes) over keys [0, keys), applied to the store and the model alike. */
+    static void randomWrites(KvStore kv, TreeMap<String, String> model, Random random, int ops, int keys, int maxValueBytes)
+            throws IOException {
+        for (int op = 0; op < ops; op++) {
+            int i = random.nextInt(keys);
+            if (random.nextInt(5) == 0) {
+                kv.delete(key(i));
+                model.remove(keyString(i));
+            } else {
+                String v = value(op, random, maxValueBytes);
+                kv.put(key(i), bytes(v));
+                model.put(keyString(i), v);
+            }
+        }
+    }
+
+    /** Every key in [0, keys) read singly, into a buffer, through multiGet, and by scans in both directions. */
+    static void verify(KvStore kv, TreeMap<String, String> model, int keys) throws IOException {
+        List<byte[]> all = new ArrayList<>();
+        byte[] buf = new byte[16];
+        for (int i = 0; i < keys; i++) {
+            String expected = model.get(keyString(i));
+            String got = string(kv.read(key(i)));
+            check(Objects.equals(got, expected), "read " + keyString(i) + " got " + got + " want " + expected);
+            int n = kv.read(key(i), buf);
+            check(n == (expected == null ? -1 : expected.length()), "read into buffer " + keyString(i) + " length " + n);
+            all.add(key(i));
+        }
+        List<Optional<byte[]>> values = kv.multiGet(all);
+        for (int i = 0; i < keys; i++) {
+            String got = string(values.get(i));
+            check(Objects.equals(got, model.get(keyString(i))), "multiGet " + keyString(i) + " got " + got);
+        }
+        check(scan(kv, ScanOptions.all(), null).equals(entries(model, false)), "forward scan differs from the model");
+        check(scan(kv, ScanOptions.all().reversed(), null).equals(entries(model, true)), "reverse scan differs from the model");
+    }
+
+    /** As {@link #verify(KvStore, TreeMap, int)}, reading at snapshot, where model is what the store held then. */
+    static void verify(KvStore kv, Snapshot snapshot, TreeMap<String, String> model, int keys) throws IOException {
+        List<byte[]> all = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            String got = string(kv.read(key(i), snapshot));
+            check(Objects.equals(got, model.get(keyString(i))), "snapshot read " + keyString(i) + " got " + got);
+            all.add(key(i));
+        }
+        List<Optional<byte[]>> values = kv.multiGet(all, snapshot);
+        for (int i = 0; i < keys; i++) {
+            String got = string(values.get(i));
+            check(Objects.equals(got, model.get(keyString(i))), "snapshot multiGet " + keyString(i) + " got " + got);
+        }
+        check(scan(kv, ScanOptions.all(), snapshot).equals(entries(model, false)), "snapshot scan differs from the model");
+    }
+
+    static List<String> scan(KvStore kv, ScanOptions scan, Snapshot snapshot) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (KvIterator it = snapshot == null ? kv.iterator(scan) : kv.iterator(scan, snapshot)) {
+            for (; it.valid(); it.next()) {
+                out.add(new String(it.key(), StandardCharsets.UTF_8) + "=" + new String(it.value(), StandardCharsets.UTF_8));
+            }
+        }
+        return out;
+    }
+
+    static List<String> entries(TreeMap<String, String> model, boolean reverse) {
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<String, String> e : (reverse ? model.descendingMap() : model).entrySet()) out.add(e.getKey() + "=" + e.getValue());
+        return out;
+    }
+
+    /**
+     * The closed store's manifest describes a well-formed tree: every listed file is on disk and
+     * nothing else is, and each level below L0 is sorted by key with no overlapping files.
+     * Returns the number of files in each of options.numLevels levels.
+     */
+    static List<Integer> checkLevels(Options options) throws IOException {
+        Manifest manifest = new Manifest(options.rootDir, options.manifestLogBytes);
+        try {
+            Manifest.State state = manifest.load();
+            List<String> listed = new ArrayList<>();
+            List<Integer> counts = new ArrayList<>();
+            for (int level = 0; level < state.levels().size(); level++) {
+                List<FileMeta> files = state.levels().get(level);
+                counts.add(files.size());
+                for (FileMeta file : files) {
+                    listed.add(file.name());
+                    check(file.known() && ByteArrays.compare(file.smallestKey(), file.largestKey()) <= 0, "bad metadata for " + file.name());
+                }
+                if (level == 0) continue;
+                List<FileMeta> sorted = new ArrayList<>(files);
+                sorted.sort((a, b) -> ByteArrays.compare(a.smallestKey(), b.smallestKey()));
+                for (int i = 1; i < sorted.size(); i++) {
+                    check(ByteArrays.compare(sorted.get(i - 1).largestKey(), sorted.get(i).smallestKey()) < 0,
+                            "L" + level + " files overlap: " + sorted.get(i - 1).name() + " and " + sorted.get(i).name());
+                }
+            }
+            while (counts.size() < options.numLevels) counts.add(0);
+            for (ValueLogFileMeta file : state.valueLogs()) listed.add(file.name());
+            List<String> onDisk = new ArrayList<>(files(options.sstDir, ""));
+            check(new TreeMap<>(count(onDisk)).equals(new TreeMap<>(count(listed))), "sst directory " + onDisk + " differs from the manifest " + listed);
+            return counts;
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private static Map<String, Integer> count(List<String> names) {
+        Map<String, Integer> out = new TreeMap<>();
+        for (String name : names) out.merge(name, 1, Integer::sum);
+        return out;
+    }
+
+    /**
+     * A copy of from's files at to, as a crash would leave them: taken while a store may still be
+     * writing there, so only what it has already handed to the OS is in it.
+     */
+    static void copyTree(Path from, Path to) throws IOException {
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path path : paths.toList()) {
+                Path target = to.resolve(from.relativize(path).toString());
+                if (Files.isDirectory(path)) Files.createDirectories(target);
+                else Files.copy(path, target);
+            }
+        }
+    }
+
+    /** Names of the files in dir ending in suffix. */
+    static List<String> files(Path dir, String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.map(p -> p.getFileName().toString()).filter(n -> n.endsWith(suffix)).sorted().toList();
+        }
+    }
+}
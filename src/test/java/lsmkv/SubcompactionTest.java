@@ -0,0 +1,311 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static lsmkv.StoreChecks.*;
+
+public class SubcompactionTest {
+    private static final long[] SNAPSHOTS = {700, 1400, 2200};
+
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("subcompaction");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            boundaries(root.resolve("bounds"));
+            job(root.resolve("job"), pool);
+            failedRange(root.resolve("failed"), pool);
+            store(root.resolve("store"));
+        } finally {
+            pool.shutdown();
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** Split keys are sparse index keys in increasing order, none at the very first key, and cut the blocks about evenly. */
+    private static void boundaries(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        TableCache tables = new TableCache(10, false);
+        Random random = new Random(19);
+        List<SstReader> sources = new ArrayList<>();
+        for (int f = 0; f < 3; f++) {
+            TreeMap<String, List<Entry>> contents = new TreeMap<>();
+            for (int i = 0; i < 400; i++) {
+                int k = random.nextInt(1000);
+                contents.computeIfAbsent(keyString(k), x -> new ArrayList<>()).add(new Entry(0, Entry.FLAG_PUT, key(k), bytes(value(i, random, 60))));
+            }
+            sources.add(table(dir, tables, "sst-" + (f + 1) + ".sst", contents, 1000L * f));
+        }
+        List<byte[]> blockKeys = new ArrayList<>();
+        for (SstReader reader : sources) blockKeys.addAll(reader.blockKeys());
+        blockKeys.sort(ByteArrays.LEX);
+        check(blockKeys.size() > 40, "only " + blockKeys.size() + " blocks");
+        for (int n = 1; n <= 12; n++) {
+            List<byte[]> bounds = Compaction.boundaries(sources, n);
+            check(bounds.size() == n - 1, n + " ranges split at " + bounds.size() + " keys");
+            byte[] previous = blockKeys.get(0);
+            int previousIndex = 0;
+            for (byte[] bound : bounds) {
+                check(ByteArrays.compare(bound, previous) > 0, n + " ranges: bounds not increasing past the first key");
+                check(blockKeys.stream().anyMatch(k -> Arrays.equals(k, bound)), n + " ranges: a bound is no block's first key");
+                int index = firstAtOrPast(blockKeys, bound);
+                // each range holds about blocks / n of the candidates, give or take the keys repeated across files
+                check(Math.abs(index - previousIndex - blockKeys.size() / n) <= 3, n + " ranges: uneven split at " + index);
+                previous = bound;
+                previousIndex = index;
+            }
+        }
+        check(Compaction.boundaries(sources, blockKeys.size() + 1).isEmpty(), "split into more ranges than blocks");
+        check(Compaction.boundaries(List.of(), 4).isEmpty(), "split of no input");
+
+        // files laid out alike start their blocks at the same keys, so a naive split can land on the first one
+        List<SstReader> alike = new ArrayList<>();
+        for (int f = 0; f < 4; f++) {
+            TreeMap<String, List<Entry>> contents = new TreeMap<>();
+            for (int k = 0; k < 12; k++) contents.put(keyString(k), List.of(new Entry(0, Entry.FLAG_PUT, key(k), bytes("x".repeat(60)))));
+            alike.add(table(dir, tables, "sst-" + (f + 11) + ".sst", contents, 100L * f));
+        }
+        List<byte[]> starts = alike.get(0).blockKeys();
+        check(starts.size() == 2, "alike tables have " + starts.size() + " blocks");
+        for (int n = 2; n <= 8; n++) {
+            List<byte[]> bounds = Compaction.boundaries(alike, n);
+            check(bounds.size() == 1 && Arrays.equals(bounds.get(0), starts.get(1)), n + " ranges over alike tables split at " + bounds.size() + " keys");
+        }
+        tables.close();
+    }
+
+    /**
+     * An L0 -> L1 job with snapshots held and tombstones at the bottom, run in one piece and split
+     * four ways: both write exactly the versions retention keeps, the split outputs form one sorted
+     * run with no file across a split key.
+     */
+    private static void job(Path dir, ExecutorService pool) throws IOException {
+        Options options = small(dir);
+        options.targetFileSizeBytes = 2048;
+        Files.createDirectories(options.sstDir);
+        TableCache tables = new TableCache(100, false);
+        Version version = inputs(options.sstDir, tables, new Random(20));
+        Compaction job = Compaction.pick(version, options, new byte[options.numLevels][], Long.MAX_VALUE);
+        check(job != null && job.level == 0 && job.upper.size() == 4 && job.lower.size() == 2 && job.bottommost, "unexpected job");
+        List<String> expected = retained(job.inputs(), tables);
+
+        options.maxSubcompactions = 1;
+        Compaction.Result single = job.run(options, new AtomicLong(1000)::getAndIncrement, pool, SNAPSHOTS);
+        options.maxSubcompactions = 4;
+        Compaction.Result split = job.run(options, new AtomicLong(2000)::getAndIncrement, pool, SNAPSHOTS);
+        List<byte[]> bounds = Compaction.boundaries(job.inputs(), 4);
+        check(bounds.size() == 3, "the job was not split: " + bounds.size());
+        for (Compaction.Result result : List.of(single, split)) {
+            check(contents(options.sstDir, result.files(), tables).equals(expected), "outputs differ from the retained versions");
+            for (int i = 1; i < result.files().size(); i++) {
+                check(ByteArrays.compare(result.files().get(i - 1).largestKey(), result.files().get(i).smallestKey()) < 0, "outputs overlap or are out of order");
+            }
+        }
+        for (FileMeta file : split.files()) {
+            for (byte[] bound : bounds) {
+                check(!(ByteArrays.compare(file.smallestKey(), bound) < 0 && ByteArrays.compare(file.largestKey(), bound) >= 0),
+                        file.name() + " spans a split key");
+            }
+        }
+        check(split.files().size() >= single.files().size(), "the split run wrote fewer files");
+        tables.close();
+    }
+
+    /** One range reading a corrupt block fails the whole job, and nothing any range wrote is left behind. */
+    private static void failedRange(Path dir, ExecutorService pool) throws IOException {
+        Options options = small(dir);
+        options.targetFileSizeBytes = 2048;
+        options.maxSubcompactions = 4;
+        Files.createDirectories(options.sstDir);
+        TableCache tables = new TableCache(100, false);
+        Version version = inputs(options.sstDir, tables, new Random(21));
+        Compaction job = Compaction.pick(version, options, new byte[options.numLevels][], Long.MAX_VALUE);
+        List<byte[]> bounds = Compaction.boundaries(job.inputs(), 4);
+        // a value in the last range, so the ranges before it have written their outputs by the time it fails
+        SstReader target = job.lower.get(job.lower.size() - 1);
+        byte[] victim = null;
+        try (EntryIterator it = target.iterator(false)) {
+            for (it.seek(bounds.get(bounds.size() - 1)); it.valid() && victim == null; it.next()) {
+                if (it.entry().value() != null) victim = it.entry().value();
+            }
+        }
+        check(victim != null, "no value to corrupt");
+        corrupt(target.path(), victim);
+        List<String> before = files(options.sstDir, "");
+        try {
+            job.run(options, new AtomicLong(1000)::getAndIncrement, pool, SNAPSHOTS);
+            throw new AssertionError("a job over a corrupt block succeeded");
+        } catch (IOException expectedFailure) {
+            check(expectedFailure.getMessage().contains("corrupt block"), "unexpected failure " + expectedFailure);
+        }
+        check(files(options.sstDir, "").equals(before), "a failed job left files behind: " + files(options.sstDir, ""));
+        tables.close();
+    }
+
+    /**
+     * Twin stores, one compacting in one piece and one split four ways, take the same writes with
+     * snapshots held across compactions: both read back the model and the snapshots' views across
+     * reopens, and only the second ever starts a subcompaction thread.
+     */
+    private static void store(Path root) throws IOException {
+        for (int ways : new int[]{1, 4}) {
+            Options options = small(root.resolve("ways-" + ways));
+            options.maxSubcompactions = ways;
+            options.targetFileSizeBytes = 2048;
+            TreeMap<String, String> model = new TreeMap<>();
+            Random random = new Random(22);
+            boolean subcompacted = false;
+            for (int round = 0; round < 3; round++) {
+                try (LsmKvStore kv = new LsmKvStore(options)) {
+                    verify(kv, model, 2000);
+                    randomWrites(kv, model, random, 3000, 2000, 100);
+                    Snapshot snapshot = kv.getSnapshot();
+                    TreeMap<String, String> then = new TreeMap<>(model);
+                    randomWrites(kv, model, random, 6000, 2000, 100);
+                    verify(kv, snapshot, then, 2000);
+                    kv.releaseSnapshot(snapshot);
+                    verify(kv, model, 2000);
+                    subcompacted |= Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("subcompact"));
+                }
+                checkLevels(options);
+            }
+            try (LsmKvStore kv = new LsmKvStore(options)) {
+                verify(kv, model, 2000);
+            }
+            check(subcompacted == (ways > 1), ways + " ways: subcompaction threads " + (subcompacted ? "ran" : "never ran"));
+        }
+    }
+
+    /**
+     * Two L1 tables splitting keys [0, 600) and four overlapping L0 tables of newer writes, with
+     * several versions of most keys and some tombstones, laid out as a Version would hold them.
+     */
+    private static Version inputs(Path dir, TableCache tables, Random random) throws IOException {
+        long seq = 0;
+        List<SstReader> l1 = new ArrayList<>();
+        for (int half = 0; half < 2; half++) {
+            TreeMap<String, List<Entry>> contents = new TreeMap<>();
+            for (int op = 0; op < 700; op++) {
+                int k = half * 300 + random.nextInt(300);
+                contents.computeIfAbsent(keyString(k), x -> new ArrayList<>()).add(entry(k, random, (int) seq + op));
+            }
+            l1.add(table(dir, tables, "sst-" + (half + 1) + ".sst", contents, seq));
+            seq += 700;
+        }
+        List<SstReader> l0 = new ArrayList<>();
+        for (int f = 0; f < 4; f++) {
+            TreeMap<String, List<Entry>> contents = new TreeMap<>();
+            for (int op = 0; op < 300; op++) {
+                int k = random.nextInt(600);
+                contents.computeIfAbsent(keyString(k), x -> new ArrayList<>()).add(entry(k, random, (int) seq + op));
+            }
+            l0.add(0, table(dir, tables, "sst-" + (f + 11) + ".sst", contents, seq));     // newest first
+            seq += 300;
+        }
+        return new Version(List.of(l0, l1, List.of(), List.of()), Map.of());
+    }
+
+    private static Entry entry(int k, Random random, int op) {
+        return random.nextInt(6) == 0 ? new Entry(0, Entry.FLAG_DEL, key(k), null) : new Entry(0, Entry.FLAG_PUT, key(k), bytes(value(op, random, 80)));
+    }
+
+    /** A table of the entries in key order, each key's versions oldest first as listed, numbered from firstSeq + 1 in that order. */
+    private static SstReader table(Path dir, TableCache tables, String name, TreeMap<String, List<Entry>> contents, long firstSeq)
+            throws IOException {
+        List<Entry> sorted = new ArrayList<>();
+        long seq = firstSeq;
+        for (List<Entry> versions : contents.values()) {
+            List<Entry> numbered = new ArrayList<>();
+            for (Entry e : versions) numbered.add(new Entry(++seq, e.flag(), e.key(), e.value()));
+            Collections.reverse(numbered);
+            sorted.addAll(numbered);
+        }
+        // seqs are handed out per key, so they interleave across keys; they stay unique within and across files
+        try (SstWriter writer = new SstWriter(dir, name, 512, 16, Compression.NONE, 10)) {
+            for (Entry e : sorted) writer.add(e);
+            writer.finish();
+            writer.install();
+        }
+        return new SstReader(dir.resolve(name), null, tables);
+    }
+
+    /**
+     * What the job must write, worked out directly: per key the newest version in each snapshot's
+     * stripe, less tombstones every reader sees (nothing lies below this bottommost job).
+     */
+    private static List<String> retained(List<SstReader> inputs, TableCache tables) throws IOException {
+        TreeMap<String, List<Entry>> byKey = new TreeMap<>();
+        for (SstReader reader : inputs) {
+            try (EntryIterator it = reader.iterator(false)) {
+                for (it.seekToFirst(); it.valid(); it.next()) {
+                    byKey.computeIfAbsent(new String(it.entry().key(), StandardCharsets.UTF_8), x -> new ArrayList<>()).add(it.entry());
+                }
+            }
+        }
+        List<String> out = new ArrayList<>();
+        for (List<Entry> versions : byKey.values()) {
+            versions.sort(Comparator.comparingLong(Entry::seq).reversed());
+            int lastStripe = -1;
+            for (Entry e : versions) {
+                int stripe = 0;
+                while (stripe < SNAPSHOTS.length && SNAPSHOTS[stripe] < e.seq()) stripe++;
+                if (stripe == lastStripe) continue;
+                lastStripe = stripe;
+                if (stripe == 0 && e.flag() == Entry.FLAG_DEL) continue;
+                out.add(describe(e));
+            }
+        }
+        return out;
+    }
+
+    private static List<String> contents(Path dir, List<FileMeta> files, TableCache tables) throws IOException {
+        List<String> out = new ArrayList<>();
+        for (FileMeta file : files) {
+            SstReader reader = new SstReader(dir.resolve(file.name()), null, tables);
+            try (EntryIterator it = reader.iterator(false)) {
+                for (it.seekToFirst(); it.valid(); it.next()) out.add(describe(it.entry()));
+            }
+        }
+        return out;
+    }
+
+    private static String describe(Entry e) {
+        return new String(e.key(), StandardCharsets.UTF_8) + "@" + e.seq() + (e.value() == null ? " deleted" : "=" + new String(e.value(), StandardCharsets.UTF_8));
+    }
+
+    /** Flip a byte of the one place the value is stored in an uncompressed table. */
+    private static void corrupt(Path path, byte[] value) throws IOException {
+        byte[] file = Files.readAllBytes(path);
+        int at = -1;
+        for (int i = 0; i + value.length <= file.length && at < 0; i++) {
+            if (Arrays.equals(file, i, i + value.length, value, 0, value.length)) at = i;
+        }
+        check(at >= 0, "value not found in " + path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (file[at] ^ 0x5a)}), at);
+        }
+    }
+
+    private static int firstAtOrPast(List<byte[]> sorted, byte[] key) {
+        int i = 0;
+        while (i < sorted.size() && ByteArrays.compare(sorted.get(i), key) < 0) i++;
+        return i;
+    }
+}
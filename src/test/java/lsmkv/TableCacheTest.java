@@ -0,0 +1,102 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static lsmkv.StoreChecks.*;
+
+public class TableCacheTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("table-cache");
+        try {
+            fewOpenFiles(root.resolve("store"));
+            failedCompaction(root.resolve("compaction"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** A store with far more files than maxOpenFiles, read through a cache that keeps evicting. */
+    private static void fewOpenFiles(Path root) throws IOException {
+        Options options = small(root);
+        options.maxOpenFiles = 2;
+        options.blockCacheBytes = 0;    // every lookup goes to a table
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(12);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            randomWrites(kv, model, random, 8000, 1500, 100);
+            verify(kv, model, 1500);
+        }
+        check(files(options.sstDir, ".sst").size() > options.maxOpenFiles, "expected more files than maxOpenFiles");
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 1500);
+        }
+    }
+
+    /**
+     * A compaction failing mid-merge must hand back exactly the table references it took: a reader
+     * pinning one of its inputs keeps reading after the cache evicts that table, and releasing the
+     * Version afterwards leaves no table open.
+     */
+    private static void failedCompaction(Path root) throws IOException {
+        Options options = new Options(root, 1 << 20, 3, 1 << 20, 10, 256, 10, 1, 1);
+        options.numLevels = 3;
+        options.maxSubcompactions = 1;
+        Files.createDirectories(options.sstDir);
+        TableCache tables = new TableCache(3, false);
+        SstReader older = table(options, tables, 1, 0, 1, "old");      // L1: every key
+        SstReader evens = table(options, tables, 2, 0, 2, "even");     // L0: every other key, newer
+        SstReader odds = table(options, tables, 3, 1, 2, "odd");
+        Version version = new Version(List.of(List.of(odds, evens), List.of(older), List.of()), Map.of());
+
+        EntryIterator pinned = older.iterator(false);
+        pinned.seekToFirst();
+        Compaction compaction = Compaction.pick(version, options, new byte[3][], Long.MAX_VALUE);
+        check(compaction != null && compaction.inputs().size() == 3, "expected an L0 compaction over all three files");
+        try {
+            compaction.run(options, () -> {
+                throw new UncheckedIOException(new IOException("no space left"));
+            }, null, new long[0]);
+            throw new AssertionError("compaction should have failed");
+        } catch (UncheckedIOException expected) {
+        }
+        check(files(options.sstDir, ".sst").size() == 3, "a failed compaction left files behind");
+
+        // after lookups in the other two inputs, opening a fourth file evicts the pinned table
+        check("even".equals(string(evens.get(key(0)).map(Entry::value))), "read through an L0 input");
+        check("odd".equals(string(odds.get(key(1)).map(Entry::value))), "read through an L0 input");
+        SstReader other = table(options, tables, 4, 0, 1, "other");
+        tables.evict(other.path());
+        Files.delete(other.path());
+        int count = 0;
+        for (; pinned.valid(); pinned.next()) {
+            check(pinned.entry().key().length == 6 && "old".equals(new String(pinned.entry().value())), "pinned iterator entry");
+            count++;
+        }
+        check(count == 400, "pinned iterator saw " + count + " of 400 entries");
+        pinned.close();
+        pinned.close();     // closing twice is harmless
+
+        version.unref();
+        check(tables.openFiles() == 0, "tables still open after the Version was released: " + tables.openFiles());
+        check(files(options.sstDir, ".sst").isEmpty(), "released files not deleted");
+    }
+
+    /** keys first, first + step, ... below 400, with the value given, in sst-number.sst. */
+    private static SstReader table(Options options, TableCache tables, int number, int first, int step, String value)
+            throws IOException {
+        try (SstWriter writer = new SstWriter(options.sstDir, "sst-" + number + ".sst", options.sstBlockSizeBytes,
+                options.sstRestartInterval, Compression.NONE, options.bloomBitsPerKey)) {
+            for (int i = first; i < 400; i += step) writer.add(new Entry(number * 1000L + i, Entry.FLAG_PUT, key(i), bytes(value)));
+            writer.finish();
+            return new SstReader(writer.install(), null, tables);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static lsmkv.StoreChecks.*;
+
+public class ValueLogTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("value-log");
+        try {
+            garbageCollection(root.resolve("gc"));
+            for (int calls = 1; calls <= 7; calls += 2) {     // the whole job takes 9
+                failedCompaction(root.resolve("single-" + calls), 1, calls);
+                failedCompaction(root.resolve("split-" + calls), 2, calls);
+            }
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Values overwritten after their tables settled below L0 leave value logs mostly garbage that
+     * no size-driven compaction would reach again; the store rewrites the tables pointing into them
+     * until no log is past valueLogGcRatio, and every value still reads back, also after a reopen.
+     */
+    private static void garbageCollection(Path root) throws Exception {
+        Options options = small(root);
+        options.valueLogMinBytes = 100;
+        options.valueLogFileBytes = 16 * 1024;
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(24);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 0; i < 800; i++) {
+                String v = value(i, random, 400) + "-separated".repeat(12);
+                kv.put(key(i), bytes(v));
+                model.put(keyString(i), v);
+            }
+            // small values stay inline: the old pointers become garbage and nothing new is logged
+            for (int round = 0; round < 3; round++) {
+                for (int i = round; i < 800; i += 3) {
+                    String v = "inline-" + round + "-" + i;
+                    kv.put(key(i), bytes(v));
+                    model.put(keyString(i), v);
+                }
+            }
+            ValueLogStats stats = settle(kv);
+            check(stats.filesOverGcRatio() == 0, "value logs past the GC ratio were never collected: " + stats);
+            check(stats.maxGarbageRatio() < options.valueLogGcRatio && stats.relocatedBytes() > 0, "no value log collected: " + stats);
+            verify(kv, model, 800);
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 800);
+            ValueLogStats stats = kv.valueLogStats();
+            check(stats.filesOverGcRatio() == 0, "garbage counts lost on reopen: " + stats);
+            check(files(options.sstDir, ".vlog").size() == stats.files(), "collected value logs still on disk: " + files(options.sstDir, ".vlog"));
+        }
+    }
+
+    /** The value-log stats once background compaction has left them unchanged for a second, within a minute. */
+    private static ValueLogStats settle(LsmKvStore kv) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        ValueLogStats stats = kv.valueLogStats();
+        for (int unchanged = 0; unchanged < 20 && System.nanoTime() < deadline; ) {
+            Thread.sleep(50);
+            ValueLogStats next = kv.valueLogStats();
+            unchanged = next.equals(stats) ? unchanged + 1 : 0;
+            stats = next;
+        }
+        return stats;
+    }
+
+    /**
+     * A compaction separating values into value logs that fails once it has taken the given number
+     * of file numbers leaves no value log, SST or temp file behind, whether it ran as one merge or
+     * as subcompactions.
+     */
+    private static void failedCompaction(Path root, int subcompactions, int calls) throws IOException {
+        Options options = new Options(root, 1 << 20, 3, 1 << 20, 10, 1024, 10, 1, 1);
+        options.numLevels = 3;
+        options.valueLogMinBytes = 64;
+        options.valueLogFileBytes = 8 * 1024;
+        options.maxSubcompactions = subcompactions;
+        options.targetFileSizeBytes = subcompactions == 1 ? 1 << 20 : 16 * 1024;
+        Files.createDirectories(options.sstDir);
+        TableCache tables = new TableCache(10, false);
+        SstReader older = table(options, tables, 1, "old");
+        SstReader newer = table(options, tables, 2, "new");
+        Version version = new Version(List.of(List.of(newer, older), List.of(), List.of()), Map.of());
+
+        Compaction compaction = Compaction.pick(version, options, new byte[3][], Long.MAX_VALUE);
+        check(compaction != null && compaction.inputs().size() == 2, "expected an L0 compaction over both files");
+        AtomicInteger taken = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(subcompactions);
+        try {
+            compaction.run(options, () -> {
+                if (taken.incrementAndGet() > calls) throw new UncheckedIOException(new IOException("no space left"));
+                return 100 + taken.get();
+            }, pool, new long[0]);
+            throw new AssertionError("compaction should have failed");
+        } catch (UncheckedIOException expected) {
+        } finally {
+            pool.shutdown();
+        }
+        List<String> left = files(options.sstDir, "");
+        check(left.equals(List.of("sst-1.sst", "sst-2.sst")), "a compaction failing after " + calls + " file numbers left " + left);
+        version.unref();
+    }
+
+    /** 300 keys, each with a value of about 200 bytes, in sst-number.sst. */
+    private static SstReader table(Options options, TableCache tables, int number, String value) throws IOException {
+        try (SstWriter writer = new SstWriter(options.sstDir, "sst-" + number + ".sst", options.sstBlockSizeBytes,
+                options.sstRestartInterval, Compression.NONE, options.bloomBitsPerKey)) {
+            for (int i = 0; i < 300; i++) writer.add(new Entry(number * 1000L + i, Entry.FLAG_PUT, key(i), bytes(value + i + "x".repeat(200))));
+            writer.finish();
+            return new SstReader(writer.install(), null, tables);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static lsmkv.StoreChecks.*;
+
+public class WalTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("wal");
+        try {
+            Path dir = root.resolve("wal");
+            Files.createDirectories(dir);
+
+            // small segments: 2000 records roll over many times
+            Wal wal = new Wal(dir, 1 << 20, 10, false, 4096);
+            for (long seq = 1; seq <= 2000; seq++) wal.append(record(seq));
+            int segments = wal.segmentCount();
+            check(segments > 10, "expected the log to roll over, got " + segments + " segments");
+            check(files(dir, ".log").size() == segments, "segmentCount disagrees with the directory");
+
+            // truncation deletes only whole segments below the durable seq, never the active one
+            wal.truncateUpTo(1000);
+            int kept = wal.segmentCount();
+            check(kept < segments && kept > 1, "truncation kept " + kept + " of " + segments + " segments");
+            check(files(dir, ".log").size() == kept, "truncated segments still on disk");
+            wal.close();
+
+            // a torn record at the tail is dropped on replay
+            List<String> names = files(dir, ".log");
+            try (FileChannel last = FileChannel.open(dir.resolve(names.get(names.size() - 1)), StandardOpenOption.WRITE)) {
+                last.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7}), last.size());
+            }
+            wal = new Wal(dir, 1 << 20, 10, false, 4096);
+            List<Entry> replayed = new ArrayList<>();
+            wal.replay(1, replayed::add);
+            long first = replayed.get(0).seq();
+            check(first > 1 && first <= 1001, "truncation deleted nothing or cut into live records: first seq " + first);
+            checkRecords(replayed, first, 2000);
+
+            // the reopened log keeps appending in seq order; the segments it replayed can now be truncated
+            for (long seq = 2001; seq <= 2500; seq++) wal.append(record(seq));
+            int before = wal.segmentCount();
+            wal.truncateUpTo(2400);
+            check(wal.segmentCount() < before && files(dir, ".log").size() == wal.segmentCount(), "replayed segments were not truncated");
+            wal.close();
+
+            List<Entry> sequential = replay(dir, 1);
+            first = sequential.get(0).seq();
+            check(first > 2000 && first <= 2401, "truncation deleted too much or too little: first seq " + first);
+            checkRecords(sequential, first, 2500);
+            checkRecords(replay(dir, 4), first, 2500);
+
+            emptyValues(root.resolve("empty"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** A put of an empty value replays as an empty value, alone and in a batch, not as a missing one. */
+    private static void emptyValues(Path root) throws IOException {
+        Options options = new Options(root, 1 << 20, 3, 1 << 20, 10, 1024, 10, 1, 4);
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            kv.put(key(1), new byte[0]);
+            kv.write(new WriteBatch().put(key(2), new byte[0]).delete(key(3)).put(key(4), bytes("x")));
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            for (int i = 1; i <= 4; i++) {
+                String expected = i == 3 ? null : i == 4 ? "x" : "";
+                check(Objects.equals(string(kv.read(key(i))), expected), "replayed " + keyString(i) + " reads " + string(kv.read(key(i))));
+            }
+        }
+    }
+
+    private static Entry record(long seq) {
+        return new Entry(seq, Entry.FLAG_PUT, key((int) (seq % 300)), bytes("value-" + seq + "-" + "x".repeat((int) (seq % 40))));
+    }
+
+    private static List<Entry> replay(Path dir, int threads) throws IOException {
+        List<Entry> out = new ArrayList<>();
+        Wal wal = new Wal(dir, 1 << 20, 10, false, 4096);
+        try {
+            wal.replay(threads, out::add);
+        } finally {
+            wal.close();
+        }
+        return out;
+    }
+
+    private static void checkRecords(List<Entry> entries, long first, long last) {
+        check(entries.size() == last - first + 1, "expected seqs " + first + ".." + last + ", got " + entries.size() + " records");
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Entry expected = record(first + i);
+            check(entry.seq() == expected.seq() && entry.flag() == expected.flag() && Arrays.equals(entry.key(), expected.key())
+                    && Arrays.equals(entry.value(), expected.value()), "record " + i + " is seq " + entry.seq());
+        }
+    }
+}
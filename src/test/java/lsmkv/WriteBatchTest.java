@@ -0,0 +1,140 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static lsmkv.StoreChecks.*;
+
+public class WriteBatchTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("write-batch");
+        try {
+            tornTail(root);
+            visibleAtomically(root.resolve("atomic"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Batches of puts and deletes, then copies of the directory as a crash would leave it, each with
+     * the log cut at a different point: a copy reopens to exactly the batches wholly before the cut,
+     * never to part of one.
+     */
+    private static void tornTail(Path root) throws IOException {
+        Options options = new Options(root.resolve("store"), 64 * 1024 * 1024, 3, 1 << 20, 10, 1024, 10, 2, 4);
+        int keys = 400;
+        int batches = 30;
+        List<TreeMap<String, String>> models = new ArrayList<>();   // the store after b batches
+        List<Long> logBytes = new ArrayList<>();                   // the log's length after b batches
+        Path segment;
+        Path crashed = root.resolve("crashed");
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            List<String> logs = files(options.walDir, ".log");
+            check(logs.size() == 1, "expected one log segment, got " + logs);
+            segment = options.walDir.resolve(logs.get(0));
+            Random random = new Random(5);
+            TreeMap<String, String> model = new TreeMap<>();
+            models.add(new TreeMap<>(model));
+            logBytes.add(Files.size(segment));
+            for (int b = 0; b < batches; b++) {
+                WriteBatch batch = new WriteBatch();
+                for (int op = 0; op < 20 + random.nextInt(60); op++) {
+                    int i = random.nextInt(keys);
+                    if (random.nextInt(4) == 0) {
+                        batch.delete(key(i));
+                        model.remove(keyString(i));
+                    } else {
+                        String v = "b" + b + "-" + value(op, random, 64);
+                        batch.put(key(i), bytes(v));
+                        model.put(keyString(i), v);
+                    }
+                }
+                kv.write(batch);
+                models.add(new TreeMap<>(model));
+                logBytes.add(Files.size(segment));
+            }
+            copyTree(options.rootDir, crashed);
+        }
+        Path crashedSegment = crashed.resolve(options.rootDir.relativize(segment).toString());
+        byte[] log = Files.readAllBytes(crashedSegment);
+        check(log.length == logBytes.get(batches), "the copy's log is " + log.length + " bytes, expected " + logBytes.get(batches));
+
+        Random random = new Random(6);
+        for (int b = batches; b > 0; b -= 1 + random.nextInt(4)) {
+            long start = logBytes.get(b - 1);
+            long end = logBytes.get(b);
+            // on the boundary after batch b, then anywhere inside its record
+            for (long cut : new long[]{end, start + 1 + random.nextInt((int) (end - start - 1))}) {
+                Path copy = root.resolve("cut-" + cut);
+                copyTree(crashed, copy);
+                try (FileChannel channel = FileChannel.open(copy.resolve(options.rootDir.relativize(segment).toString()), StandardOpenOption.WRITE)) {
+                    channel.truncate(cut);
+                }
+                TreeMap<String, String> expected = models.get(cut == end ? b : b - 1);
+                try (LsmKvStore kv = new LsmKvStore(options.withRootDir(copy))) {
+                    verify(kv, expected, keys);
+                }
+                try (LsmKvStore kv = new LsmKvStore(options.withRootDir(copy))) {   // the replayed state was made durable
+                    verify(kv, expected, keys);
+                }
+                deleteRecursively(copy);
+            }
+        }
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, models.get(batches), keys);
+        }
+    }
+
+    /** A reader never sees part of a batch: every batch sets all its keys to one value. */
+    private static void visibleAtomically(Path root) throws Exception {
+        Options options = small(root);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) keys.add(key(i * 7));
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            kv.write(batch(keys, 0));
+            Future<Integer> writes = writer.submit(() -> {
+                int round = 1;
+                for (; !stop.get(); round++) kv.write(batch(keys, round));
+                return round;
+            });
+            for (int check = 0; check < 2000; check++) {
+                List<Optional<byte[]>> values = kv.multiGet(keys);
+                String first = string(values.get(0));
+                for (Optional<byte[]> value : values) check(first != null && first.equals(string(value)), "saw part of a batch: " + first + " and " + string(value));
+                Snapshot snapshot = kv.getSnapshot();
+                List<String> scanned = scan(kv, ScanOptions.all(), snapshot);
+                kv.releaseSnapshot(snapshot);
+                String value = scanned.get(0).substring(scanned.get(0).indexOf('=') + 1);
+                for (String line : scanned) check(line.endsWith("=" + value), "a scan saw part of a batch: " + value + " and " + line);
+            }
+            stop.set(true);
+            check(writes.get(60, TimeUnit.SECONDS) > 2, "the writer hardly ran");
+        } finally {
+            stop.set(true);
+            writer.shutdown();
+        }
+    }
+
+    private static WriteBatch batch(List<byte[]> keys, int round) {
+        WriteBatch batch = new WriteBatch();
+        for (byte[] key : keys) batch.put(key, bytes("round-" + round + "-" + "x".repeat(40)));
+        return batch;
+    }
+}
@@ -0,0 +1,121 @@
+package lsmkv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static lsmkv.StoreChecks.*;
+
+public class WriteStallTest {
+    public static void main(String[] args) throws Exception {
+        Path root = newRoot("write-stall");
+        try {
+            controller(root);
+            reopenWithBacklog(root.resolve("backlog"));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.println("OK");
+    }
+
+    /** Writers block while stopped until the backlog clears, and are paced at the delayed rate. */
+    private static void controller(Path root) throws Exception {
+        Options options = new Options(root, 1024, 3, 1 << 20, 10, 1024, 10, 1, 2);
+        options.l0SlowdownTrigger = 2;
+        options.l0StopTrigger = 4;
+        options.delayedWriteRateBytes = 1024 * 1024;
+        WriteController controller = new WriteController(options);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            controller.update(4, 0, 0);
+            Future<?> write = writer.submit(() -> {
+                controller.beforeWrite(10);
+                return null;
+            });
+            Thread.sleep(200);
+            check(!write.isDone(), "a write went through while L0 was at the stop trigger");
+            controller.update(1, 0, 0);
+            write.get(10, TimeUnit.SECONDS);
+            check(controller.stats().stopCount() == 1, "stop not counted: " + controller.stats());
+
+            controller.update(0, 3, 0);     // maxImmutables memtables waiting for flush stop writes too
+            write = writer.submit(() -> {
+                controller.beforeWrite(10);
+                return null;
+            });
+            Thread.sleep(200);
+            check(!write.isDone(), "a write went through with every memtable waiting for flush");
+            controller.close();     // close releases stalled writers
+            write.get(10, TimeUnit.SECONDS);
+        } finally {
+            writer.shutdownNow();
+        }
+
+        WriteController paced = new WriteController(options);
+        paced.update(2, 0, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) paced.beforeWrite(100 * 1024);
+        long elapsed = System.nanoTime() - start;
+        // 400 KB at 1 MB/s, the first write admitted at once
+        check(elapsed >= TimeUnit.MILLISECONDS.toNanos(250), "delayed writes not paced: " + elapsed / 1_000_000 + " ms");
+        check(paced.stats().delayCount() >= 3 && paced.stats().stopCount() == 0, "delays not counted: " + paced.stats());
+    }
+
+    /**
+     * A store closed with more L0 files than l0StopTrigger allows must still open: the records
+     * replayed from the log stall like any write until compaction brings L0 back down.
+     */
+    private static void reopenWithBacklog(Path root) throws Exception {
+        Options piling = new Options(root, 8 * 1024, 3, 1 << 20, 10, 1024, 10, 2, 100);   // L0 never compacted
+        piling.l0SlowdownTrigger = 100;
+        piling.l0StopTrigger = 100;
+        TreeMap<String, String> model = new TreeMap<>();
+        try (LsmKvStore kv = new LsmKvStore(piling)) {
+            randomWrites(kv, model, new Random(6), 3000, 500, 64);
+        }
+        int l0 = l0Files(root);
+        Options options = small(root);
+        check(l0 > options.l0StopTrigger, "expected an L0 backlog, got " + l0 + " files");
+
+        ExecutorService opener = Executors.newSingleThreadExecutor();
+        try {
+            Future<LsmKvStore> open = opener.submit(() -> new LsmKvStore(options));
+            LsmKvStore kv;
+            try {
+                kv = open.get(60, TimeUnit.SECONDS);
+            } catch (TimeoutException ex) {
+                throw new AssertionError("open did not finish with " + l0 + " L0 files");
+            }
+            try {
+                verify(kv, model, 500);
+                randomWrites(kv, model, new Random(7), 2000, 500, 64);
+                verify(kv, model, 500);
+            } finally {
+                kv.close();
+            }
+        } finally {
+            opener.shutdownNow();
+        }
+        check(l0Files(root) < l0, "L0 backlog not compacted: " + l0Files(root) + " files");
+        try (LsmKvStore kv = new LsmKvStore(options)) {
+            verify(kv, model, 500);
+        }
+    }
+
+    private static int l0Files(Path root) throws IOException {
+        Manifest manifest = new Manifest(root);
+        try {
+            List<List<FileMeta>> levels = manifest.load().levels();
+            return levels.isEmpty() ? 0 : levels.get(0).size();
+        } finally {
+            manifest.close();
+        }
+    }
+}